@@ -0,0 +1,60 @@
+package be.panako.benchmarks;
+
+import be.panako.strategy.olaf.OlafEventPointProcessor;
+import be.panako.util.Config;
+import be.panako.util.Key;
+import be.tarsos.dsp.AudioEvent;
+import be.tarsos.dsp.io.TarsosDSPAudioFormat;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the scalar and the Vector API implementation of OLAF event point extraction
+ * (magnitudes and peak detection) on ten seconds of synthetic audio.
+ * The vector implementation is only used when the JVM has the jdk.incubator.vector module,
+ * otherwise both parameters measure the scalar implementation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class OlafEventPointBenchmark {
+
+    private static final double SECONDS = 10;
+
+    @Param({"TRUE", "FALSE"})
+    public String vectorApi;
+
+    private float[][] frames;
+    private AudioEvent audioEvent;
+    private OlafEventPointProcessor processor;
+
+    @Setup
+    public void setup() {
+        Config.set(Key.OLAF_VECTOR_API, vectorApi);
+        int sampleRate = Config.getInt(Key.OLAF_SAMPLE_RATE);
+        int size = Config.getInt(Key.OLAF_SIZE);
+        int stepSize = Config.getInt(Key.OLAF_STEP_SIZE);
+
+        frames = SyntheticAudio.frames(SyntheticAudio.pcm(sampleRate, SECONDS, 0L), size, stepSize);
+        audioEvent = new AudioEvent(new TarsosDSPAudioFormat(sampleRate, 16, 1, true, false));
+        processor = new OlafEventPointProcessor(size);
+    }
+
+    /**
+     * FFT, max filters and peak picking for all frames.
+     */
+    @Benchmark
+    public void process(Blackhole bh) {
+        processor.reset();
+        for (float[] frame : frames) {
+            audioEvent.setFloatBuffer(frame);
+            processor.process(audioEvent);
+        }
+        bh.consume(processor.getEventPoints().size());
+    }
+}
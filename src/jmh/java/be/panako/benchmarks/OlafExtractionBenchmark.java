@@ -0,0 +1,129 @@
+package be.panako.benchmarks;
+
+import be.panako.strategy.olaf.OlafEventPoint;
+import be.panako.strategy.olaf.OlafEventPointProcessor;
+import be.panako.strategy.olaf.OlafFingerprint;
+import be.panako.strategy.olaf.OlafFingerprintPacker;
+import be.panako.util.Config;
+import be.panako.util.Key;
+import be.tarsos.dsp.AudioEvent;
+import be.tarsos.dsp.io.TarsosDSPAudioFormat;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the OLAF extraction steps on ten seconds of synthetic audio:
+ * spectral peak picking, packing event points into fingerprints and hashing.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class OlafExtractionBenchmark {
+
+    private static final double SECONDS = 10;
+
+    /**
+     * The number of frames of a one second jingle.
+     */
+    private int jingleFrames;
+    private int size;
+
+    private float[][] frames;
+    private AudioEvent audioEvent;
+    private OlafEventPointProcessor processor;
+    private OlafEventPointProcessor reusedProcessor;
+    private List<OlafEventPoint> eventPoints;
+    private List<OlafFingerprint> fingerprints;
+
+    @Setup
+    public void setup() {
+        Config.set(Key.OLAF_EPS_PER_FP, "3");
+        int sampleRate = Config.getInt(Key.OLAF_SAMPLE_RATE);
+        size = Config.getInt(Key.OLAF_SIZE);
+        int stepSize = Config.getInt(Key.OLAF_STEP_SIZE);
+
+        frames = SyntheticAudio.frames(SyntheticAudio.pcm(sampleRate, SECONDS, 0L), size, stepSize);
+        jingleFrames = sampleRate / stepSize;
+        audioEvent = new AudioEvent(new TarsosDSPAudioFormat(sampleRate, 16, 1, true, false));
+        processor = new OlafEventPointProcessor(size);
+        reusedProcessor = new OlafEventPointProcessor(size);
+
+        //extract event points and fingerprints once, as input for the other benchmarks
+        extract();
+        processor.processingFinished();
+        eventPoints = new ArrayList<>(processor.getEventPoints());
+        fingerprints = new ArrayList<>(processor.getFingerprints());
+    }
+
+    private void extract() {
+        processor.reset();
+        for (float[] frame : frames) {
+            audioEvent.setFloatBuffer(frame);
+            processor.process(audioEvent);
+        }
+    }
+
+    /**
+     * FFT, max filters and peak picking for all frames.
+     */
+    @Benchmark
+    public void process(Blackhole bh) {
+        extract();
+        bh.consume(processor.getEventPoints().size());
+    }
+
+    /**
+     * Extracts fingerprints from ten one second jingles with a new processor for each jingle.
+     */
+    @Benchmark
+    public void newProcessorPerJingle(Blackhole bh) {
+        for (int jingle = 0; jingle < SECONDS; jingle++) {
+            processJingle(new OlafEventPointProcessor(size, bh::consume), jingle);
+        }
+    }
+
+    /**
+     * Extracts fingerprints from ten one second jingles with one processor which is reset for each jingle.
+     */
+    @Benchmark
+    public void resetProcessorPerJingle(Blackhole bh) {
+        for (int jingle = 0; jingle < SECONDS; jingle++) {
+            reusedProcessor.reset(bh::consume);
+            processJingle(reusedProcessor, jingle);
+        }
+    }
+
+    private void processJingle(OlafEventPointProcessor jingleProcessor, int jingle) {
+        for (int i = jingle * jingleFrames; i < (jingle + 1) * jingleFrames && i < frames.length; i++) {
+            audioEvent.setFloatBuffer(frames[i]);
+            jingleProcessor.process(audioEvent);
+        }
+        jingleProcessor.processingFinished();
+    }
+
+    /**
+     * Combines the event points into fingerprints with three event points each.
+     */
+    @Benchmark
+    public void packEventPointsIntoFingerprintsThree(Blackhole bh) {
+        OlafFingerprintPacker packer = new OlafFingerprintPacker(bh::consume);
+        for (OlafEventPoint eventPoint : eventPoints) {
+            packer.add(eventPoint);
+        }
+        packer.flush();
+    }
+
+    @Benchmark
+    public void hash(Blackhole bh) {
+        for (OlafFingerprint print : fingerprints) {
+            bh.consume(print.hash());
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package be.panako.benchmarks;
+
+import be.panako.strategy.olaf.OlafMatch;
+import be.panako.strategy.olaf.storage.OlafHit;
+import be.panako.strategy.olaf.storage.OlafHitAccumulator;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the map based hit accumulation with object allocation per hit
+ * to the struct-of-arrays {@link OlafHitAccumulator}. Both variants collect the same synthetic hits,
+ * group them per resource and sort each group by query time, which is the work done in
+ * OlafStrategy.query before the actual matching.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class OlafHitAccumulatorBenchmark {
+
+    /** Number of query prints, a 25s query results in roughly 5000 prints. */
+    @Param({"5000"})
+    public int numberOfPrints;
+
+    /** Number of index hits per query print. */
+    @Param({"4", "40"})
+    public int hitsPerPrint;
+
+    /** Number of distinct resources the hits belong to. */
+    @Param({"1000"})
+    public int numberOfResources;
+
+    private long[] queryHashes;
+    private int[] queryTimes;
+    private long[] hitHashes;
+    private int[] hitTimes;
+    private int[] hitResources;
+
+    private final OlafHitAccumulator accumulator = new OlafHitAccumulator();
+    private long[] sortBuffer = new long[1024];
+
+    @Setup
+    public void setup() {
+        Random random = new Random(0L);
+        queryHashes = new long[numberOfPrints];
+        queryTimes = new int[numberOfPrints];
+        int numberOfHits = numberOfPrints * hitsPerPrint;
+        hitHashes = new long[numberOfHits];
+        hitTimes = new int[numberOfHits];
+        hitResources = new int[numberOfHits];
+        for (int i = 0; i < numberOfPrints; i++) {
+            queryHashes[i] = random.nextLong() >>> 16;
+            queryTimes[i] = i / 2;
+            for (int j = 0; j < hitsPerPrint; j++) {
+                int hit = i * hitsPerPrint + j;
+                hitHashes[hit] = queryHashes[i] + random.nextInt(5) - 2;
+                hitResources[hit] = random.nextInt(numberOfResources) * 7919;
+                hitTimes[hit] = random.nextInt(40_000);
+            }
+        }
+    }
+
+    @Benchmark
+    public void mapOfObjects(Blackhole bh) {
+        Map<Long, OlafFingerprintTime> printMap = new HashMap<>();
+        for (int i = 0; i < numberOfPrints; i++) {
+            printMap.put(queryHashes[i], new OlafFingerprintTime(queryTimes[i]));
+        }
+
+        Map<Long, List<OlafHit>> matchAccumulator = new HashMap<>();
+        for (int i = 0; i < numberOfPrints; i++) {
+            long originalKey = queryHashes[i];
+            for (int j = 0; j < hitsPerPrint; j++) {
+                int hit = i * hitsPerPrint + j;
+                if (!matchAccumulator.containsKey(originalKey))
+                    matchAccumulator.put(originalKey, new ArrayList<>());
+                matchAccumulator.get(originalKey).add(new OlafHit(originalKey, hitHashes[hit], hitTimes[hit], hitResources[hit]));
+            }
+        }
+
+        HashMap<Integer, List<OlafMatch>> hitsPerIdentifier = new HashMap<>();
+        matchAccumulator.forEach((fingerprintHash, dbHits) -> dbHits.forEach((dbHit) -> {
+            int identifier = dbHit.resourceID;
+            if (!hitsPerIdentifier.containsKey(identifier)) {
+                hitsPerIdentifier.put(identifier, new ArrayList<>());
+            }
+            OlafMatch match = new OlafMatch();
+            match.identifier = identifier;
+            match.matchTime = dbHit.t;
+            match.originalHash = dbHit.originalHash;
+            match.matchedNearHash = dbHit.matchedNearHash;
+            match.queryTime = printMap.get(fingerprintHash).t1;
+            hitsPerIdentifier.get(identifier).add(match);
+        }));
+
+        hitsPerIdentifier.forEach((identifier, hitList) -> {
+            hitList.sort((a, b) -> Integer.valueOf(a.queryTime).compareTo(b.queryTime));
+            bh.consume(hitList.get(0).deltaT());
+        });
+    }
+
+    @Benchmark
+    public void structOfArrays(Blackhole bh) {
+        accumulator.clear();
+        for (int i = 0; i < numberOfPrints; i++) {
+            accumulator.addQueryPrint(queryHashes[i], queryTimes[i]);
+        }
+
+        for (int i = 0; i < numberOfPrints; i++) {
+            long originalKey = queryHashes[i];
+            for (int j = 0; j < hitsPerPrint; j++) {
+                int hit = i * hitsPerPrint + j;
+                accumulator.add(originalKey, hitHashes[hit], hitTimes[hit], hitResources[hit]);
+            }
+        }
+
+        for (int group = 0; group < accumulator.numberOfResources(); group++) {
+            int hitCount = accumulator.hitCount(group);
+            if (sortBuffer.length < hitCount)
+                sortBuffer = new long[hitCount * 2];
+            accumulator.sortedHits(group, sortBuffer);
+            bh.consume(OlafHitAccumulator.deltaTOf(sortBuffer[0]));
+        }
+    }
+
+    /** Stands in for the fingerprint object kept per query hash in the map based variant. */
+    private static class OlafFingerprintTime {
+        final int t1;
+
+        OlafFingerprintTime(int t1) {
+            this.t1 = t1;
+        }
+    }
+}
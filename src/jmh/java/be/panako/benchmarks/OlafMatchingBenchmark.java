@@ -0,0 +1,64 @@
+package be.panako.benchmarks;
+
+import be.panako.strategy.QueryResult;
+import be.panako.strategy.olaf.OlafStrategy;
+import be.panako.strategy.olaf.storage.OlafHitAccumulator;
+import be.panako.util.Config;
+import be.panako.util.Key;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the OLAF matching step which follows the index lookup: the hits
+ * of a query are filtered per resource and converted to query results.
+ * The synthetic hits contain one true match between many random hits.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class OlafMatchingBenchmark {
+
+    /** The number of random resources with hits. */
+    @Param({"2000"})
+    public int numberOfResources;
+
+    private static final int NUMBER_OF_PRINTS = 5000;
+
+    private OlafStrategy strategy;
+    private final OlafHitAccumulator accumulator = new OlafHitAccumulator();
+
+    @Setup
+    public void setup() {
+        //metadata is retrieved from an empty in-memory storage
+        Config.set(Key.OLAF_STORAGE, "MEM");
+        Config.set(Key.OLAF_CACHE_TO_FILE, "FALSE");
+        strategy = new OlafStrategy();
+
+        Random random = new Random(0L);
+        for (int i = 0; i < NUMBER_OF_PRINTS; i++) {
+            long hash = random.nextLong() >>> 24;
+            int queryTime = i / 2;
+            accumulator.addQueryPrint(hash, queryTime);
+            //the true match, offset by 1000 blocks
+            if (i % 3 == 0)
+                accumulator.add(hash, hash, queryTime + 1000, 1);
+            //random hits
+            for (int j = 0; j < 8; j++) {
+                accumulator.add(hash, hash + 1, random.nextInt(40_000), 2 + random.nextInt(numberOfResources));
+            }
+        }
+    }
+
+    @Benchmark
+    public void matchHits(Blackhole bh) {
+        List<QueryResult> results = strategy.matchHits("query", accumulator);
+        bh.consume(results.size());
+    }
+}
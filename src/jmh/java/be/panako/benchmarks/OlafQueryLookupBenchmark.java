@@ -0,0 +1,104 @@
+package be.panako.benchmarks;
+
+import be.panako.strategy.olaf.storage.OlafHitAccumulator;
+import be.panako.strategy.olaf.storage.OlafQueryBatch;
+import be.panako.strategy.olaf.storage.OlafStorageKV;
+import be.panako.strategy.olaf.storage.OlafStoreBatch;
+import be.panako.util.Config;
+import be.panako.util.FileUtils;
+import be.panako.util.Key;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares looking up query hashes in ascending order with a single cursor to looking up each
+ * hash on its own, on a synthetic LMDB index of 10M fingerprints in a temporary folder.
+ * Building the index takes a while: it is done once per trial.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class OlafQueryLookupBenchmark {
+
+    /** The number of fingerprints in the synthetic index. */
+    @Param({"10000000"})
+    public int indexSize;
+
+    /** The number of prints in a query, about 20 seconds of audio. */
+    @Param({"1000", "5000"})
+    public int querySize;
+
+    /** Sorted lookup with a single cursor or a seek for each hash. */
+    @Param({"true", "false"})
+    public boolean sortedLookup;
+
+    /** The number of fingerprints of a single resource. */
+    private static final int PRINTS_PER_RESOURCE = 5000;
+
+    private String folder;
+    private OlafStorageKV storage;
+    private long[][] queries;
+    private int nextQuery;
+    private final Set<Integer> avoid = new HashSet<>();
+    private final OlafHitAccumulator accumulator = new OlafHitAccumulator();
+    private final OlafQueryBatch queryBatch = new OlafQueryBatch();
+
+    @Setup
+    public void setup() {
+        folder = FileUtils.combine(FileUtils.temporaryDirectory(), "olaf_jmh_lookup_" + System.nanoTime());
+        Config.set(Key.OLAF_LMDB_FOLDER, folder);
+        Config.set(Key.OLAF_QUERY_SORTED_LOOKUP, String.valueOf(sortedLookup).toUpperCase());
+        storage = new OlafStorageKV();
+
+        //hashes of stored fingerprints, to query a mix of present and absent hashes
+        Random random = new Random(0L);
+        long[] storedHashes = new long[querySize * 16];
+        int stride = indexSize / storedHashes.length;
+        OlafStoreBatch batch = new OlafStoreBatch();
+        for (int i = 0; i < indexSize; i++) {
+            long hash = random.nextLong() >>> 24;
+            batch.add(hash, i / PRINTS_PER_RESOURCE, i % PRINTS_PER_RESOURCE);
+            if (i % stride == 0 && i / stride < storedHashes.length)
+                storedHashes[i / stride] = hash;
+            if (batch.size() == PRINTS_PER_RESOURCE * 20) {
+                storage.store(batch);
+                batch.clear();
+            }
+        }
+        storage.store(batch);
+
+        queries = new long[16][querySize];
+        for (int q = 0; q < queries.length; q++) {
+            for (int i = 0; i < querySize; i++) {
+                queries[q][i] = i % 2 == 0 ? storedHashes[q * querySize + i] : random.nextLong() >>> 24;
+            }
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        storage.close();
+        FileUtils.rm(folder);
+    }
+
+    @Benchmark
+    public void query(Blackhole bh) {
+        long[] query = queries[nextQuery++ % queries.length];
+        accumulator.clear();
+        queryBatch.clear();
+        for (long hash : query) {
+            queryBatch.add(hash);
+            accumulator.addQueryPrint(hash, 0);
+        }
+        storage.query(queryBatch, accumulator, Config.getInt(Key.OLAF_QUERY_RANGE), avoid);
+        bh.consume(accumulator.size());
+    }
+}
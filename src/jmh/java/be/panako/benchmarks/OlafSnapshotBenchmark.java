@@ -0,0 +1,123 @@
+package be.panako.benchmarks;
+
+import be.panako.strategy.olaf.storage.OlafHitAccumulator;
+import be.panako.strategy.olaf.storage.OlafQueryBatch;
+import be.panako.strategy.olaf.storage.OlafStorage;
+import be.panako.strategy.olaf.storage.OlafStorageKV;
+import be.panako.strategy.olaf.storage.OlafStorageMapped;
+import be.panako.strategy.olaf.storage.OlafStoreBatch;
+import be.panako.util.Config;
+import be.panako.util.FileUtils;
+import be.panako.util.Key;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares query latency of the LMDB index with memory mapped snapshots of it, with plain and
+ * compressed postings, on a synthetic index of 10M fingerprints. The size of the LMDB file and of
+ * the snapshot are printed during setup. Resource identifiers are random, as for real file names.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class OlafSnapshotBenchmark {
+
+    /** The number of fingerprints in the synthetic index. */
+    @Param({"10000000"})
+    public int indexSize;
+
+    /** The number of prints in a query, about 20 seconds of audio. */
+    @Param({"1000"})
+    public int querySize;
+
+    /** The storage to query: LMDB, PLAIN or COMPRESSED snapshot. */
+    @Param({"LMDB", "PLAIN", "COMPRESSED"})
+    public String storageType;
+
+    /** The number of fingerprints of a single resource. */
+    private static final int PRINTS_PER_RESOURCE = 5000;
+
+    private String folder;
+    private OlafStorageKV lmdb;
+    private OlafStorage storage;
+    private long[][] queries;
+    private int nextQuery;
+    private final Set<Integer> avoid = new HashSet<>();
+    private final OlafHitAccumulator accumulator = new OlafHitAccumulator();
+    private final OlafQueryBatch queryBatch = new OlafQueryBatch();
+
+    @Setup
+    public void setup() throws IOException {
+        folder = FileUtils.combine(FileUtils.temporaryDirectory(), "olaf_jmh_snapshot_" + System.nanoTime());
+        Config.set(Key.OLAF_LMDB_FOLDER, folder);
+        lmdb = new OlafStorageKV();
+
+        //hashes of stored fingerprints, to query a mix of present and absent hashes
+        Random random = new Random(0L);
+        long[] storedHashes = new long[querySize * 16];
+        int stride = indexSize / storedHashes.length;
+        OlafStoreBatch batch = new OlafStoreBatch();
+        int resourceID = random.nextInt();
+        for (int i = 0; i < indexSize; i++) {
+            if (i % PRINTS_PER_RESOURCE == 0)
+                resourceID = random.nextInt();
+            long hash = random.nextLong() >>> 24;
+            batch.add(hash, resourceID, i % PRINTS_PER_RESOURCE);
+            if (i % stride == 0 && i / stride < storedHashes.length)
+                storedHashes[i / stride] = hash;
+            if (batch.size() == PRINTS_PER_RESOURCE * 20) {
+                lmdb.store(batch);
+                batch.clear();
+            }
+        }
+        lmdb.store(batch);
+
+        if (storageType.equals("LMDB")) {
+            storage = lmdb;
+            System.out.printf("%nLMDB file: %dMB%n", new File(folder, "data.mdb").length() / (1024 * 1024));
+        } else {
+            String snapshot = FileUtils.combine(folder, "index.snapshot");
+            Config.set(Key.OLAF_MMAP_COMPRESSED, String.valueOf(storageType.equals("COMPRESSED")).toUpperCase());
+            OlafStorageMapped.export(lmdb, snapshot);
+            storage = new OlafStorageMapped(snapshot);
+            System.out.printf("%n%s snapshot: %dMB, %.2f bytes per fingerprint%n", storageType,
+                    new File(snapshot).length() / (1024 * 1024), new File(snapshot).length() / (double) indexSize);
+        }
+
+        queries = new long[16][querySize];
+        for (int q = 0; q < queries.length; q++) {
+            for (int i = 0; i < querySize; i++) {
+                queries[q][i] = i % 2 == 0 ? storedHashes[q * querySize + i] : random.nextLong() >>> 24;
+            }
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        lmdb.close();
+        FileUtils.rm(folder);
+    }
+
+    @Benchmark
+    public void query(Blackhole bh) {
+        long[] query = queries[nextQuery++ % queries.length];
+        accumulator.clear();
+        queryBatch.clear();
+        for (long hash : query) {
+            queryBatch.add(hash);
+            accumulator.addQueryPrint(hash, 0);
+        }
+        storage.query(queryBatch, accumulator, Config.getInt(Key.OLAF_QUERY_RANGE), avoid);
+        bh.consume(accumulator.size());
+    }
+}
@@ -0,0 +1,105 @@
+package be.panako.benchmarks;
+
+import be.panako.strategy.olaf.storage.OlafHitAccumulator;
+import be.panako.strategy.olaf.storage.OlafQueryBatch;
+import be.panako.strategy.olaf.storage.OlafStorageKV;
+import be.panako.strategy.olaf.storage.OlafStoreBatch;
+import be.panako.util.Config;
+import be.panako.util.FileUtils;
+import be.panako.util.Key;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks storing and querying the LMDB key value store with a synthetic index
+ * in a temporary folder.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class OlafStorageKVBenchmark {
+
+    /** The number of resources in the synthetic index. */
+    @Param({"200"})
+    public int numberOfResources;
+
+    /** The number of fingerprints per resource, about three minutes of audio. */
+    @Param({"5000"})
+    public int printsPerResource;
+
+    /** The number of prints stored or queried per operation. */
+    private static final int BATCH_SIZE = 5000;
+
+    private String folder;
+    private OlafStorageKV storage;
+    private long[] queryHashes;
+    private long[] storeHashes;
+    private int nextResourceID;
+    private final Set<Integer> avoid = new HashSet<>();
+    private final OlafHitAccumulator accumulator = new OlafHitAccumulator();
+    private final OlafQueryBatch queryBatch = new OlafQueryBatch();
+    private final OlafStoreBatch storeBatch = new OlafStoreBatch();
+
+    @Setup
+    public void setup() {
+        folder = FileUtils.combine(FileUtils.temporaryDirectory(), "olaf_jmh_" + System.nanoTime());
+        Config.set(Key.OLAF_LMDB_FOLDER, folder);
+        storage = new OlafStorageKV();
+
+        Random random = new Random(0L);
+        queryHashes = new long[BATCH_SIZE];
+        for (int resource = 0; resource < numberOfResources; resource++) {
+            for (int i = 0; i < printsPerResource; i++) {
+                long hash = random.nextLong() >>> 24;
+                storeBatch.add(hash, resource, i);
+                //query a mix of present and absent hashes
+                if (resource == 0 && i < BATCH_SIZE)
+                    queryHashes[i] = i % 2 == 0 ? hash : random.nextLong() >>> 24;
+            }
+            storage.store(storeBatch);
+            storeBatch.clear();
+        }
+        nextResourceID = numberOfResources;
+
+        storeHashes = new long[BATCH_SIZE];
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            storeHashes[i] = random.nextLong() >>> 24;
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        storage.close();
+        FileUtils.rm(folder);
+    }
+
+    @Benchmark
+    public void query(Blackhole bh) {
+        accumulator.clear();
+        queryBatch.clear();
+        for (long hash : queryHashes) {
+            queryBatch.add(hash);
+            accumulator.addQueryPrint(hash, 0);
+        }
+        storage.query(queryBatch, accumulator, Config.getInt(Key.OLAF_QUERY_RANGE), avoid);
+        bh.consume(accumulator.size());
+    }
+
+    @Benchmark
+    public void store() {
+        int resourceID = nextResourceID++;
+        storeBatch.clear();
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            storeBatch.add(storeHashes[i] + resourceID, resourceID, i);
+        }
+        storage.store(storeBatch);
+    }
+}
@@ -0,0 +1,79 @@
+package be.panako.benchmarks;
+
+import be.panako.strategy.panako.PanakoFingerprint;
+import be.panako.util.Config;
+import be.panako.util.Key;
+import be.panako.util.LemireMinMaxFilter;
+import be.panako.util.VariableWindowMaxFilter;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the PANAKO fingerprint hash and the max filter used to find spectral peaks.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PanakoFingerprintBenchmark {
+
+    /** The number of frequency bins of a spectral frame. */
+    @Param({"512"})
+    public int numberOfBins;
+
+    private PanakoFingerprint[] fingerprints;
+    private float[] spectrum;
+    private float[] maxFiltered;
+    private LemireMinMaxFilter filter;
+    private VariableWindowMaxFilter variableWindowFilter;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(0L);
+        fingerprints = new PanakoFingerprint[10_000];
+        for (int i = 0; i < fingerprints.length; i++) {
+            int t1 = random.nextInt(100_000);
+            int t2 = t1 + 1 + random.nextInt(30);
+            int t3 = t2 + 1 + random.nextInt(30);
+            fingerprints[i] = new PanakoFingerprint(
+                    t1, random.nextInt(numberOfBins), random.nextFloat(),
+                    t2, random.nextInt(numberOfBins), random.nextFloat(),
+                    t3, random.nextInt(numberOfBins), random.nextFloat());
+        }
+
+        spectrum = new float[numberOfBins];
+        for (int i = 0; i < numberOfBins; i++) {
+            spectrum[i] = random.nextFloat();
+        }
+        maxFiltered = new float[numberOfBins];
+        filter = new LemireMinMaxFilter(Config.getInt(Key.PANAKO_FREQ_MAX_FILTER_SIZE), numberOfBins, true);
+        variableWindowFilter = VariableWindowMaxFilter.centered(Config.getInt(Key.PANAKO_FREQ_MAX_FILTER_SIZE), numberOfBins);
+    }
+
+    @Benchmark
+    public void robustHash(Blackhole bh) {
+        for (PanakoFingerprint print : fingerprints) {
+            bh.consume(print.robustHash());
+        }
+    }
+
+    @Benchmark
+    public void maxFilter(Blackhole bh) {
+        filter.maxFilter(spectrum, maxFiltered);
+        bh.consume(maxFiltered);
+    }
+
+    /**
+     * The same max filter with the window of each bin given explicitly, as used by Panako and OLAF.
+     */
+    @Benchmark
+    public void variableWindowMaxFilter(Blackhole bh) {
+        variableWindowFilter.maxFilter(spectrum, maxFiltered);
+        bh.consume(maxFiltered);
+    }
+}
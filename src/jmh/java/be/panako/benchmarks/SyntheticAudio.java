@@ -0,0 +1,62 @@
+package be.panako.benchmarks;
+
+import java.util.Random;
+
+/**
+ * Deterministic synthetic audio for benchmarks: a sequence of short tonal notes with harmonics
+ * on top of low level noise. This results in a realistic amount of spectral peaks without the need
+ * for audio files or a decoder.
+ */
+public class SyntheticAudio {
+
+    private SyntheticAudio() {
+    }
+
+    /**
+     * Generate synthetic PCM audio.
+     * @param sampleRate The sample rate in Hz.
+     * @param seconds The duration in seconds.
+     * @param seed The seed for the random generator, the same seed returns the same audio.
+     * @return Audio samples between -1 and 1.
+     */
+    public static float[] pcm(int sampleRate, double seconds, long seed) {
+        Random random = new Random(seed);
+        float[] samples = new float[(int) (sampleRate * seconds)];
+        int noteLength = sampleRate / 8;
+        for (int noteStart = 0; noteStart < samples.length; noteStart += noteLength) {
+            //a few simultaneous notes between 110Hz and 3.5kHz
+            int simultaneousNotes = 1 + random.nextInt(3);
+            for (int n = 0; n < simultaneousNotes; n++) {
+                double frequency = 110 * Math.pow(2, random.nextInt(60) / 12.0);
+                double amplitude = 0.1 + random.nextDouble() * 0.2;
+                for (int harmonic = 1; harmonic <= 3 && frequency * harmonic < sampleRate / 2.0; harmonic++) {
+                    double w = 2 * Math.PI * frequency * harmonic / sampleRate;
+                    for (int i = noteStart; i < Math.min(samples.length, noteStart + noteLength); i++) {
+                        double envelope = 1.0 - (i - noteStart) / (double) noteLength;
+                        samples[i] += (float) (amplitude / harmonic * envelope * Math.sin(w * i));
+                    }
+                }
+            }
+        }
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] += (float) (random.nextGaussian() * 0.005);
+        }
+        return samples;
+    }
+
+    /**
+     * Split audio into overlapping frames, as an AudioDispatcher would do.
+     * @param samples The audio samples.
+     * @param size The frame size in samples.
+     * @param stepSize The step size in samples.
+     * @return The frames, each frame is a copy.
+     */
+    public static float[][] frames(float[] samples, int size, int stepSize) {
+        int numberOfFrames = (samples.length - size) / stepSize + 1;
+        float[][] frames = new float[numberOfFrames][size];
+        for (int i = 0; i < numberOfFrames; i++) {
+            System.arraycopy(samples, i * stepSize, frames[i], 0, size);
+        }
+        return frames;
+    }
+}
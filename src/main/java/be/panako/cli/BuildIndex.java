@@ -0,0 +1,72 @@
+/***************************************************************************
+*                                                                          *
+* Panako - acoustic fingerprinting                                         *
+* Copyright (C) 2014 - 2022 - Joren Six / IPEM                             *
+*                                                                          *
+* This program is free software: you can redistribute it and/or modify     *
+* it under the terms of the GNU Affero General Public License as           *
+* published by the Free Software Foundation, either version 3 of the       *
+* License, or (at your option) any later version.                          *
+*                                                                          *
+* This program is distributed in the hope that it will be useful,          *
+* but WITHOUT ANY WARRANTY; without even the implied warranty of           *
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the            *
+* GNU Affero General Public License for more details.                      *
+*                                                                          *
+* You should have received a copy of the GNU Affero General Public License *
+* along with this program.  If not, see <http://www.gnu.org/licenses/>     *
+*                                                                          *
+****************************************************************************
+*    ______   ________   ___   __    ________   ___   ___   ______         *
+*   /_____/\ /_______/\ /__/\ /__/\ /_______/\ /___/\/__/\ /_____/\        *
+*   \:::_ \ \\::: _  \ \\::\_\\  \ \\::: _  \ \\::.\ \\ \ \\:::_ \ \       *
+*    \:(_) \ \\::(_)  \ \\:. `-\  \ \\::(_)  \ \\:: \/_) \ \\:\ \ \ \      *
+*     \: ___\/ \:: __  \ \\:. _    \ \\:: __  \ \\:. __  ( ( \:\ \ \ \     *
+*      \ \ \    \:.\ \  \ \\. \`-\  \ \\:.\ \  \ \\: \ )  \ \ \:\_\ \ \    *
+*       \_\/     \__\/\__\/ \__\/ \__\/ \__\/\__\/ \__\/\__\/  \_____\/    *
+*                                                                          *
+****************************************************************************
+*                                                                          *
+*                              Panako                                      *
+*                       Acoustic Fingerprinting                            *
+*                                                                          *
+****************************************************************************/
+
+
+package be.panako.cli;
+
+
+import be.panako.strategy.olaf.storage.OlafIndexBuilder;
+
+/**
+ * A command line application to build the LMDB index from cached fingerprints. In contrast
+ * with load, all cached files are read in parallel and sorted before they are written.
+ */
+class BuildIndex extends Application {
+
+	@Override
+	public void run(String... args) {
+		new OlafIndexBuilder().build();
+	}
+
+	@Override
+	public String description() {
+		return "Builds the LMDB index from cached fingerprints with an external sort. Much faster than load for large caches.";
+	}
+
+	@Override
+	public String synopsis() {
+		return "buildIndex";
+	}
+
+	@Override
+	public boolean needsStorage() {
+		return true;
+	}
+
+	@Override
+	public boolean writesToStorage() {
+		return true;
+	}
+
+}
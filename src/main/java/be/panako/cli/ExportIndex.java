@@ -0,0 +1,92 @@
+/***************************************************************************
+*                                                                          *
+* Panako - acoustic fingerprinting                                         *
+* Copyright (C) 2014 - 2022 - Joren Six / IPEM                             *
+*                                                                          *
+* This program is free software: you can redistribute it and/or modify     *
+* it under the terms of the GNU Affero General Public License as           *
+* published by the Free Software Foundation, either version 3 of the       *
+* License, or (at your option) any later version.                          *
+*                                                                          *
+* This program is distributed in the hope that it will be useful,          *
+* but WITHOUT ANY WARRANTY; without even the implied warranty of           *
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the            *
+* GNU Affero General Public License for more details.                      *
+*                                                                          *
+* You should have received a copy of the GNU Affero General Public License *
+* along with this program.  If not, see <http://www.gnu.org/licenses/>     *
+*                                                                          *
+****************************************************************************
+*    ______   ________   ___   __    ________   ___   ___   ______         *
+*   /_____/\ /_______/\ /__/\ /__/\ /_______/\ /___/\/__/\ /_____/\        *
+*   \:::_ \ \\::: _  \ \\::\_\\  \ \\::: _  \ \\::.\ \\ \ \\:::_ \ \       *
+*    \:(_) \ \\::(_)  \ \\:. `-\  \ \\::(_)  \ \\:: \/_) \ \\:\ \ \ \      *
+*     \: ___\/ \:: __  \ \\:. _    \ \\:: __  \ \\:. __  ( ( \:\ \ \ \     *
+*      \ \ \    \:.\ \  \ \\. \`-\  \ \\:.\ \  \ \\: \ )  \ \ \:\_\ \ \    *
+*       \_\/     \__\/\__\/ \__\/ \__\/ \__\/\__\/ \__\/\__\/  \_____\/    *
+*                                                                          *
+****************************************************************************
+*                                                                          *
+*                              Panako                                      *
+*                       Acoustic Fingerprinting                            *
+*                                                                          *
+****************************************************************************/
+
+package be.panako.cli;
+
+
+import java.io.File;
+import java.io.IOException;
+
+import be.panako.strategy.olaf.storage.OlafStorageKV;
+import be.panako.strategy.olaf.storage.OlafStorageMapped;
+import be.panako.util.Config;
+import be.panako.util.FileUtils;
+import be.panako.util.Key;
+
+/**
+ * A command line application to export the LMDB index to a read-only, memory mapped snapshot.
+ * Query nodes use the snapshot with the MMAP storage.
+ */
+class ExportIndex extends Application {
+
+	@Override
+	public void run(String... args) {
+		String path = args.length > 0 ? args[0] : Config.get(Key.OLAF_MMAP_INDEX_FILE);
+		path = FileUtils.expandHomeDir(path);
+		File folder = new File(path).getAbsoluteFile().getParentFile();
+		if(!folder.exists())
+			FileUtils.mkdirs(folder.getAbsolutePath());
+
+		long start = System.currentTimeMillis();
+		try {
+			OlafStorageMapped.export(OlafStorageKV.getInstance(), path);
+		} catch (IOException e) {
+			System.err.println("Could not export the index to " + path + ": " + e.getMessage());
+			return;
+		}
+		double seconds = (System.currentTimeMillis() - start) / 1000.0;
+		System.out.printf("Exported the index to %s (%dMB) in %.1f s\n", path, new File(path).length() / (1024 * 1024), seconds);
+	}
+
+	@Override
+	public String description() {
+		return "Exports the LMDB index to a read-only, memory mapped snapshot file. The snapshot is used by the MMAP storage and replaces an existing snapshot atomically.";
+	}
+
+	@Override
+	public String synopsis() {
+		return "exportIndex [snapshot_file]";
+	}
+
+	@Override
+	public boolean needsStorage() {
+		return true;
+	}
+
+	@Override
+	public boolean writesToStorage() {
+		return false;
+	}
+
+}
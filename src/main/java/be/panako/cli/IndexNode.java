@@ -0,0 +1,93 @@
+/***************************************************************************
+*                                                                          *
+* Panako - acoustic fingerprinting                                         *
+* Copyright (C) 2014 - 2022 - Joren Six / IPEM                             *
+*                                                                          *
+* This program is free software: you can redistribute it and/or modify     *
+* it under the terms of the GNU Affero General Public License as           *
+* published by the Free Software Foundation, either version 3 of the       *
+* License, or (at your option) any later version.                          *
+*                                                                          *
+* This program is distributed in the hope that it will be useful,          *
+* but WITHOUT ANY WARRANTY; without even the implied warranty of           *
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the            *
+* GNU Affero General Public License for more details.                      *
+*                                                                          *
+* You should have received a copy of the GNU Affero General Public License *
+* along with this program.  If not, see <http://www.gnu.org/licenses/>     *
+*                                                                          *
+****************************************************************************
+*    ______   ________   ___   __    ________   ___   ___   ______         *
+*   /_____/\ /_______/\ /__/\ /__/\ /_______/\ /___/\/__/\ /_____/\        *
+*   \:::_ \ \\::: _  \ \\::\_\\  \ \\::: _  \ \\::.\ \\ \ \\:::_ \ \       *
+*    \:(_) \ \\::(_)  \ \\:. `-\  \ \\::(_)  \ \\:: \/_) \ \\:\ \ \ \      *
+*     \: ___\/ \:: __  \ \\:. _    \ \\:: __  \ \\:. __  ( ( \:\ \ \ \     *
+*      \ \ \    \:.\ \  \ \\. \`-\  \ \\:.\ \  \ \\: \ )  \ \ \:\_\ \ \    *
+*       \_\/     \__\/\__\/ \__\/ \__\/ \__\/\__\/ \__\/\__\/  \_____\/    *
+*                                                                          *
+****************************************************************************
+*                                                                          *
+*                              Panako                                      *
+*                       Acoustic Fingerprinting                            *
+*                                                                          *
+****************************************************************************/
+
+package be.panako.cli;
+
+
+import java.io.IOException;
+
+import be.panako.strategy.Strategy;
+import be.panako.strategy.olaf.OlafStrategy;
+import be.panako.strategy.olaf.storage.OlafStorageServer;
+import be.panako.util.Config;
+import be.panako.util.Key;
+
+/**
+ * A command line application which serves the local OLAF index to clients using the REMOTE storage.
+ * Several index nodes, each with part of the resources, can be queried at once.
+ */
+class IndexNode extends Application {
+
+	@Override
+	public void run(String... args) {
+		Strategy strategy = Strategy.getInstance();
+		if(!(strategy instanceof OlafStrategy)) {
+			System.err.println("Only the OLAF strategy can serve its index.");
+			return;
+		}
+		int port = args.length > 0 ? Integer.parseInt(args[0]) : Config.getInt(Key.OLAF_NODE_PORT);
+
+		try {
+			OlafStorageServer server = new OlafStorageServer(((OlafStrategy) strategy).getStorage(), port);
+			server.start();
+			System.out.printf("Serving the index on port %d\n", server.port());
+			server.join();
+		} catch (IOException e) {
+			System.err.println("Could not serve the index on port " + port + ": " + e.getMessage());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	@Override
+	public String description() {
+		return "Serves the local index to other Panako instances over TCP. Instances with the REMOTE storage query several index nodes at once and merge the results.";
+	}
+
+	@Override
+	public String synopsis() {
+		return "indexNode [port]";
+	}
+
+	@Override
+	public boolean needsStorage() {
+		return true;
+	}
+
+	@Override
+	public boolean writesToStorage() {
+		return false;
+	}
+
+}
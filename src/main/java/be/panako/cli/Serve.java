@@ -0,0 +1,249 @@
+/***************************************************************************
+*                                                                          *
+* Panako - acoustic fingerprinting                                         *
+* Copyright (C) 2014 - 2022 - Joren Six / IPEM                             *
+*                                                                          *
+* This program is free software: you can redistribute it and/or modify     *
+* it under the terms of the GNU Affero General Public License as           *
+* published by the Free Software Foundation, either version 3 of the       *
+* License, or (at your option) any later version.                          *
+*                                                                          *
+* This program is distributed in the hope that it will be useful,          *
+* but WITHOUT ANY WARRANTY; without even the implied warranty of           *
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the            *
+* GNU Affero General Public License for more details.                      *
+*                                                                          *
+* You should have received a copy of the GNU Affero General Public License *
+* along with this program.  If not, see <http://www.gnu.org/licenses/>     *
+*                                                                          *
+****************************************************************************
+*    ______   ________   ___   __    ________   ___   ___   ______         *
+*   /_____/\ /_______/\ /__/\ /__/\ /_______/\ /___/\/__/\ /_____/\        *
+*   \:::_ \ \\::: _  \ \\::\_\\  \ \\::: _  \ \\::.\ \\ \ \\:::_ \ \       *
+*    \:(_) \ \\::(_)  \ \\:. `-\  \ \\::(_)  \ \\:: \/_) \ \\:\ \ \ \      *
+*     \: ___\/ \:: __  \ \\:. _    \ \\:: __  \ \\:. __  ( ( \:\ \ \ \     *
+*      \ \ \    \:.\ \  \ \\. \`-\  \ \\:.\ \  \ \\: \ )  \ \ \:\_\ \ \    *
+*       \_\/     \__\/\__\/ \__\/ \__\/ \__\/\__\/ \__\/\__\/  \_____\/    *
+*                                                                          *
+****************************************************************************
+*                                                                          *
+*                              Panako                                      *
+*                       Acoustic Fingerprinting                            *
+*                                                                          *
+****************************************************************************/
+
+package be.panako.cli;
+
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.logging.Logger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import be.panako.strategy.QueryResult;
+import be.panako.strategy.QueryResultHandler;
+import be.panako.strategy.Strategy;
+import be.panako.util.AudioFileUtils;
+import be.panako.util.Config;
+import be.panako.util.Key;
+
+/**
+ * A long running HTTP service which keeps the strategy and storage open and answers queries, so a query does
+ * not pay for starting the JVM, scanning the class path and opening the storage. Queries of concurrent clients
+ * are handled on separate threads. The results are streamed back as they are found, one JSON object per line.
+ * <ul>
+ * <li><code>GET /query?path=/audio/file.mp3&amp;max=1</code> queries an audio file on the server.</li>
+ * <li><code>GET /monitor?path=/audio/file.mp3</code> monitors an audio file on the server.</li>
+ * <li><code>POST /query?name=clip</code> queries raw audio in the request body: mono, 16 bit, little endian PCM at the
+ *     sample rate of the strategy. The audio is not passed through a decoder. POST to /monitor to monitor raw audio.</li>
+ * <li><code>GET /status</code> checks whether the service is up.</li>
+ * </ul>
+ */
+class Serve extends Application {
+	private final static Logger LOG = Logger.getLogger(Serve.class.getName());
+
+	private Strategy strategy;
+
+	@Override
+	public void run(String... args) {
+		int port = args.length > 0 ? Integer.parseInt(args[0]) : Config.getInt(Key.SERVE_PORT);
+		String host = Config.get(Key.SERVE_HOST);
+		strategy = Strategy.getInstance();
+
+		final HttpServer server;
+		try {
+			server = HttpServer.create(new InetSocketAddress(host, port), 0);
+		} catch (IOException e) {
+			System.err.println("Could not listen on " + host + ":" + port + ": " + e.getMessage());
+			return;
+		}
+		server.createContext("/query", exchange -> handle(exchange, false));
+		server.createContext("/monitor", exchange -> handle(exchange, true));
+		server.createContext("/status", exchange -> respond(exchange, 200, "{\"status\":\"ok\"}"));
+		server.setExecutor(Executors.newFixedThreadPool(availableProcessors()));
+		server.start();
+		System.out.printf("Serving queries on http://%s:%d\n", host, server.getAddress().getPort());
+
+		try {
+			//serve until the process is stopped
+			new CountDownLatch(1).await();
+		} catch (InterruptedException e) {
+			server.stop(0);
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void handle(HttpExchange exchange, boolean monitor) throws IOException {
+		try {
+			Map<String, String> parameters = parameters(exchange.getRequestURI().getRawQuery());
+			int maxNumberOfResults = parameters.containsKey("max") ? Integer.parseInt(parameters.get("max")) : Config.getInt(Key.NUMBER_OF_QUERY_RESULTS);
+			boolean rawAudio = "POST".equalsIgnoreCase(exchange.getRequestMethod());
+
+			if(monitor && !strategy.supportsMonitoring()) {
+				respond(exchange, 501, "{\"error\":\"The " + Config.get(Key.STRATEGY) + " strategy does not support monitoring\"}");
+				return;
+			}
+
+			final String path = parameters.get("path");
+			if(!rawAudio && (path == null || !new File(path).isFile())) {
+				respond(exchange, 400, "{\"error\":\"Expected the path of an existing audio file\"}");
+				return;
+			}
+
+			float[] samples = null;
+			if(rawAudio) {
+				//16 bit samples
+				long maxBytes = Config.getInt(Key.SERVE_MAX_AUDIO_MB) * 1024L * 1024L;
+				String contentLength = exchange.getRequestHeaders().getFirst("Content-Length");
+				if(contentLength == null || Long.parseLong(contentLength) <= maxBytes)
+					samples = AudioFileUtils.readPcm(exchange.getRequestBody(), (int) Math.min(Integer.MAX_VALUE, maxBytes / 2));
+				if(samples == null) {
+					respond(exchange, 413, "{\"error\":\"The audio is larger than " + Config.getInt(Key.SERVE_MAX_AUDIO_MB) + " MB\"}");
+					return;
+				}
+			}
+			final String queryName = rawAudio ? parameters.getOrDefault("name", "pcm") : path;
+
+			exchange.getResponseHeaders().set("Content-Type", "application/x-ndjson");
+			exchange.sendResponseHeaders(200, 0);
+			try(OutputStream out = exchange.getResponseBody()) {
+				JsonResultHandler handler = new JsonResultHandler(out);
+				try {
+					if(monitor && rawAudio)
+						strategy.monitor(queryName, samples, maxNumberOfResults, new HashSet<>(), handler);
+					else if(monitor)
+						strategy.monitor(path, maxNumberOfResults, new HashSet<>(), handler);
+					else if(rawAudio)
+						strategy.query(queryName, samples, maxNumberOfResults, new HashSet<>(), handler);
+					else
+						strategy.query(path, maxNumberOfResults, new HashSet<>(), handler);
+				} catch (RuntimeException e) {
+					//the status is sent already: the failure ends the stream of results
+					LOG.warning("Query failed: " + e.getMessage());
+					handler.writeLine(error("Query failed: " + e));
+				}
+			}
+		} catch (NumberFormatException e) {
+			respond(exchange, 400, error("Invalid number: " + e.getMessage()));
+		} catch (IOException | RuntimeException e) {
+			LOG.warning("Query failed: " + e.getMessage());
+		} finally {
+			exchange.close();
+		}
+	}
+
+	private static void respond(HttpExchange exchange, int status, String json) throws IOException {
+		byte[] body = (json + "\n").getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "application/json");
+		exchange.sendResponseHeaders(status, body.length);
+		try(OutputStream out = exchange.getResponseBody()) {
+			out.write(body);
+		}
+	}
+
+	/**
+	 * @return A JSON object with an error message.
+	 */
+	private static String error(String message) {
+		return "{\"error\":" + QueryResult.jsonString(message) + "}";
+	}
+
+	private static Map<String, String> parameters(String rawQuery) {
+		Map<String, String> parameters = new HashMap<>();
+		if(rawQuery == null)
+			return parameters;
+		for(String parameter : rawQuery.split("&")) {
+			int separator = parameter.indexOf('=');
+			if(separator > 0)
+				parameters.put(URLDecoder.decode(parameter.substring(0, separator), StandardCharsets.UTF_8),
+						URLDecoder.decode(parameter.substring(separator + 1), StandardCharsets.UTF_8));
+		}
+		return parameters;
+	}
+
+	/**
+	 * Writes each result as a JSON line and flushes it right away.
+	 */
+	private static class JsonResultHandler implements QueryResultHandler {
+		private final OutputStream out;
+
+		JsonResultHandler(OutputStream out) {
+			this.out = out;
+		}
+
+		@Override
+		public void handleQueryResult(QueryResult r) {
+			write(r);
+		}
+
+		@Override
+		public void handleEmptyResult(QueryResult r) {
+			write(r);
+		}
+
+		private void write(QueryResult r) {
+			writeLine(r.toJson());
+		}
+
+		synchronized void writeLine(String json) {
+			try {
+				out.write((json + "\n").getBytes(StandardCharsets.UTF_8));
+				out.flush();
+			} catch (IOException e) {
+				LOG.warning("Could not send result: " + e.getMessage());
+			}
+		}
+	}
+
+	@Override
+	public String description() {
+		return "Keeps the storage open and answers queries over HTTP. GET /query?path=file or POST raw 16 bit mono PCM to /query. Results are streamed back as JSON lines.";
+	}
+
+	@Override
+	public String synopsis() {
+		return "serve [port]";
+	}
+
+	@Override
+	public boolean needsStorage() {
+		return true;
+	}
+
+	@Override
+	public boolean writesToStorage() {
+		return false;
+	}
+
+}
@@ -36,57 +36,301 @@
 package be.panako.cli;
 
 import java.io.File;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Logger;
 
+import be.panako.strategy.ExtractedResource;
 import be.panako.strategy.Strategy;
 import be.panako.util.*;
 
 /**
  * Store audio fingerptings in the storage. 
+ * 
+ * Storing is done in a pipeline with three stages connected by bounded queues: several
+ * threads decode audio, several threads extract fingerprints from the decoded audio and
+ * a single thread writes the fingerprints of many resources to the storage in one batch.
  * @author Joren Six
  */
 class Store extends Application {
 	private final static Logger LOG = Logger.getLogger(Store.class.getName());
+
+	/**
+	 * The time the writer waits for the next extracted resource before writing an incomplete batch.
+	 */
+	private final static long BATCH_WAIT_MS = 100;
+
+	/**
+	 * The time between two reports of the pipeline throughput.
+	 */
+	private final static long REPORT_INTERVAL_MS = 10_000;
+
+	/**
+	 * The number of decoded samples for each permit of the decoded audio budget.
+	 */
+	private final static int SAMPLES_PER_PERMIT = 1024;
+
+	/**
+	 * Marks the end of the input for a stage.
+	 */
+	private final static StoreTask END = new StoreTask(null, 0, 0);
+
+	private final StageCounter decoded = new StageCounter("decode");
+	private final StageCounter extracted = new StageCounter("extract");
+	private final StageCounter written = new StageCounter("write");
+	private final AtomicLong writtenPrints = new AtomicLong();
+	private final AtomicLong writtenBatches = new AtomicLong();
+	private final AtomicLong failedResources = new AtomicLong();
+
+	private BlockingQueue<StoreTask> decodeQueue;
+	private BlockingQueue<StoreTask> extractQueue;
+	private BlockingQueue<StoreTask> writeQueue;
+	/**
+	 * Bounds the decoded samples waiting to be extracted, see {@link Key#STORE_PIPELINE_DECODED_MB}.
+	 */
+	private Semaphore decodedAudioBudget;
+	private int maxDecodedSamples;
+	private int decodeThreads;
+	private int extractThreads;
+	private long startNanos;
 	
 	@Override
 	public void run(final String... args) {
-		int processors = availableProcessors();
-		int counter=0;
-		
-		final ExecutorService executor = Executors.newFixedThreadPool(processors);
+		decodeThreads = threads(Key.STORE_DECODE_THREADS);
+		extractThreads = threads(Key.STORE_EXTRACT_THREADS);
+		int queueSize = Math.max(1, Config.getInt(Key.STORE_PIPELINE_QUEUE_SIZE));
+		//four bytes per decoded sample
+		long decodedSamplesBudget = Math.max(1, Config.getInt(Key.STORE_PIPELINE_DECODED_MB)) * 1024L * 1024L / 4;
+		maxDecodedSamples = (int) Math.min(Integer.MAX_VALUE, decodedSamplesBudget);
+		decodedAudioBudget = new Semaphore((int) (decodedSamplesBudget / SAMPLES_PER_PERMIT), true);
 		
 		final List<File> files = this.getFilesFromArguments(args);
 		if(files.size() > 1){
-			String msg = "Processing " + files.size() + " files on " + processors + " seperate threads.";
+			String msg = "Processing " + files.size() + " files with " + decodeThreads + " decoding and " + extractThreads + " extracting threads.";
 			LOG.info("Store task started. " +  msg);
 		}
-		System.out.println("index; length; audiofile; audio duration; fingerprinting duration; ratio");
+
+		decodeQueue = new LinkedBlockingQueue<>();
+		extractQueue = new ArrayBlockingQueue<>(queueSize);
+		writeQueue = new ArrayBlockingQueue<>(queueSize);
+		int counter = 0;
 		for(File file: files){
 			counter++;
-			
-			StoreTask task = new StoreTask(file, counter, files.size());
-			if(processors == 1) {
-				// Only one thread available:
-				// run on the main thread
-				task.run();
-			}else {
-				// run on thread managed by pool
-				executor.submit(task);
-			}
+			decodeQueue.add(new StoreTask(file, counter, files.size()));
 		}
+
+		System.out.println("index; length; audiofile; audio duration; fingerprinting duration; ratio");
+		startNanos = System.nanoTime();
+		
+		final ExecutorService decoders = Executors.newFixedThreadPool(decodeThreads);
+		final ExecutorService extractors = Executors.newFixedThreadPool(extractThreads);
+		final ExecutorService writer = Executors.newSingleThreadExecutor();
+		for(int i = 0 ; i < decodeThreads ; i++)
+			decoders.submit(this::decode);
+		for(int i = 0 ; i < extractThreads ; i++)
+			extractors.submit(this::extract);
+		writer.submit(this::write);
 	
 		try {
-			//do not accept more tasks.
-			executor.shutdown();
-			//wait for tasks to finish
-			executor.awaitTermination(300, java.util.concurrent.TimeUnit.DAYS);
-			//System.exit(0);
+			//wait for each stage to finish before ending the next stage
+			decoders.shutdown();
+			decoders.awaitTermination(300, java.util.concurrent.TimeUnit.DAYS);
+			for(int i = 0 ; i < extractThreads ; i++)
+				extractQueue.put(END);
+			extractors.shutdown();
+			extractors.awaitTermination(300, java.util.concurrent.TimeUnit.DAYS);
+			writeQueue.put(END);
+			writer.shutdown();
+			writer.awaitTermination(300, java.util.concurrent.TimeUnit.DAYS);
 		} catch(Exception e){
 			e.printStackTrace();
 		}
+		
+		if(files.size() > 1)
+			System.err.println(report());
+	}
+
+	private static int threads(Key key){
+		int configuredValue = Config.getInt(key);
+		return configuredValue > 0 ? configuredValue : availableProcessors();
+	}
+
+	/**
+	 * The first stage: decode audio.
+	 */
+	private void decode() {
+		Strategy strategy = Strategy.getInstance();
+		StoreTask task;
+		while((task = decodeQueue.poll()) != null) {
+			long start = System.nanoTime();
+			try {
+				task.stopWatch = new StopWatch();
+				if(Config.getBoolean(Key.CHECK_DUPLICATE_FILE_NAMES) ){
+					task.skipped = strategy.hasResource(task.file.getAbsolutePath());
+				}
+				if(!task.skipped)
+					task.samples = strategy.decode(task.file.getAbsolutePath(), maxDecodedSamples);
+				if(task.samples != null) {
+					//wait until the decoded audio fits in memory, permits are released after extraction
+					task.decodedPermits = (task.samples.length + SAMPLES_PER_PERMIT - 1) / SAMPLES_PER_PERMIT;
+					decodedAudioBudget.acquire(task.decodedPermits);
+				}
+				decoded.add(start);
+				//skipped resources go straight to the writer, which reports them
+				if(task.skipped)
+					writeQueue.put(task);
+				else
+					extractQueue.put(task);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			} catch (Exception e) {
+				fail(task, e);
+			}
+		}
+	}
+
+	/**
+	 * The second stage: extract fingerprints.
+	 */
+	private void extract() {
+		Strategy strategy = Strategy.getInstance();
+		try {
+			StoreTask task;
+			while((task = extractQueue.take()) != END) {
+				long start = System.nanoTime();
+				try {
+					task.extracted = strategy.extract(task.file.getAbsolutePath(), task.file.getName(), task.samples);
+					releaseSamples(task);
+					extracted.add(start);
+					writeQueue.put(task);
+				} catch (InterruptedException e) {
+					throw e;
+				} catch (Exception e) {
+					releaseSamples(task);
+					fail(task, e);
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Decoded audio is not needed any more after extraction: the memory can be used by the decoders.
+	 */
+	private void releaseSamples(StoreTask task) {
+		task.samples = null;
+		decodedAudioBudget.release(task.decodedPermits);
+		task.decodedPermits = 0;
+	}
+
+	/**
+	 * The last stage: write the fingerprints of several resources in one batch.
+	 */
+	private void write() {
+		Strategy strategy = Strategy.getInstance();
+		int maxBatchResources = Math.max(1, Config.getInt(Key.STORE_BATCH_RESOURCES));
+		int maxBatchPrints = Config.getInt(Key.STORE_BATCH_FINGERPRINTS);
+		List<StoreTask> batch = new ArrayList<>();
+		int batchPrints = 0;
+		long lastReport = System.currentTimeMillis();
+		boolean finished = false;
+		try {
+			while(!finished) {
+				StoreTask task;
+				if(batch.isEmpty())
+					task = writeQueue.take();
+				else
+					task = writeQueue.poll(BATCH_WAIT_MS, java.util.concurrent.TimeUnit.MILLISECONDS);
+
+				if(task == END) {
+					finished = true;
+				}else if(task != null && task.skipped) {
+					String message = String.format("%d; %d; %s; %s; 0; 0",task.taskID,task.totalTasks,task.file.getName(),"Skipped: resource already stored;");
+					LOG.info(message);
+					System.out.println(message);
+				}else if(task != null) {
+					batch.add(task);
+					batchPrints += task.extracted.numberOfPrints();
+				}
+
+				boolean batchIsFull = batch.size() >= maxBatchResources || batchPrints >= maxBatchPrints;
+				if(!batch.isEmpty() && (finished || task == null || batchIsFull)) {
+					writeBatch(strategy, batch);
+					batch.clear();
+					batchPrints = 0;
+				}
+
+				if(System.currentTimeMillis() - lastReport > REPORT_INTERVAL_MS) {
+					LOG.info(report());
+					lastReport = System.currentTimeMillis();
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void writeBatch(Strategy strategy, List<StoreTask> batch) {
+		long start = System.nanoTime();
+		//fingerprints and meta-data of the batch are written together
+		List<ExtractedResource> resources = new ArrayList<>(batch.size());
+		for(StoreTask task : batch)
+			resources.add(task.extracted);
+		try {
+			strategy.store(resources);
+		} catch (RuntimeException e) {
+			//the writer keeps draining the queue, otherwise the other stages block on it forever
+			for(StoreTask task : batch)
+				fail(task, e);
+			return;
+		}
+		for(StoreTask task : batch) {
+			ExtractedResource resource = task.extracted;
+			writtenPrints.addAndGet(resource.numberOfPrints());
+
+			double durationInSeconds = resource.duration();
+			double secondsPassed = task.stopWatch.timePassed(TimeUnit.SECONDS);
+			String audioDuration = StopWatch.toTime("", (int) Math.round(durationInSeconds));
+			String cpuTimeDuration = task.stopWatch.formattedToString();
+			double timeRatio = durationInSeconds/secondsPassed;
+			String message = String.format("%d; %d; %s; %s; %s; %.2f",task.taskID,task.totalTasks,task.file.getName(),audioDuration,cpuTimeDuration,timeRatio);
+			LOG.info(message);
+			System.out.println(message);
+		}
+		writtenBatches.incrementAndGet();
+		long nanosPerResource = (System.nanoTime() - start) / batch.size();
+		for(int i = 0 ; i < batch.size() ; i++)
+			written.add(System.nanoTime() - nanosPerResource);
+	}
+
+	private void fail(StoreTask task, Exception e) {
+		failedResources.incrementAndGet();
+		String message = String.format("%d; %d; %s; %s; 0; 0",task.taskID,task.totalTasks,task.file.getName(),"Failed: " + e.getMessage() + ";");
+		LOG.severe(message);
+		System.out.println(message);
+	}
+
+	/**
+	 * @return The throughput of each stage and the number of resources waiting between stages.
+	 */
+	private String report() {
+		double secondsPassed = (System.nanoTime() - startNanos) / 1e9;
+		return String.format("Store pipeline after %.1f s: %s, %s, %s. Waiting: %d to extract, %d to write. Written %d fingerprints in %d batches. Failed: %d.",
+				secondsPassed,
+				decoded.toString(secondsPassed, decodeThreads),
+				extracted.toString(secondsPassed, extractThreads),
+				written.toString(secondsPassed, 1),
+				extractQueue.size(), writeQueue.size(),
+				writtenPrints.get(), writtenBatches.get(), failedResources.get());
 	}
 
 	@Override
@@ -99,41 +343,46 @@ class Store extends Application {
 		return "store [audiofilelist.txt... audio_files...]";
 	}
 	
-	private static class StoreTask implements Runnable{
+	/**
+	 * A resource moving through the stages of the store pipeline.
+	 */
+	private static class StoreTask {
 		private final File file;
 		private final int taskID;
 		private final int totalTasks;
-		
+		private StopWatch stopWatch;
+		private boolean skipped;
+		private float[] samples;
+		private int decodedPermits;
+		private ExtractedResource extracted;
 		
 		public StoreTask(File file,int taskID,int totalTasks){
 			this.file = file;
 			this.taskID = taskID;
 			this.totalTasks = totalTasks;
 		}
+	}
 
-		@Override
-		public void run() {
-			StopWatch w = new StopWatch();
-			Strategy strategy = Strategy.getInstance();
+	/**
+	 * Counts the resources handled by a stage and the time spent on them.
+	 */
+	private static class StageCounter {
+		private final String name;
+		private final AtomicLong resources = new AtomicLong();
+		private final AtomicLong busyNanos = new AtomicLong();
 
-			boolean isDouble = false;
-			if(Config.getBoolean(Key.CHECK_DUPLICATE_FILE_NAMES) ){
-				isDouble =  strategy.hasResource(file.getAbsolutePath());
-			}
+		StageCounter(String name){
+			this.name = name;
+		}
 
-			String message=null;
-			if(isDouble){
-				message = String.format("%d; %d; %s; %s; 0; 0",taskID,totalTasks,file.getName(),"Skipped: resource already stored;");
-			}else{
-				double durationInSeconds = strategy.store(file.getAbsolutePath(), file.getName());
-				double cpuSecondsPassed = w.timePassed(TimeUnit.SECONDS);
-				String audioDuration = StopWatch.toTime("", (int) Math.round(durationInSeconds));
-				String cpuTimeDuration = w.formattedToString();
-				double timeRatio = durationInSeconds/cpuSecondsPassed;
-				message = String.format("%d; %d; %s; %s; %s; %.2f",taskID,totalTasks,file.getName(),audioDuration,cpuTimeDuration,timeRatio);
-			}
-			LOG.info(message);
-			System.out.println(message);
+		void add(long startNanos) {
+			resources.incrementAndGet();
+			busyNanos.addAndGet(System.nanoTime() - startNanos);
+		}
+
+		String toString(double secondsPassed, int threads) {
+			double busy = busyNanos.get() / 1e9 / (secondsPassed * threads);
+			return String.format("%s %d (%.2f/s, %.0f%% busy)", name, resources.get(), resources.get() / secondsPassed, busy * 100);
 		}
 	}
 
@@ -0,0 +1,118 @@
+/***************************************************************************
+*                                                                          *
+* Panako - acoustic fingerprinting                                         *
+* Copyright (C) 2014 - 2022 - Joren Six / IPEM                             *
+*                                                                          *
+* This program is free software: you can redistribute it and/or modify     *
+* it under the terms of the GNU Affero General Public License as           *
+* published by the Free Software Foundation, either version 3 of the       *
+* License, or (at your option) any later version.                          *
+*                                                                          *
+* This program is distributed in the hope that it will be useful,          *
+* but WITHOUT ANY WARRANTY; without even the implied warranty of           *
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the            *
+* GNU Affero General Public License for more details.                      *
+*                                                                          *
+* You should have received a copy of the GNU Affero General Public License *
+* along with this program.  If not, see <http://www.gnu.org/licenses/>     *
+*                                                                          *
+****************************************************************************
+*    ______   ________   ___   __    ________   ___   ___   ______         *
+*   /_____/\ /_______/\ /__/\ /__/\ /_______/\ /___/\/__/\ /_____/\        *
+*   \:::_ \ \\::: _  \ \\::\_\\  \ \\::: _  \ \\::.\ \\ \ \\:::_ \ \       *
+*    \:(_) \ \\::(_)  \ \\:. `-\  \ \\::(_)  \ \\:: \/_) \ \\:\ \ \ \      *
+*     \: ___\/ \:: __  \ \\:. _    \ \\:: __  \ \\:. __  ( ( \:\ \ \ \     *
+*      \ \ \    \:.\ \  \ \\. \`-\  \ \\:.\ \  \ \\: \ )  \ \ \:\_\ \ \    *
+*       \_\/     \__\/\__\/ \__\/ \__\/ \__\/\__\/ \__\/\__\/  \_____\/    *
+*                                                                          *
+****************************************************************************
+*                                                                          *
+*                              Panako                                      *
+*                       Acoustic Fingerprinting                            *
+*                                                                          *
+****************************************************************************/
+
+
+
+
+package be.panako.strategy;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+
+import be.panako.cli.Application;
+import be.panako.util.Config;
+import be.panako.util.Key;
+
+/**
+ * Monitors the segments of a long query on several threads. The results of a segment are kept until all
+ * earlier segments are done, so the handler receives results in time order, as if the segments were
+ * processed one after the other.
+ */
+public class ParallelMonitor {
+
+	/**
+	 * Hide default constructor
+	 */
+	private ParallelMonitor(){}
+
+	/**
+	 * @return The configured number of threads to monitor a single query, see {@link Key#MONITOR_THREADS}.
+	 */
+	public static int threads(){
+		int configuredValue = Config.getInt(Key.MONITOR_THREADS);
+		return configuredValue > 0 ? configuredValue : Application.availableProcessors();
+	}
+
+	/**
+	 * Process the segments of a query and hand the results to a handler in the order of the segments.
+	 * @param segments The segments in time order. Each segment hands its results to the given handler.
+	 * @param threads The number of threads. With one thread the segments are processed one by one on the calling thread.
+	 * @param handler The handler for the results, always called from the calling thread.
+	 */
+	public static void run(List<Consumer<QueryResultHandler>> segments, int threads, QueryResultHandler handler){
+		if(threads <= 1 || segments.size() <= 1){
+			for(Consumer<QueryResultHandler> segment : segments)
+				segment.accept(handler);
+			return;
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, segments.size()));
+		List<Future<List<Consumer<QueryResultHandler>>>> futures = new ArrayList<>();
+		for(Consumer<QueryResultHandler> segment : segments)
+			futures.add(executor.submit(() -> {
+				//keep the results to replay them in order
+				List<Consumer<QueryResultHandler>> results = new ArrayList<>();
+				segment.accept(new QueryResultHandler() {
+					@Override
+					public void handleQueryResult(QueryResult result) {
+						results.add(h -> h.handleQueryResult(result));
+					}
+
+					@Override
+					public void handleEmptyResult(QueryResult result) {
+						results.add(h -> h.handleEmptyResult(result));
+					}
+				});
+				return results;
+			}));
+		executor.shutdown();
+
+		try {
+			for(Future<List<Consumer<QueryResultHandler>>> future : futures)
+				for(Consumer<QueryResultHandler> result : future.get())
+					result.accept(handler);
+		} catch (InterruptedException e) {
+			executor.shutdownNow();
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			executor.shutdownNow();
+			throw new RuntimeException("Monitoring a segment failed", e.getCause());
+		}
+	}
+}
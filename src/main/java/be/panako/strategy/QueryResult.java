@@ -162,4 +162,49 @@ public class QueryResult {
 	public static QueryResult emptyQueryResult(String query,double queryStart,double queryStop){
 		return new QueryResult(query,queryStart,queryStop,null, null, -1, -1,-1,-1,-1,0);
 	}
+
+	/**
+	 * Formats the result as a single line JSON object. The fields have the names of the fields of this class,
+	 * an empty result has null for the reference path and identifier.
+	 * @return The result as JSON.
+	 */
+	public String toJson(){
+		return "{\"queryPath\":" + jsonString(queryPath) +
+				",\"queryStart\":" + jsonNumber("%.3f", queryStart) +
+				",\"queryStop\":" + jsonNumber("%.3f", queryStop) +
+				",\"refPath\":" + jsonString(refPath) +
+				",\"refIdentifier\":" + jsonString(refIdentifier) +
+				",\"refStart\":" + jsonNumber("%.3f", refStart) +
+				",\"refStop\":" + jsonNumber("%.3f", refStop) +
+				",\"score\":" + jsonNumber("%.0f", score) +
+				",\"timeFactor\":" + jsonNumber("%.3f", timeFactor) +
+				",\"frequencyFactor\":" + jsonNumber("%.3f", frequencyFactor) +
+				",\"percentOfSecondsWithMatches\":" + jsonNumber("%.2f", percentOfSecondsWithMatches) + "}";
+	}
+
+	private static String jsonNumber(String format, double value){
+		if(Double.isNaN(value) || Double.isInfinite(value))
+			return "null";
+		return String.format(java.util.Locale.ROOT, format, value);
+	}
+
+	/**
+	 * Quotes and escapes a string for use in JSON.
+	 * @param value The string, or null.
+	 * @return The JSON string, or null as JSON if the value is null.
+	 */
+	public static String jsonString(String value){
+		if(value == null)
+			return "null";
+		StringBuilder json = new StringBuilder(value.length() + 2).append('"');
+		for(char c : value.toCharArray()){
+			if(c == '"' || c == '\\')
+				json.append('\\').append(c);
+			else if(c < 0x20)
+				json.append(String.format("\\u%04x", (int) c));
+			else
+				json.append(c);
+		}
+		return json.append('"').toString();
+	}
 }
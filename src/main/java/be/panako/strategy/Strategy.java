@@ -36,10 +36,14 @@
 
 package be.panako.strategy;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
 import java.util.Set;
 
 import org.reflections.Reflections;
 
+import be.panako.util.AudioFileUtils;
 import be.panako.util.Config;
 import be.panako.util.Key;
 
@@ -70,6 +74,55 @@ public abstract class Strategy {
 	 */
 	public abstract double delete(String resource);
 
+	/**
+	 * Decode an audio file to the samples the strategy needs to extract fingerprints. Together
+	 * with {@link #extract(String, String, float[])} and {@link #store(List)} this allows
+	 * to decode, extract and write on separate threads.
+	 *
+	 * By default the strategy does not decode up front and null is returned.
+	 * @param resource The path name of the audio resource.
+	 * @param maxNumberOfSamples The maximum number of samples to keep in memory. Longer audio is decoded
+	 *                           while extracting fingerprints instead.
+	 * @return The decoded samples or null if the resource is decoded while extracting fingerprints.
+	 * @throws IOException If the resource can not be decoded.
+	 */
+	public float[] decode(String resource, int maxNumberOfSamples) throws IOException {
+		return null;
+	}
+
+	/**
+	 * Extract fingerprints for an audio file without writing them to the storage.
+	 *
+	 * By default the resource is stored right away with {@link #store(String, String)}: the returned
+	 * resource has nothing left to store.
+	 * @param resource The path name of the audio resource.
+	 * @param description An arbitrary description.
+	 * @param samples The samples returned by {@link #decode(String, int)}. If null the resource is decoded while extracting.
+	 * @return The extracted fingerprints, ready to be queued and written.
+	 */
+	public ExtractedResource extract(final String resource, String description, float[] samples){
+		final double duration = store(resource, description);
+		return new ExtractedResource() {
+			@Override
+			public String resource() { return resource; }
+			@Override
+			public double duration() { return duration; }
+			@Override
+			public int numberOfPrints() { return 0; }
+		};
+	}
+
+	/**
+	 * Write the fingerprints and meta-data of resources returned by {@link #extract(String, String, float[])}
+	 * to the storage, in a single batch.
+	 *
+	 * By default the resources are already stored while extracting and nothing is written.
+	 * @param resources The extracted resources to store.
+	 */
+	public void store(List<? extends ExtractedResource> resources){
+
+	}
+
 	/**
 	 * Query the index for matches.
 	 * @param query The path name of the query audio file
@@ -92,6 +145,123 @@ public abstract class Strategy {
 	 * @param handler A handler to process the results.
 	 */
 	public abstract void monitor(String query,int maxNumberOfResults,Set<Integer> avoid,QueryResultHandler handler);
+
+	/**
+	 * Store audio which is already decoded, without starting a decoder. The samples are mono, at the sample
+	 * rate of the strategy and scaled between -1 and 1. The name of the resource is used to extract a numerical
+	 * identifier and as meta-data: it does not need to be an existing file.
+	 * @param resource The name of the audio resource.
+	 * @param description An arbitrary description.
+	 * @param samples The decoded samples.
+	 * @return The number of seconds of processed audio.
+	 */
+	public abstract double store(String resource, String description, float[] samples);
+
+	/**
+	 * Store decoded audio as signed 16 bit samples, see {@link #store(String, String, float[])}.
+	 * @param resource The name of the audio resource.
+	 * @param description An arbitrary description.
+	 * @param samples The decoded samples.
+	 * @return The number of seconds of processed audio.
+	 */
+	public double store(String resource, String description, short[] samples){
+		return store(resource, description, AudioFileUtils.toFloat(samples));
+	}
+
+	/**
+	 * Store raw audio read from a stream: mono, signed 16 bit little endian PCM at the sample rate of
+	 * the strategy, see {@link #store(String, String, float[])}.
+	 * @param resource The name of the audio resource.
+	 * @param description An arbitrary description.
+	 * @param pcm The stream with raw audio, it is read until the end but not closed.
+	 * @return The number of seconds of processed audio.
+	 * @throws IOException If the stream can not be read.
+	 */
+	public double store(String resource, String description, InputStream pcm) throws IOException {
+		return store(resource, description, AudioFileUtils.readPcm(pcm));
+	}
+
+	/**
+	 * Query the index for matches with audio which is already decoded, without starting a decoder. The samples
+	 * are mono, at the sample rate of the strategy and scaled between -1 and 1.
+	 * @param query The name of the query, used in the results.
+	 * @param samples The decoded samples.
+	 * @param maxNumberOfResults The maximum results to return.
+	 * @param avoid A set of identifiers to ignore in the result set.
+	 * @param handler A handler to process the results.
+	 */
+	public abstract void query(String query, float[] samples, int maxNumberOfResults, Set<Integer> avoid, QueryResultHandler handler);
+
+	/**
+	 * Query with decoded audio as signed 16 bit samples, see {@link #query(String, float[], int, Set, QueryResultHandler)}.
+	 * @param query The name of the query, used in the results.
+	 * @param samples The decoded samples.
+	 * @param maxNumberOfResults The maximum results to return.
+	 * @param avoid A set of identifiers to ignore in the result set.
+	 * @param handler A handler to process the results.
+	 */
+	public void query(String query, short[] samples, int maxNumberOfResults, Set<Integer> avoid, QueryResultHandler handler){
+		query(query, AudioFileUtils.toFloat(samples), maxNumberOfResults, avoid, handler);
+	}
+
+	/**
+	 * Query with raw audio read from a stream: mono, signed 16 bit little endian PCM at the sample rate of
+	 * the strategy, see {@link #query(String, float[], int, Set, QueryResultHandler)}.
+	 * @param query The name of the query, used in the results.
+	 * @param pcm The stream with raw audio, it is read until the end but not closed.
+	 * @param maxNumberOfResults The maximum results to return.
+	 * @param avoid A set of identifiers to ignore in the result set.
+	 * @param handler A handler to process the results.
+	 * @throws IOException If the stream can not be read.
+	 */
+	public void query(String query, InputStream pcm, int maxNumberOfResults, Set<Integer> avoid, QueryResultHandler handler) throws IOException {
+		query(query, AudioFileUtils.readPcm(pcm), maxNumberOfResults, avoid, handler);
+	}
+
+	/**
+	 * Monitor audio which is already decoded, without starting a decoder. The samples are mono, at the sample
+	 * rate of the strategy and scaled between -1 and 1. See {@link #monitor(String, int, Set, QueryResultHandler)}.
+	 * @param query The name of the query, used in the results.
+	 * @param samples The decoded samples.
+	 * @param maxNumberOfResults The maximum results to return.
+	 * @param avoid A set of identifiers to ignore in the result set.
+	 * @param handler A handler to process the results.
+	 */
+	public abstract void monitor(String query, float[] samples, int maxNumberOfResults, Set<Integer> avoid, QueryResultHandler handler);
+
+	/**
+	 * Not every strategy can chop up a query for monitoring. Check this before calling one of the monitor methods.
+	 * @return True if the strategy supports monitoring.
+	 */
+	public boolean supportsMonitoring(){
+		return true;
+	}
+
+	/**
+	 * Monitor decoded audio as signed 16 bit samples, see {@link #monitor(String, float[], int, Set, QueryResultHandler)}.
+	 * @param query The name of the query, used in the results.
+	 * @param samples The decoded samples.
+	 * @param maxNumberOfResults The maximum results to return.
+	 * @param avoid A set of identifiers to ignore in the result set.
+	 * @param handler A handler to process the results.
+	 */
+	public void monitor(String query, short[] samples, int maxNumberOfResults, Set<Integer> avoid, QueryResultHandler handler){
+		monitor(query, AudioFileUtils.toFloat(samples), maxNumberOfResults, avoid, handler);
+	}
+
+	/**
+	 * Monitor raw audio read from a stream: mono, signed 16 bit little endian PCM at the sample rate of
+	 * the strategy, see {@link #monitor(String, float[], int, Set, QueryResultHandler)}.
+	 * @param query The name of the query, used in the results.
+	 * @param pcm The stream with raw audio, it is read until the end but not closed.
+	 * @param maxNumberOfResults The maximum results to return.
+	 * @param avoid A set of identifiers to ignore in the result set.
+	 * @param handler A handler to process the results.
+	 * @throws IOException If the stream can not be read.
+	 */
+	public void monitor(String query, InputStream pcm, int maxNumberOfResults, Set<Integer> avoid, QueryResultHandler handler) throws IOException {
+		monitor(query, AudioFileUtils.readPcm(pcm), maxNumberOfResults, avoid, handler);
+	}
 	
 	/**
 	 * Are there fingerprints for this resource already stored in the database?
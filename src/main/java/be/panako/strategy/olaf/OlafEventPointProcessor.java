@@ -37,13 +37,12 @@ package be.panako.strategy.olaf;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
+import java.util.function.Consumer;
 
 import be.panako.util.Config;
 import be.panako.util.Key;
-import be.panako.util.LemireMinMaxFilter;
+import be.panako.util.VariableWindowMaxFilter;
 import be.tarsos.dsp.AudioEvent;
 import be.tarsos.dsp.AudioProcessor;
 import be.tarsos.dsp.util.PitchConverter;
@@ -56,12 +55,29 @@ import be.tarsos.dsp.util.fft.HammingWindow;
 public class OlafEventPointProcessor implements AudioProcessor {
 
 	private final FFT fft;
+
+	/**
+	 * The audio of the current frame is copied here to be transformed in place, the
+	 * buffer of the audio event is reused to slide.
+	 */
+	private final float[] fftBuffer;
+
+	/**
+	 * The magnitude and peak candidate loops: scalar or vectorized.
+	 */
+	private final OlafSpectralKernel kernel;
+
+	/**
+	 * The bins of the current frame which are a vertical maximum.
+	 */
+	private final int[] peakCandidates;
 		
 	/**
 	 * 
 	 * Use a 2D float array to prevent creation of new
 	 * objects in the processing loop, at the expense of a bit of
-	 * complexity
+	 * complexity. The arrays are circular frame buffers: 
+	 * the frame with index i is stored at i % historySize.
 	 */
 	private final float[][] magnitudes;
 	private final float[][] maxMagnitudes;
@@ -70,49 +86,117 @@ public class OlafEventPointProcessor implements AudioProcessor {
 	 * A counter used in the 2D float arrays
 	 */
 	private int magnitudesIndex=0;
-	
-	//Each map maps a frame index to the data represented.
-	private final Map<Integer,float[]> previousMaxMagnitudes;
-	private final Map<Integer,float[]> previousMagnitudes;
+
+	/**
+	 * The number of frames kept in the circular frame buffers.
+	 */
+	private final int historySize;
+
+	/**
+	 * The number of frames the horizontal max filter looks at.
+	 */
+	private final int horizontalWindowSize;
+
+	/**
+	 * A streaming max filter over time for each frequency bin: a monotonic deque,
+	 * stored in a circular buffer per bin, with the frame indexes and the values of the frames
+	 * which can still become the maximum of the window.
+	 */
+	private final int[] horizontalMaxFrames;
+	private final float[] horizontalMaxValues;
+	private final int[] horizontalMaxHeads;
+	private final int[] horizontalMaxSizes;
 	
 	private final List<OlafEventPoint> eventPoints = new ArrayList<>();
 	private final List<OlafFingerprint> fingerprints = new ArrayList<>();
 
+	/**
+	 * Packs event points into fingerprints while the audio is processed.
+	 */
+	private final OlafFingerprintPacker packer;
+
+	/**
+	 * Receives the packed fingerprints, can be changed with {@link #reset(Consumer)}.
+	 */
+	private Consumer<OlafFingerprint> fingerprintConsumer;
+
+	/**
+	 * Only keep all event points and fingerprints when no fingerprint consumer is given.
+	 */
+	private boolean keepEventPoints;
+
+	/**
+	 * The configuration keys which determine the extracted event points and fingerprints.
+	 */
+	private static final Key[] EXTRACTION_KEYS = {Key.OLAF_SAMPLE_RATE, Key.OLAF_SIZE,
+			Key.OLAF_EP_MIN_FREQ_BIN, Key.OLAF_FREQ_MAX_FILTER_SIZE, Key.OLAF_TIME_MAX_FILTER_SIZE,
+			Key.OLAF_VECTOR_API, Key.OLAF_EPS_PER_FP, Key.OLAF_FP_MIN_FREQ_DIST, Key.OLAF_FP_MAX_FREQ_DIST,
+			Key.OLAF_FP_MIN_TIME_DIST, Key.OLAF_FP_MAX_TIME_DIST};
+
+	/**
+	 * The values of the extraction keys when this processor was created.
+	 */
+	private final String[] extractionConfiguration;
+
 	private int analysisFrameIndex = 0;
 	
-	private final LemireMinMaxFilter maxFilterVertical;
+	/**
+	 * A max filter over frequency with a window of OLAF_FREQ_MAX_FILTER_SIZE midi keys around each bin.
+	 */
+	private final VariableWindowMaxFilter maxFilterVertical;
 
 	private final int maxFilterWindowSizeFrequency = Config.getInt(Key.OLAF_FREQ_MAX_FILTER_SIZE);
 	private final int maxFilterWindowSizeTime = Config.getInt(Key.OLAF_TIME_MAX_FILTER_SIZE);
 	
-	private final float[] maxHorizontal;
-
-	private final int[] frequencyFilterMinIndexes;
-	private final int[] frequencyFilterMaxIndexes;
+	private final int startFrequencyBinIndex = Config.getInt(Key.OLAF_EP_MIN_FREQ_BIN);
 	
 	//private final int maxFingerprintsPerEventPoint = 10;
 
 	/**
-	 * Create a new event point processor for this fft size
+	 * Create a new event point processor for this fft size. All event points and
+	 * fingerprints are kept and can be requested after processing.
 	 * @param fftSize The size of the fft
 	 */
 	public OlafEventPointProcessor(final int fftSize){
+		this(fftSize,null);
+	}
+
+	/**
+	 * Create a new event point processor for this fft size which hands fingerprints to a consumer
+	 * as soon as they are final, while the audio is being processed. Event points and fingerprints are
+	 * not kept, so memory use does not grow with the length of the audio.
+	 * @param fftSize The size of the fft
+	 * @param fingerprintConsumer The consumer of the fingerprints, if null fingerprints are kept in a list.
+	 */
+	public OlafEventPointProcessor(final int fftSize, Consumer<OlafFingerprint> fingerprintConsumer){
+		setFingerprintConsumer(fingerprintConsumer);
+		packer = new OlafFingerprintPacker(print -> this.fingerprintConsumer.accept(print));
+
+		extractionConfiguration = new String[EXTRACTION_KEYS.length];
+		for(int i = 0 ; i < EXTRACTION_KEYS.length ; i++){
+			extractionConfiguration[i] = Config.get(EXTRACTION_KEYS[i]);
+		}
+
 		fft = new FFT(fftSize, new HammingWindow());		
+		fftBuffer = new float[fftSize];
+		kernel = OlafSpectralKernel.create();
+		peakCandidates = new int[fftSize/2];
 		
+		//the frame under analysis is compared with half a window before and after
+		horizontalWindowSize = (maxFilterWindowSizeTime/2) * 2;
+		historySize = horizontalWindowSize + 1;
+
 		magnitudesIndex=0;
-		magnitudes = new float[maxFilterWindowSizeTime][fftSize/2];
-		maxMagnitudes = new float[maxFilterWindowSizeTime][fftSize/2];
+		magnitudes = new float[historySize][fftSize/2];
+		maxMagnitudes = new float[historySize][fftSize/2];
 
-		previousMaxMagnitudes = new HashMap<>();
-		previousMagnitudes = new HashMap<>();
+		horizontalMaxFrames = new int[historySize * fftSize/2];
+		horizontalMaxValues = new float[historySize * fftSize/2];
+		horizontalMaxHeads = new int[fftSize/2];
+		horizontalMaxSizes = new int[fftSize/2];
 
-		maxFilterVertical = new LemireMinMaxFilter(maxFilterWindowSizeFrequency+1, fftSize/2,true);
-		
-		maxHorizontal = new float[fftSize/2];
-
-		int startFrequencyBinIndex = Config.getInt(Key.OLAF_EP_MIN_FREQ_BIN);
-		frequencyFilterMinIndexes = new int[fftSize/2];
-		frequencyFilterMaxIndexes = new int[fftSize/2];
+		int[] frequencyFilterMinIndexes = new int[fftSize/2];
+		int[] frequencyFilterMaxIndexes = new int[fftSize/2];
 
 		int frequencyMidi[] = new int[fftSize/2];
 		for(int f = startFrequencyBinIndex ; f < fftSize/2 ; f++){
@@ -121,8 +205,8 @@ public class OlafEventPointProcessor implements AudioProcessor {
 
 		for(int f = startFrequencyBinIndex ; f < fftSize/2 ; f++){
 			int centerBinMidiKey = frequencyMidi[f];
-			int startBinMidiKey = centerBinMidiKey - Config.getInt(Key.OLAF_FREQ_MAX_FILTER_SIZE) / 2;
-			int stopBinMidiKey = centerBinMidiKey + Config.getInt(Key.OLAF_FREQ_MAX_FILTER_SIZE) / 2;
+			int startBinMidiKey = centerBinMidiKey - maxFilterWindowSizeFrequency / 2;
+			int stopBinMidiKey = centerBinMidiKey + maxFilterWindowSizeFrequency / 2;
 			int startIndex = Arrays.binarySearch(frequencyMidi,startBinMidiKey);
 			startIndex = startIndex >= 0 ? startIndex : Math.abs(startIndex + 1);
 			int stopIndex = Math.abs(Arrays.binarySearch(frequencyMidi,stopBinMidiKey));
@@ -130,21 +214,12 @@ public class OlafEventPointProcessor implements AudioProcessor {
 			frequencyFilterMinIndexes[f] = Math.max(startFrequencyBinIndex,startIndex);
 			frequencyFilterMaxIndexes[f] = Math.min(stopIndex,frequencyFilterMaxIndexes.length);
 		}
+
+		maxFilterVertical = new VariableWindowMaxFilter(frequencyFilterMinIndexes, frequencyFilterMaxIndexes);
 	}
 
 	void verticalFilter(float[] data, float[]  max){
-		int startFrequencyBinIndex = Config.getInt(Key.OLAF_EP_MIN_FREQ_BIN);
-		for(int f = startFrequencyBinIndex ; f < data.length ; f++){
-			int startIndex = frequencyFilterMinIndexes[f];
-			int  stopIndex = frequencyFilterMaxIndexes[f];
-			float maxValue = -1000000;
-			for(int j = startIndex ; j < stopIndex; j++){
-				if(maxValue < data[j]){
-					maxValue = data[j];
-				}
-			}
-			max[f] = maxValue;
-		}
+		maxFilterVertical.maxFilter(data, max, startFrequencyBinIndex, data.length);
 	}
 	void naive_max_filter(float[] data, float[]  max, int  half_filter_size , boolean clamp){
 
@@ -164,65 +239,55 @@ public class OlafEventPointProcessor implements AudioProcessor {
 	
 	@Override	
 	public boolean process(AudioEvent audioEvent) {
-		//clone since the buffer is reused to slide
-		float[] buffer = audioEvent.getFloatBuffer().clone();
+		//copy since the buffer is reused to slide
+		final float[] buffer = fftBuffer;
+		System.arraycopy(audioEvent.getFloatBuffer(), 0, buffer, 0, buffer.length);
 		
 		//calculate the fft
 		fft.forwardTransform(buffer);
 
-		//
-		int startFrequencyBinIndex = Config.getInt(Key.OLAF_EP_MIN_FREQ_BIN);
-
 		//calculate the magnitudes		
-		for (int i = startFrequencyBinIndex; i < magnitudes[magnitudesIndex].length; i++) {
-			int realIndex = 2 * i;
-			int imgIndex  = 2 * i + 1;
-			magnitudes[magnitudesIndex][i] =  buffer[realIndex] * buffer[realIndex] + buffer[imgIndex] * buffer[imgIndex];
-		}
-		
-		//store the frame magnitudes
-		previousMagnitudes.put(analysisFrameIndex, magnitudes[magnitudesIndex]);
+		final float[] currentMagnitudes = magnitudes[magnitudesIndex];
+		kernel.magnitudes(buffer, currentMagnitudes, startFrequencyBinIndex);
 		
 		//run a max filter over frequency bins
-		verticalFilter(magnitudes[magnitudesIndex],maxMagnitudes[magnitudesIndex]);
-
-		//store the max filtered frequency bins
-		previousMaxMagnitudes.put(analysisFrameIndex,maxMagnitudes[magnitudesIndex]);
+		verticalFilter(currentMagnitudes,maxMagnitudes[magnitudesIndex]);
 		
-		//find the horziontal maxima
-		if(previousMaxMagnitudes.size()==maxFilterWindowSizeTime){
+		//find the horizontal maxima, once enough frames are available
+		if(analysisFrameIndex >= horizontalWindowSize){
 			
 			int t = analysisFrameIndex - maxFilterWindowSizeTime /2;
 			
-			float[] maxFrame = previousMaxMagnitudes.get(t);
-			float[] frameMagnitudes = previousMagnitudes.get(t);
+			float[] maxFrame = maxMagnitudes[t % historySize];
+			float[] frameMagnitudes = magnitudes[t % historySize];
+			
+			//bins which are a maximum over frequency and not zero
+			int candidates = kernel.peakCandidates(frameMagnitudes, maxFrame, startFrequencyBinIndex, frameMagnitudes.length - 1, peakCandidates);
 			
-			for(int f = startFrequencyBinIndex ; f < frameMagnitudes.length - 1 ; f++){
-				float maxVal = maxFrame[f];
+			for(int c = 0 ; c < candidates ; c++){
+				int f = peakCandidates[c];
 				float currentVal = frameMagnitudes[f];
 				
-				if(maxVal == currentVal) {
-					horizontalFilter(f);
-					maxVal = maxHorizontal[f];
-					if(currentVal == maxVal && currentVal !=0 ){
-						
-						float[] prevFrameMagnitudes = previousMagnitudes.get(t-1);
-						float[] nextFrameMagnitudes = previousMagnitudes.get(t+1);
-						
-						//add the magnitude of surrounding bins for magnitude estimates more robust against discretization effects 
-						float totalMagnitude = frameMagnitudes[f] + prevFrameMagnitudes[f] + nextFrameMagnitudes[f]
-								+ frameMagnitudes[f+1] + prevFrameMagnitudes[f+1] + nextFrameMagnitudes[f+1]
-								+ frameMagnitudes[f-1] + prevFrameMagnitudes[f-1] + nextFrameMagnitudes[f-1];
-						
-						eventPoints.add(new OlafEventPoint(t, f,totalMagnitude));
-					}
+				if(currentVal == horizontalMax(f)){
+					
+					float[] prevFrameMagnitudes = magnitudes[(t-1) % historySize];
+					float[] nextFrameMagnitudes = magnitudes[(t+1) % historySize];
+					
+					//add the magnitude of surrounding bins for magnitude estimates more robust against discretization effects 
+					float totalMagnitude = frameMagnitudes[f] + prevFrameMagnitudes[f] + nextFrameMagnitudes[f]
+							+ frameMagnitudes[f+1] + prevFrameMagnitudes[f+1] + nextFrameMagnitudes[f+1]
+							+ frameMagnitudes[f-1] + prevFrameMagnitudes[f-1] + nextFrameMagnitudes[f-1];
+					
+					OlafEventPoint eventPoint = new OlafEventPoint(t, f,totalMagnitude);
+					if(keepEventPoints)
+						eventPoints.add(eventPoint);
+					packer.add(eventPoint);
 				}
 			}
-			
-			//Remove analysis frames that are not needed any more:
-			previousMaxMagnitudes.remove(analysisFrameIndex-maxFilterWindowSizeTime+1);
-			previousMagnitudes.remove(analysisFrameIndex-maxFilterWindowSizeTime+1);
 		}
+		
+		//add the current frame to the horizontal max filter
+		pushToHorizontalFilter(analysisFrameIndex, maxMagnitudes[magnitudesIndex]);
 				
 		//magnitude index counter
 		magnitudesIndex++;
@@ -243,30 +308,60 @@ public class OlafEventPointProcessor implements AudioProcessor {
 	public float[] getMagnitudes(){
 		return magnitudes[magnitudesIndex];
 	}
-	
-	private void horizontalFilter(int j) {
- 		Arrays.fill(maxHorizontal, -1000);
-		
-		// The frame index of the frame under analysis:
- 		int centerFrameIndex = analysisFrameIndex - maxFilterWindowSizeTime /2;
-		int startFrameIndex =  centerFrameIndex - maxFilterWindowSizeTime/2;
-		int stopFrameIndex =  centerFrameIndex + maxFilterWindowSizeTime/2;
-		
-		// Run a horizontal max filter
-		for(int i = startFrameIndex ; i < stopFrameIndex ; i++){
-			float[] maxFrame = previousMaxMagnitudes.get(i);
-			maxHorizontal[j] = Math.max(maxHorizontal[j], maxFrame[j]);
+
+	/**
+	 * Returns the maximum of a frequency bin over the frames of the horizontal window:
+	 * the frames [i - horizontalWindowSize, i) with i the current analysis frame index.
+	 */
+	private float horizontalMax(int f) {
+		return horizontalMaxValues[f * historySize + horizontalMaxHeads[f]];
+	}
+
+	/**
+	 * Adds a max filtered frame to the streaming horizontal max filter of each bin. Each bin keeps
+	 * a deque with decreasing values: frames with a smaller or equal value than the new frame can
+	 * never be the maximum again and are removed from the back, frames which fall out of the window
+	 * are removed from the front. The front of the deque is the maximum of the window.
+	 */
+	private void pushToHorizontalFilter(int frameIndex, float[] maxFrame) {
+		final int oldestFrameIndex = frameIndex + 1 - horizontalWindowSize;
+		for(int f = startFrequencyBinIndex ; f < maxFrame.length - 1 ; f++){
+			final int offset = f * historySize;
+			final float value = maxFrame[f];
+			int head = horizontalMaxHeads[f];
+			int size = horizontalMaxSizes[f];
+			
+			while(size > 0 && horizontalMaxFrames[offset + head] < oldestFrameIndex) {
+				head++;
+				if(head == historySize) head = 0;
+				size--;
+			}
+			
+			while(size > 0) {
+				int last = head + size - 1;
+				if(last >= historySize) last -= historySize;
+				if(horizontalMaxValues[offset + last] > value)
+					break;
+				size--;
+			}
+			
+			int tail = head + size;
+			if(tail >= historySize) tail -= historySize;
+			horizontalMaxFrames[offset + tail] = frameIndex;
+			horizontalMaxValues[offset + tail] = value;
+			horizontalMaxHeads[f] = head;
+			horizontalMaxSizes[f] = size + 1;
 		}
 	}
 	
 	
 	@Override
 	public void processingFinished() {
-		packEventPointsIntoFingerprints();
+		packer.flush();
 	}
 
 	/**
-	 * Returns the extracted fingerprints.
+	 * Returns the extracted fingerprints. The list is empty if a fingerprint consumer is used.
 	 * @return Returns the extracted fingerprints.
 	 */
 	public List<OlafFingerprint> getFingerprints(){
@@ -274,101 +369,13 @@ public class OlafEventPointProcessor implements AudioProcessor {
 	}
 
 	/**
-	 * Returns the extracted event points.
+	 * Returns the extracted event points. The list is empty if a fingerprint consumer is used.
 	 * @return Returns the extracted event points.
 	 */
 	public List<OlafEventPoint> getEventPoints() {
 		return eventPoints;
 	}
 
-	private void packEventPointsIntoFingerprintsTwo(){
-
-		int minFreqDistance = Config.getInt(Key.OLAF_FP_MIN_FREQ_DIST);
-		int maxFreqDistance = Config.getInt(Key.OLAF_FP_MAX_FREQ_DIST);
-
-		int minTimeDistance = Config.getInt(Key.OLAF_FP_MIN_TIME_DIST);
-		int maxTimeDistance = Config.getInt(Key.OLAF_FP_MAX_TIME_DIST);
-
-		for(int i = 0; i < eventPoints.size();i++){
-			int t1 = eventPoints.get(i).t;
-			int f1 = eventPoints.get(i).f;
-
-			for(int j = i + 1; j < eventPoints.size() ;j++){
-				int t2 = eventPoints.get(j).t;
-				int f2 = eventPoints.get(j).f;
-
-				int fDiff = Math.abs(f1 - f2);
-				int tDiff = t2-t1;
-
-				if(tDiff > maxTimeDistance) break;
-				if(tDiff < minTimeDistance) continue;
-
-				if(fDiff < minFreqDistance) continue;
-				if(fDiff > maxFreqDistance ) continue;
-
-				OlafFingerprint fingerprint;
-				fingerprint = new OlafFingerprint(eventPoints.get(i),eventPoints.get(j),eventPoints.get(j));
-				fingerprints.add(fingerprint);
-			}
-		}
-	}
-
-	private void packEventPointsIntoFingerprints(){
-		if(Config.getInt(Key.OLAF_EPS_PER_FP) == 2){
-			packEventPointsIntoFingerprintsTwo();
-		}else if(Config.getInt(Key.OLAF_EPS_PER_FP) == 3){
-			packEventPointsIntoFingerprintsThree();
-		}else {
-			throw new RuntimeException("Key.OLAF_EPS_PER_FP should be either 2 or 3");
-		}
-	}
-
-	private void packEventPointsIntoFingerprintsThree(){
-		
-		int minFreqDistance = Config.getInt(Key.OLAF_FP_MIN_FREQ_DIST);
-		int maxFreqDistance = Config.getInt(Key.OLAF_FP_MAX_FREQ_DIST);
-		
-		int minTimeDistance = Config.getInt(Key.OLAF_FP_MIN_TIME_DIST);
-		int maxTimeDistance = Config.getInt(Key.OLAF_FP_MAX_TIME_DIST);
-		
-		for(int i = 0; i < eventPoints.size();i++){
-			int t1 = eventPoints.get(i).t;
-			int f1 = eventPoints.get(i).f;
-				
-			for(int j = i + 1; j < eventPoints.size() ;j++){
-				int t2 = eventPoints.get(j).t;
-				int f2 = eventPoints.get(j).f;
-				
-				int fDiff = Math.abs(f1 - f2);
-				int tDiff = t2-t1;
-				
-				if(tDiff > maxTimeDistance) break;
-				if(tDiff < minTimeDistance) continue;
-				
-				if(fDiff < minFreqDistance) continue;
-				if(fDiff > maxFreqDistance ) continue;
-				
-				for(int k = j + 1 ; k <eventPoints.size(); k++) {
-					int t3 = eventPoints.get(k).t;
-					int f3 = eventPoints.get(k).f;
-					
-					fDiff = Math.abs(f2 - f3);
-					tDiff = t3-t2;
-					
-					if(tDiff > maxTimeDistance) break;
-					if(tDiff < minTimeDistance) continue;
-					
-					if(fDiff < minFreqDistance) continue;
-					if(fDiff > maxFreqDistance ) continue;
-					
-					OlafFingerprint fingerprint;
-					fingerprint = new OlafFingerprint(eventPoints.get(i),eventPoints.get(j),eventPoints.get(k));
-					fingerprints.add(fingerprint);
-				}
-			}
-		}
-	}
-
 	private float binToHz(int f) {
 		double sampleRate = Config.getFloat(Key.OLAF_SAMPLE_RATE);
 		double fftSize = Config.getFloat(Key.OLAF_SIZE);
@@ -384,10 +391,42 @@ public class OlafEventPointProcessor implements AudioProcessor {
 	public void reset() {
 		eventPoints.clear();
 		fingerprints.clear();
+		packer.reset();
 		analysisFrameIndex=0;
 		magnitudesIndex=0;
-		previousMagnitudes.clear();
-		previousMaxMagnitudes.clear();
+		Arrays.fill(horizontalMaxSizes, 0);
+	}
+
+	/**
+	 * Reset the state of the extractor to the initial state and hand the fingerprints of the next
+	 * audio to a new consumer. This allows to reuse the fft, the frame buffers and the filters
+	 * for many audio files.
+	 * @param fingerprintConsumer The consumer of the fingerprints, if null fingerprints are kept in a list.
+	 */
+	public void reset(Consumer<OlafFingerprint> fingerprintConsumer) {
+		reset();
+		setFingerprintConsumer(fingerprintConsumer);
+	}
+
+	private void setFingerprintConsumer(Consumer<OlafFingerprint> fingerprintConsumer) {
+		keepEventPoints = fingerprintConsumer == null;
+		this.fingerprintConsumer = keepEventPoints ? fingerprints::add : fingerprintConsumer;
+	}
+
+	/**
+	 * Checks whether this processor extracts the same event points and fingerprints as a new processor
+	 * for this fft size with the current configuration, so it can be reused after a reset.
+	 * @param fftSize The size of the fft
+	 * @return True if the fft size and configuration did not change since this processor was created.
+	 */
+	boolean matchesConfiguration(int fftSize) {
+		if(fftBuffer.length != fftSize)
+			return false;
+		for(int i = 0 ; i < EXTRACTION_KEYS.length ; i++){
+			if(!extractionConfiguration[i].equals(Config.get(EXTRACTION_KEYS[i])))
+				return false;
+		}
+		return true;
 	}
 	
 }
@@ -0,0 +1,192 @@
+/***************************************************************************
+*                                                                          *
+* Panako - acoustic fingerprinting                                         *
+* Copyright (C) 2014 - 2022 - Joren Six / IPEM                             *
+*                                                                          *
+* This program is free software: you can redistribute it and/or modify     *
+* it under the terms of the GNU Affero General Public License as           *
+* published by the Free Software Foundation, either version 3 of the       *
+* License, or (at your option) any later version.                          *
+*                                                                          *
+* This program is distributed in the hope that it will be useful,          *
+* but WITHOUT ANY WARRANTY; without even the implied warranty of           *
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the            *
+* GNU Affero General Public License for more details.                      *
+*                                                                          *
+* You should have received a copy of the GNU Affero General Public License *
+* along with this program.  If not, see <http://www.gnu.org/licenses/>     *
+*                                                                          *
+****************************************************************************
+*    ______   ________   ___   __    ________   ___   ___   ______         *
+*   /_____/\ /_______/\ /__/\ /__/\ /_______/\ /___/\/__/\ /_____/\        *
+*   \:::_ \ \\::: _  \ \\::\_\\  \ \\::: _  \ \\::.\ \\ \ \\:::_ \ \       *
+*    \:(_) \ \\::(_)  \ \\:. `-\  \ \\::(_)  \ \\:: \/_) \ \\:\ \ \ \      *
+*     \: ___\/ \:: __  \ \\:. _    \ \\:: __  \ \\:. __  ( ( \:\ \ \ \     *
+*      \ \ \    \:.\ \  \ \\. \`-\  \ \\:.\ \  \ \\: \ )  \ \ \:\_\ \ \    *
+*       \_\/     \__\/\__\/ \__\/ \__\/ \__\/\__\/ \__\/\__\/  \_____\/    *
+*                                                                          *
+****************************************************************************
+*                                                                          *
+*                              Panako                                      *
+*                       Acoustic Fingerprinting                            *
+*                                                                          *
+****************************************************************************/
+
+package be.panako.strategy.olaf;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+import be.panako.util.Config;
+import be.panako.util.Key;
+
+/**
+ * Packs event points into fingerprints incrementally. Event points are added in time order and fingerprints
+ * are handed to a consumer as soon as they are final: when an event point arrives which is further away than the
+ * maximum fingerprint time span, no new event points can be combined with earlier anchor event points.
+ * 
+ * Only a sliding window of event points is kept, so memory use does not grow with the length of the audio.
+ * The fingerprints are the same, and in the same order, as when all event points are packed at once.
+ */
+public class OlafFingerprintPacker {
+	
+	private final Consumer<OlafFingerprint> fingerprintConsumer;
+	
+	/**
+	 * The sliding window of event points. Event points before the anchor index are not needed anymore.
+	 */
+	private final List<OlafEventPoint> window = new ArrayList<>();
+	
+	/**
+	 * The index in the window of the first event point not yet used as the first event point of a fingerprint.
+	 */
+	private int anchorIndex = 0;
+	
+	private final int eventPointsPerFingerprint = Config.getInt(Key.OLAF_EPS_PER_FP);
+	private final int minFreqDistance = Config.getInt(Key.OLAF_FP_MIN_FREQ_DIST);
+	private final int maxFreqDistance = Config.getInt(Key.OLAF_FP_MAX_FREQ_DIST);
+	private final int minTimeDistance = Config.getInt(Key.OLAF_FP_MIN_TIME_DIST);
+	private final int maxTimeDistance = Config.getInt(Key.OLAF_FP_MAX_TIME_DIST);
+	
+	/**
+	 * The maximum time difference between the first and last event point of a fingerprint.
+	 */
+	private final int maxFingerprintTimeSpan;
+	
+	/**
+	 * Create a new packer which hands fingerprints to a consumer.
+	 * @param fingerprintConsumer The consumer of the fingerprints.
+	 */
+	public OlafFingerprintPacker(Consumer<OlafFingerprint> fingerprintConsumer) {
+		if(eventPointsPerFingerprint != 2 && eventPointsPerFingerprint != 3) {
+			throw new RuntimeException("Key.OLAF_EPS_PER_FP should be either 2 or 3");
+		}
+		this.fingerprintConsumer = fingerprintConsumer;
+		this.maxFingerprintTimeSpan = maxTimeDistance * (eventPointsPerFingerprint - 1);
+	}
+	
+	/**
+	 * Add an event point. Event points should be added in time order.
+	 * @param eventPoint The next event point.
+	 */
+	public void add(OlafEventPoint eventPoint) {
+		window.add(eventPoint);
+		
+		//anchors too far from the new event point are final
+		while(window.get(anchorIndex).t + maxFingerprintTimeSpan < eventPoint.t) {
+			pack(anchorIndex);
+			anchorIndex++;
+		}
+		
+		//forget event points which are not needed any more
+		if(anchorIndex > 512 && anchorIndex * 2 > window.size()) {
+			window.subList(0, anchorIndex).clear();
+			anchorIndex = 0;
+		}
+	}
+	
+	/**
+	 * Packs all remaining event points, to be called at the end of the audio.
+	 * After flushing the packer can be reused for new audio.
+	 */
+	public void flush() {
+		while(anchorIndex < window.size()) {
+			pack(anchorIndex);
+			anchorIndex++;
+		}
+		reset();
+	}
+	
+	/**
+	 * Forget all event points without packing them.
+	 */
+	public void reset() {
+		window.clear();
+		anchorIndex = 0;
+	}
+	
+	private void pack(int i) {
+		if(eventPointsPerFingerprint == 2) {
+			packTwo(i);
+		}else {
+			packThree(i);
+		}
+	}
+	
+	private void packTwo(int i){
+		int t1 = window.get(i).t;
+		int f1 = window.get(i).f;
+		
+		for(int j = i + 1; j < window.size() ;j++){
+			int t2 = window.get(j).t;
+			int f2 = window.get(j).f;
+			
+			int fDiff = Math.abs(f1 - f2);
+			int tDiff = t2-t1;
+			
+			if(tDiff > maxTimeDistance) break;
+			if(tDiff < minTimeDistance) continue;
+			
+			if(fDiff < minFreqDistance) continue;
+			if(fDiff > maxFreqDistance ) continue;
+			
+			fingerprintConsumer.accept(new OlafFingerprint(window.get(i),window.get(j),window.get(j)));
+		}
+	}
+	
+	private void packThree(int i){
+		int t1 = window.get(i).t;
+		int f1 = window.get(i).f;
+		
+		for(int j = i + 1; j < window.size() ;j++){
+			int t2 = window.get(j).t;
+			int f2 = window.get(j).f;
+			
+			int fDiff = Math.abs(f1 - f2);
+			int tDiff = t2-t1;
+			
+			if(tDiff > maxTimeDistance) break;
+			if(tDiff < minTimeDistance) continue;
+			
+			if(fDiff < minFreqDistance) continue;
+			if(fDiff > maxFreqDistance ) continue;
+			
+			for(int k = j + 1 ; k < window.size(); k++) {
+				int t3 = window.get(k).t;
+				int f3 = window.get(k).f;
+				
+				fDiff = Math.abs(f2 - f3);
+				tDiff = t3-t2;
+				
+				if(tDiff > maxTimeDistance) break;
+				if(tDiff < minTimeDistance) continue;
+				
+				if(fDiff < minFreqDistance) continue;
+				if(fDiff > maxFreqDistance ) continue;
+				
+				fingerprintConsumer.accept(new OlafFingerprint(window.get(i),window.get(j),window.get(k)));
+			}
+		}
+	}
+}
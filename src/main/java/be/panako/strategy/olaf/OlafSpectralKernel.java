@@ -0,0 +1,128 @@
+/***************************************************************************
+*                                                                          *
+* Panako - acoustic fingerprinting                                         *
+* Copyright (C) 2014 - 2022 - Joren Six / IPEM                             *
+*                                                                          *
+* This program is free software: you can redistribute it and/or modify     *
+* it under the terms of the GNU Affero General Public License as           *
+* published by the Free Software Foundation, either version 3 of the       *
+* License, or (at your option) any later version.                          *
+*                                                                          *
+* This program is distributed in the hope that it will be useful,          *
+* but WITHOUT ANY WARRANTY; without even the implied warranty of           *
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the            *
+* GNU Affero General Public License for more details.                      *
+*                                                                          *
+* You should have received a copy of the GNU Affero General Public License *
+* along with this program.  If not, see <http://www.gnu.org/licenses/>     *
+*                                                                          *
+****************************************************************************
+*    ______   ________   ___   __    ________   ___   ___   ______         *
+*   /_____/\ /_______/\ /__/\ /__/\ /_______/\ /___/\/__/\ /_____/\        *
+*   \:::_ \ \\::: _  \ \\::\_\\  \ \\::: _  \ \\::.\ \\ \ \\:::_ \ \       *
+*    \:(_) \ \\::(_)  \ \\:. `-\  \ \\::(_)  \ \\:: \/_) \ \\:\ \ \ \      *
+*     \: ___\/ \:: __  \ \\:. _    \ \\:: __  \ \\:. __  ( ( \:\ \ \ \     *
+*      \ \ \    \:.\ \  \ \\. \`-\  \ \\:.\ \  \ \\: \ )  \ \ \:\_\ \ \    *
+*       \_\/     \__\/\__\/ \__\/ \__\/ \__\/\__\/ \__\/\__\/  \_____\/    *
+*                                                                          *
+****************************************************************************
+*                                                                          *
+*                              Panako                                      *
+*                       Acoustic Fingerprinting                            *
+*                                                                          *
+****************************************************************************/
+
+
+package be.panako.strategy.olaf;
+
+import java.util.logging.Logger;
+
+import be.panako.util.Config;
+import be.panako.util.Key;
+
+/**
+ * The per frame loops of the OLAF event point extraction: magnitudes of the fft bins
+ * and the search for spectral peak candidates.
+ *
+ * This class is the scalar implementation. When the JDK Vector API is available
+ * (the jdk.incubator.vector module is added to the JVM and the vector implementation is
+ * on the class path) an implementation with the same results using SIMD instructions is returned
+ * by {@link #create()}. Implementations are stateless and can be shared between threads.
+ */
+class OlafSpectralKernel {
+
+	private final static Logger LOG = Logger.getLogger(OlafSpectralKernel.class.getName());
+
+	private final static String VECTOR_KERNEL_CLASS = "be.panako.strategy.olaf.OlafVectorKernel";
+
+	private final static OlafSpectralKernel SCALAR = new OlafSpectralKernel();
+
+	/**
+	 * Loads the vector implementation only when it is first requested.
+	 */
+	private static class VectorKernelHolder {
+		private final static OlafSpectralKernel VECTOR = loadVectorKernel();
+	}
+
+	private static OlafSpectralKernel loadVectorKernel(){
+		try {
+			OlafSpectralKernel kernel = (OlafSpectralKernel) Class.forName(VECTOR_KERNEL_CLASS).getDeclaredConstructor().newInstance();
+			LOG.info("Using the Vector API for event point extraction: " + kernel);
+			return kernel;
+		} catch (ReflectiveOperationException | LinkageError e) {
+			//not built, an older JDK or the jdk.incubator.vector module is not added
+			LOG.info("Vector API not available, using scalar event point extraction: " + e.getMessage());
+			return null;
+		}
+	}
+
+	/**
+	 * Returns the vector implementation when it is available and enabled with
+	 * {@link Key#OLAF_VECTOR_API}, the scalar implementation otherwise.
+	 * @return A kernel for event point extraction.
+	 */
+	static OlafSpectralKernel create(){
+		if(Config.getBoolean(Key.OLAF_VECTOR_API) && VectorKernelHolder.VECTOR != null)
+			return VectorKernelHolder.VECTOR;
+		return SCALAR;
+	}
+
+	/**
+	 * Calculates the squared magnitudes of the bins [from, magnitudes.length) of an fft.
+	 * @param fft The fft with interleaved real and imaginary parts.
+	 * @param magnitudes The squared magnitudes.
+	 * @param from The first bin to calculate.
+	 */
+	void magnitudes(float[] fft, float[] magnitudes, int from){
+		for (int i = from; i < magnitudes.length; i++) {
+			int realIndex = 2 * i;
+			int imgIndex  = 2 * i + 1;
+			magnitudes[i] =  fft[realIndex] * fft[realIndex] + fft[imgIndex] * fft[imgIndex];
+		}
+	}
+
+	/**
+	 * Finds the bins in [from, to) which are the maximum of their vertical window and are not zero:
+	 * the candidates for a spectral peak.
+	 * @param magnitudes The magnitudes of a frame.
+	 * @param max The vertically max filtered magnitudes of the frame.
+	 * @param from The first bin to check.
+	 * @param to The last bin to check, exclusive.
+	 * @param candidates The bins of the candidates, in increasing order.
+	 * @return The number of candidates.
+	 */
+	int peakCandidates(float[] magnitudes, float[] max, int from, int to, int[] candidates){
+		int count = 0;
+		for(int f = from ; f < to ; f++){
+			float currentVal = magnitudes[f];
+			if(currentVal == max[f] && currentVal != 0)
+				candidates[count++] = f;
+		}
+		return count;
+	}
+
+	@Override
+	public String toString() {
+		return "scalar";
+	}
+}
@@ -34,13 +34,16 @@
 
 package be.panako.strategy.olaf;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
 import java.io.IOException;
 import java.util.*;
+import java.util.function.Consumer;
 import java.util.logging.Logger;
 
+import javax.sound.sampled.UnsupportedAudioFileException;
+
+import be.panako.strategy.ExtractedResource;
+import be.panako.strategy.ParallelMonitor;
 import be.panako.strategy.QueryResult;
 import be.panako.strategy.QueryResultHandler;
 import be.panako.strategy.Strategy;
@@ -60,9 +63,20 @@ import be.tarsos.dsp.util.PitchConverter;
  */
 public class OlafStrategy extends Strategy {
 	private static final int MAX_TIME = 5_000_000;
+
+	/**
+	 * While storing, the queued fingerprints are written to the storage each time this many prints are extracted.
+	 */
+	private static final int STORE_QUEUE_FLUSH_SIZE = 100_000;
 	
 	private final static Logger LOG = Logger.getLogger(OlafStrategy.class.getName());
 
+	/**
+	 * An idle event point processor for each thread. Creating a processor allocates the fft, the frame
+	 * buffers and the frequency bin tables, which dominates the extraction of short audio.
+	 */
+	private static final ThreadLocal<OlafEventPointProcessor> idleEventPointProcessors = new ThreadLocal<>();
+
 	private OlafStorage db;
 
 	/**
@@ -72,18 +86,30 @@ public class OlafStrategy extends Strategy {
 
 	}
 
-	private OlafStorage getStorage(){
+	/**
+	 * Returns the configured storage, which is created on first use.
+	 * @return The storage used to store and query fingerprints.
+	 */
+	public OlafStorage getStorage(){
 		if (db ==null){
 			OlafStorage db;
-			if (Config.get(Key.OLAF_STORAGE).equalsIgnoreCase("LMDB")) {
+			if (Config.get(Key.OLAF_STORAGE).equalsIgnoreCase("LMDB") && Config.getInt(Key.OLAF_LMDB_SHARDS) > 1) {
+				db = OlafShardedStorage.getInstance();
+			}else if (Config.get(Key.OLAF_STORAGE).equalsIgnoreCase("LMDB")) {
 				db = OlafStorageKV.getInstance();
 			}else if (Config.get(Key.OLAF_STORAGE).equalsIgnoreCase("FILE")) {
 				db = OlafStorageFile.getInstance();
+			}else if (Config.get(Key.OLAF_STORAGE).equalsIgnoreCase("MMAP")) {
+				db = OlafStorageMapped.getInstance();
+			}else if (Config.get(Key.OLAF_STORAGE).equalsIgnoreCase("REMOTE")) {
+				db = OlafStorageRemote.getInstance();
 			}else {
 				db = OlafStorageMemory.getInstance();
 			}
 
-			if(Config.getBoolean(Key.OLAF_CACHE_TO_FILE) && db != OlafStorageFile.getInstance()) {
+			//a read-only storage has nothing to cache
+			boolean readOnly = db instanceof OlafStorageMapped || db instanceof OlafStorageRemote;
+			if(Config.getBoolean(Key.OLAF_CACHE_TO_FILE) && db != OlafStorageFile.getInstance() && !readOnly) {
 				LOG.info("Using "+ db.getClass().getSimpleName() + " storage with caching front.");
 				db = new OlafCachingStorage(OlafStorageFile.getInstance(),db);
 			}else {
@@ -99,29 +125,37 @@ public class OlafStrategy extends Strategy {
 
 		OlafStorage db = getStorage();
 		
-		List<OlafFingerprint> prints = toFingerprints(resource);
+		final int resourceID = FileUtils.getIdentifier(resource);
+		final int[] printCount = {0};
+		final int[] lastPrintT3 = {0};
+		final OlafStoreBatch batch = new OlafStoreBatch();
 		
-		int resourceID = FileUtils.getIdentifier(resource);
-		//store
-		for(OlafFingerprint print : prints) {
-			long hash = print.hash();			
-			int printT1 = print.t1;
-			db.addToStoreQueue(hash, resourceID, printT1);
-		}
-		db.processStoreQueue();
+		//store the fingerprints while they are being extracted
+		extractFingerprints(resource, 0, MAX_TIME, print -> {
+			batch.add(print.hash(), resourceID, print.t1);
+			lastPrintT3[0] = print.t3;
+			printCount[0]++;
+			if(printCount[0] % STORE_QUEUE_FLUSH_SIZE == 0) {
+				db.store(batch);
+				batch.clear();
+			}
+		});
+		
+		int numberOfPrints = printCount[0];
 		
 		//store meta-data as well
 		float duration = 0;
-		if(prints.size() != 0) {
-			duration = blocksToSeconds(prints.get(prints.size()-1).t3);
-			LOG.info(String.format("Stored %d fingerprints for '%s', id: %d", prints.size() , resource ,resourceID));
+		if(numberOfPrints != 0) {
+			duration = blocksToSeconds(lastPrintT3[0]);
+			LOG.info(String.format("Stored %d fingerprints for '%s', id: %d", numberOfPrints , resource ,resourceID));
 		}else {
 			LOG.warning("Warning: no prints extracted for " + resource);
 			
 		}
-		int numberOfPrints = prints.size();
 		
-		db.storeMetadata(resourceID,resource,duration,numberOfPrints);
+		batch.addMetadata(resourceID,resource,duration,numberOfPrints);
+		//write the remaining fingerprints together with the meta-data
+		db.store(batch);
 		
 		//storage is done: 
 		//try to clear memory
@@ -130,25 +164,118 @@ public class OlafStrategy extends Strategy {
 		return duration;
 	}
 
+	@Override
+	public float[] decode(String resource, int maxNumberOfSamples) throws IOException {
+		// cached fingerprints do not need decoded audio
+		if(Config.getBoolean(Key.OLAF_USE_CACHED_PRINTS) && FileUtils.exists(cachedPrintsPath(resource)))
+			return null;
+		return AudioFileUtils.decode(resource, Config.getInt(Key.OLAF_SAMPLE_RATE), maxNumberOfSamples);
+	}
+
+	@Override
+	public ExtractedResource extract(String resource, String description, float[] samples) {
+		OlafExtractedResource extracted = new OlafExtractedResource(resource);
+		if(samples == null)
+			extractFingerprints(resource, 0, MAX_TIME, extracted);
+		else
+			extractFingerprints(samples, extracted);
+		return extracted;
+	}
+
+	@Override
+	public void store(List<? extends ExtractedResource> resources) {
+		OlafStoreBatch batch = new OlafStoreBatch();
+		for(ExtractedResource resource : resources)
+			((OlafExtractedResource) resource).addTo(batch);
+		getStorage().store(batch);
+	}
+
+	@Override
+	public double store(String resource, String description, float[] samples) {
+		OlafExtractedResource extracted = new OlafExtractedResource(resource);
+		extractFingerprints(samples, extracted);
+		store(Collections.singletonList(extracted));
+		LOG.info(String.format("Stored %d fingerprints for '%s', id: %d", extracted.numberOfPrints(), resource, extracted.resourceID));
+		return extracted.duration();
+	}
+
+	/**
+	 * Keeps the fingerprints of a resource in compact arrays until they are queued for storage.
+	 */
+	private class OlafExtractedResource implements ExtractedResource, Consumer<OlafFingerprint> {
+		private final String resource;
+		private final int resourceID;
+		private long[] hashes = new long[1024];
+		private int[] t1s = new int[1024];
+		private int numberOfPrints = 0;
+		private int lastPrintT3 = 0;
+
+		OlafExtractedResource(String resource){
+			this.resource = resource;
+			this.resourceID = FileUtils.getIdentifier(resource);
+		}
+
+		@Override
+		public void accept(OlafFingerprint print) {
+			if(numberOfPrints == hashes.length) {
+				hashes = Arrays.copyOf(hashes, hashes.length * 2);
+				t1s = Arrays.copyOf(t1s, t1s.length * 2);
+			}
+			hashes[numberOfPrints] = print.hash();
+			t1s[numberOfPrints] = print.t1;
+			lastPrintT3 = print.t3;
+			numberOfPrints++;
+		}
+
+		@Override
+		public String resource() {
+			return resource;
+		}
+
+		@Override
+		public double duration() {
+			return numberOfPrints == 0 ? 0 : blocksToSeconds(lastPrintT3);
+		}
+
+		@Override
+		public int numberOfPrints() {
+			return numberOfPrints;
+		}
+
+		/**
+		 * Adds the fingerprints and the meta-data of the resource to a batch.
+		 * @param batch The batch to add to.
+		 */
+		void addTo(OlafStoreBatch batch) {
+			for(int i = 0 ; i < numberOfPrints ; i++)
+				batch.add(hashes[i], resourceID, t1s[i]);
+			if(numberOfPrints == 0)
+				LOG.warning("Warning: no prints extracted for " + resource);
+			batch.addMetadata(resourceID, resource, (float) duration(), numberOfPrints);
+		}
+	}
+
 	@Override
 	public double delete(String resource) {
 		OlafStorage db = getStorage();
 
-		List<OlafFingerprint> prints = toFingerprints(resource);
+		final int resourceID = FileUtils.getIdentifier(resource);
+		final int[] printCount = {0};
+		final int[] lastPrintT3 = {0};
+		final OlafStoreBatch batch = new OlafStoreBatch();
 
-		int resourceID = FileUtils.getIdentifier(resource);
 		//delete
-		for(OlafFingerprint print : prints) {
-			long hash = print.hash();
-			int printT1 = print.t1;
-			db.addToDeleteQueue(hash, resourceID, printT1);
-		}
-		db.processDeleteQueue();
+		extractFingerprints(resource, 0, MAX_TIME, print -> {
+			batch.add(print.hash(), resourceID, print.t1);
+			lastPrintT3[0] = print.t3;
+			printCount[0]++;
+		});
+		db.delete(batch);
 
 		//delete meta-data as well
 		float duration = 0;
-		if(prints.size() != 0) {
-			duration = blocksToSeconds(prints.get(prints.size()-1).t3);
+		if(printCount[0] != 0) {
+			duration = blocksToSeconds(lastPrintT3[0]);
 		}else {
 			LOG.warning("Warning: no prints extracted for " + resource);
 		}
@@ -173,28 +300,40 @@ public class OlafStrategy extends Strategy {
 	}
 
 	private List<OlafFingerprint> toFingerprints(String resource,double startTimeOffset,double numberOfSeconds){
+		List<OlafFingerprint> prints = new ArrayList<>();
+		extractFingerprints(resource,startTimeOffset,numberOfSeconds,prints::add);
+		return prints;
+	}
+
+	/**
+	 * For the resource with a certain path, either read fingerprints from a cached file or
+	 * extract fingerprints. Fingerprints are handed to the consumer in time order, while the
+	 * audio is being decoded.
+	 * @return The number of seconds of decoded audio or -1 if cached fingerprints are used.
+	 */
+	private float extractFingerprints(String resource,double startTimeOffset,double numberOfSeconds,Consumer<OlafFingerprint> fingerprintConsumer){
 		if(Config.getBoolean(Key.OLAF_USE_CACHED_PRINTS)) {
-			String folder = Config.get(Key.OLAF_CACHE_FOLDER);
-			folder = FileUtils.expandHomeDir(folder);
-			String tdbPath =  FileUtils.combine(folder,resolve(resource) + ".tdb");
-
-			if(FileUtils.exists(tdbPath)) {
-				List<OlafFingerprint> prints = new ArrayList<>();
-				List<long[]> printData = readFingerprintFile(tdbPath);
-				for(long[] data : printData) {
-					long fingerprintHash = data[0];
-					int t1 = (int) data[2];
+			String tdbPath = cachedPrintsPath(resource);
+
+			OlafCacheFile cacheFile = openCacheFile(tdbPath);
+			if(cacheFile != null) {
+				int numberOfPrints = 0;
+				for(int i = 0 ; i < cacheFile.size() ; i++) {
+					long fingerprintHash = cacheFile.hash(i);
+					int t1 = cacheFile.t1(i);
 					float t1InSeconds = blocksToSeconds(t1);
 
 					//skip all fingerprints after stop time
 					if(t1InSeconds > startTimeOffset + numberOfSeconds)
 						break;
 					//only add prints if they are after the start time offset
-					if(t1InSeconds >= startTimeOffset)
-						prints.add(new OlafFingerprint(fingerprintHash,t1));
+					if(t1InSeconds >= startTimeOffset) {
+						fingerprintConsumer.accept(new OlafFingerprint(fingerprintHash,t1));
+						numberOfPrints++;
+					}
 				}
-				LOG.info(String.format("Read %d cached fingerprints from file '%s' (start: %.3f sec, stop: %.3f sec) for '%s'", prints.size(),tdbPath,startTimeOffset,startTimeOffset+numberOfSeconds,resource));
-				return prints;
+				LOG.info(String.format("Read %d cached fingerprints from file '%s' (start: %.3f sec, stop: %.3f sec) for '%s'", numberOfPrints,tdbPath,startTimeOffset,startTimeOffset+numberOfSeconds,resource));
+				return -1;
 			}else{
 				LOG.info(String.format("Could not read cached fingerprints from file '%s' for '%s'",tdbPath,resource));
 			}
@@ -207,31 +346,91 @@ public class OlafStrategy extends Strategy {
 		
 		AudioDispatcher d;
 		
-		if(numberOfSeconds==MAX_TIME)
-			d = AudioDispatcherFactory.fromPipe(resource, samplerate, size, overlap,startTimeOffset);
-		else
-			d = AudioDispatcherFactory.fromPipe(resource, samplerate, size, overlap,startTimeOffset,numberOfSeconds);
+		//zero seconds decodes until the end
+		d = AudioFileUtils.dispatcher(resource, samplerate, size, overlap, startTimeOffset, numberOfSeconds == MAX_TIME ? 0 : numberOfSeconds);
 		
-		OlafEventPointProcessor eventPointProcessor = new OlafEventPointProcessor(size);
+		OlafEventPointProcessor eventPointProcessor = takeEventPointProcessor(size,fingerprintConsumer);
 		d.addAudioProcessor(eventPointProcessor);
-		d.run();
-		
-		return eventPointProcessor.getFingerprints();
+		try {
+			d.run();
+		} finally {
+			releaseEventPointProcessor(eventPointProcessor);
+		}
+		return d.secondsProcessed();
 	}
 
-	private List<OlafEventPoint> toEventpoints(String resource){
+	/**
+	 * Extract fingerprints from decoded audio, see {@link #decode(String, int)}.
+	 */
+	private void extractFingerprints(float[] samples,Consumer<OlafFingerprint> fingerprintConsumer){
 		int samplerate, size, overlap;
 		samplerate = Config.getInt(Key.OLAF_SAMPLE_RATE);
 		size = Config.getInt(Key.OLAF_SIZE);
 		overlap = size - Config.getInt(Key.OLAF_STEP_SIZE);
 
 		AudioDispatcher d;
-		d = AudioDispatcherFactory.fromPipe(resource, samplerate, size, overlap,0);
-		OlafEventPointProcessor eventPointProcessor = new OlafEventPointProcessor(size);
+		try {
+			d = AudioDispatcherFactory.fromFloatArray(samples, samplerate, size, overlap);
+		} catch (UnsupportedAudioFileException e) {
+			throw new RuntimeException(e);
+		}
+
+		OlafEventPointProcessor eventPointProcessor = takeEventPointProcessor(size,fingerprintConsumer);
 		d.addAudioProcessor(eventPointProcessor);
-		d.run();
+		try {
+			d.run();
+		} finally {
+			releaseEventPointProcessor(eventPointProcessor);
+		}
+	}
+
+	/**
+	 * Returns the idle event point processor of this thread, reset for new audio, or a new one if there is
+	 * none or the configuration changed. The processor is not idle until it is released: an extraction
+	 * started by a fingerprint consumer gets its own processor.
+	 */
+	private static OlafEventPointProcessor takeEventPointProcessor(int size,Consumer<OlafFingerprint> fingerprintConsumer){
+		OlafEventPointProcessor eventPointProcessor = idleEventPointProcessors.get();
+		idleEventPointProcessors.remove();
+		if(eventPointProcessor == null || !eventPointProcessor.matchesConfiguration(size)){
+			return new OlafEventPointProcessor(size,fingerprintConsumer);
+		}
+		eventPointProcessor.reset(fingerprintConsumer);
+		return eventPointProcessor;
+	}
+
+	/**
+	 * Makes the event point processor the idle processor of this thread. It is reset so it does not
+	 * keep the consumer, event points or fingerprints of the last audio.
+	 */
+	private static void releaseEventPointProcessor(OlafEventPointProcessor eventPointProcessor){
+		eventPointProcessor.reset(null);
+		idleEventPointProcessors.set(eventPointProcessor);
+	}
+
+	private String cachedPrintsPath(String resource){
+		String folder = Config.get(Key.OLAF_CACHE_FOLDER);
+		folder = FileUtils.expandHomeDir(folder);
+		return FileUtils.combine(folder,resolve(resource) + ".tdb");
+	}
+
+	private List<OlafEventPoint> toEventpoints(String resource){
+		int samplerate, size, overlap;
+		samplerate = Config.getInt(Key.OLAF_SAMPLE_RATE);
+		size = Config.getInt(Key.OLAF_SIZE);
+		overlap = size - Config.getInt(Key.OLAF_STEP_SIZE);
 
-		return eventPointProcessor.getEventPoints();
+		AudioDispatcher d;
+		d = AudioFileUtils.dispatcher(resource, samplerate, size, overlap, 0, 0);
+		OlafEventPointProcessor eventPointProcessor = takeEventPointProcessor(size,null);
+		d.addAudioProcessor(eventPointProcessor);
+		try {
+			d.run();
+			//copy, the list is cleared when the processor is released
+			return new ArrayList<>(eventPointProcessor.getEventPoints());
+		} finally {
+			releaseEventPointProcessor(eventPointProcessor);
+		}
 	}
 	
 	private float blocksToSeconds(int t) {		
@@ -246,300 +445,119 @@ public class OlafStrategy extends Strategy {
 		return (float) centerBinFrequencyInHz;
 	}
 
-	private int mostCommonDeltaTforHitList(List<OlafMatch> hitList) {
-		Map<Integer,Integer> countPerDiff = new HashMap<>();
-		hitList.forEach((hit)->{
-			int deltaT = hit.deltaT();
-			if(!countPerDiff.containsKey(deltaT))
-				countPerDiff.put(deltaT, 0);
-			countPerDiff.put(deltaT, countPerDiff.get(deltaT)+1);
-		});
-		
+	/**
+	 * Finds the most common value in a list of values. The values are sorted in place.
+	 * 
+	 * When several values are equally common, the smallest wins. Before, ties were decided by
+	 * the iteration order of a hash map, which favoured the smallest non-negative value over
+	 * negative values. So only a tie between a negative and a non-negative time difference
+	 * can resolve differently, to another equally supported time difference.
+	 * 
+	 * @param values The values, sorted in place.
+	 * @param length The number of values to consider.
+	 * @return The most common value, the smallest of equally common values.
+	 */
+	private static int mostCommonValue(long[] values, int length) {
+		Arrays.sort(values, 0, length);
 		int maxCount = 0;
-		int mostCommonDeltaT = 0;
-		for(Map.Entry<Integer,Integer> entry : countPerDiff.entrySet()) {
-			int count = entry.getValue();
-			if(count > maxCount) {
-				maxCount = count;
-				mostCommonDeltaT = entry.getKey();
+		long mostCommon = 0;
+		int runStart = 0;
+		for(int i = 1 ; i <= length ; i++) {
+			if(i == length || values[i] != values[runStart]) {
+				int count = i - runStart;
+				if(count > maxCount) {
+					maxCount = count;
+					mostCommon = values[runStart];
+				}
+				runStart = i;
+			}
+		}
+		return (int) mostCommon;
+	}
+
+	private int mostCommonDeltaT(long[] hits, int from, int to, long[] scratch) {
+		for(int i = from ; i < to ; i++)
+			scratch[i - from] = OlafHitAccumulator.deltaTOf(hits[i]);
+		return mostCommonValue(scratch, to - from);
+	}
+
+	/**
+	 * Reusable buffers for the matching step, one set per querying thread.
+	 */
+	private static class MatchBuffers {
+		final OlafQueryBatch queryBatch = new OlafQueryBatch();
+		final OlafHitAccumulator accumulator = new OlafHitAccumulator();
+		long[] hits = new long[1024];
+		long[] scratch = new long[1024];
+
+		void ensureCapacity(int size) {
+			if(hits.length < size) {
+				hits = new long[Math.max(size, hits.length * 2)];
+				scratch = new long[hits.length];
 			}
 		}
-		return mostCommonDeltaT;
 	}
 
+	private final ThreadLocal<MatchBuffers> matchBuffers = ThreadLocal.withInitial(MatchBuffers::new);
+
 	@Override
 	public void query(String query, int maxNumberOfResults, Set<Integer> avoid, QueryResultHandler handler) {
 		query(query,maxNumberOfResults,avoid,handler,0,MAX_TIME);
 	}
 
 
+	@Override
+	public void query(String query, float[] samples, int maxNumberOfResults, Set<Integer> avoid, QueryResultHandler handler) {
+		query(query, consumer -> extractFingerprints(samples, consumer), maxNumberOfResults, avoid, handler);
+	}
+
 	private void query(String query, int maxNumberOfResults, Set<Integer> avoid, QueryResultHandler handler, double startTimeOffset,double numberOfSeconds ) {
 		
 		final String queryPath ;
-		List<OlafFingerprint> prints;
 		if(numberOfSeconds != MAX_TIME) {
 			queryPath = query + "-" + startTimeOffset + "_" + (startTimeOffset+numberOfSeconds);
-			prints = toFingerprints(query,startTimeOffset,numberOfSeconds);
 		}else {
 			queryPath = query;
-			prints = toFingerprints(query);
 		}
+		query(queryPath, consumer -> extractFingerprints(query, startTimeOffset, numberOfSeconds, consumer), maxNumberOfResults, avoid, handler);
+	}
+
+	/**
+	 * Matches the fingerprints of a query with the index.
+	 * @param queryPath The identifier of the query, used in the results.
+	 * @param extractor Hands the fingerprints of the query to a consumer.
+	 */
+	private void query(String queryPath, Consumer<Consumer<OlafFingerprint>> extractor, int maxNumberOfResults, Set<Integer> avoid, QueryResultHandler handler) {
+		final OlafStorage db = getStorage();
+
+		final MatchBuffers buffers = matchBuffers.get();
+		final OlafHitAccumulator matchAccumulator = buffers.accumulator;
+		matchAccumulator.clear();
+		final OlafQueryBatch queryBatch = buffers.queryBatch;
+		queryBatch.clear();
 		
-		final OlafStorage db = getStorage();;
-		
-		Map<Long,OlafFingerprint> printMap = new HashMap<>();
-		
-		//query
-		for(OlafFingerprint print : prints) {
+		//batch the prints for querying while they are extracted
+		final int[] printCount = {0};
+		extractor.accept(print -> {
 			long hash = print.hash();
-			db.addToQueryQueue(hash);
-			printMap.put(hash, print);
-		}
-		
-		//fingerprint hash to info
-		Map<Long,List<OlafHit>> matchAccumulator = new HashMap<>();
+			queryBatch.add(hash);
+			matchAccumulator.addQueryPrint(hash, print.t1);
+			printCount[0]++;
+		});
 		
 		StopWatch w = new StopWatch();
 		int queryRange = Config.getInt(Key.OLAF_QUERY_RANGE); 
-		db.processQueryQueue(matchAccumulator,queryRange , avoid);
-		
-		LOG.info(String.format("Query for %d prints, %d matches in %s \n", printMap.size(),matchAccumulator.size(), w.formattedToString()));
-		
-		 HashMap<Integer,List<OlafMatch>> hitsPerIdentifer = new HashMap<>();
-		 
-		 final List<QueryResult> queryResults = new ArrayList<>();
-		 
-		 matchAccumulator.forEach((fingerprintHash, dbHits) -> {
-			 
-			 dbHits.forEach((dbHit)->{
-				//long matchingHash  = data[0];
-				 int identifier = dbHit.resourceID;
-				 int matchTime = dbHit.t;
-				 if(!hitsPerIdentifer.containsKey(identifier)){
-					hitsPerIdentifer.put(identifier, new ArrayList<OlafMatch>());
-				 }
-				 OlafMatch hit = new OlafMatch();
-				 hit.identifier = identifier;
-				 hit.matchTime = matchTime;
-				 hit.originalHash = dbHit.originalHash;
-				 hit.matchedNearHash = dbHit.matchedNearHash;
-				 hit.queryTime = printMap.get(fingerprintHash).t1;
-				 hitsPerIdentifer.get(identifier).add(hit);
-			 });
-		 });
-		 
-		 int minimumUnfilteredHits = Config.getInt(Key.OLAF_MIN_HITS_UNFILTERED);
-		 int minimumFilteredHits = Config.getInt(Key.OLAF_MIN_HITS_FILTERED);
-		 
-		 List<Integer> matchesToDelete = new ArrayList<>();
-		 hitsPerIdentifer.forEach((identifier, hitlist) -> {
-			 if(hitlist.size() < minimumUnfilteredHits) {
-				 matchesToDelete.add(identifier);
-			 }
-		 });
-		 
-		 matchesToDelete.forEach( identifier ->{
-			 hitsPerIdentifer.remove(identifier);
-			 //System.out.println("Removed " + identifier);
-		 });
-		 
-		 hitsPerIdentifer.forEach((identifier, hitlist) -> {
-			 //System.out.println("Matches " + identifier + " matches " + hitlist.size());
-			 
-			 //sort by query time
-			 Collections.sort(hitlist, (Comparator<? super OlafMatch>) (OlafMatch a, OlafMatch b) -> Integer.valueOf(a.queryTime).compareTo(Integer.valueOf(b.queryTime)));
-			
-			 //view the first and last hits (max 250)
-			 int maxPartListSize = Config.getInt(Key.OLAF_HIT_PART_MAX_SIZE);
-			 int partDivider = Config.getInt(Key.OLAF_HIT_PART_DIVIDER);
-			 int partListLength = Math.min(maxPartListSize,Math.max(minimumUnfilteredHits,hitlist.size()/partDivider));
-
-			 List<OlafMatch> firstHits = hitlist.subList(0, partListLength);
-			 List<OlafMatch> lastHits  = hitlist.subList(hitlist.size()-partListLength, hitlist.size());
-			 
-			//find the first x1 where delta t is equals to the median delta t
-			 float y1 = mostCommonDeltaTforHitList(firstHits);
-			 float x1 = 0;
-			 for(int i = 0 ; i < firstHits.size() ; i++) {
-				 OlafMatch hit = firstHits.get(i);
-				 int diff = hit.deltaT();
-				 if(diff == y1) {
-					 x1 = hit.queryTime;
-					 break;
-				 }
-			 }
-
-			//find the first x2 where delta t is equals to the median delta t
-			 float y2 = mostCommonDeltaTforHitList(lastHits);
-			 float x2 = 0;
-			 for(int i = lastHits.size() - 1 ; i >= 0 ; i--) {
-				 OlafMatch hit = lastHits.get(i);
-				 int diff = hit.deltaT();
-				 if(diff == y2) {
-					 x2 = hit.queryTime;
-					 break;
-				 }
-			 }
-			 
-			 float slope = (y2-y1)/(x2-x1);
-			 float offset = -x1 * slope + y1;
-			 float timeFactor = 1-slope;
-
-			 //System.out.printf("slope %f  offset %f (blocks) time factor %f (percentage) hit list size %d , last hit list size %d, first hit list size %d, id %d\n",slope,offset,timeFactor, hitlist.size(), lastHits.size(), firstHits.size() , identifier);
-			 
-			 //threshold in time bins
-			 double threshold = Config.getFloat(Key.OLAF_QUERY_RANGE);
-			 
-			 //only continue processing when time factor is reasonable
-			 if(timeFactor > Config.getFloat(Key.OLAF_MIN_TIME_FACTOR) && timeFactor < Config.getFloat(Key.OLAF_MAX_TIME_FACTOR)) {
-				 List<OlafMatch> filteredHits = new ArrayList<>();
-				 
-				 hitlist.forEach( hit ->{				 
-					 float yActual = hit.deltaT();
-					 float x = hit.queryTime;
-					 float yPredicted = slope * x + offset;
-					 
-					 //should be within an expected range
-					 boolean yInExpectedRange = Math.abs(yActual-yPredicted) <= threshold ; 
-					 
-					 //if(hit.identifier!= FileUtils.getIdentifier(queryPath))
-						 //System.out.printf("pred: %f  actual: %f   dif abs: %f  threshold %f \n",yPredicted, yActual,Math.abs(yActual-yPredicted), threshold);
-					 
-					 if(yInExpectedRange) {
-						 filteredHits.add(hit);
-					 }
-				 });
-				 
-				 //ignore resources with too few filtered hits remaining
-				 if(filteredHits.size() > minimumFilteredHits) {
-					 float minDuration = Config.getFloat(Key.OLAF_MIN_MATCH_DURATION);
-					 float queryStart = blocksToSeconds(filteredHits.get(0).queryTime);
-					 float queryStop = blocksToSeconds(filteredHits.get(filteredHits.size()-1).queryTime);
-					 float duration = queryStop - queryStart;
-					 System.out.printf("Matches %d (id) Filtered hits: %d (#) query start %.2f (s) , query stop %.2f (s) \n",identifier, filteredHits.size(),queryStart,queryStop);
-
-					 if(duration >= minDuration) {
-						 int score = filteredHits.size();
-						 float frequencyFactor = 1.0f;
-						 
-						 float refStart = blocksToSeconds(filteredHits.get(0).matchTime);
-						 float refStop =  blocksToSeconds(filteredHits.get(filteredHits.size()-1).matchTime);
-						 
-						 //retrieve meta-data
-						 OlafResourceMetadata metadata = db.getMetadata((long) identifier);
-						 String refPath = "metadata unavailable!";
-						 if(metadata != null )
-							 refPath = metadata.path;
-						 
-						 //Construct a histogram with the number of matches for each second
-						 //Ideally there is a more or less equal number of matches each second
-						 // note that the last second might not be a full second
-						 TreeMap<Integer,Integer> matchesPerSecondHistogram = new TreeMap<>();
-						 for(OlafMatch hit : filteredHits) {
-							 //if(hit.identifier!= FileUtils.getIdentifier(queryPath))
-								 //System.out.printf("%d %d %d %d %d\n", hit.identifier, hit.matchTime, hit.queryTime, hit.originalHash, hit.matchedNearHash);
-							 float offsetInSec = blocksToSeconds(hit.matchTime) - refStart;
-							 int secondBin = (int) offsetInSec;
-							 if(!matchesPerSecondHistogram.containsKey(secondBin))
-								 matchesPerSecondHistogram.put(secondBin, 0);
-							 matchesPerSecondHistogram.put(secondBin, matchesPerSecondHistogram.get(secondBin)+1);
-						 }
-						
-						 //number of seconds bins
-						 float numberOfMatchingSeconds = (float) Math.ceil(refStop - refStart);
-						 float emptySeconds = numberOfMatchingSeconds - matchesPerSecondHistogram.size();
-						 float percentOfSecondsWithMatches = 1 - (emptySeconds / numberOfMatchingSeconds);
-						 
-						 if(percentOfSecondsWithMatches >= Config.getFloat(Key.OLAF_MIN_SEC_WITH_MATCH)){
-						 	QueryResult r = new QueryResult(queryPath,queryStart, queryStop, refPath, "" + identifier, refStart, refStop,  score, timeFactor, frequencyFactor,percentOfSecondsWithMatches);
-						 	queryResults.add(r);
-						 }
-					 }
-				 }
-			 }
-		 });
-
-		 //fallback to simple histogram method
-		if (queryResults.isEmpty() && Config.getBoolean(Key.OLAF_MATCH_FALLBACK_TO_HIST)) {
-			int histogramBinSize = 5;
-			hitsPerIdentifer.forEach((identifier, hitlist) -> {
-				Map<Integer,Integer> countPerDiff = new HashMap<>();
-				hitlist.forEach((hit)->{
-					//Histogram per 5 time bins to allow some variation in tdiff
-					int deltaT = hit.deltaT() / histogramBinSize;
-					if(!countPerDiff.containsKey(deltaT)) countPerDiff.put(deltaT, 0);
-					countPerDiff.put(deltaT, countPerDiff.get(deltaT)+1);
-				});
-
-				int maxCount = 0;
-				int mostCommonDeltaT = 0;
-				for(Map.Entry<Integer,Integer> entry : countPerDiff.entrySet()) {
-					int count = entry.getValue();
-					if(count > maxCount) {
-						maxCount = count;
-						mostCommonDeltaT = entry.getKey();
-					}
-				}
-
-				final int mostDeltaT = mostCommonDeltaT * histogramBinSize;
-				List<OlafMatch> filteredHits = new ArrayList<>();
-				if(maxCount > minimumUnfilteredHits){
-					hitlist.forEach( hit ->{
-						if( Math.abs(mostDeltaT - hit.deltaT() ) <= histogramBinSize)
-							filteredHits.add(hit);
-					});
-				}
-
-
+		db.query(queryBatch,matchAccumulator,queryRange , avoid);
+		
+		LOG.info(String.format("Query for %d prints, %d hits for %d resources in %s \n", printCount[0],matchAccumulator.size(),matchAccumulator.numberOfResources(), w.formattedToString()));
+		
+		handleResults(queryPath, matchHits(queryPath, matchAccumulator), maxNumberOfResults, handler);
+	}
 
-				if(filteredHits.size() > minimumFilteredHits) {
-					float minDuration = Config.getFloat(Key.OLAF_MIN_MATCH_DURATION);
-					float queryStart = blocksToSeconds(filteredHits.get(0).queryTime);
-					float queryStop = blocksToSeconds(filteredHits.get(filteredHits.size() - 1).queryTime);
-					float duration = queryStop - queryStart;
-					System.out.printf("Matches %d (id) Filtered hits: %d (#) query start %.2f (s) , query stop %.2f (s) \n", identifier, filteredHits.size(), queryStart, queryStop);
-
-					if (duration >= minDuration) {
-						int score = filteredHits.size();
-						float frequencyFactor = 1.0f;
-
-						float refStart = blocksToSeconds(filteredHits.get(0).matchTime);
-						float refStop = blocksToSeconds(filteredHits.get(filteredHits.size() - 1).matchTime);
-
-						//retrieve meta-data
-						OlafResourceMetadata metadata = db.getMetadata((long) identifier);
-						String refPath = "metadata unavailable!";
-						if (metadata != null)
-							refPath = metadata.path;
-
-						//Construct a histogram with the number of matches for each second
-						//Ideally there is a more or less equal number of matches each second
-						// note that the last second might not be a full second
-						TreeMap<Integer, Integer> matchesPerSecondHistogram = new TreeMap<>();
-						for (OlafMatch hit : filteredHits) {
-							//if(hit.identifier!= FileUtils.getIdentifier(queryPath))
-							//System.out.printf("%d %d %d %d %d\n", hit.identifier, hit.matchTime, hit.queryTime, hit.originalHash, hit.matchedNearHash);
-							float offsetInSec = blocksToSeconds(hit.matchTime) - refStart;
-							int secondBin = (int) offsetInSec;
-							if (!matchesPerSecondHistogram.containsKey(secondBin))
-								matchesPerSecondHistogram.put(secondBin, 0);
-							matchesPerSecondHistogram.put(secondBin, matchesPerSecondHistogram.get(secondBin) + 1);
-						}
-
-						//number of seconds bins
-						float numberOfMatchingSeconds = (float) Math.ceil(refStop - refStart);
-						float emptySeconds = numberOfMatchingSeconds - matchesPerSecondHistogram.size();
-						float percentOfSecondsWithMatches = 1 - (emptySeconds / numberOfMatchingSeconds);
-
-						if (percentOfSecondsWithMatches >= Config.getFloat(Key.OLAF_MIN_SEC_WITH_MATCH) ) {
-							QueryResult r = new QueryResult(queryPath, queryStart, queryStop, refPath, "" + identifier, refStart, refStop, score, 1.0f, frequencyFactor, percentOfSecondsWithMatches);
-							queryResults.add(r);
-						}
-					}
-				}
-			});
-		}
-		 
+	/**
+	 * Hands the best results to the handler, in order of score, or an empty result if nothing matched.
+	 */
+	private void handleResults(String queryPath, List<QueryResult> queryResults, int maxNumberOfResults, QueryResultHandler handler) {
 		 if (queryResults.isEmpty()) {
 			 handler.handleEmptyResult(QueryResult.emptyQueryResult(queryPath,0,0));
 		 }else {
@@ -557,19 +575,563 @@ public class OlafStrategy extends Strategy {
 		 }
 	}
 
+	/**
+	 * Matches the hits of a query with the indexed resources: for each resource with enough hits a
+	 * linear relation between query and reference time is determined and only hits close to
+	 * that relation are kept.
+	 *
+	 * @param queryPath The identifier of the query, used in the results.
+	 * @param matchAccumulator The hits of the query with the index.
+	 * @return A list of query results, unsorted.
+	 */
+	public List<QueryResult> matchHits(String queryPath, OlafHitAccumulator matchAccumulator) {
+		final OlafStorage db = getStorage();
+		final MatchBuffers buffers = matchBuffers.get();
+		final List<QueryResult> queryResults = new ArrayList<>();
+		
+		int minimumUnfilteredHits = Config.getInt(Key.OLAF_MIN_HITS_UNFILTERED);
+		int minimumFilteredHits = Config.getInt(Key.OLAF_MIN_HITS_FILTERED);
+		int maxPartListSize = Config.getInt(Key.OLAF_HIT_PART_MAX_SIZE);
+		int partDivider = Config.getInt(Key.OLAF_HIT_PART_DIVIDER);
+		//threshold in time bins
+		double threshold = Config.getFloat(Key.OLAF_QUERY_RANGE);
+		float minTimeFactor = Config.getFloat(Key.OLAF_MIN_TIME_FACTOR);
+		float maxTimeFactor = Config.getFloat(Key.OLAF_MAX_TIME_FACTOR);
+		
+		for(int group = 0 ; group < matchAccumulator.numberOfResources() ; group++) {
+			int identifier = matchAccumulator.resourceID(group);
+			int hitCount = matchAccumulator.hitCount(group);
+			if(hitCount < minimumUnfilteredHits)
+				continue;
+			
+			//sorted by query time
+			buffers.ensureCapacity(hitCount);
+			final long[] hits = buffers.hits;
+			matchAccumulator.sortedHits(group, hits);
+			
+			//view the first and last hits (max 250)
+			int partListLength = Math.min(maxPartListSize,Math.max(minimumUnfilteredHits,hitCount/partDivider));
+			
+			//find the first x1 where delta t is equals to the median delta t
+			float y1 = mostCommonDeltaT(hits, 0, partListLength, buffers.scratch);
+			float x1 = 0;
+			for(int i = 0 ; i < partListLength ; i++) {
+				if(OlafHitAccumulator.deltaTOf(hits[i]) == y1) {
+					x1 = OlafHitAccumulator.queryTimeOf(hits[i]);
+					break;
+				}
+			}
+			
+			//find the first x2 where delta t is equals to the median delta t
+			float y2 = mostCommonDeltaT(hits, hitCount - partListLength, hitCount, buffers.scratch);
+			float x2 = 0;
+			for(int i = hitCount - 1 ; i >= hitCount - partListLength ; i--) {
+				if(OlafHitAccumulator.deltaTOf(hits[i]) == y2) {
+					x2 = OlafHitAccumulator.queryTimeOf(hits[i]);
+					break;
+				}
+			}
+			
+			float slope = (y2-y1)/(x2-x1);
+			float offset = -x1 * slope + y1;
+			float timeFactor = 1-slope;
+			
+			//only continue processing when time factor is reasonable
+			if(timeFactor > minTimeFactor && timeFactor < maxTimeFactor) {
+				//keep the hits within the expected range, in place
+				int filteredHitCount = 0;
+				for(int i = 0 ; i < hitCount ; i++) {
+					float yActual = OlafHitAccumulator.deltaTOf(hits[i]);
+					float x = OlafHitAccumulator.queryTimeOf(hits[i]);
+					float yPredicted = slope * x + offset;
+					
+					//should be within an expected range
+					if(Math.abs(yActual-yPredicted) <= threshold) {
+						hits[filteredHitCount++] = hits[i];
+					}
+				}
+				
+				QueryResult r = toQueryResult(db, queryPath, identifier, hits, filteredHitCount, buffers.scratch, timeFactor);
+				if(r != null)
+					queryResults.add(r);
+			}
+		}
+		
+		//fallback to simple histogram method
+		if (queryResults.isEmpty() && Config.getBoolean(Key.OLAF_MATCH_FALLBACK_TO_HIST)) {
+			int histogramBinSize = 5;
+			for(int group = 0 ; group < matchAccumulator.numberOfResources() ; group++) {
+				int identifier = matchAccumulator.resourceID(group);
+				int hitCount = matchAccumulator.hitCount(group);
+				if(hitCount < minimumUnfilteredHits)
+					continue;
+				
+				buffers.ensureCapacity(hitCount);
+				final long[] hits = buffers.hits;
+				final long[] scratch = buffers.scratch;
+				matchAccumulator.sortedHits(group, hits);
+				
+				//Histogram per 5 time bins to allow some variation in tdiff
+				for(int i = 0 ; i < hitCount ; i++)
+					scratch[i] = OlafHitAccumulator.deltaTOf(hits[i]) / histogramBinSize;
+				int mostCommonDeltaT = mostCommonValue(scratch, hitCount);
+				int maxCount = 0;
+				for(int i = 0 ; i < hitCount ; i++)
+					if(scratch[i] == mostCommonDeltaT) maxCount++;
+				
+				final int mostDeltaT = mostCommonDeltaT * histogramBinSize;
+				int filteredHitCount = 0;
+				if(maxCount > minimumUnfilteredHits){
+					for(int i = 0 ; i < hitCount ; i++) {
+						if( Math.abs(mostDeltaT - OlafHitAccumulator.deltaTOf(hits[i]) ) <= histogramBinSize)
+							hits[filteredHitCount++] = hits[i];
+					}
+				}
+				
+				QueryResult r = toQueryResult(db, queryPath, identifier, hits, filteredHitCount, scratch, 1.0f);
+				if(r != null)
+					queryResults.add(r);
+			}
+		}
+
+		return queryResults;
+	}
+
+	/**
+	 * Checks the filtered hits of a resource and converts them to a query result.
+	 * @return A query result or null if the filtered hits do not represent a valid match.
+	 */
+	private QueryResult toQueryResult(OlafStorage db, String queryPath, int identifier, long[] filteredHits, int filteredHitCount, long[] scratch, float timeFactor) {
+		//ignore resources with too few filtered hits remaining
+		if(filteredHitCount <= Config.getInt(Key.OLAF_MIN_HITS_FILTERED))
+			return null;
+		
+		float minDuration = Config.getFloat(Key.OLAF_MIN_MATCH_DURATION);
+		long firstHit = filteredHits[0];
+		long lastHit = filteredHits[filteredHitCount-1];
+		float queryStart = blocksToSeconds(OlafHitAccumulator.queryTimeOf(firstHit));
+		float queryStop = blocksToSeconds(OlafHitAccumulator.queryTimeOf(lastHit));
+		float duration = queryStop - queryStart;
+		LOG.fine(String.format("Matches %d (id) Filtered hits: %d (#) query start %.2f (s) , query stop %.2f (s)",identifier, filteredHitCount,queryStart,queryStop));
+		
+		if(duration < minDuration)
+			return null;
+		
+		int score = filteredHitCount;
+		float frequencyFactor = 1.0f;
+		
+		float refStart = blocksToSeconds(OlafHitAccumulator.matchTimeOf(firstHit));
+		float refStop =  blocksToSeconds(OlafHitAccumulator.matchTimeOf(lastHit));
+		
+		//Construct a histogram with the number of matches for each second
+		//Ideally there is a more or less equal number of matches each second
+		// note that the last second might not be a full second
+		for(int i = 0 ; i < filteredHitCount ; i++) {
+			float offsetInSec = blocksToSeconds(OlafHitAccumulator.matchTimeOf(filteredHits[i])) - refStart;
+			scratch[i] = (int) offsetInSec;
+		}
+		Arrays.sort(scratch, 0, filteredHitCount);
+		int secondsWithMatches = 1;
+		for(int i = 1 ; i < filteredHitCount ; i++) {
+			if(scratch[i] != scratch[i-1])
+				secondsWithMatches++;
+		}
+		
+		//number of seconds bins
+		float numberOfMatchingSeconds = (float) Math.ceil(refStop - refStart);
+		float emptySeconds = numberOfMatchingSeconds - secondsWithMatches;
+		float percentOfSecondsWithMatches = 1 - (emptySeconds / numberOfMatchingSeconds);
+		
+		if(percentOfSecondsWithMatches < Config.getFloat(Key.OLAF_MIN_SEC_WITH_MATCH))
+			return null;
+		
+		//retrieve meta-data
+		OlafResourceMetadata metadata = db.getMetadata((long) identifier);
+		String refPath = "metadata unavailable!";
+		if(metadata != null )
+			refPath = metadata.path;
+		
+		return new QueryResult(queryPath,queryStart, queryStop, refPath, "" + identifier, refStart, refStop,  score, timeFactor, frequencyFactor,percentOfSecondsWithMatches);
+	}
+
 	@Override
 	public void monitor(String query, int maxNumberOfResults, Set<Integer> avoid, QueryResultHandler handler) {
-		int overlapInSeconds = Config.getInt(Key.MONITOR_OVERLAP); // 5
-		int stepSizeInSeconds = Config.getInt(Key.MONITOR_STEP_SIZE); //25
+		int threads = ParallelMonitor.threads();
+		if(threads <= 1) {
+			//decode and extract fingerprints only once, matches are followed while the audio is decoded
+			StreamingMonitor monitor = new StreamingMonitor(query, maxNumberOfResults, avoid, handler, 0, 0);
+			float totalDuration = extractFingerprints(query, 0, MAX_TIME, monitor);
+			if(totalDuration < 0)
+				totalDuration = AudioFileUtils.audioFileDurationInSeconds(new File(query));
+			monitor.finish(totalDuration);
+			return;
+		}
 
-		// Get the total duration efficiently
+		//cached fingerprints keep their time, decoded segments start at zero
+		boolean cached = Config.getBoolean(Key.OLAF_USE_CACHED_PRINTS) && FileUtils.exists(cachedPrintsPath(query));
 		double totalDuration = AudioFileUtils.audioFileDurationInSeconds(new File(query));
-		
-		//Steps: 0-25s ; 20-45s ; 40-65s ...
-		int actualStep = stepSizeInSeconds - overlapInSeconds;//20s
-		for(int t = 0 ; t + stepSizeInSeconds < totalDuration; t += actualStep ) {			
-			query(query,maxNumberOfResults,avoid,handler,t,stepSizeInSeconds);
+		monitorSegments(query, totalDuration, maxNumberOfResults, avoid, handler, threads, !cached,
+				(start, stop, consumer) -> extractFingerprints(query, start, stop - start, consumer));
+	}
+
+	@Override
+	public void monitor(String query, float[] samples, int maxNumberOfResults, Set<Integer> avoid, QueryResultHandler handler) {
+		int threads = ParallelMonitor.threads();
+		int sampleRate = Config.getInt(Key.OLAF_SAMPLE_RATE);
+		double totalDuration = samples.length / (double) sampleRate;
+		if(threads <= 1) {
+			StreamingMonitor monitor = new StreamingMonitor(query, maxNumberOfResults, avoid, handler, 0, 0);
+			extractFingerprints(samples, monitor);
+			monitor.finish(totalDuration);
+			return;
 		}
+
+		monitorSegments(query, totalDuration, maxNumberOfResults, avoid, handler, threads, true,
+				(start, stop, consumer) -> extractFingerprints(Arrays.copyOfRange(samples, start * sampleRate, (int) Math.min(samples.length, (long) stop * sampleRate)), consumer));
+	}
+
+	/**
+	 * Extracts the fingerprints of a part of a query.
+	 */
+	private interface SegmentExtractor {
+		void extract(int startInSeconds, int stopInSeconds, Consumer<OlafFingerprint> fingerprintConsumer);
+	}
+
+	/**
+	 * Splits the report periods of a query in one segment of consecutive periods per thread. The segments are
+	 * extracted and matched concurrently, the results are handled in time order. Each segment starts extracting
+	 * {@link Key#MONITOR_MATCH_TIMEOUT} seconds early, so matches which are followed at the start of the segment
+	 * are picked up again, and a second late, so the fingerprints at its end are complete.
+	 * @param relativeTimes True if the extracted fingerprints of a segment start at time zero.
+	 */
+	private void monitorSegments(String query, double totalDuration, int maxNumberOfResults, Set<Integer> avoid, QueryResultHandler handler, int threads, boolean relativeTimes, SegmentExtractor extractor) {
+		int period = Config.getInt(Key.MONITOR_STEP_SIZE);
+		int leadIn = Config.getInt(Key.MONITOR_MATCH_TIMEOUT);
+		int leadOut = 1;
+
+		int numberOfPeriods = (int) Math.ceil(totalDuration / period);
+		int periodsPerSegment = Math.max(1, (numberOfPeriods + threads - 1) / threads);
+
+		List<Consumer<QueryResultHandler>> segments = new ArrayList<>();
+		for(int first = 0 ; first < numberOfPeriods ; first += periodsPerSegment) {
+			final int start = first * period;
+			final int stop = Math.min(numberOfPeriods, first + periodsPerSegment) * period;
+			final int extractStart = Math.max(0, start - leadIn);
+			segments.add(segmentHandler -> {
+				StreamingMonitor monitor = new StreamingMonitor(query, maxNumberOfResults, avoid, segmentHandler, start, relativeTimes ? secondsToBlocks(extractStart) : 0);
+				extractor.extract(extractStart, stop + leadOut, monitor);
+				//only the periods of this segment
+				monitor.finish(Math.min(totalDuration, stop));
+			});
+		}
+		ParallelMonitor.run(segments, threads, handler);
+	}
+
+	/**
+	 * Follows matches in a long query or stream while its fingerprints are extracted. Each fingerprint is
+	 * extracted and looked up once, about every second, and its hits update the state of the matching
+	 * resources:
+	 * <ul>
+	 * <li>Hits of a resource without a match are kept for {@link Key#MONITOR_MATCH_TIMEOUT} seconds. A match
+	 * starts once enough of them agree on the time difference between query and reference.</li>
+	 * <li>A match is extended by each hit close to its time difference. The time difference follows the most
+	 * common difference of the latest hits, so slow drift is followed.</li>
+	 * <li>A match is closed when no hit extended it for {@link Key#MONITOR_MATCH_TIMEOUT} seconds.</li>
+	 * </ul>
+	 * The matches are reported every {@link Key#MONITOR_STEP_SIZE} seconds, each with the hits of that period,
+	 * as soon as all fingerprints of the period are looked up. The latency is so bounded by the period, also for
+	 * endless streams, and a match which continues is reported again in the next period.
+	 */
+	private class StreamingMonitor implements Consumer<OlafFingerprint> {
+		//the number of recent hits which determine the time difference of a match
+		private static final int RECENT_HITS = 16;
+
+		private final String query;
+		private final int maxNumberOfResults;
+		private final Set<Integer> avoid;
+		private final QueryResultHandler handler;
+		private final OlafStorage db = getStorage();
+
+		private final int period = Config.getInt(Key.MONITOR_STEP_SIZE);
+		private final int timeout = secondsToBlocks(Config.getInt(Key.MONITOR_MATCH_TIMEOUT));
+		private final int lookupInterval = secondsToBlocks(1);
+		private final int queryRange = Config.getInt(Key.OLAF_QUERY_RANGE);
+		//threshold in time bins
+		private final int threshold = Config.getInt(Key.OLAF_QUERY_RANGE);
+		private final int minimumHits = Config.getInt(Key.OLAF_MIN_HITS_FILTERED);
+		//fingerprints are handed over once their last event point is found
+		private final int maxPrintDelay = Config.getInt(Key.OLAF_FP_MAX_TIME_DIST) + Config.getInt(Key.OLAF_TIME_MAX_FILTER_SIZE);
+
+		//fingerprints which are not looked up yet
+		private final OlafQueryBatch pending = new OlafQueryBatch();
+		private int[] pendingTimes = new int[1024];
+		private int firstPendingTime = Integer.MAX_VALUE;
+		private final OlafHitAccumulator lookupAccumulator = new OlafHitAccumulator();
+		private long[] lookupHits = new long[1024];
+		private long[] scratch = new long[1024];
+
+		//the state of each resource with recent hits
+		private final Map<Integer, ResourceState> resources = new HashMap<>();
+		//the hits of closed matches which are not reported yet
+		private final List<Match> closedMatches = new ArrayList<>();
+
+		//start of the current report period in seconds
+		private int periodStart;
+		//the time up to which all fingerprints are looked up, in blocks
+		private int progress = 0;
+		//added to the time of each fingerprint, in blocks
+		private final int timeOffset;
+
+		/**
+		 * @param firstPeriodStart The start of the first reported period, in seconds. Earlier hits only start matches.
+		 * @param timeOffset Added to the time of each fingerprint, in blocks.
+		 */
+		StreamingMonitor(String query, int maxNumberOfResults, Set<Integer> avoid, QueryResultHandler handler, int firstPeriodStart, int timeOffset) {
+			this.query = query;
+			this.maxNumberOfResults = maxNumberOfResults;
+			this.avoid = avoid;
+			this.handler = handler;
+			this.periodStart = firstPeriodStart;
+			this.timeOffset = timeOffset;
+		}
+
+		@Override
+		public void accept(OlafFingerprint print) {
+			int index = pending.size();
+			if(index == pendingTimes.length)
+				pendingTimes = Arrays.copyOf(pendingTimes, index * 2);
+			pending.add(print.hash());
+			int t1 = print.t1 + timeOffset;
+			pendingTimes[index] = t1;
+			firstPendingTime = Math.min(firstPendingTime, t1);
+
+			//fingerprints before this time are all handed over
+			int complete = t1 - maxPrintDelay;
+			if(complete - firstPendingTime >= lookupInterval)
+				lookupPending(complete);
+
+			//a fingerprint well past the end of the period: no more fingerprints are expected for the period
+			while(complete > secondsToBlocks(periodStart + period))
+				reportPeriod(complete);
+		}
+
+		/**
+		 * Reports the remaining periods.
+		 * @param totalDuration The duration of the query in seconds.
+		 */
+		void finish(double totalDuration) {
+			while(periodStart < totalDuration)
+				reportPeriod(Integer.MAX_VALUE);
+		}
+
+		/**
+		 * Reports the matches of the current period.
+		 * @param complete All fingerprints before this time are handed over, in blocks.
+		 */
+		private void reportPeriod(int complete) {
+			lookupPending(complete);
+
+			int startBlock = secondsToBlocks(periodStart);
+			int stopBlock = secondsToBlocks(periodStart + period);
+			double startTimeOffset = periodStart;
+			String queryPath = query + "-" + startTimeOffset + "_" + (startTimeOffset + period);
+
+			List<QueryResult> queryResults = new ArrayList<>();
+			for(Match match : closedMatches)
+				addResult(queryPath, match, startBlock, stopBlock, queryResults);
+			closedMatches.removeIf(match -> match.hitCount == 0);
+			for(ResourceState state : resources.values())
+				if(state.match != null)
+					addResult(queryPath, state.match, startBlock, stopBlock, queryResults);
+			handleResults(queryPath, queryResults, maxNumberOfResults, handler);
+
+			//resources without a match or recent hits
+			resources.values().removeIf(state -> state.match == null && (state.seedCount == 0 || OlafHitAccumulator.queryTimeOf(state.seeds[state.seedCount - 1]) < progress - timeout));
+			periodStart += period;
+		}
+
+		/**
+		 * Converts the hits of a match in a period to a query result, with query times relative to the period.
+		 * The hits are removed from the match.
+		 */
+		private void addResult(String queryPath, Match match, int startBlock, int stopBlock, List<QueryResult> queryResults) {
+			int count = 0;
+			int kept = 0;
+			long[] periodHits = ensureScratch(match.hitCount);
+			for(int i = 0 ; i < match.hitCount ; i++) {
+				long hit = match.hits[i];
+				int queryTime = OlafHitAccumulator.queryTimeOf(hit);
+				if(queryTime >= stopBlock)
+					match.hits[kept++] = hit;
+				else if(queryTime >= startBlock)
+					periodHits[count++] = OlafHitAccumulator.pack(queryTime - startBlock, OlafHitAccumulator.matchTimeOf(hit));
+			}
+			match.hitCount = kept;
+			if(count == 0)
+				return;
+
+			Arrays.sort(periodHits, 0, count);
+			long first = periodHits[0];
+			long last = periodHits[count - 1];
+			int queryDuration = OlafHitAccumulator.queryTimeOf(last) - OlafHitAccumulator.queryTimeOf(first);
+			float slope = queryDuration == 0 ? 0 : (OlafHitAccumulator.deltaTOf(last) - OlafHitAccumulator.deltaTOf(first)) / (float) queryDuration;
+
+			QueryResult r = toQueryResult(db, queryPath, match.resourceID, periodHits, count, new long[count], 1 - slope);
+			if(r != null)
+				queryResults.add(r);
+		}
+
+		/**
+		 * Looks up the pending fingerprints in one batch and updates the matches with their hits.
+		 * @param complete All fingerprints before this time are handed over, in blocks.
+		 */
+		private void lookupPending(int complete) {
+			if(pending.size() > 0) {
+				StopWatch w = new StopWatch();
+				lookupAccumulator.clear();
+				for(int i = 0 ; i < pending.size() ; i++)
+					lookupAccumulator.addQueryPrint(pending.hash(i), pendingTimes[i]);
+				db.query(pending, lookupAccumulator, queryRange, avoid);
+
+				for(int group = 0 ; group < lookupAccumulator.numberOfResources() ; group++) {
+					int hitCount = lookupAccumulator.hitCount(group);
+					if(lookupHits.length < hitCount)
+						lookupHits = new long[Math.max(hitCount, lookupHits.length * 2)];
+					//sorted by query time
+					lookupAccumulator.sortedHits(group, lookupHits);
+					int resourceID = lookupAccumulator.resourceID(group);
+					ResourceState state = resources.computeIfAbsent(resourceID, ResourceState::new);
+					for(int i = 0 ; i < hitCount ; i++)
+						state.add(lookupHits[i]);
+					if(state.match == null)
+						state.startMatch();
+				}
+				LOG.fine(String.format("Monitor lookup for %d prints, %d hits in %s", pending.size(), lookupAccumulator.size(), w.formattedToString()));
+				pending.clear();
+				firstPendingTime = Integer.MAX_VALUE;
+			}
+
+			progress = Math.max(progress, complete);
+			//close the matches without recent hits
+			for(ResourceState state : resources.values()) {
+				if(state.match != null && state.match.lastSeen < progress - timeout) {
+					closedMatches.add(state.match);
+					state.match = null;
+				}
+			}
+		}
+
+		private long[] ensureScratch(int size) {
+			if(scratch.length < size)
+				scratch = new long[Math.max(size, scratch.length * 2)];
+			return scratch;
+		}
+
+		/**
+		 * A followed match: a resource with hits at a more or less constant time difference.
+		 */
+		private class Match {
+			final int resourceID;
+			int deltaT;
+			//query time of the last hit which extended the match, in blocks
+			int lastSeen;
+			//the hits which are not reported yet, packed query and match times
+			long[] hits = new long[256];
+			int hitCount;
+			final long[] recentDeltaTs = new long[RECENT_HITS];
+			int numberOfHits;
+
+			Match(int resourceID, int deltaT) {
+				this.resourceID = resourceID;
+				this.deltaT = deltaT;
+			}
+
+			boolean matches(long hit) {
+				return Math.abs(OlafHitAccumulator.deltaTOf(hit) - deltaT) <= threshold;
+			}
+
+			void extend(long hit) {
+				int queryTime = OlafHitAccumulator.queryTimeOf(hit);
+				lastSeen = Math.max(lastSeen, queryTime);
+				//hits of periods which are already reported are left out
+				if(queryTime >= secondsToBlocks(periodStart)) {
+					if(hitCount == hits.length)
+						hits = Arrays.copyOf(hits, hitCount * 2);
+					hits[hitCount++] = hit;
+				}
+				recentDeltaTs[numberOfHits++ % RECENT_HITS] = OlafHitAccumulator.deltaTOf(hit);
+				//follow the time difference of the latest hits
+				if(numberOfHits % RECENT_HITS == 0) {
+					long[] deltaTs = ensureScratch(RECENT_HITS);
+					System.arraycopy(recentDeltaTs, 0, deltaTs, 0, RECENT_HITS);
+					deltaT = mostCommonValue(deltaTs, RECENT_HITS);
+				}
+			}
+		}
+
+		/**
+		 * The hits of a resource which do not belong to its match, and its match if any.
+		 */
+		private class ResourceState {
+			final int resourceID;
+			Match match;
+			//recent hits without a match, packed query and match times
+			long[] seeds = new long[64];
+			int seedCount;
+
+			ResourceState(int resourceID) {
+				this.resourceID = resourceID;
+			}
+
+			void add(long hit) {
+				if(match != null && match.matches(hit)) {
+					match.extend(hit);
+					return;
+				}
+				//forget the hits which are too old to start a match
+				int oldest = OlafHitAccumulator.queryTimeOf(hit) - timeout;
+				int kept = 0;
+				for(int i = 0 ; i < seedCount ; i++)
+					if(OlafHitAccumulator.queryTimeOf(seeds[i]) >= oldest)
+						seeds[kept++] = seeds[i];
+				seedCount = kept;
+				if(seedCount == seeds.length)
+					seeds = Arrays.copyOf(seeds, seedCount * 2);
+				seeds[seedCount++] = hit;
+			}
+
+			/**
+			 * Starts a match if enough recent hits agree on the time difference.
+			 */
+			void startMatch() {
+				if(seedCount <= minimumHits)
+					return;
+				long[] deltaTs = ensureScratch(seedCount);
+				for(int i = 0 ; i < seedCount ; i++)
+					deltaTs[i] = OlafHitAccumulator.deltaTOf(seeds[i]);
+				Match candidate = new Match(resourceID, mostCommonValue(deltaTs, seedCount));
+				int supporting = 0;
+				for(int i = 0 ; i < seedCount ; i++)
+					if(candidate.matches(seeds[i]))
+						supporting++;
+				if(supporting <= minimumHits)
+					return;
+
+				int kept = 0;
+				for(int i = 0 ; i < seedCount ; i++) {
+					if(candidate.matches(seeds[i]))
+						candidate.extend(seeds[i]);
+					else
+						seeds[kept++] = seeds[i];
+				}
+				seedCount = kept;
+				match = candidate;
+			}
+		}
+	}
+
+	private int secondsToBlocks(double seconds) {
+		return (int) Math.round(seconds * Config.getInt(Key.OLAF_SAMPLE_RATE) / Config.getInt(Key.OLAF_STEP_SIZE));
 	}
 
 	@Override
@@ -596,25 +1158,20 @@ public class OlafStrategy extends Strategy {
 		return "" + FileUtils.getIdentifier(filename);
 	}
 	
-	private List<long[]> readFingerprintFile(String fingerprintFilePath) {
-		List<long[]> prints = new ArrayList<>();
+	/**
+	 * Open a binary fingerprint cache file, older text files are converted first.
+	 * @return The cache file or null if there is no (readable) cache file.
+	 */
+	private OlafCacheFile openCacheFile(String fingerprintFilePath) {
+		if(!FileUtils.exists(fingerprintFilePath))
+			return null;
 		try {
-			OlafStorageFile fileDb = OlafStorageFile.getInstance();
-			final File file = new File(fingerprintFilePath);
-			FileReader fileReader = new FileReader(file);
-			final BufferedReader reader = new BufferedReader(fileReader);
-			String inputLine = reader.readLine();
-			while (inputLine != null) {
-				long[] data = fileDb.dataFromLine(inputLine);
-				prints.add(data);
-				inputLine = reader.readLine();
-			}
-			reader.close();
-		} catch (final IOException i1) {
+			return OlafCacheFile.open(fingerprintFilePath);
+		} catch (IOException e) {
 			System.err.println("Can't open file:" + fingerprintFilePath);
-			i1.printStackTrace();
+			e.printStackTrace();
+			return null;
 		}
-		return prints;
 	}
 
 	/**
@@ -640,22 +1197,23 @@ public class OlafStrategy extends Strategy {
 				continue;
 			}
 			
-			List<long[]> fingerprints = readFingerprintFile(fingerprintFilePath);
-			for(long[] fingerprintData : fingerprints) {
-				db.addToStoreQueue(fingerprintData[0], (int) fingerprintData[1], (int) fingerprintData[2]);
+			OlafCacheFile fingerprints = openCacheFile(fingerprintFilePath);
+			if(fingerprints == null)
+				continue;
+			OlafStoreBatch batch = new OlafStoreBatch();
+			for(int i = 0 ; i < fingerprints.size() ; i++) {
+				batch.add(fingerprints.hash(i), fingerprints.resourceIdentifier(i), fingerprints.t1(i));
 			}
 			
 			String metaDataFilePath = FileUtils.combine(folder,String.format("%d_meta_data.txt", resourceIdentifier));
 			if(FileUtils.exists(metaDataFilePath)) {
-				db.processStoreQueue();
-				
 				OlafResourceMetadata metaData = fileDb.getMetadata(resourceIdentifier);
-				db.storeMetadata(resourceIdentifier, metaData.path, (float) metaData.duration, metaData.numFingerprints);
+				batch.addMetadata(resourceIdentifier, metaData.path, (float) metaData.duration, metaData.numFingerprints);
+				db.store(batch);
 				//FileUtils.rm(metaDataFilePath);
 				//FileUtils.rm(fingerprintFilePath);
 				System.out.printf("%d/%d Stored %d fingerprints and meta-data for resource %d \n",index,tdbFiles.size(),fingerprints.size(),resourceIdentifier);
 			}else {
-				db.clearStoreQueue();
 				System.out.printf("%d/%d DID NOT STORE FINGERPRINTS: Could not find meta data file for %d, expected a file at: %s\n",index,tdbFiles.size(),resourceIdentifier,metaDataFilePath);
 			}
 			
@@ -705,12 +1263,13 @@ public class OlafStrategy extends Strategy {
 			OlafStorageFile db = OlafStorageFile.getInstance();
 			int resourceID = FileUtils.getIdentifier(path);
 			List<OlafFingerprint> prints = toFingerprints(path);
+			OlafStoreBatch batch = new OlafStoreBatch();
 			for(OlafFingerprint print : prints) {
 				long hash = print.hash();			
 				int printT1 = print.t1;
-				db.addToStoreQueue(hash, resourceID, printT1);
+				batch.add(hash, resourceID, printT1);
 			}
-			String printString = db.storeQueueToString();
+			String printString = db.storeQueueToString(batch.fingerprints());
 			System.out.print(printString);
 		}
 		
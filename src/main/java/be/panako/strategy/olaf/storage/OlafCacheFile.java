@@ -0,0 +1,258 @@
+/***************************************************************************
+*                                                                          *
+* Panako - acoustic fingerprinting                                         *
+* Copyright (C) 2014 - 2022 - Joren Six / IPEM                             *
+*                                                                          *
+* This program is free software: you can redistribute it and/or modify     *
+* it under the terms of the GNU Affero General Public License as           *
+* published by the Free Software Foundation, either version 3 of the       *
+* License, or (at your option) any later version.                          *
+*                                                                          *
+* This program is distributed in the hope that it will be useful,          *
+* but WITHOUT ANY WARRANTY; without even the implied warranty of           *
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the            *
+* GNU Affero General Public License for more details.                      *
+*                                                                          *
+* You should have received a copy of the GNU Affero General Public License *
+* along with this program.  If not, see <http://www.gnu.org/licenses/>     *
+*                                                                          *
+****************************************************************************
+*    ______   ________   ___   __    ________   ___   ___   ______         *
+*   /_____/\ /_______/\ /__/\ /__/\ /_______/\ /___/\/__/\ /_____/\        *
+*   \:::_ \ \\::: _  \ \\::\_\\  \ \\::: _  \ \\::.\ \\ \ \\:::_ \ \       *
+*    \:(_) \ \\::(_)  \ \\:. `-\  \ \\::(_)  \ \\:: \/_) \ \\:\ \ \ \      *
+*     \: ___\/ \:: __  \ \\:. _    \ \\:: __  \ \\:. __  ( ( \:\ \ \ \     *
+*      \ \ \    \:.\ \  \ \\. \`-\  \ \\:.\ \  \ \\: \ )  \ \ \:\_\ \ \    *
+*       \_\/     \__\/\__\/ \__\/ \__\/ \__\/\__\/ \__\/\__\/  \_____\/    *
+*                                                                          *
+****************************************************************************
+*                                                                          *
+*                              Panako                                      *
+*                       Acoustic Fingerprinting                            *
+*                                                                          *
+****************************************************************************/
+
+package be.panako.strategy.olaf.storage;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * A binary file with the cached fingerprints of a resource. The file is memory mapped
+ * and fingerprints are read directly from the map, without parsing.
+ *
+ * The file starts with a 32 byte header followed by fixed width records, all little endian:
+ * <pre>
+ * header: int magic ("OLAF"), int version, int record size, int reserved, long number of records, long checksum
+ * record: long fingerprint hash, int resource identifier, int t1
+ * </pre>
+ * The checksum is the sum of a mix of each record so fingerprints can be appended without
+ * reading the existing records.
+ *
+ * Cache files in the older text format, with a "hash identifier t1" line per fingerprint,
+ * are converted to the binary format when they are opened.
+ */
+public class OlafCacheFile {
+	private final static Logger LOG = Logger.getLogger(OlafCacheFile.class.getName());
+
+	/**
+	 * "OLAF" in ASCII
+	 */
+	private static final int MAGIC = 0x46414C4F;
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 32;
+	private static final int RECORD_SIZE = 16;
+	private static final int COUNT_OFFSET = 16;
+	private static final int CHECKSUM_OFFSET = 24;
+
+	private final MappedByteBuffer records;
+	private final int size;
+
+	private OlafCacheFile(MappedByteBuffer records, int size) {
+		this.records = records;
+		this.size = size;
+	}
+
+	/**
+	 * @return The number of fingerprints in the file.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @param index The index of the fingerprint.
+	 * @return The hash of the fingerprint.
+	 */
+	public long hash(int index) {
+		return records.getLong(HEADER_SIZE + index * RECORD_SIZE);
+	}
+
+	/**
+	 * @param index The index of the fingerprint.
+	 * @return The resource identifier of the fingerprint.
+	 */
+	public int resourceIdentifier(int index) {
+		return records.getInt(HEADER_SIZE + index * RECORD_SIZE + 8);
+	}
+
+	/**
+	 * @param index The index of the fingerprint.
+	 * @return The time of the fingerprint, in blocks.
+	 */
+	public int t1(int index) {
+		return records.getInt(HEADER_SIZE + index * RECORD_SIZE + 12);
+	}
+
+	/**
+	 * Open and map a cache file. A file in the older text format is converted first.
+	 * @param path The path of the cache file.
+	 * @return The mapped cache file.
+	 * @throws IOException If the file can not be read, or if the file is corrupt.
+	 */
+	public static OlafCacheFile open(String path) throws IOException {
+		if(!isBinary(path))
+			migrate(path);
+
+		try (FileChannel channel = FileChannel.open(new File(path).toPath())) {
+			MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			map.order(ByteOrder.LITTLE_ENDIAN);
+			int size = checkHeader(map, path, channel.size());
+
+			long checksum = 0;
+			for(int i = 0 ; i < size ; i++) {
+				int offset = HEADER_SIZE + i * RECORD_SIZE;
+				checksum += mix(map.getLong(offset), map.getLong(offset + 8));
+			}
+			if(checksum != map.getLong(CHECKSUM_OFFSET))
+				throw new IOException("Checksum mismatch in fingerprint cache file " + path);
+
+			return new OlafCacheFile(map, size);
+		}
+	}
+
+	/**
+	 * Write fingerprints to a cache file. The fingerprints are long arrays with hash,
+	 * resource identifier and t1.
+	 * @param path The path of the cache file.
+	 * @param fingerprints The fingerprints to write.
+	 * @param append Append to an existing cache file or replace the file.
+	 * @throws IOException If writing fails.
+	 */
+	public static void write(String path, List<long[]> fingerprints, boolean append) throws IOException {
+		if(append && new File(path).exists() && !isBinary(path))
+			migrate(path);
+
+		try (RandomAccessFile file = new RandomAccessFile(path, "rw"); FileChannel channel = file.getChannel()) {
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+			long count = 0;
+			long checksum = 0;
+			if(append && channel.size() > 0) {
+				channel.read(header, 0);
+				count = checkHeader(header, path, channel.size());
+				checksum = header.getLong(CHECKSUM_OFFSET);
+			} else {
+				channel.truncate(0);
+			}
+
+			ByteBuffer buffer = ByteBuffer.allocate(fingerprints.size() * RECORD_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+			for(long[] data : fingerprints) {
+				long hash = data[0];
+				long value = (data[1] & 0xFFFFFFFFL) | (data[2] << 32);
+				buffer.putLong(hash).putLong(value);
+				checksum += mix(hash, value);
+			}
+			buffer.flip();
+			long offset = HEADER_SIZE + count * RECORD_SIZE;
+			while(buffer.hasRemaining())
+				offset += channel.write(buffer, offset);
+
+			header.clear();
+			header.putInt(MAGIC).putInt(VERSION).putInt(RECORD_SIZE).putInt(0);
+			header.putLong(count + fingerprints.size()).putLong(checksum).flip();
+			channel.write(header, 0);
+		}
+	}
+
+	/**
+	 * Checks whether a file starts with the binary header.
+	 */
+	private static boolean isBinary(String path) throws IOException {
+		try (RandomAccessFile file = new RandomAccessFile(path, "r")) {
+			if(file.length() < HEADER_SIZE)
+				return false;
+			return Integer.reverseBytes(file.readInt()) == MAGIC;
+		}
+	}
+
+	/**
+	 * Verifies the header and returns the number of records.
+	 */
+	private static int checkHeader(ByteBuffer header, String path, long fileSize) throws IOException {
+		if(header.getInt(0) != MAGIC)
+			throw new IOException("Not a fingerprint cache file: " + path);
+		if(header.getInt(4) != VERSION || header.getInt(8) != RECORD_SIZE)
+			throw new IOException("Unsupported fingerprint cache file version " + header.getInt(4) + " for " + path);
+		long count = header.getLong(COUNT_OFFSET);
+		if(count < 0 || HEADER_SIZE + count * RECORD_SIZE > fileSize)
+			throw new IOException("Truncated fingerprint cache file " + path);
+		return (int) count;
+	}
+
+	/**
+	 * Converts a text cache file to the binary format.
+	 */
+	private static void migrate(String path) throws IOException {
+		//read at once: a concurrent migration may have replaced the file since it was checked
+		byte[] content = Files.readAllBytes(new File(path).toPath());
+		if(content.length >= HEADER_SIZE && ByteBuffer.wrap(content).order(ByteOrder.LITTLE_ENDIAN).getInt(0) == MAGIC)
+			return;
+
+		List<long[]> fingerprints = new java.util.ArrayList<>();
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(new ByteArrayInputStream(content)))) {
+			String line;
+			while((line = reader.readLine()) != null) {
+				if(line.isEmpty())
+					continue;
+				String[] data = line.trim().split(" ");
+				fingerprints.add(new long[]{Long.parseLong(data[0]), Long.parseLong(data[1]), Long.parseLong(data[2])});
+			}
+		}
+		//a unique file in the same folder: concurrent migrations of the same file do not clash and the move is atomic
+		File file = new File(path).getAbsoluteFile();
+		File migrated = File.createTempFile(file.getName(), ".migrating", file.getParentFile());
+		try {
+			write(migrated.getAbsolutePath(), fingerprints, false);
+			Files.move(migrated.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			//only left if writing or moving failed
+			migrated.delete();
+		}
+		LOG.info(String.format("Converted %d cached fingerprints in %s to the binary format", fingerprints.size(), path));
+	}
+
+	/**
+	 * A 64 bit mix of a record, see the MurmurHash3 finalizer.
+	 */
+	private static long mix(long hash, long value) {
+		long k = hash * 0x9E3779B97F4A7C15L + value;
+		k ^= k >>> 33;
+		k *= 0xff51afd7ed558ccdL;
+		k ^= k >>> 33;
+		k *= 0xc4ceb9fe1a85ec53L;
+		k ^= k >>> 33;
+		return k;
+	}
+}
@@ -37,21 +37,9 @@ public class OlafCachingStorage implements OlafStorage{
     }
 
     @Override
-    public void addToStoreQueue(long fingerprintHash, int resourceIdentifier, int t1) {
-        cachingIndex.addToStoreQueue(fingerprintHash,resourceIdentifier,t1);
-        invertedIndex.addToStoreQueue(fingerprintHash,resourceIdentifier,t1);
-    }
-
-    @Override
-    public void processStoreQueue() {
-        cachingIndex.processStoreQueue();
-        invertedIndex.processStoreQueue();
-    }
-
-    @Override
-    public void clearStoreQueue() {
-        cachingIndex.clearStoreQueue();
-        invertedIndex.clearStoreQueue();
+    public void store(OlafStoreBatch batch) {
+        cachingIndex.store(batch);
+        invertedIndex.store(batch);
     }
 
     @Override
@@ -65,27 +53,21 @@ public class OlafCachingStorage implements OlafStorage{
     }
 
     @Override
-    public void addToQueryQueue(long queryHash) {
+    public void query(OlafQueryBatch batch, Map<Long, List<OlafHit>> matchAccumulator, int range, Set<Integer> resourcesToAvoid) {
         //it does not make sense to use the non optimized caching index for query tasks
-        invertedIndex.addToQueryQueue(queryHash);
+        invertedIndex.query(batch,matchAccumulator,range,resourcesToAvoid);
     }
 
     @Override
-    public void processQueryQueue(Map<Long, List<OlafHit>> matchAccumulator, int range, Set<Integer> resourcesToAvoid) {
+    public void query(OlafQueryBatch batch, OlafHitAccumulator matchAccumulator, int range, Set<Integer> resourcesToAvoid) {
         //it does not make sense to use the non optimized caching index for query tasks
-        invertedIndex.processQueryQueue(matchAccumulator,range,resourcesToAvoid);
-    }
-
-    @Override
-    public void addToDeleteQueue(long fingerprintHash, int resourceIdentifier, int t1) {
-        cachingIndex.addToDeleteQueue(fingerprintHash,resourceIdentifier,t1);
-        invertedIndex.addToDeleteQueue(fingerprintHash,resourceIdentifier,t1);
+        invertedIndex.query(batch,matchAccumulator,range,resourcesToAvoid);
     }
 
     @Override
-    public void processDeleteQueue() {
-        cachingIndex.processDeleteQueue();
-        invertedIndex.processDeleteQueue();
+    public void delete(OlafStoreBatch batch) {
+        cachingIndex.delete(batch);
+        invertedIndex.delete(batch);
     }
 
     @Override
@@ -0,0 +1,402 @@
+/***************************************************************************
+*                                                                          *
+* Panako - acoustic fingerprinting                                         *
+* Copyright (C) 2014 - 2022 - Joren Six / IPEM                             *
+*                                                                          *
+* This program is free software: you can redistribute it and/or modify     *
+* it under the terms of the GNU Affero General Public License as           *
+* published by the Free Software Foundation, either version 3 of the       *
+* License, or (at your option) any later version.                          *
+*                                                                          *
+* This program is distributed in the hope that it will be useful,          *
+* but WITHOUT ANY WARRANTY; without even the implied warranty of           *
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the            *
+* GNU Affero General Public License for more details.                      *
+*                                                                          *
+* You should have received a copy of the GNU Affero General Public License *
+* along with this program.  If not, see <http://www.gnu.org/licenses/>     *
+*                                                                          *
+****************************************************************************
+*    ______   ________   ___   __    ________   ___   ___   ______         *
+*   /_____/\ /_______/\ /__/\ /__/\ /_______/\ /___/\/__/\ /_____/\        *
+*   \:::_ \ \\::: _  \ \\::\_\\  \ \\::: _  \ \\::.\ \\ \ \\:::_ \ \       *
+*    \:(_) \ \\::(_)  \ \\:. `-\  \ \\::(_)  \ \\:: \/_) \ \\:\ \ \ \      *
+*     \: ___\/ \:: __  \ \\:. _    \ \\:: __  \ \\:. __  ( ( \:\ \ \ \     *
+*      \ \ \    \:.\ \  \ \\. \`-\  \ \\:.\ \  \ \\: \ )  \ \ \:\_\ \ \    *
+*       \_\/     \__\/\__\/ \__\/ \__\/ \__\/\__\/ \__\/\__\/  \_____\/    *
+*                                                                          *
+****************************************************************************
+*                                                                          *
+*                              Panako                                      *
+*                       Acoustic Fingerprinting                            *
+*                                                                          *
+****************************************************************************/
+
+package be.panako.strategy.olaf.storage;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Collects the hits of a query in a struct-of-arrays layout: the hits are stored in parallel primitive columns
+ * and are grouped per resource identifier via an open-addressing map. Storage backends add hits directly while
+ * scanning the index, the matching step reads the hits per resource.
+ *
+ * An accumulator is meant to be reused: after {@link #clear()} the already allocated columns are kept so
+ * that a query does not allocate objects per hit. An instance is not thread safe.
+ */
+public class OlafHitAccumulator {
+
+	private static final int INITIAL_CAPACITY = 1024;
+
+	//hit columns
+	private long[] originalHashes;
+	private long[] matchedHashes;
+	private int[] matchTimes;
+	private int[] queryTimes;
+	private int[] resourceIDs;
+	//index of the next hit for the same resource, -1 at the end of a group
+	private int[] nextHits;
+	private int numberOfHits;
+
+	//group columns, one group per resource identifier
+	private int[] groupResourceIDs;
+	private int[] groupFirstHits;
+	private int[] groupLastHits;
+	private int[] groupHitCounts;
+	private int numberOfGroups;
+
+	//open addressing map: resource identifier to group index + 1, zero marks a free slot
+	private int[] resourceKeys;
+	private int[] resourceSlots;
+
+	//open addressing map: query hash to query time + 1, zero marks a free slot
+	private long[] queryHashKeys;
+	private int[] queryHashTimes;
+	private int numberOfQueryHashes;
+
+	/**
+	 * Create a new, empty accumulator.
+	 */
+	public OlafHitAccumulator(){
+		originalHashes = new long[INITIAL_CAPACITY];
+		matchedHashes = new long[INITIAL_CAPACITY];
+		matchTimes = new int[INITIAL_CAPACITY];
+		queryTimes = new int[INITIAL_CAPACITY];
+		resourceIDs = new int[INITIAL_CAPACITY];
+		nextHits = new int[INITIAL_CAPACITY];
+
+		groupResourceIDs = new int[INITIAL_CAPACITY];
+		groupFirstHits = new int[INITIAL_CAPACITY];
+		groupLastHits = new int[INITIAL_CAPACITY];
+		groupHitCounts = new int[INITIAL_CAPACITY];
+
+		resourceKeys = new int[INITIAL_CAPACITY * 2];
+		resourceSlots = new int[INITIAL_CAPACITY * 2];
+
+		queryHashKeys = new long[INITIAL_CAPACITY * 2];
+		queryHashTimes = new int[INITIAL_CAPACITY * 2];
+	}
+
+	/**
+	 * Removes all hits and query hashes but keeps the allocated memory for reuse.
+	 */
+	public void clear(){
+		numberOfHits = 0;
+		numberOfGroups = 0;
+		numberOfQueryHashes = 0;
+		Arrays.fill(resourceSlots, 0);
+		Arrays.fill(queryHashTimes, 0);
+	}
+
+	/**
+	 * Registers the time of a query fingerprint. Hits for this hash are
+	 * then stored with this query time. If a hash is registered more than once,
+	 * the last time wins.
+	 *
+	 * @param queryHash The hash of the query fingerprint.
+	 * @param queryTime The time of the query fingerprint, in blocks.
+	 */
+	public void addQueryPrint(long queryHash, int queryTime){
+		if((numberOfQueryHashes + 1) * 2 > queryHashKeys.length)
+			growQueryHashes();
+		int mask = queryHashKeys.length - 1;
+		int slot = mix(queryHash) & mask;
+		while(queryHashTimes[slot] != 0 && queryHashKeys[slot] != queryHash)
+			slot = (slot + 1) & mask;
+		if(queryHashTimes[slot] == 0)
+			numberOfQueryHashes++;
+		queryHashKeys[slot] = queryHash;
+		queryHashTimes[slot] = queryTime + 1;
+	}
+
+	/**
+	 * Returns the time registered for a query hash.
+	 * @param queryHash The hash of the query fingerprint.
+	 * @return The registered time or -1 if the hash is not registered.
+	 */
+	public int queryTime(long queryHash){
+		int mask = queryHashKeys.length - 1;
+		int slot = mix(queryHash) & mask;
+		while(queryHashTimes[slot] != 0) {
+			if(queryHashKeys[slot] == queryHash)
+				return queryHashTimes[slot] - 1;
+			slot = (slot + 1) & mask;
+		}
+		return -1;
+	}
+
+	/**
+	 * Adds a hit of a query hash with a hash in the index.
+	 *
+	 * @param originalHash The hash of the query fingerprint.
+	 * @param matchedNearHash The hash of the matched fingerprint in the index.
+	 * @param t The time of the matched fingerprint in the indexed audio.
+	 * @param resourceID The internal identifier of the indexed audio.
+	 */
+	public void add(long originalHash, long matchedNearHash, int t, int resourceID){
+		if(numberOfHits == originalHashes.length)
+			growHits();
+
+		int hit = numberOfHits;
+		originalHashes[hit] = originalHash;
+		matchedHashes[hit] = matchedNearHash;
+		matchTimes[hit] = t;
+		queryTimes[hit] = queryTime(originalHash);
+		resourceIDs[hit] = resourceID;
+		nextHits[hit] = -1;
+		numberOfHits++;
+
+		int group = groupIndex(resourceID);
+		if(groupHitCounts[group] == 0) {
+			groupFirstHits[group] = hit;
+		}else {
+			nextHits[groupLastHits[group]] = hit;
+		}
+		groupLastHits[group] = hit;
+		groupHitCounts[group]++;
+	}
+
+	/**
+	 * Adds all hits of another accumulator, in the order in which they were added there.
+	 * The query times are looked up in this accumulator.
+	 *
+	 * @param other The accumulator with the hits to add.
+	 */
+	public void addAll(OlafHitAccumulator other){
+		for(int hit = 0; hit < other.numberOfHits; hit++)
+			add(other.originalHashes[hit], other.matchedHashes[hit], other.matchTimes[hit], other.resourceIDs[hit]);
+	}
+
+	private int groupIndex(int resourceID){
+		int mask = resourceKeys.length - 1;
+		int slot = mix(resourceID) & mask;
+		while(resourceSlots[slot] != 0) {
+			if(resourceKeys[slot] == resourceID)
+				return resourceSlots[slot] - 1;
+			slot = (slot + 1) & mask;
+		}
+		//a new group
+		if(numberOfGroups == groupResourceIDs.length)
+			growGroups();
+		int group = numberOfGroups;
+		groupResourceIDs[group] = resourceID;
+		groupHitCounts[group] = 0;
+		numberOfGroups++;
+		resourceKeys[slot] = resourceID;
+		resourceSlots[slot] = group + 1;
+		if(numberOfGroups * 2 > resourceKeys.length)
+			rehashResources(resourceKeys.length * 2);
+		return group;
+	}
+
+	/**
+	 * @return The total number of hits.
+	 */
+	public int size(){
+		return numberOfHits;
+	}
+
+	/**
+	 * @param hit The hit index, from zero to {@link #size()}, in the order the hits were added.
+	 * @return The hash of the query fingerprint of the hit.
+	 */
+	public long hitOriginalHash(int hit){
+		return originalHashes[hit];
+	}
+
+	/**
+	 * @param hit The hit index, from zero to {@link #size()}, in the order the hits were added.
+	 * @return The hash of the matched fingerprint in the index.
+	 */
+	public long hitMatchedHash(int hit){
+		return matchedHashes[hit];
+	}
+
+	/**
+	 * @param hit The hit index, from zero to {@link #size()}, in the order the hits were added.
+	 * @return The time of the matched fingerprint in the indexed audio.
+	 */
+	public int hitTime(int hit){
+		return matchTimes[hit];
+	}
+
+	/**
+	 * @param hit The hit index, from zero to {@link #size()}, in the order the hits were added.
+	 * @return The resource identifier of the matched fingerprint.
+	 */
+	public int hitResourceID(int hit){
+		return resourceIDs[hit];
+	}
+
+	/**
+	 * @return The number of distinct resources with at least one hit.
+	 */
+	public int numberOfResources(){
+		return numberOfGroups;
+	}
+
+	/**
+	 * @param group The group index, from zero to {@link #numberOfResources()}.
+	 * @return The resource identifier of the group.
+	 */
+	public int resourceID(int group){
+		return groupResourceIDs[group];
+	}
+
+	/**
+	 * @param group The group index, from zero to {@link #numberOfResources()}.
+	 * @return The number of hits for the resource of the group.
+	 */
+	public int hitCount(int group){
+		return groupHitCounts[group];
+	}
+
+	/**
+	 * Copies the hits of a resource to a target array, packed as query and match time
+	 * (see {@link #pack(int, int)}), sorted by query time and then by match time.
+	 *
+	 * @param group The group index, from zero to {@link #numberOfResources()}.
+	 * @param target The array to copy the packed hits to, at least {@link #hitCount(int)} long.
+	 * @return The number of hits copied.
+	 */
+	public int sortedHits(int group, long[] target){
+		int count = 0;
+		for(int hit = groupFirstHits[group]; count < groupHitCounts[group]; hit = nextHits[hit]) {
+			target[count++] = pack(queryTimes[hit], matchTimes[hit]);
+		}
+		Arrays.sort(target, 0, count);
+		return count;
+	}
+
+	/**
+	 * Adds all hits to a map with a list of hits per query hash, the representation
+	 * used by {@link OlafStorage#query(OlafQueryBatch, Map, int, java.util.Set)}.
+	 * The hits for each query hash keep the order in which they were added.
+	 *
+	 * @param matchAccumulator The map to add the hits to.
+	 */
+	public void addTo(Map<Long, List<OlafHit>> matchAccumulator){
+		for(int hit = 0; hit < numberOfHits; hit++) {
+			long originalHash = originalHashes[hit];
+			if(!matchAccumulator.containsKey(originalHash))
+				matchAccumulator.put(originalHash, new ArrayList<>());
+			matchAccumulator.get(originalHash).add(new OlafHit(originalHash, matchedHashes[hit], matchTimes[hit], resourceIDs[hit]));
+		}
+	}
+
+	/**
+	 * Packs a query time and a match time into a single long. Sorting packed values
+	 * sorts by query time first, times are expected to be positive.
+	 * @param queryTime The time in the query, in blocks.
+	 * @param matchTime The time in the reference, in blocks.
+	 * @return The packed time pair.
+	 */
+	public static long pack(int queryTime, int matchTime){
+		return ((long) queryTime << 32) | (matchTime & 0xFFFFFFFFL);
+	}
+
+	/**
+	 * @param packedHit A hit packed with {@link #pack(int, int)}.
+	 * @return The query time of the hit.
+	 */
+	public static int queryTimeOf(long packedHit){
+		return (int) (packedHit >> 32);
+	}
+
+	/**
+	 * @param packedHit A hit packed with {@link #pack(int, int)}.
+	 * @return The match time of the hit.
+	 */
+	public static int matchTimeOf(long packedHit){
+		return (int) packedHit;
+	}
+
+	/**
+	 * @param packedHit A hit packed with {@link #pack(int, int)}.
+	 * @return The difference between match time and query time.
+	 */
+	public static int deltaTOf(long packedHit){
+		return matchTimeOf(packedHit) - queryTimeOf(packedHit);
+	}
+
+	private static int mix(long key){
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32));
+	}
+
+	private static int mix(int key){
+		int h = key * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	private void growHits(){
+		int capacity = originalHashes.length * 2;
+		originalHashes = Arrays.copyOf(originalHashes, capacity);
+		matchedHashes = Arrays.copyOf(matchedHashes, capacity);
+		matchTimes = Arrays.copyOf(matchTimes, capacity);
+		queryTimes = Arrays.copyOf(queryTimes, capacity);
+		resourceIDs = Arrays.copyOf(resourceIDs, capacity);
+		nextHits = Arrays.copyOf(nextHits, capacity);
+	}
+
+	private void growGroups(){
+		int capacity = groupResourceIDs.length * 2;
+		groupResourceIDs = Arrays.copyOf(groupResourceIDs, capacity);
+		groupFirstHits = Arrays.copyOf(groupFirstHits, capacity);
+		groupLastHits = Arrays.copyOf(groupLastHits, capacity);
+		groupHitCounts = Arrays.copyOf(groupHitCounts, capacity);
+	}
+
+	private void rehashResources(int capacity){
+		resourceKeys = new int[capacity];
+		resourceSlots = new int[capacity];
+		int mask = capacity - 1;
+		for(int group = 0; group < numberOfGroups; group++) {
+			int slot = mix(groupResourceIDs[group]) & mask;
+			while(resourceSlots[slot] != 0)
+				slot = (slot + 1) & mask;
+			resourceKeys[slot] = groupResourceIDs[group];
+			resourceSlots[slot] = group + 1;
+		}
+	}
+
+	private void growQueryHashes(){
+		long[] oldKeys = queryHashKeys;
+		int[] oldTimes = queryHashTimes;
+		queryHashKeys = new long[oldKeys.length * 2];
+		queryHashTimes = new int[oldTimes.length * 2];
+		int mask = queryHashKeys.length - 1;
+		for(int i = 0; i < oldKeys.length; i++) {
+			if(oldTimes[i] == 0)
+				continue;
+			int slot = mix(oldKeys[i]) & mask;
+			while(queryHashTimes[slot] != 0)
+				slot = (slot + 1) & mask;
+			queryHashKeys[slot] = oldKeys[i];
+			queryHashTimes[slot] = oldTimes[i];
+		}
+	}
+}
@@ -0,0 +1,508 @@
+/***************************************************************************
+*                                                                          *
+* Panako - acoustic fingerprinting                                         *
+* Copyright (C) 2014 - 2022 - Joren Six / IPEM                             *
+*                                                                          *
+* This program is free software: you can redistribute it and/or modify     *
+* it under the terms of the GNU Affero General Public License as           *
+* published by the Free Software Foundation, either version 3 of the       *
+* License, or (at your option) any later version.                          *
+*                                                                          *
+* This program is distributed in the hope that it will be useful,          *
+* but WITHOUT ANY WARRANTY; without even the implied warranty of           *
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the            *
+* GNU Affero General Public License for more details.                      *
+*                                                                          *
+* You should have received a copy of the GNU Affero General Public License *
+* along with this program.  If not, see <http://www.gnu.org/licenses/>     *
+*                                                                          *
+****************************************************************************
+*    ______   ________   ___   __    ________   ___   ___   ______         *
+*   /_____/\ /_______/\ /__/\ /__/\ /_______/\ /___/\/__/\ /_____/\        *
+*   \:::_ \ \\::: _  \ \\::\_\\  \ \\::: _  \ \\::.\ \\ \ \\:::_ \ \       *
+*    \:(_) \ \\::(_)  \ \\:. `-\  \ \\::(_)  \ \\:: \/_) \ \\:\ \ \ \      *
+*     \: ___\/ \:: __  \ \\:. _    \ \\:: __  \ \\:. __  ( ( \:\ \ \ \     *
+*      \ \ \    \:.\ \  \ \\. \`-\  \ \\:.\ \  \ \\: \ )  \ \ \:\_\ \ \    *
+*       \_\/     \__\/\__\/ \__\/ \__\/ \__\/\__\/ \__\/\__\/  \_____\/    *
+*                                                                          *
+****************************************************************************
+*                                                                          *
+*                              Panako                                      *
+*                       Acoustic Fingerprinting                            *
+*                                                                          *
+****************************************************************************/
+
+package be.panako.strategy.olaf.storage;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import org.lmdbjava.Cursor;
+import org.lmdbjava.PutFlags;
+import org.lmdbjava.Txn;
+
+import be.panako.cli.Application;
+import be.panako.util.Config;
+import be.panako.util.FileUtils;
+import be.panako.util.Key;
+
+/**
+ * Builds the LMDB index from the fingerprints cached in files by {@link OlafStorageFile}.
+ *
+ * Building an index one resource at a time results in random B-tree inserts. Here all cached
+ * files are read in parallel and sorted with an external merge sort: each thread sorts a fixed
+ * number of fingerprints in memory and writes them to a binary run file. The runs are merged and
+ * written to LMDB in key order, appending to the B-tree wherever possible.
+ */
+public class OlafIndexBuilder {
+	private final static Logger LOG = Logger.getLogger(OlafIndexBuilder.class.getName());
+
+	/**
+	 * The maximum number of runs merged at once. With more runs, runs are merged into larger runs first.
+	 */
+	private final static int MAX_MERGE_RUNS = 256;
+
+	/**
+	 * The time between two progress reports, in milliseconds.
+	 */
+	private final static long REPORT_INTERVAL = 5000;
+
+	private final OlafStorageKV db;
+	private final OlafStorageFile fileDb;
+	private final File runFolder;
+	private final int runSize;
+	private final AtomicInteger runCounter = new AtomicInteger();
+
+	/**
+	 * Create a new index builder for the configured cache folder and LMDB index.
+	 */
+	public OlafIndexBuilder() {
+		db = OlafStorageKV.getInstance();
+		//the meta-data of the configured cache folder, also if the shared file storage uses another folder
+		fileDb = new OlafStorageFile();
+		String folder = FileUtils.expandHomeDir(Config.get(Key.OLAF_BUILD_INDEX_FOLDER));
+		if(!new File(folder).exists())
+			FileUtils.mkdirs(folder);
+		runFolder = new File(folder);
+		runSize = Config.getInt(Key.OLAF_BUILD_INDEX_RUN_SIZE);
+	}
+
+	/**
+	 * Read all cached fingerprint files, sort the fingerprints and write them to the index.
+	 * Resources which are already in the index or have no cached meta-data are skipped.
+	 */
+	public void build() {
+		String cacheFolder = FileUtils.expandHomeDir(Config.get(Key.OLAF_CACHE_FOLDER));
+		List<String> tdbFiles = FileUtils.glob(cacheFolder, ".*.tdb", false);
+
+		List<OlafResourceMetadata> resources = new ArrayList<>();
+		List<String> resourceFiles = new ArrayList<>();
+		for(String tdbFile : tdbFiles) {
+			int resourceIdentifier = Integer.valueOf(FileUtils.basename(tdbFile).replace(".tdb",""));
+			if(db.getMetadata(resourceIdentifier) != null) {
+				System.out.printf("SKIPPED %s, db already contains resource %d\n", tdbFile, resourceIdentifier);
+				continue;
+			}
+			OlafResourceMetadata metadata = fileDb.getMetadata(resourceIdentifier);
+			if(metadata == null) {
+				System.out.printf("SKIPPED %s, could not find meta data for resource %d\n", tdbFile, resourceIdentifier);
+				continue;
+			}
+			metadata.identifier = resourceIdentifier;
+			resources.add(metadata);
+			resourceFiles.add(tdbFile);
+		}
+
+		long start = System.currentTimeMillis();
+		Set<String> failedFiles = ConcurrentHashMap.newKeySet();
+		List<File> runs = sortRuns(resourceFiles, failedFiles);
+		long numberOfPrints = merge(runs);
+
+		//only resources with fingerprints in the index
+		List<OlafResourceMetadata> storedResources = new ArrayList<>();
+		for(int i = 0 ; i < resources.size() ; i++) {
+			if(failedFiles.contains(resourceFiles.get(i)))
+				System.out.printf("SKIPPED %s, could not read the cached fingerprints\n", resourceFiles.get(i));
+			else
+				storedResources.add(resources.get(i));
+		}
+		resources = storedResources;
+		storeMetadata(resources);
+
+		double seconds = (System.currentTimeMillis() - start) / 1000.0;
+		System.out.printf("Stored %d fingerprints of %d resources in %.1f s (%.0f fingerprints/s)\n", numberOfPrints, resources.size(), seconds, numberOfPrints / seconds);
+	}
+
+	/**
+	 * First phase: read the files in parallel and write sorted runs.
+	 * @param failedFiles Collects the files which could not be read, none of their fingerprints are in the runs.
+	 */
+	private List<File> sortRuns(List<String> resourceFiles, Set<String> failedFiles) {
+		final List<File> runs = Collections.synchronizedList(new ArrayList<>());
+		final AtomicInteger nextFile = new AtomicInteger();
+		final AtomicInteger filesRead = new AtomicInteger();
+		final AtomicLong printsRead = new AtomicLong();
+		final long start = System.currentTimeMillis();
+		final AtomicLong lastReport = new AtomicLong(start);
+		//stops the other workers when one fails
+		final AtomicBoolean failed = new AtomicBoolean();
+
+		int threads = Math.max(1, Math.min(Application.availableProcessors(), resourceFiles.size()));
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		List<Future<?>> workers = new ArrayList<>();
+		for(int i = 0 ; i < threads ; i++) {
+			workers.add(executor.submit(() -> {
+				Run run = new Run(runSize);
+				int index;
+				while(!failed.get() && !Thread.currentThread().isInterrupted() && (index = nextFile.getAndIncrement()) < resourceFiles.size()) {
+					String tdbFile = resourceFiles.get(index);
+					try {
+						OlafCacheFile cacheFile = OlafCacheFile.open(tdbFile);
+						for(int j = 0 ; j < cacheFile.size() ; j++) {
+							run.add(cacheFile.hash(j), cacheFile.resourceIdentifier(j), cacheFile.t1(j));
+							if(run.size == run.keys.length) {
+								runs.add(writeRun(run));
+								run.size = 0;
+							}
+						}
+						printsRead.addAndGet(cacheFile.size());
+					} catch (IOException e) {
+						LOG.severe("Could not read " + tdbFile + ": " + e.getMessage());
+						failedFiles.add(tdbFile);
+					} catch (RuntimeException | Error e) {
+						failed.set(true);
+						throw e;
+					}
+
+					int read = filesRead.incrementAndGet();
+					long now = System.currentTimeMillis();
+					long last = lastReport.get();
+					if(now - last > REPORT_INTERVAL && lastReport.compareAndSet(last, now)) {
+						double seconds = (now - start) / 1000.0;
+						System.out.printf("Read %d/%d files, %d fingerprints (%.0f fingerprints/s), %d runs\n", read, resourceFiles.size(), printsRead.get(), printsRead.get() / seconds, runs.size());
+					}
+				}
+				if(run.size > 0 && !failed.get() && !Thread.currentThread().isInterrupted())
+					runs.add(writeRun(run));
+				return null;
+			}));
+		}
+		executor.shutdown();
+		try {
+			for(Future<?> worker : workers)
+				worker.get();
+		} catch (InterruptedException | ExecutionException e) {
+			//a missing run would silently leave fingerprints out of the index
+			executor.shutdownNow();
+			if(e instanceof InterruptedException)
+				Thread.currentThread().interrupt();
+			awaitWorkers(executor);
+			synchronized (runs) {
+				for(File run : runs)
+					FileUtils.rm(run.getAbsolutePath());
+			}
+			Throwable cause = e instanceof ExecutionException ? e.getCause() : e;
+			throw new RuntimeException("Could not sort the cached fingerprints, the index is not built: " + cause.getMessage(), cause);
+		}
+		System.out.printf("Read %d files, %d fingerprints in %d sorted runs\n", filesRead.get(), printsRead.get(), runs.size());
+		return new ArrayList<>(runs);
+	}
+
+	/**
+	 * Waits for the remaining workers after a failure, so no run files are written after the
+	 * runs are removed. The interrupt status of the calling thread is kept.
+	 */
+	private static void awaitWorkers(ExecutorService executor) {
+		boolean interrupted = Thread.interrupted();
+		while(true) {
+			try {
+				executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+				break;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if(interrupted)
+			Thread.currentThread().interrupt();
+	}
+
+	private File writeRun(Run run) {
+		run.sort();
+		File runFile = new File(runFolder, String.format("run_%06d.bin", runCounter.getAndIncrement()));
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(runFile), 1 << 16))) {
+			for(int i = 0 ; i < run.size ; i++) {
+				out.writeLong(run.keys[i]);
+				out.writeLong(run.values[i]);
+			}
+		} catch (IOException e) {
+			FileUtils.rm(runFile.getAbsolutePath());
+			throw new RuntimeException("Could not write run " + runFile, e);
+		}
+		return runFile;
+	}
+
+	/**
+	 * Second phase: merge the runs and write the fingerprints to LMDB in key order.
+	 * @return The number of written fingerprints.
+	 */
+	private long merge(List<File> runs) {
+		// Merge runs into larger runs until they can be merged at once
+		while(runs.size() > MAX_MERGE_RUNS) {
+			List<File> mergedRuns = new ArrayList<>();
+			for(int i = 0 ; i < runs.size() ; i += MAX_MERGE_RUNS) {
+				List<File> group = runs.subList(i, Math.min(runs.size(), i + MAX_MERGE_RUNS));
+				File mergedRun = new File(runFolder, String.format("run_%06d.bin", runCounter.getAndIncrement()));
+				try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(mergedRun), 1 << 16))) {
+					merge(group, (key, value) -> {
+						out.writeLong(key);
+						out.writeLong(value);
+					});
+				} catch (IOException e) {
+					throw new RuntimeException("Could not write run " + mergedRun, e);
+				}
+				mergedRuns.add(mergedRun);
+			}
+			System.out.printf("Merged %d runs into %d runs\n", runs.size(), mergedRuns.size());
+			runs = mergedRuns;
+		}
+
+		final IndexWriter writer = new IndexWriter();
+		try {
+			merge(runs, writer);
+		} catch (IOException e) {
+			throw new RuntimeException("Could not read runs", e);
+		} finally {
+			writer.close();
+		}
+		return writer.written;
+	}
+
+	private void merge(List<File> runs, TupleSink sink) throws IOException {
+		PriorityQueue<RunReader> queue = new PriorityQueue<>(Math.max(1, runs.size()), (a, b) -> compare(a.key, a.value, b.key, b.value));
+		try {
+			for(File run : runs) {
+				RunReader reader = new RunReader(run);
+				if(reader.next())
+					queue.add(reader);
+				else
+					reader.close();
+			}
+			while(!queue.isEmpty()) {
+				RunReader reader = queue.poll();
+				sink.accept(reader.key, reader.value);
+				if(reader.next())
+					queue.add(reader);
+				else
+					reader.close();
+			}
+		} finally {
+			for(RunReader reader : queue)
+				reader.close();
+		}
+	}
+
+	private void storeMetadata(List<OlafResourceMetadata> resources) {
+		OlafStoreBatch batch = new OlafStoreBatch();
+		for(OlafResourceMetadata metadata : resources)
+			batch.addMetadata(metadata.identifier, metadata.path, (float) metadata.duration, metadata.numFingerprints);
+		db.store(batch);
+	}
+
+	/**
+	 * Compare fingerprints in the order of the LMDB index: unsigned keys, values
+	 * (identifier and time as big endian integers) unsigned.
+	 */
+	private static int compare(long keyA, long valueA, long keyB, long valueB) {
+		int c = Long.compareUnsigned(keyA, keyB);
+		return c != 0 ? c : Long.compareUnsigned(valueA, valueB);
+	}
+
+	private static long value(int resourceIdentifier, int t) {
+		return ((long) resourceIdentifier << 32) | (t & 0xFFFFFFFFL);
+	}
+
+	private interface TupleSink {
+		void accept(long key, long value) throws IOException;
+	}
+
+	/**
+	 * Fingerprints sorted in memory.
+	 */
+	private static class Run {
+		final long[] keys;
+		final long[] values;
+		int size;
+
+		Run(int capacity) {
+			keys = new long[capacity];
+			values = new long[capacity];
+		}
+
+		void add(long key, int resourceIdentifier, int t) {
+			keys[size] = key;
+			values[size] = value(resourceIdentifier, t);
+			size++;
+		}
+
+		void sort() {
+			sort(0, size - 1);
+		}
+
+		private void sort(int from, int to) {
+			while(from < to) {
+				int middle = (from + to) >>> 1;
+				long pivotKey = keys[middle];
+				long pivotValue = values[middle];
+				int i = from, j = to;
+				while(i <= j) {
+					while(compare(keys[i], values[i], pivotKey, pivotValue) < 0) i++;
+					while(compare(keys[j], values[j], pivotKey, pivotValue) > 0) j--;
+					if(i <= j) {
+						long tmp = keys[i]; keys[i] = keys[j]; keys[j] = tmp;
+						tmp = values[i]; values[i] = values[j]; values[j] = tmp;
+						i++;
+						j--;
+					}
+				}
+				// recurse into the smaller part to bound the stack depth
+				if(j - from < to - i) {
+					sort(from, j);
+					from = i;
+				} else {
+					sort(i, to);
+					to = j;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Reads a sorted run from disk, one fingerprint at a time.
+	 */
+	private static class RunReader {
+		private final File file;
+		private final DataInputStream in;
+		long key;
+		long value;
+
+		RunReader(File file) throws IOException {
+			this.file = file;
+			this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+		}
+
+		boolean next() throws IOException {
+			try {
+				key = in.readLong();
+				value = in.readLong();
+				return true;
+			} catch (EOFException e) {
+				return false;
+			}
+		}
+
+		void close() throws IOException {
+			in.close();
+			FileUtils.rm(file.getAbsolutePath());
+		}
+	}
+
+	/**
+	 * Writes sorted fingerprints to LMDB in large transactions. Fingerprints with a key
+	 * larger than the largest key in the index are appended.
+	 */
+	private class IndexWriter implements TupleSink {
+		private final int commitSize = Config.getInt(Key.LMDB_COMMIT_SIZE);
+		private final ByteBuffer keyBuffer = ByteBuffer.allocateDirect(8).order(ByteOrder.LITTLE_ENDIAN);
+		private final ByteBuffer valueBuffer = ByteBuffer.allocateDirect(8);
+		private final long start = System.currentTimeMillis();
+		private long lastReport = start;
+
+		private Txn<ByteBuffer> txn;
+		private Cursor<ByteBuffer> cursor;
+		private boolean hasLargestKey;
+		private long largestKey;
+		private boolean hasPrevious = false;
+		private long previousKey;
+		private long previousValue;
+		private int inTransaction = 0;
+		long written = 0;
+
+		@Override
+		public void accept(long key, long value) {
+			boolean sameKey = hasPrevious && previousKey == key;
+			// an identical fingerprint is already written
+			if(sameKey && previousValue == value)
+				return;
+
+			if(txn == null) {
+				txn = db.env.txnWrite();
+				cursor = db.fingerprints.openCursor(txn);
+				hasLargestKey = cursor.last();
+				if(hasLargestKey)
+					largestKey = cursor.key().order(ByteOrder.LITTLE_ENDIAN).getLong(0);
+			}
+
+			keyBuffer.putLong(key).flip();
+			valueBuffer.putLong(value).flip();
+			if(!hasLargestKey || Long.compareUnsigned(key, largestKey) > 0)
+				cursor.put(keyBuffer, valueBuffer, sameKey ? PutFlags.MDB_APPENDDUP : PutFlags.MDB_APPEND);
+			else
+				cursor.put(keyBuffer, valueBuffer);
+			keyBuffer.clear();
+			valueBuffer.clear();
+
+			hasPrevious = true;
+			previousKey = key;
+			previousValue = value;
+			written++;
+			inTransaction++;
+
+			if(inTransaction >= commitSize)
+				commit();
+
+			long now = System.currentTimeMillis();
+			if(now - lastReport > REPORT_INTERVAL) {
+				double seconds = (now - start) / 1000.0;
+				System.out.printf("Wrote %d fingerprints (%.0f fingerprints/s)\n", written, written / seconds);
+				lastReport = now;
+			}
+		}
+
+		private void commit() {
+			cursor.close();
+			txn.commit();
+			txn.close();
+			txn = null;
+			inTransaction = 0;
+		}
+
+		void close() {
+			if(txn != null)
+				commit();
+		}
+	}
+}
@@ -0,0 +1,843 @@
+/***************************************************************************
+*                                                                          *
+* Panako - acoustic fingerprinting                                         *
+* Copyright (C) 2014 - 2022 - Joren Six / IPEM                             *
+*                                                                          *
+* This program is free software: you can redistribute it and/or modify     *
+* it under the terms of the GNU Affero General Public License as           *
+* published by the Free Software Foundation, either version 3 of the       *
+* License, or (at your option) any later version.                          *
+*                                                                          *
+* This program is distributed in the hope that it will be useful,          *
+* but WITHOUT ANY WARRANTY; without even the implied warranty of           *
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the            *
+* GNU Affero General Public License for more details.                      *
+*                                                                          *
+* You should have received a copy of the GNU Affero General Public License *
+* along with this program.  If not, see <http://www.gnu.org/licenses/>     *
+*                                                                          *
+****************************************************************************
+*    ______   ________   ___   __    ________   ___   ___   ______         *
+*   /_____/\ /_______/\ /__/\ /__/\ /_______/\ /___/\/__/\ /_____/\        *
+*   \:::_ \ \\::: _  \ \\::\_\\  \ \\::: _  \ \\::.\ \\ \ \\:::_ \ \       *
+*    \:(_) \ \\::(_)  \ \\:. `-\  \ \\::(_)  \ \\:: \/_) \ \\:\ \ \ \      *
+*     \: ___\/ \:: __  \ \\:. _    \ \\:: __  \ \\:. __  ( ( \:\ \ \ \     *
+*      \ \ \    \:.\ \  \ \\. \`-\  \ \\:.\ \  \ \\: \ )  \ \ \:\_\ \ \    *
+*       \_\/     \__\/\__\/ \__\/ \__\/ \__\/\__\/ \__\/\__\/  \_____\/    *
+*                                                                          *
+****************************************************************************
+*                                                                          *
+*                              Panako                                      *
+*                       Acoustic Fingerprinting                            *
+*                                                                          *
+****************************************************************************/
+
+package be.panako.strategy.olaf.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
+import org.lmdbjava.Cursor;
+import org.lmdbjava.SeekOp;
+import org.lmdbjava.Txn;
+
+import be.panako.util.MappedByteArray;
+import be.panako.util.MappedLongArray;
+
+/**
+ * An immutable, memory mapped copy of an {@link OlafStorageKV} index. The file holds, in little endian order:
+ * <ol>
+ * <li>a header with a magic number, a version, the counts and the offset of each section;</li>
+ * <li>the hash index: sorted hashes and, for each hash, the offset of its postings, followed by the end offset;</li>
+ * <li>the sorted resource identifiers, the offsets of their meta-data and the meta-data itself,
+ *     in the same format as the LMDB meta-data value;</li>
+ * <li>the postings: the resource identifiers and times, sorted within a hash.</li>
+ * </ol>
+ *
+ * The postings are either plain or compressed. Plain postings pack the resource identifier and time of a fingerprint
+ * in a long, the hash index then holds every distinct hash. Compressed postings are grouped in blocks of
+ * {@value #BLOCK_SIZE} distinct hashes and the hash index only holds the first hash of each block. A block holds four
+ * streams of values: the deltas of each hash with the previous hash, the number of postings of each hash and, for each
+ * posting, the delta with the previous resource identifier of the hash and the time: a delta with the previous time for
+ * the same resource, the time itself otherwise. Each stream is stored in frames of {@value #FRAME_SIZE} values, the last
+ * frame of a stream may hold fewer. A frame is a byte with the number of bits of its largest value, followed by its
+ * values packed at that width in little endian longs. A lookup finds the block with a binary search, decodes the hashes
+ * and counts of the block and only decodes the posting frames it reads. Unpacking a frame has no branches which depend
+ * on the values.
+ *
+ * Nothing is read up front: queries and meta-data are served from the mapped pages, which the operating
+ * system shares between all processes using the same file. A snapshot is safe for concurrent use.
+ */
+class OlafIndexSnapshot {
+
+	// "OLFX" when read as little endian bytes
+	private static final int MAGIC = 0x58464C4F;
+	private static final int PLAIN_VERSION = 1;
+	private static final int COMPRESSED_VERSION = 2;
+	private static final int HEADER_SIZE = 64;
+
+	// the number of distinct hashes in a block of compressed postings
+	private static final int BLOCK_SIZE = 128;
+
+	// the number of values in a frame of bit packed values
+	private static final int FRAME_SIZE = 128;
+
+	// the size of the buffer used to write a section of the file
+	private static final int WRITE_BUFFER_SIZE = 1 << 20;
+
+	private final File file;
+	private final boolean compressed;
+	private final long numberOfHashes;
+	private final long numberOfPostings;
+	private final int numberOfResources;
+
+	// every hash for plain postings, the first hash of each block for compressed postings
+	private final MappedLongArray hashes;
+	// the index of the first posting or the offset of a block in bytes
+	private final MappedLongArray postingOffsets;
+	private final long indexLength;
+
+	private final MappedLongArray postings;
+	private final MappedByteArray blocks;
+
+	private final MappedLongArray resourceIdentifiers;
+	private final MappedLongArray metadataOffsets;
+	private final ByteBuffer metadata;
+
+	/**
+	 * Map an index snapshot file.
+	 * @param file The snapshot file.
+	 * @throws IOException If the file can not be read or is not a valid snapshot.
+	 */
+	OlafIndexSnapshot(File file) throws IOException {
+		this.file = file;
+		try(FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+			while(header.hasRemaining() && channel.read(header) >= 0);
+			if(header.hasRemaining())
+				throw new IOException("Not an index snapshot, file too short: " + file);
+			header.flip();
+			if(header.getInt() != MAGIC)
+				throw new IOException("Not an index snapshot: " + file);
+			int version = header.getInt();
+			if(version != PLAIN_VERSION && version != COMPRESSED_VERSION)
+				throw new IOException("Unsupported index snapshot version " + version + ": " + file);
+			compressed = version == COMPRESSED_VERSION;
+
+			numberOfHashes = header.getLong();
+			numberOfPostings = header.getLong();
+			numberOfResources = (int) header.getLong();
+			long hashesOffset = header.getLong();
+			long postingOffsetsOffset = header.getLong();
+			long resourcesOffset = header.getLong();
+			long postingsOffset = header.getLong();
+
+			indexLength = (postingOffsetsOffset - hashesOffset) / Long.BYTES;
+			hashes = new MappedLongArray(channel, hashesOffset, indexLength);
+			postingOffsets = new MappedLongArray(channel, postingOffsetsOffset, indexLength + 1);
+
+			resourceIdentifiers = new MappedLongArray(channel, resourcesOffset, numberOfResources);
+			metadataOffsets = new MappedLongArray(channel, resourcesOffset + (long) numberOfResources * Long.BYTES, numberOfResources + 1);
+			long metadataOffset = resourcesOffset + (2L * numberOfResources + 1) * Long.BYTES;
+			long metadataSize = metadataOffsets.get(numberOfResources);
+
+			long postingsSize = compressed ? postingOffsets.get(indexLength) : numberOfPostings * Long.BYTES;
+			if(metadataSize > Integer.MAX_VALUE || metadataOffset + metadataSize > postingsOffset || postingsOffset + postingsSize > channel.size())
+				throw new IOException("Corrupt index snapshot, unexpected file size: " + file);
+
+			metadata = channel.map(FileChannel.MapMode.READ_ONLY, metadataOffset, metadataSize);
+			if(compressed) {
+				postings = null;
+				blocks = new MappedByteArray(channel, postingsOffset, postingsSize);
+			} else {
+				postings = new MappedLongArray(channel, postingsOffset, numberOfPostings);
+				blocks = null;
+			}
+		}
+	}
+
+	/**
+	 * Query the snapshot for each hash in the batch. Query hashes with overlapping ranges form a group:
+	 * each group is found with a binary search, starting from the end of the previous group, and the
+	 * postings of the group are scanned once.
+	 * @param batch The hashes to look up.
+	 * @param matchAccumulator Add the hits to this accumulator.
+	 * @param range The range determines how much the reference hashes might differ from the query hash.
+	 * @param resourcesToAvoid Hits for these resources are ignored.
+	 */
+	void query(OlafQueryBatch batch, OlafHitAccumulator matchAccumulator, int range, Set<Integer> resourcesToAvoid) {
+		if(compressed)
+			queryCompressed(batch, matchAccumulator, range, resourcesToAvoid);
+		else
+			queryPlain(batch, matchAccumulator, range, resourcesToAvoid);
+	}
+
+	private void queryPlain(OlafQueryBatch batch, OlafHitAccumulator matchAccumulator, int range, Set<Integer> resourcesToAvoid) {
+		final long[] queryHashes = batch.sortedHashes();
+		final int numberOfQueryHashes = batch.size();
+
+		long position = 0;
+		int groupStart = 0;
+		while(groupStart < numberOfQueryHashes && position < numberOfHashes) {
+			//extend the group while the ranges of consecutive query hashes overlap
+			int groupEnd = groupStart + 1;
+			while(groupEnd < numberOfQueryHashes && queryHashes[groupEnd] - range <= queryHashes[groupEnd - 1] + range)
+				groupEnd++;
+
+			long startKey = queryHashes[groupStart] - range;
+			long stopKey = queryHashes[groupEnd - 1] + range;
+
+			position = lowerBound(position, startKey);
+
+			//the first query hash of the group in range of the current fingerprint hash
+			int first = groupStart;
+			while(position < numberOfHashes) {
+				long fingerprintHash = hashes.get(position);
+				if(fingerprintHash > stopKey)
+					break;
+				while(queryHashes[first] + range < fingerprintHash)
+					first++;
+
+				long end = postingOffsets.get(position + 1);
+				for(long p = postingOffsets.get(position) ; p < end ; p++) {
+					long posting = postings.get(p);
+					int resourceID = (int) (posting >>> 32);
+					if(resourcesToAvoid.contains(resourceID))
+						continue;
+					int t = (int) posting;
+					for(int i = first ; i < groupEnd && queryHashes[i] - range <= fingerprintHash ; i++)
+						matchAccumulator.add(queryHashes[i], fingerprintHash, t, resourceID);
+				}
+				position++;
+			}
+			groupStart = groupEnd;
+		}
+	}
+
+	private void queryCompressed(OlafQueryBatch batch, OlafHitAccumulator matchAccumulator, int range, Set<Integer> resourcesToAvoid) {
+		final long[] queryHashes = batch.sortedHashes();
+		final int numberOfQueryHashes = batch.size();
+		final BlockReader reader = new BlockReader();
+
+		int groupStart = 0;
+		while(groupStart < numberOfQueryHashes && indexLength > 0) {
+			//extend the group while the ranges of consecutive query hashes overlap
+			int groupEnd = groupStart + 1;
+			while(groupEnd < numberOfQueryHashes && queryHashes[groupEnd] - range <= queryHashes[groupEnd - 1] + range)
+				groupEnd++;
+
+			long startKey = queryHashes[groupStart] - range;
+			long stopKey = queryHashes[groupEnd - 1] + range;
+
+			//the last block which starts before the start key, only move forward
+			long from = Math.max(reader.block, 0);
+			long block = Math.max(from, lowerBound(from, startKey + 1) - 1);
+			if(block > reader.block)
+				reader.open(block);
+			while(reader.current && reader.hash < startKey)
+				reader.next();
+
+			//the first query hash of the group in range of the current fingerprint hash
+			int first = groupStart;
+			while(reader.current && reader.hash <= stopKey) {
+				long fingerprintHash = reader.hash;
+				while(queryHashes[first] + range < fingerprintHash)
+					first++;
+
+				long resourceID = 0;
+				long t = 0;
+				int start = reader.postingStart();
+				int end = reader.postingEnd();
+				for(int p = start ; p < end ; p++) {
+					long resourceDelta = reader.resourceDelta(p);
+					resourceID += resourceDelta;
+					t = (p == start || resourceDelta != 0) ? reader.time(p) : t + reader.time(p);
+					if(resourcesToAvoid.contains((int) resourceID))
+						continue;
+					for(int i = first ; i < groupEnd && queryHashes[i] - range <= fingerprintHash ; i++)
+						matchAccumulator.add(queryHashes[i], fingerprintHash, (int) t, (int) resourceID);
+				}
+				reader.next();
+			}
+			if(!reader.current)
+				break; //end of the index
+
+			groupStart = groupEnd;
+		}
+	}
+
+	/**
+	 * Decodes the blocks of compressed postings. Opening a block decodes its hashes and counts, the
+	 * frames of the postings are decoded when a posting in them is read.
+	 */
+	private class BlockReader {
+		long block = -1;
+		boolean current;
+		long hash;
+
+		// the number of hashes in the block and the index of the current hash
+		private int size;
+		private int index;
+		private final long[] blockHashes = new long[BLOCK_SIZE];
+		// the index of the first posting of each hash in the block, followed by the number of postings
+		private final int[] postingStarts = new int[BLOCK_SIZE + 1];
+
+		private long[] resourceFrameOffsets = new long[1];
+		private long[] timeFrameOffsets = new long[1];
+		private final PackedFrame resourceFrame = new PackedFrame();
+		private final PackedFrame timeFrame = new PackedFrame();
+		private final PackedFrame frame = new PackedFrame();
+
+		void open(long block) {
+			this.block = block;
+			size = (int) Math.min(BLOCK_SIZE, numberOfHashes - block * BLOCK_SIZE);
+			long position = postingOffsets.get(block);
+
+			position = frame.read(position, size);
+			long blockHash = hashes.get(block);
+			for(int i = 0 ; i < size ; i++) {
+				blockHash += frame.values[i];
+				blockHashes[i] = blockHash;
+			}
+			position = frame.read(position, size);
+			for(int i = 0 ; i < size ; i++)
+				postingStarts[i + 1] = postingStarts[i] + (int) frame.values[i];
+
+			//only the widths are read to find the posting frames
+			int postingsInBlock = postingStarts[size];
+			int frames = (postingsInBlock + FRAME_SIZE - 1) / FRAME_SIZE;
+			if(resourceFrameOffsets.length < frames) {
+				resourceFrameOffsets = new long[frames];
+				timeFrameOffsets = new long[frames];
+			}
+			for(int f = 0 ; f < frames ; f++) {
+				resourceFrameOffsets[f] = position;
+				position += frameBytes(blocks.get(position), frameLength(f, postingsInBlock));
+			}
+			for(int f = 0 ; f < frames ; f++) {
+				timeFrameOffsets[f] = position;
+				position += frameBytes(blocks.get(position), frameLength(f, postingsInBlock));
+			}
+			resourceFrame.frame = -1;
+			timeFrame.frame = -1;
+
+			index = 0;
+			hash = blockHashes[0];
+			current = true;
+		}
+
+		void next() {
+			if(++index < size)
+				hash = blockHashes[index];
+			else if(block + 1 < indexLength)
+				open(block + 1);
+			else
+				current = false;
+		}
+
+		/**
+		 * @return The index of the first posting of the current hash, within the block.
+		 */
+		int postingStart() {
+			return postingStarts[index];
+		}
+
+		/**
+		 * @return The index after the last posting of the current hash, within the block.
+		 */
+		int postingEnd() {
+			return postingStarts[index + 1];
+		}
+
+		long resourceDelta(int posting) {
+			return value(resourceFrame, resourceFrameOffsets, posting);
+		}
+
+		long time(int posting) {
+			return value(timeFrame, timeFrameOffsets, posting);
+		}
+
+		private long value(PackedFrame packedFrame, long[] frameOffsets, int posting) {
+			int f = posting / FRAME_SIZE;
+			if(packedFrame.frame != f) {
+				packedFrame.read(frameOffsets[f], frameLength(f, postingStarts[size]));
+				packedFrame.frame = f;
+			}
+			return packedFrame.values[posting % FRAME_SIZE];
+		}
+
+		private int frameLength(int frame, int length) {
+			return Math.min(FRAME_SIZE, length - frame * FRAME_SIZE);
+		}
+	}
+
+	/**
+	 * @return The size in bytes of a frame with values of a width in bits.
+	 */
+	private static int frameBytes(int width, int length) {
+		return 1 + ((length * width + 63) >>> 6) * Long.BYTES;
+	}
+
+	/**
+	 * A decoded frame of bit packed values.
+	 */
+	private class PackedFrame {
+		final long[] values = new long[FRAME_SIZE];
+		// the packed values with a trailing zero, so a value can always be read from two longs
+		private final long[] packed = new long[FRAME_SIZE + 1];
+		// the index of the decoded frame in its stream
+		int frame = -1;
+
+		/**
+		 * Decodes a frame.
+		 * @param position The offset of the frame in the postings.
+		 * @param length The number of values in the frame.
+		 * @return The offset after the frame.
+		 */
+		long read(long position, int length) {
+			int width = blocks.get(position++);
+			int words = (length * width + 63) >>> 6;
+			for(int w = 0 ; w < words ; w++) {
+				long word = 0;
+				for(int b = 0 ; b < Long.BYTES ; b++)
+					word |= (blocks.get(position++) & 0xFFL) << (b * 8);
+				packed[w] = word;
+			}
+			packed[words] = 0;
+
+			long mask = width == 0 ? 0 : -1L >>> (64 - width);
+			long bit = 0;
+			for(int i = 0 ; i < length ; i++) {
+				int word = (int) (bit >>> 6);
+				int shift = (int) (bit & 63);
+				//the second shift is split so a value which starts at a word boundary takes nothing from the next word
+				values[i] = ((packed[word] >>> shift) | ((packed[word + 1] << 1) << (63 - shift))) & mask;
+				bit += width;
+			}
+			return position;
+		}
+	}
+
+	/**
+	 * Returns the meta-data of a resource.
+	 * @param resourceID The identifier of the resource.
+	 * @return The meta-data or null if the resource is not in the snapshot.
+	 */
+	OlafResourceMetadata getMetadata(long resourceID) {
+		int low = 0;
+		int high = numberOfResources;
+		while(low < high) {
+			int middle = (low + high) >>> 1;
+			if(resourceIdentifiers.get(middle) < resourceID)
+				low = middle + 1;
+			else
+				high = middle;
+		}
+		if(low == numberOfResources || resourceIdentifiers.get(low) != resourceID)
+			return null;
+		return getMetadataAt(low);
+	}
+
+	/**
+	 * @param index The index of a resource, smaller than {@link #numberOfResources()}.
+	 * @return The meta-data of the resource at the index, in identifier order.
+	 */
+	OlafResourceMetadata getMetadataAt(int index) {
+		int start = (int) metadataOffsets.get(index);
+		int end = (int) metadataOffsets.get(index + 1);
+		ByteBuffer value = metadata.duplicate();
+		value.limit(end).position(start);
+
+		OlafResourceMetadata resourceMetadata = new OlafResourceMetadata();
+		resourceMetadata.duration = value.getFloat();
+		resourceMetadata.numFingerprints = value.getInt();
+		resourceMetadata.path = StandardCharsets.UTF_8.decode(value).toString();
+		resourceMetadata.identifier = (int) resourceIdentifiers.get(index);
+		return resourceMetadata;
+	}
+
+	/**
+	 * @return The snapshot file.
+	 */
+	File file() {
+		return file;
+	}
+
+	/**
+	 * @return True if the postings are compressed.
+	 */
+	boolean isCompressed() {
+		return compressed;
+	}
+
+	/**
+	 * @return The number of distinct fingerprint hashes.
+	 */
+	long numberOfHashes() {
+		return numberOfHashes;
+	}
+
+	/**
+	 * @return The number of fingerprints.
+	 */
+	long numberOfPostings() {
+		return numberOfPostings;
+	}
+
+	/**
+	 * @return The number of resources.
+	 */
+	int numberOfResources() {
+		return numberOfResources;
+	}
+
+	/**
+	 * @return The size of the hash index and the postings in bytes: the part of the file queries read.
+	 */
+	long indexSize() {
+		long postingsSize = compressed ? postingOffsets.get(indexLength) : numberOfPostings * Long.BYTES;
+		return (2 * indexLength + 1) * Long.BYTES + postingsSize;
+	}
+
+	/**
+	 * @return The index of the first hash in the hash index which is not smaller than the key, or the length of the index if there is none.
+	 */
+	private long lowerBound(long from, long key) {
+		long low = from;
+		long high = indexLength;
+		while(low < high) {
+			long middle = (low + high) >>> 1;
+			if(hashes.get(middle) < key)
+				low = middle + 1;
+			else
+				high = middle;
+		}
+		return low;
+	}
+
+	/**
+	 * Writes a snapshot of the fingerprints and meta-data in an LMDB index. The snapshot is written to a
+	 * temporary file next to the target which then atomically replaces the target: processes with the
+	 * previous version mapped keep using it until they open the new one.
+	 *
+	 * The index is read in one read transaction, twice: once to count the hashes and once to write them.
+	 * @param db The LMDB index.
+	 * @param target The snapshot file to create or replace.
+	 * @param compress Compress the postings.
+	 * @throws IOException If the snapshot can not be written.
+	 */
+	static void export(OlafStorageKV db, File target, boolean compress) throws IOException {
+		File temporary = new File(target.getAbsoluteFile().getParentFile(), target.getName() + ".tmp");
+		try (Txn<ByteBuffer> txn = db.env.txnRead()) {
+			//count the distinct hashes and postings
+			long numberOfHashes = 0;
+			long numberOfPostings = 0;
+			try(Cursor<ByteBuffer> c = db.fingerprints.openCursor(txn)) {
+				long previousHash = 0;
+				while(c.seek(SeekOp.MDB_NEXT)) {
+					long hash = c.key().order(ByteOrder.LITTLE_ENDIAN).getLong();
+					if(numberOfPostings == 0 || hash != previousHash)
+						numberOfHashes++;
+					previousHash = hash;
+					numberOfPostings++;
+				}
+			}
+
+			//collect the meta-data, the keys are not stored in numerical order
+			List<long[]> resources = new ArrayList<>();
+			List<byte[]> values = new ArrayList<>();
+			long metadataSize = 0;
+			try(Cursor<ByteBuffer> c = db.resourceMap.openCursor(txn)) {
+				while(c.seek(SeekOp.MDB_NEXT)) {
+					long resourceID = c.key().getLong();
+					ByteBuffer val = c.val();
+					byte[] value = new byte[val.remaining()];
+					val.get(value);
+					resources.add(new long[] {resourceID, values.size()});
+					values.add(value);
+					metadataSize += value.length;
+				}
+			}
+			resources.sort((a, b) -> Long.compare(a[0], b[0]));
+
+			long indexLength = compress ? (numberOfHashes + BLOCK_SIZE - 1) / BLOCK_SIZE : numberOfHashes;
+			long hashesOffset = HEADER_SIZE;
+			long postingOffsetsOffset = hashesOffset + indexLength * Long.BYTES;
+			long resourcesOffset = postingOffsetsOffset + (indexLength + 1) * Long.BYTES;
+			long resourcesSize = (2L * resources.size() + 1) * Long.BYTES + metadataSize;
+			//keep the postings aligned
+			long postingsOffset = (resourcesOffset + resourcesSize + Long.BYTES - 1) / Long.BYTES * Long.BYTES;
+
+			try(FileChannel channel = FileChannel.open(temporary.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+				SectionWriter header = new SectionWriter(channel, 0);
+				header.putInt(MAGIC);
+				header.putInt(compress ? COMPRESSED_VERSION : PLAIN_VERSION);
+				header.putLong(numberOfHashes);
+				header.putLong(numberOfPostings);
+				header.putLong(resources.size());
+				header.putLong(hashesOffset);
+				header.putLong(postingOffsetsOffset);
+				header.putLong(resourcesOffset);
+				header.putLong(postingsOffset);
+				header.flush();
+
+				SectionWriter resourceWriter = new SectionWriter(channel, resourcesOffset);
+				for(long[] resource : resources)
+					resourceWriter.putLong(resource[0]);
+				long metadataOffset = 0;
+				for(long[] resource : resources) {
+					resourceWriter.putLong(metadataOffset);
+					metadataOffset += values.get((int) resource[1]).length;
+				}
+				resourceWriter.putLong(metadataOffset);
+				for(long[] resource : resources)
+					resourceWriter.put(values.get((int) resource[1]));
+				resourceWriter.flush();
+
+				PostingsWriter writer = compress ? new CompressedPostingsWriter(channel, hashesOffset, postingOffsetsOffset, postingsOffset)
+						: new PlainPostingsWriter(channel, hashesOffset, postingOffsetsOffset, postingsOffset);
+				long[] hashPostings = new long[1024];
+				int count = 0;
+				long previousHash = 0;
+				try(Cursor<ByteBuffer> c = db.fingerprints.openCursor(txn)) {
+					while(c.seek(SeekOp.MDB_NEXT)) {
+						long hash = c.key().order(ByteOrder.LITTLE_ENDIAN).getLong();
+						if(count > 0 && hash != previousHash) {
+							writer.add(previousHash, hashPostings, count);
+							count = 0;
+						}
+						previousHash = hash;
+						if(count == hashPostings.length)
+							hashPostings = Arrays.copyOf(hashPostings, count * 2);
+						ByteBuffer val = c.val();
+						long resourceID = val.getInt() & 0xFFFFFFFFL;
+						long t = val.getInt() & 0xFFFFFFFFL;
+						hashPostings[count++] = resourceID << 32 | t;
+					}
+				}
+				if(count > 0)
+					writer.add(previousHash, hashPostings, count);
+				writer.finish();
+
+				channel.force(true);
+			}
+			txn.commit();
+		} catch(IOException | RuntimeException e) {
+			temporary.delete();
+			throw e;
+		}
+		Files.move(temporary.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	/**
+	 * Writes the hash index and the postings of consecutive hashes, in ascending hash order.
+	 */
+	private static abstract class PostingsWriter {
+		final SectionWriter hashWriter;
+		final SectionWriter postingOffsetWriter;
+		final SectionWriter postingWriter;
+
+		PostingsWriter(FileChannel channel, long hashesOffset, long postingOffsetsOffset, long postingsOffset) {
+			hashWriter = new SectionWriter(channel, hashesOffset);
+			postingOffsetWriter = new SectionWriter(channel, postingOffsetsOffset);
+			postingWriter = new SectionWriter(channel, postingsOffset);
+		}
+
+		/**
+		 * @param hash The hash.
+		 * @param postings The resource identifiers and times of the hash, packed and sorted.
+		 * @param count The number of postings.
+		 */
+		abstract void add(long hash, long[] postings, int count) throws IOException;
+
+		abstract void finish() throws IOException;
+	}
+
+	private static class PlainPostingsWriter extends PostingsWriter {
+		private long written = 0;
+
+		PlainPostingsWriter(FileChannel channel, long hashesOffset, long postingOffsetsOffset, long postingsOffset) {
+			super(channel, hashesOffset, postingOffsetsOffset, postingsOffset);
+		}
+
+		@Override
+		void add(long hash, long[] postings, int count) throws IOException {
+			hashWriter.putLong(hash);
+			postingOffsetWriter.putLong(written);
+			for(int i = 0 ; i < count ; i++)
+				postingWriter.putLong(postings[i]);
+			written += count;
+		}
+
+		@Override
+		void finish() throws IOException {
+			postingOffsetWriter.putLong(written);
+			hashWriter.flush();
+			postingOffsetWriter.flush();
+			postingWriter.flush();
+		}
+	}
+
+	private static class CompressedPostingsWriter extends PostingsWriter {
+		private final long[] hashDeltas = new long[BLOCK_SIZE];
+		private final long[] counts = new long[BLOCK_SIZE];
+		private long[] resourceDeltas = new long[1024];
+		private long[] times = new long[1024];
+		private int hashesInBlock = 0;
+		private int postingsInBlock = 0;
+		private long previousHash;
+
+		CompressedPostingsWriter(FileChannel channel, long hashesOffset, long postingOffsetsOffset, long postingsOffset) {
+			super(channel, hashesOffset, postingOffsetsOffset, postingsOffset);
+		}
+
+		@Override
+		void add(long hash, long[] postings, int count) throws IOException {
+			if(hashesInBlock == 0) {
+				hashWriter.putLong(hash);
+				postingOffsetWriter.putLong(postingWriter.written());
+				previousHash = hash;
+			}
+			hashDeltas[hashesInBlock] = hash - previousHash;
+			counts[hashesInBlock] = count;
+			if(postingsInBlock + count > resourceDeltas.length) {
+				int length = Math.max(resourceDeltas.length * 2, postingsInBlock + count);
+				resourceDeltas = Arrays.copyOf(resourceDeltas, length);
+				times = Arrays.copyOf(times, length);
+			}
+			long previousResourceID = 0;
+			long previousTime = 0;
+			for(int i = 0 ; i < count ; i++) {
+				long resourceID = postings[i] >>> 32;
+				long t = postings[i] & 0xFFFFFFFFL;
+				long resourceDelta = resourceID - previousResourceID;
+				resourceDeltas[postingsInBlock] = resourceDelta;
+				times[postingsInBlock] = i == 0 || resourceDelta != 0 ? t : t - previousTime;
+				postingsInBlock++;
+				previousResourceID = resourceID;
+				previousTime = t;
+			}
+			previousHash = hash;
+			if(++hashesInBlock == BLOCK_SIZE)
+				writeBlock();
+		}
+
+		@Override
+		void finish() throws IOException {
+			if(hashesInBlock > 0)
+				writeBlock();
+			postingOffsetWriter.putLong(postingWriter.written());
+			hashWriter.flush();
+			postingOffsetWriter.flush();
+			postingWriter.flush();
+		}
+
+		private void writeBlock() throws IOException {
+			writeFrame(hashDeltas, 0, hashesInBlock);
+			writeFrame(counts, 0, hashesInBlock);
+			for(int from = 0 ; from < postingsInBlock ; from += FRAME_SIZE)
+				writeFrame(resourceDeltas, from, Math.min(FRAME_SIZE, postingsInBlock - from));
+			for(int from = 0 ; from < postingsInBlock ; from += FRAME_SIZE)
+				writeFrame(times, from, Math.min(FRAME_SIZE, postingsInBlock - from));
+			hashesInBlock = 0;
+			postingsInBlock = 0;
+		}
+
+		/**
+		 * Writes the width of the largest value followed by the values packed at that width, least significant bits first.
+		 */
+		private void writeFrame(long[] values, int from, int length) throws IOException {
+			long bits = 0;
+			for(int i = from ; i < from + length ; i++)
+				bits |= values[i];
+			int width = 64 - Long.numberOfLeadingZeros(bits);
+			postingWriter.putByte((byte) width);
+
+			long word = 0;
+			int used = 0;
+			for(int i = from ; i < from + length ; i++) {
+				word |= values[i] << used;
+				used += width;
+				if(used >= 64) {
+					postingWriter.putLong(word);
+					used -= 64;
+					//the bits of the value which did not fit
+					word = used == 0 ? 0 : values[i] >>> (width - used);
+				}
+			}
+			if(used > 0)
+				postingWriter.putLong(word);
+		}
+	}
+
+	/**
+	 * Writes a section of a file sequentially, starting from a fixed position, through a buffer.
+	 */
+	private static class SectionWriter {
+		private final FileChannel channel;
+		private final ByteBuffer buffer;
+		private final long start;
+		private long position;
+
+		SectionWriter(FileChannel channel, long position) {
+			this.channel = channel;
+			this.start = position;
+			this.position = position;
+			buffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		}
+
+		void putInt(int value) throws IOException {
+			if(buffer.remaining() < Integer.BYTES)
+				flush();
+			buffer.putInt(value);
+		}
+
+		void putLong(long value) throws IOException {
+			if(buffer.remaining() < Long.BYTES)
+				flush();
+			buffer.putLong(value);
+		}
+
+		void putByte(byte value) throws IOException {
+			if(!buffer.hasRemaining())
+				flush();
+			buffer.put(value);
+		}
+
+		void put(byte[] value) throws IOException {
+			int offset = 0;
+			while(offset < value.length) {
+				if(!buffer.hasRemaining())
+					flush();
+				int length = Math.min(buffer.remaining(), value.length - offset);
+				buffer.put(value, offset, length);
+				offset += length;
+			}
+		}
+
+		/**
+		 * @return The number of bytes written to the section.
+		 */
+		long written() {
+			return position - start + buffer.position();
+		}
+
+		void flush() throws IOException {
+			buffer.flip();
+			while(buffer.hasRemaining())
+				position += channel.write(buffer, position);
+			buffer.clear();
+		}
+	}
+}
@@ -0,0 +1,390 @@
+/***************************************************************************
+*                                                                          *
+* Panako - acoustic fingerprinting                                         *
+* Copyright (C) 2014 - 2022 - Joren Six / IPEM                             *
+*                                                                          *
+* This program is free software: you can redistribute it and/or modify     *
+* it under the terms of the GNU Affero General Public License as           *
+* published by the Free Software Foundation, either version 3 of the       *
+* License, or (at your option) any later version.                          *
+*                                                                          *
+* This program is distributed in the hope that it will be useful,          *
+* but WITHOUT ANY WARRANTY; without even the implied warranty of           *
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the            *
+* GNU Affero General Public License for more details.                      *
+*                                                                          *
+* You should have received a copy of the GNU Affero General Public License *
+* along with this program.  If not, see <http://www.gnu.org/licenses/>     *
+*                                                                          *
+****************************************************************************
+*    ______   ________   ___   __    ________   ___   ___   ______         *
+*   /_____/\ /_______/\ /__/\ /__/\ /_______/\ /___/\/__/\ /_____/\        *
+*   \:::_ \ \\::: _  \ \\::\_\\  \ \\::: _  \ \\::.\ \\ \ \\:::_ \ \       *
+*    \:(_) \ \\::(_)  \ \\:. `-\  \ \\::(_)  \ \\:: \/_) \ \\:\ \ \ \      *
+*     \: ___\/ \:: __  \ \\:. _    \ \\:: __  \ \\:. __  ( ( \:\ \ \ \     *
+*      \ \ \    \:.\ \  \ \\. \`-\  \ \\:.\ \  \ \\: \ )  \ \ \:\_\ \ \    *
+*       \_\/     \__\/\__\/ \__\/ \__\/ \__\/\__\/ \__\/\__\/  \_____\/    *
+*                                                                          *
+****************************************************************************
+*                                                                          *
+*                              Panako                                      *
+*                       Acoustic Fingerprinting                            *
+*                                                                          *
+****************************************************************************/
+
+package be.panako.strategy.olaf.storage;
+
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import be.panako.util.OffHeapLongArray;
+
+/**
+ * A compact, in memory fingerprint index. Fingerprints are kept in two off-heap columns: the hashes and
+ * the packed resource identifier and time. This takes 16 bytes per fingerprint, so a 200M fingerprint
+ * index needs about 3.2GB of direct memory (and twice that while merging).
+ *
+ * The main part of the index is sorted by hash: a lookup is a binary search followed by a contiguous scan.
+ * New fingerprints are appended to a delta which is merged into the main part when it grows too large. The delta
+ * is sorted when it is queried: only the fingerprints appended since the previous query are sorted and merged
+ * with the sorted start of the delta. The delta can grow to a fraction of the main part so the cost of merging
+ * stays proportional to the number of stored fingerprints.
+ *
+ * Queries can run concurrently, storing blocks queries.
+ */
+class OlafMemoryIndex {
+
+	//the delta is merged when it holds more than this fraction of the main part
+	private static final int MERGE_FRACTION = 4;
+
+	private final int minimumDeltaSize;
+	private final ReentrantReadWriteLock lock;
+
+	//sorted by hash, then by value
+	private OffHeapLongArray hashes;
+	private OffHeapLongArray values;
+	private long size;
+
+	//appended, sorted lazily: the first deltaSortedSize fingerprints are sorted
+	private OffHeapLongArray deltaHashes;
+	private OffHeapLongArray deltaValues;
+	private long deltaSize;
+	private long deltaSortedSize;
+
+	/**
+	 * Create a new, empty index.
+	 * @param minimumDeltaSize The number of fingerprints the delta holds before it is merged with the main part.
+	 */
+	OlafMemoryIndex(int minimumDeltaSize) {
+		this.minimumDeltaSize = Math.max(1, minimumDeltaSize);
+		lock = new ReentrantReadWriteLock();
+		clear();
+	}
+
+	/**
+	 * Add the fingerprints in a batch to the index.
+	 * @param batch The batch with fingerprints.
+	 */
+	void add(OlafStoreBatch batch) {
+		lock.writeLock().lock();
+		try {
+			ensureDeltaCapacity(deltaSize + batch.size());
+			for(long[] data : batch.fingerprints()) {
+				deltaHashes.set(deltaSize, data[0]);
+				deltaValues.set(deltaSize, pack((int) data[1], (int) data[2]));
+				deltaSize++;
+			}
+			if(deltaSize >= Math.max(minimumDeltaSize, size / MERGE_FRACTION))
+				merge();
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Query the index for each hash in the batch.
+	 * @param batch The hashes to look up.
+	 * @param matchAccumulator Add the hits to this accumulator.
+	 * @param range The range determines how much the reference hashes might differ from the query hash.
+	 * @param resourcesToAvoid Hits for these resources are ignored.
+	 */
+	void query(OlafQueryBatch batch, OlafHitAccumulator matchAccumulator, int range, Set<Integer> resourcesToAvoid) {
+		if(batch.isEmpty())
+			return;
+
+		lock.readLock().lock();
+		if(deltaSortedSize < deltaSize) {
+			//sort the delta once, with a write lock which is then downgraded to a read lock
+			lock.readLock().unlock();
+			lock.writeLock().lock();
+			try {
+				if(deltaSortedSize < deltaSize)
+					sortDelta();
+				lock.readLock().lock();
+			} finally {
+				lock.writeLock().unlock();
+			}
+		}
+
+		try {
+			final long[] queryHashes = batch.sortedHashes();
+			scan(hashes, values, size, queryHashes, batch.size(), matchAccumulator, range, resourcesToAvoid);
+			scan(deltaHashes, deltaValues, deltaSize, queryHashes, batch.size(), matchAccumulator, range, resourcesToAvoid);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return The number of fingerprints in the index.
+	 */
+	long size() {
+		lock.readLock().lock();
+		try {
+			return size + deltaSize;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * @return The number of bytes allocated off-heap.
+	 */
+	long allocatedBytes() {
+		lock.readLock().lock();
+		try {
+			return (hashes.length() + values.length() + deltaHashes.length() + deltaValues.length()) * Long.BYTES;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Removes all fingerprints from the index.
+	 */
+	void clear() {
+		lock.writeLock().lock();
+		try {
+			hashes = new OffHeapLongArray(0);
+			values = new OffHeapLongArray(0);
+			size = 0;
+			deltaHashes = new OffHeapLongArray(0);
+			deltaValues = new OffHeapLongArray(0);
+			deltaSize = 0;
+			deltaSortedSize = 0;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Scans the sorted columns for the sorted query hashes. Query hashes with overlapping ranges form a group:
+	 * each group is found with a binary search, starting from the end of the previous group, and the fingerprints
+	 * of the group are scanned once.
+	 */
+	private static void scan(OffHeapLongArray hashes, OffHeapLongArray values, long size, long[] queryHashes, int numberOfHashes,
+			OlafHitAccumulator matchAccumulator, int range, Set<Integer> resourcesToAvoid) {
+		long position = 0;
+		int groupStart = 0;
+		while(groupStart < numberOfHashes && position < size) {
+			//extend the group while the ranges of consecutive query hashes overlap
+			int groupEnd = groupStart + 1;
+			while(groupEnd < numberOfHashes && queryHashes[groupEnd] - range <= queryHashes[groupEnd - 1] + range)
+				groupEnd++;
+
+			long startKey = queryHashes[groupStart] - range;
+			long stopKey = queryHashes[groupEnd - 1] + range;
+
+			position = lowerBound(hashes, position, size, startKey);
+
+			//the first query hash of the group in range of the current fingerprint hash
+			int first = groupStart;
+			while(position < size) {
+				long fingerprintHash = hashes.get(position);
+				if(fingerprintHash > stopKey)
+					break;
+				while(queryHashes[first] + range < fingerprintHash)
+					first++;
+
+				long value = values.get(position);
+				int resourceID = resourceIdentifier(value);
+				if(!resourcesToAvoid.contains(resourceID)) {
+					int t = time(value);
+					for(int i = first ; i < groupEnd && queryHashes[i] - range <= fingerprintHash ; i++)
+						matchAccumulator.add(queryHashes[i], fingerprintHash, t, resourceID);
+				}
+				position++;
+			}
+			groupStart = groupEnd;
+		}
+	}
+
+	/**
+	 * @return The index of the first hash which is not smaller than the key, or to if there is none.
+	 */
+	private static long lowerBound(OffHeapLongArray hashes, long from, long to, long key) {
+		long low = from;
+		long high = to;
+		while(low < high) {
+			long middle = (low + high) >>> 1;
+			if(hashes.get(middle) < key)
+				low = middle + 1;
+			else
+				high = middle;
+		}
+		return low;
+	}
+
+	/**
+	 * Merges the sorted delta with the main part into new columns.
+	 */
+	private void merge() {
+		if(deltaSortedSize < deltaSize)
+			sortDelta();
+
+		long mergedSize = size + deltaSize;
+		OffHeapLongArray mergedHashes = new OffHeapLongArray(mergedSize);
+		OffHeapLongArray mergedValues = new OffHeapLongArray(mergedSize);
+
+		long i = 0, j = 0, k = 0;
+		while(i < size && j < deltaSize) {
+			if(compare(hashes.get(i), values.get(i), deltaHashes.get(j), deltaValues.get(j)) <= 0) {
+				mergedHashes.set(k, hashes.get(i));
+				mergedValues.set(k++, values.get(i++));
+			} else {
+				mergedHashes.set(k, deltaHashes.get(j));
+				mergedValues.set(k++, deltaValues.get(j++));
+			}
+		}
+		OffHeapLongArray.copy(hashes, i, mergedHashes, k, size - i);
+		OffHeapLongArray.copy(values, i, mergedValues, k, size - i);
+		k += size - i;
+		OffHeapLongArray.copy(deltaHashes, j, mergedHashes, k, deltaSize - j);
+		OffHeapLongArray.copy(deltaValues, j, mergedValues, k, deltaSize - j);
+
+		hashes = mergedHashes;
+		values = mergedValues;
+		size = mergedSize;
+		deltaSize = 0;
+		deltaSortedSize = 0;
+	}
+
+	/**
+	 * Sorts the fingerprints appended to the delta since the previous sort and merges them with the sorted
+	 * start of the delta. The merge runs from the end so only the appended fingerprints need to be copied.
+	 */
+	private void sortDelta() {
+		long sorted = deltaSortedSize;
+		long appended = deltaSize - sorted;
+		sort(deltaHashes, deltaValues, sorted, deltaSize - 1);
+
+		if(sorted > 0 && compare(deltaHashes.get(sorted - 1), deltaValues.get(sorted - 1), deltaHashes.get(sorted), deltaValues.get(sorted)) > 0) {
+			OffHeapLongArray appendedHashes = new OffHeapLongArray(appended);
+			OffHeapLongArray appendedValues = new OffHeapLongArray(appended);
+			OffHeapLongArray.copy(deltaHashes, sorted, appendedHashes, 0, appended);
+			OffHeapLongArray.copy(deltaValues, sorted, appendedValues, 0, appended);
+
+			//the sorted fingerprints before the remaining appended ones are already in place
+			long i = sorted - 1, j = appended - 1, k = deltaSize - 1;
+			while(j >= 0) {
+				if(i >= 0 && compare(deltaHashes.get(i), deltaValues.get(i), appendedHashes.get(j), appendedValues.get(j)) > 0) {
+					deltaHashes.set(k, deltaHashes.get(i));
+					deltaValues.set(k--, deltaValues.get(i--));
+				} else {
+					deltaHashes.set(k, appendedHashes.get(j));
+					deltaValues.set(k--, appendedValues.get(j--));
+				}
+			}
+		}
+		deltaSortedSize = deltaSize;
+	}
+
+	private void ensureDeltaCapacity(long capacity) {
+		if(capacity <= deltaHashes.length())
+			return;
+		long newCapacity = Math.max(capacity, Math.max(1024, deltaHashes.length() * 2));
+		OffHeapLongArray newHashes = new OffHeapLongArray(newCapacity);
+		OffHeapLongArray newValues = new OffHeapLongArray(newCapacity);
+		OffHeapLongArray.copy(deltaHashes, 0, newHashes, 0, deltaSize);
+		OffHeapLongArray.copy(deltaValues, 0, newValues, 0, deltaSize);
+		deltaHashes = newHashes;
+		deltaValues = newValues;
+	}
+
+	private static long pack(int resourceID, int t) {
+		return ((long) resourceID << 32) | (t & 0xFFFFFFFFL);
+	}
+
+	private static int resourceIdentifier(long value) {
+		return (int) (value >>> 32);
+	}
+
+	private static int time(long value) {
+		return (int) value;
+	}
+
+	private static int compare(long hashA, long valueA, long hashB, long valueB) {
+		int c = Long.compare(hashA, hashB);
+		return c != 0 ? c : Long.compare(valueA, valueB);
+	}
+
+	/**
+	 * Quick sort of both columns by hash and value, in place.
+	 */
+	private static void sort(OffHeapLongArray hashes, OffHeapLongArray values, long from, long to) {
+		while(from < to) {
+			if(to - from < 16) {
+				insertionSort(hashes, values, from, to);
+				return;
+			}
+			long middle = (from + to) >>> 1;
+			long pivotHash = hashes.get(middle);
+			long pivotValue = values.get(middle);
+			long i = from;
+			long j = to;
+			while(i <= j) {
+				while(compare(hashes.get(i), values.get(i), pivotHash, pivotValue) < 0)
+					i++;
+				while(compare(hashes.get(j), values.get(j), pivotHash, pivotValue) > 0)
+					j--;
+				if(i <= j) {
+					swap(hashes, values, i, j);
+					i++;
+					j--;
+				}
+			}
+			//recurse on the smaller part to limit the stack depth
+			if(j - from < to - i) {
+				sort(hashes, values, from, j);
+				from = i;
+			} else {
+				sort(hashes, values, i, to);
+				to = j;
+			}
+		}
+	}
+
+	private static void insertionSort(OffHeapLongArray hashes, OffHeapLongArray values, long from, long to) {
+		for(long i = from + 1 ; i <= to ; i++) {
+			long hash = hashes.get(i);
+			long value = values.get(i);
+			long j = i - 1;
+			while(j >= from && compare(hashes.get(j), values.get(j), hash, value) > 0) {
+				hashes.set(j + 1, hashes.get(j));
+				values.set(j + 1, values.get(j));
+				j--;
+			}
+			hashes.set(j + 1, hash);
+			values.set(j + 1, value);
+		}
+	}
+
+	private static void swap(OffHeapLongArray hashes, OffHeapLongArray values, long a, long b) {
+		long hash = hashes.get(a);
+		long value = values.get(a);
+		hashes.set(a, hashes.get(b));
+		values.set(a, values.get(b));
+		hashes.set(b, hash);
+		values.set(b, value);
+	}
+}
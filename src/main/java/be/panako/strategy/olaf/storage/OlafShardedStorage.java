@@ -0,0 +1,332 @@
+/***************************************************************************
+*                                                                          *
+* Panako - acoustic fingerprinting                                         *
+* Copyright (C) 2014 - 2022 - Joren Six / IPEM                             *
+*                                                                          *
+* This program is free software: you can redistribute it and/or modify     *
+* it under the terms of the GNU Affero General Public License as           *
+* published by the Free Software Foundation, either version 3 of the       *
+* License, or (at your option) any later version.                          *
+*                                                                          *
+* This program is distributed in the hope that it will be useful,          *
+* but WITHOUT ANY WARRANTY; without even the implied warranty of           *
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the            *
+* GNU Affero General Public License for more details.                      *
+*                                                                          *
+* You should have received a copy of the GNU Affero General Public License *
+* along with this program.  If not, see <http://www.gnu.org/licenses/>     *
+*                                                                          *
+****************************************************************************
+*    ______   ________   ___   __    ________   ___   ___   ______         *
+*   /_____/\ /_______/\ /__/\ /__/\ /_______/\ /___/\/__/\ /_____/\        *
+*   \:::_ \ \\::: _  \ \\::\_\\  \ \\::: _  \ \\::.\ \\ \ \\:::_ \ \       *
+*    \:(_) \ \\::(_)  \ \\:. `-\  \ \\::(_)  \ \\:: \/_) \ \\:\ \ \ \      *
+*     \: ___\/ \:: __  \ \\:. _    \ \\:: __  \ \\:. __  ( ( \:\ \ \ \     *
+*      \ \ \    \:.\ \  \ \\. \`-\  \ \\:.\ \  \ \\: \ )  \ \ \:\_\ \ \    *
+*       \_\/     \__\/\__\/ \__\/ \__\/ \__\/\__\/ \__\/\__\/  \_____\/    *
+*                                                                          *
+****************************************************************************
+*                                                                          *
+*                              Panako                                      *
+*                       Acoustic Fingerprinting                            *
+*                                                                          *
+****************************************************************************/
+
+package be.panako.strategy.olaf.storage;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import be.panako.util.Config;
+import be.panako.util.FileUtils;
+import be.panako.util.Key;
+
+/**
+ * Partitions the fingerprints over several LMDB environments, each with its own writer thread, so
+ * writes can be spread over disks and cores. The number of shards is configured with
+ * {@link Key#OLAF_LMDB_SHARDS}, each shard is an {@link OlafStorageKV} in a sub folder of
+ * {@link Key#OLAF_LMDB_FOLDER} named after its index and the number of shards.
+ *
+ * Fingerprints are partitioned by hash. Near hashes mostly differ in the lowest bits (the time difference) so the
+ * hashes are partitioned in blocks of {@value #BLOCK_BITS} bits: a query hash is only sent to the shards of the
+ * blocks its range overlaps, usually one. Meta-data is partitioned by resource identifier and is only written
+ * once the fingerprints are committed on every shard.
+ *
+ * Queries fan out to the shards in parallel and the hits of the shards are merged in shard order.
+ */
+public class OlafShardedStorage implements OlafStorage {
+
+	// the number of low hash bits which stay on the same shard
+	private static final int BLOCK_BITS = 6;
+	// the number of blocks a query range can overlap before it is sent to every shard
+	private static final int MAX_BLOCKS_PER_HASH = 64;
+
+	/**
+	 * The single instance of the storage.
+	 */
+	private static OlafShardedStorage instance;
+
+	/**
+	 * A mutex for synchronization purposes
+	 */
+	private static final Object mutex = new Object();
+
+	/**
+	 * Uses a singleton pattern.
+	 * @return Returns or creates a storage instance. This should be a thread
+	 *         safe operation.
+	 */
+	public synchronized static OlafShardedStorage getInstance() {
+		if (instance == null) {
+			synchronized (mutex) {
+				if (instance == null) {
+					instance = new OlafShardedStorage(Config.get(Key.OLAF_LMDB_FOLDER), Config.getInt(Key.OLAF_LMDB_SHARDS));
+				}
+			}
+		}
+		return instance;
+	}
+
+	private final OlafStorageKV[] shards;
+	private final ExecutorService executor;
+
+	//per calling thread: reused query batches and accumulators for each shard
+	private final ThreadLocal<ShardQuery> shardQueries;
+
+	/**
+	 * Opens or creates the shards in a folder.
+	 * @param folder The folder with a sub folder for each shard.
+	 * @param numberOfShards The number of shards.
+	 */
+	public OlafShardedStorage(String folder, int numberOfShards) {
+		if(numberOfShards < 1)
+			throw new IllegalArgumentException("Expected at least one shard, got " + numberOfShards);
+		shards = new OlafStorageKV[numberOfShards];
+		for(int i = 0 ; i < numberOfShards ; i++) {
+			String shardName = "shard_" + i + "_of_" + numberOfShards;
+			shards[i] = new OlafStorageKV(FileUtils.combine(folder, shardName), "olaf-lmdb-writer-" + shardName);
+		}
+		executor = Executors.newCachedThreadPool(runnable -> {
+			Thread thread = new Thread(runnable, "olaf-shard-worker");
+			thread.setDaemon(true);
+			return thread;
+		});
+		shardQueries = ThreadLocal.withInitial(() -> new ShardQuery(numberOfShards));
+	}
+
+	/**
+	 * @return The number of shards.
+	 */
+	public int numberOfShards() {
+		return shards.length;
+	}
+
+	private int shardForBlock(long block) {
+		//spread consecutive blocks over the shards
+		return (int) Long.remainderUnsigned(block * 0x9E3779B97F4A7C15L, shards.length);
+	}
+
+	private int shardForHash(long hash) {
+		return shardForBlock(hash >>> BLOCK_BITS);
+	}
+
+	private OlafStorageKV shardForResource(long resourceID) {
+		return shards[Integer.remainderUnsigned((int) resourceID, shards.length)];
+	}
+
+	@Override
+	public void storeMetadata(long resourceID, String resourcePath, float duration, int fingerprints) {
+		shardForResource(resourceID).storeMetadata(resourceID, resourcePath, duration, fingerprints);
+	}
+
+	@Override
+	public OlafResourceMetadata getMetadata(long identifier) {
+		return shardForResource(identifier).getMetadata(identifier);
+	}
+
+	@Override
+	public void deleteMetadata(long resourceID) {
+		shardForResource(resourceID).deleteMetadata(resourceID);
+	}
+
+	@Override
+	public void store(OlafStoreBatch batch) {
+		OlafStoreBatch[] shardBatches = new OlafStoreBatch[shards.length];
+		for(int i = 0 ; i < shards.length ; i++)
+			shardBatches[i] = new OlafStoreBatch();
+		for(long[] data : batch.fingerprints())
+			shardBatches[shardForHash(data[0])].add(data[0], (int) data[1], (int) data[2]);
+
+		//each shard blocks until its writer committed the batch
+		forEachShard(shard -> {
+			if(!shardBatches[shard].isEmpty())
+				shards[shard].store(shardBatches[shard]);
+		});
+
+		//the meta-data is only written once the fingerprints of all shards are committed:
+		//a failing shard throws above and no meta-data is stored
+		if(batch.metadata().isEmpty())
+			return;
+		OlafStoreBatch[] metadataBatches = new OlafStoreBatch[shards.length];
+		for(int i = 0 ; i < shards.length ; i++)
+			metadataBatches[i] = new OlafStoreBatch();
+		for(OlafResourceMetadata metadata : batch.metadata()) {
+			int shard = Integer.remainderUnsigned(metadata.identifier, shards.length);
+			metadataBatches[shard].addMetadata(metadata.identifier, metadata.path, (float) metadata.duration, metadata.numFingerprints);
+		}
+		forEachShard(shard -> {
+			if(!metadataBatches[shard].isEmpty())
+				shards[shard].store(metadataBatches[shard]);
+		});
+	}
+
+	@Override
+	public void query(OlafQueryBatch batch, OlafHitAccumulator matchAccumulator, int range, Set<Integer> resourcesToAvoid) {
+		if(batch.isEmpty())
+			return;
+
+		final ShardQuery shardQuery = shardQueries.get();
+		shardQuery.clear();
+		for(int i = 0 ; i < batch.size() ; i++) {
+			long hash = batch.hash(i);
+			long firstBlock = Math.max(0, hash - range) >>> BLOCK_BITS;
+			long lastBlock = (hash + range) >>> BLOCK_BITS;
+			if(lastBlock - firstBlock >= MAX_BLOCKS_PER_HASH) {
+				//a very wide range is sent to every shard
+				for(int shard = 0 ; shard < shards.length ; shard++)
+					shardQuery.add(shard, i, hash);
+			} else {
+				for(long block = firstBlock ; block <= lastBlock ; block++)
+					shardQuery.add(shardForBlock(block), i, hash);
+			}
+		}
+
+		forEachShard(shard -> {
+			if(!shardQuery.batches[shard].isEmpty())
+				shards[shard].query(shardQuery.batches[shard], shardQuery.accumulators[shard], range, resourcesToAvoid);
+		});
+
+		for(OlafHitAccumulator shardAccumulator : shardQuery.accumulators)
+			matchAccumulator.addAll(shardAccumulator);
+	}
+
+	@Override
+	public void delete(OlafStoreBatch batch) {
+		OlafStoreBatch[] shardBatches = new OlafStoreBatch[shards.length];
+		for(int i = 0 ; i < shards.length ; i++)
+			shardBatches[i] = new OlafStoreBatch();
+		for(long[] data : batch.fingerprints())
+			shardBatches[shardForHash(data[0])].add(data[0], (int) data[1], (int) data[2]);
+		forEachShard(shard -> shards[shard].delete(shardBatches[shard]));
+	}
+
+	@Override
+	public void printStatistics(boolean printDetailedStats) {
+		for(int i = 0 ; i < shards.length ; i++) {
+			System.out.printf("[SHARD %d of %d]\n", i + 1, shards.length);
+			System.out.printf("=========================\n\n");
+			shards[i].printStatistics(printDetailedStats);
+		}
+	}
+
+	@Override
+	public void clear() {
+		for(OlafStorageKV shard : shards)
+			shard.clear();
+	}
+
+	/**
+	 * Close the environments of all shards.
+	 */
+	public void close() {
+		for(OlafStorageKV shard : shards)
+			shard.close();
+		executor.shutdown();
+	}
+
+	private interface ShardTask {
+		void run(int shard);
+	}
+
+	/**
+	 * Runs a task for each shard in parallel: the last shard on the calling thread, the others on the executor.
+	 * Returns when all tasks are done, and throws the first failure of a task.
+	 */
+	private void forEachShard(ShardTask task) {
+		List<Future<?>> futures = new ArrayList<>(shards.length - 1);
+		for(int shard = 0 ; shard < shards.length - 1 ; shard++) {
+			final int s = shard;
+			futures.add(executor.submit(() -> task.run(s)));
+		}
+		Throwable failure = null;
+		try {
+			task.run(shards.length - 1);
+		} catch (RuntimeException | Error e) {
+			failure = e;
+		}
+
+		//wait for every shard, also after a failure, so no task is still running when this returns
+		boolean interrupted = false;
+		for(Future<?> future : futures) {
+			while(true) {
+				try {
+					future.get();
+					break;
+				} catch (InterruptedException e) {
+					interrupted = true;
+				} catch (ExecutionException e) {
+					if(failure == null)
+						failure = e.getCause();
+					break;
+				}
+			}
+		}
+		if(interrupted)
+			Thread.currentThread().interrupt();
+		if(failure != null)
+			throw new RuntimeException("Shard task failed", failure);
+	}
+
+	/**
+	 * The query batches and accumulators of a query, reused by a calling thread.
+	 */
+	private static class ShardQuery {
+		final OlafQueryBatch[] batches;
+		final OlafHitAccumulator[] accumulators;
+		final int[] lastAdded;
+
+		ShardQuery(int numberOfShards) {
+			batches = new OlafQueryBatch[numberOfShards];
+			accumulators = new OlafHitAccumulator[numberOfShards];
+			lastAdded = new int[numberOfShards];
+			for(int i = 0 ; i < numberOfShards ; i++) {
+				batches[i] = new OlafQueryBatch();
+				accumulators[i] = new OlafHitAccumulator();
+			}
+		}
+
+		/**
+		 * Adds the query hash at an index of the batch to the batch of a shard, once.
+		 */
+		void add(int shard, int index, long hash) {
+			if(lastAdded[shard] != index) {
+				batches[shard].add(hash);
+				lastAdded[shard] = index;
+			}
+		}
+
+		void clear() {
+			for(int i = 0 ; i < batches.length ; i++) {
+				batches[i].clear();
+				accumulators[i].clear();
+			}
+			Arrays.fill(lastAdded, -1);
+		}
+	}
+}
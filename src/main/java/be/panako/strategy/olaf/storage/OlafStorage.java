@@ -54,22 +54,11 @@ public interface OlafStorage {
 	void storeMetadata(long resourceID, String resourcePath, float duration, int numberOfFingerprints);
 
 	/**
-	 * Storing fingerprint hashes goes in batches,
-	 * @param fingerprintHash The fingerprint hash
-	 * @param resourceIdentifier The internal identifier of the resource
-	 * @param t1 The time associated with the fingerprint
+	 * Store the fingerprints in the batch, followed by the meta-data in the batch. If the storage supports
+	 * transactions both are stored in the same transaction. The batch is not cleared: clear it before reuse.
+	 * @param batch The fingerprints and meta-data to store.
 	 */
-	void addToStoreQueue(long fingerprintHash, int resourceIdentifier, int t1);
-
-	/**
-	 * Actually store the queued fingerprint hashes
-	 */
-	void processStoreQueue();
-
-	/**
-	 * Clears the currently pending fingerprints to store
-	 */
-	void clearStoreQueue();
+	void store(OlafStoreBatch batch);
 
 	/**
 	 * Print the storage statistics.
@@ -86,32 +75,33 @@ public interface OlafStorage {
 	OlafResourceMetadata getMetadata(long identifier);
 
 	/**
-	 * Query operations are done in batches this method adds a fingerprint hash to the query queue
-	 * @param queryHash The hash to add to the queue
-	 */
-	void addToQueryQueue(long queryHash);
-
-	/**
-	 * Actually query the database for the queued fingerprint hashes.
-	 * @param matchAccumulator Add the matches to this list
+	 * Query the storage for each fingerprint hash in the batch.
+	 * @param batch The hashes to look up. The batch is not modified.
+	 * @param matchAccumulator Add the matches to this map
 	 * @param range The range determines how much the reference hashes might differ from the query hash
 	 * @param resourcesToAvoid For deduplication it might be of interest to filter out some resources.
 	 */
-	void processQueryQueue(Map<Long,List<OlafHit>> matchAccumulator,int range,Set<Integer> resourcesToAvoid);
-
+	default void query(OlafQueryBatch batch,Map<Long,List<OlafHit>> matchAccumulator,int range,Set<Integer> resourcesToAvoid){
+		OlafHitAccumulator accumulator = new OlafHitAccumulator();
+		query(batch, accumulator, range, resourcesToAvoid);
+		accumulator.addTo(matchAccumulator);
+	}
 
 	/**
-	 * Adds a fingerprint hash to the delete queue.
-	 * @param fingerprintHash The hash to delete
-	 * @param resourceIdentifier The associated resource identifier
-	 * @param t1 The associated time index.
+	 * Query the storage for each fingerprint hash in the batch. The hits are added directly
+	 * to a reusable accumulator so no objects are allocated for each hit.
+	 * @param batch The hashes to look up. The batch is not modified.
+	 * @param matchAccumulator Add the hits to this accumulator
+	 * @param range The range determines how much the reference hashes might differ from the query hash
+	 * @param resourcesToAvoid For deduplication it might be of interest to filter out some resources.
 	 */
-	void addToDeleteQueue(long fingerprintHash, int resourceIdentifier, int t1);
+	void query(OlafQueryBatch batch,OlafHitAccumulator matchAccumulator,int range,Set<Integer> resourcesToAvoid);
 
 	/**
-	 * Actually delete all queued hashes.
+	 * Delete the fingerprints in the batch. The meta-data in the batch is ignored, see {@link #deleteMetadata(long)}.
+	 * @param batch The fingerprints to delete. The batch is not modified.
 	 */
-	void processDeleteQueue();
+	void delete(OlafStoreBatch batch);
 
 	/**
 	 * Delete the meta-data associated with this resource identifier
@@ -36,10 +36,8 @@
 package be.panako.strategy.olaf.storage;
 
 import java.io.File;
-import java.util.ArrayList;
-import java.util.HashMap;
+import java.io.IOException;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
 import java.util.logging.Logger;
 
@@ -80,7 +78,6 @@ public class OlafStorageFile implements OlafStorage {
 	}
 	
 	
-	final Map<Long,List<long[]>> storeQueue;
 	final File storeDir;
 
 	/**
@@ -97,8 +94,6 @@ public class OlafStorageFile implements OlafStorage {
 		}
 		
 		storeDir = new File(folder);
-		
-		storeQueue = new HashMap<Long,List<long[]>>();
 	}
 
 
@@ -107,7 +102,7 @@ public class OlafStorageFile implements OlafStorage {
 		String path = FileUtils.combine(storeDir.getAbsolutePath(),resourceID + "_meta_data.txt");		
 		StringBuilder sb = new StringBuilder();		
 		sb.append(resourceID).append("\n").append(duration).append("\n").append(fingerprints).append("\n").append(resourcePath).append("\n");	
-		FileUtils.writeFile(sb.toString(), path);		
+		FileUtils.writeFile(sb.toString(), path);
 	}
 	
 	@Override
@@ -126,15 +121,6 @@ public class OlafStorageFile implements OlafStorage {
 		return metaData;
 	}
 	
-	@Override
-	public void addToStoreQueue(long fingerprintHash, int resourceIdentifier, int t1) {
-		long[] data = {fingerprintHash,resourceIdentifier,t1};
-		long threadID = Thread.currentThread().getId();
-		if(!storeQueue.containsKey(threadID))
-			storeQueue.put(threadID, new ArrayList<long[]>());
-		storeQueue.get(threadID).add(data);
-	}
-
 	/**
 	 * Iterates all the hashes in the store queue and prints them into
 	 * a formatted string
@@ -155,44 +141,41 @@ public class OlafStorageFile implements OlafStorage {
 		return sb.toString();
 	}
 
-	/**
-	 * Iterates all the hashes in the store queue and prints them into
-	 * a formatted string
-	 * @return The string representing the hashes.
-	 */
-	public String storeQueueToString( ) {
-		if(storeQueue.isEmpty()) return null;
-		long threadID = Thread.currentThread().getId();
-		if(!storeQueue.containsKey(threadID)) return null;
-		
-		List<long[]> queue = storeQueue.get(threadID);
-		
-		if (queue.isEmpty()) return null;
-		
-		return storeQueueToString(queue);
-	}
-
 	@Override
-	public void processStoreQueue() {
-		if(storeQueue.isEmpty()) return;
-		long threadID = Thread.currentThread().getId();
-		if(!storeQueue.containsKey(threadID)) return;
-		
-		List<long[]> queue = storeQueue.get(threadID);
-		
-		if (queue.isEmpty()) return;
-		
-		int resourceIdentifier = (int) queue.get(0)[1];
-		
-		// Clears the store queue
-		String fingerprintsAsString = storeQueueToString(queue);
-		String path = FileUtils.combine(storeDir.getAbsolutePath(),resourceIdentifier + ".tdb");
-		FileUtils.writeFile(fingerprintsAsString, path);
+	public void store(OlafStoreBatch batch) {
+		writeFingerprints(batch);
+		// meta-data is written after the fingerprints of the resource
+		for(OlafResourceMetadata metadata : batch.metadata()) {
+			storeMetadata(metadata.identifier, metadata.path, (float) metadata.duration, metadata.numFingerprints);
+			if(batch.resourceInProgress != null && batch.resourceInProgress == metadata.identifier)
+				batch.resourceInProgress = null;
+		}
 	}
 
-	@Override
-	public void clearStoreQueue() {
-
+	private void writeFingerprints(OlafStoreBatch batch) {
+		List<long[]> queue = batch.fingerprints();
+		
+		// The batch can hold the fingerprints of several resources,
+		// one after the other: each resource is written to its own file.
+		int from = 0;
+		while(from < queue.size()) {
+			int resourceIdentifier = (int) queue.get(from)[1];
+			int to = from + 1;
+			while(to < queue.size() && queue.get(to)[1] == resourceIdentifier)
+				to++;
+
+			List<long[]> resourceQueue = queue.subList(from, to);
+			String path = FileUtils.combine(storeDir.getAbsolutePath(),resourceIdentifier + ".tdb");
+			// the first part of a resource creates the file, following parts are appended
+			boolean append = batch.resourceInProgress != null && batch.resourceInProgress == resourceIdentifier;
+			batch.resourceInProgress = resourceIdentifier;
+			try {
+				OlafCacheFile.write(path, resourceQueue, append);
+			} catch (IOException e) {
+				LOG.severe(String.format("Could not write fingerprints to %s: %s", path, e.getMessage()));
+			}
+			from = to;
+		}
 	}
 
 	@Override
@@ -212,23 +195,13 @@ public class OlafStorageFile implements OlafStorage {
 	}
 
 	@Override
-	public void addToQueryQueue(long queryHash) {
-
-	}
-
-	@Override
-	public void processQueryQueue(Map<Long, List<OlafHit>> matchAccumulator, int range,
+	public void query(OlafQueryBatch batch, OlafHitAccumulator matchAccumulator, int range,
 			Set<Integer> resourcesToAvoid) {
 
 	}
 
 	@Override
-	public void addToDeleteQueue(long fingerprintHash, int resourceIdentifier, int t1) {
-
-	}
-
-	@Override
-	public void processDeleteQueue() {
+	public void delete(OlafStoreBatch batch) {
 
 	}
 
@@ -38,9 +38,8 @@ package be.panako.strategy.olaf.storage;
 import java.io.File;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
-import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -56,6 +55,7 @@ import org.lmdbjava.Txn;
 import be.panako.cli.Application;
 import be.panako.util.Config;
 import be.panako.util.FileUtils;
+import be.panako.util.LMDBBatchWriter;
 import be.panako.util.Key;
 
 /**
@@ -94,9 +94,9 @@ public class OlafStorageKV implements OlafStorage {
 	final Dbi<ByteBuffer> resourceMap;
 	final Env<ByteBuffer> env;
 	
-	final Map<Long,List<long[]>> storeQueue;
-	final Map<Long,List<long[]>> deleteQueue;
-	final Map<Long,List<Long>> queryQueue;
+	final LMDBBatchWriter writer;
+	
+	private final String folder;
 
 	/**
 	 * Create a new instance of the key value store.
@@ -104,8 +104,18 @@ public class OlafStorageKV implements OlafStorage {
 	 * If a store is not present it is created.
 	 */
 	public OlafStorageKV() {
-		String folder = Config.get(Key.OLAF_LMDB_FOLDER);
+		this(Config.get(Key.OLAF_LMDB_FOLDER), "olaf-lmdb-writer");
+	}
+
+	/**
+	 * Create a new instance of the key value store in a folder.
+	 * If a store is not present it is created.
+	 * @param folder The folder of the LMDB environment.
+	 * @param writerName The name of the writer thread.
+	 */
+	OlafStorageKV(String folder, String writerName) {
 		folder = FileUtils.expandHomeDir(folder);
+		this.folder = folder;
 		
 		if(!new File(folder).exists()) {
 			FileUtils.mkdirs(folder);
@@ -127,15 +137,14 @@ public class OlafStorageKV implements OlafStorage {
 		final String resourceName = "olaf_resource_map";		
 		resourceMap = env.openDbi(resourceName,DbiFlags.MDB_CREATE, DbiFlags.MDB_INTEGERKEY);
 		
-		storeQueue = new HashMap<>();
-		deleteQueue = new HashMap<>();
-		queryQueue = new HashMap<>();
+		writer = new LMDBBatchWriter(writerName, env, fingerprints, resourceMap, 2);
 	}
 
 	/**
 	 * Close the environment (move this to interface?)
 	 */
 	public void close() {
+		writer.close();
 		env.close();
 	}
 	
@@ -145,16 +154,16 @@ public class OlafStorageKV implements OlafStorage {
 	 */
 	@Override
 	public void storeMetadata(long resourceID,String resourcePath,float duration, int fingerprints) {
-		final ByteBuffer key = ByteBuffer.allocateDirect(8);
+		writer.write(Collections.emptyList(), Collections.singletonMap(resourceID, metadataValue(resourcePath, duration, fingerprints)));
+	}
+
+	private ByteBuffer metadataValue(String resourcePath,float duration, int fingerprints) {
 		byte[] resourcePathBytes = resourcePath.getBytes(java.nio.charset.StandardCharsets.UTF_8);
 		final ByteBuffer val = ByteBuffer.allocateDirect(resourcePathBytes.length + 16); 
-		key.putLong(resourceID).flip();
-		
 		val.putFloat(duration);
 		val.putInt(fingerprints);
-	    val.put(resourcePathBytes).flip();
-	    
-	    resourceMap.put(key, val);
+		val.put(resourcePathBytes).flip();
+		return val;
 	}
 	
 	@Override
@@ -184,87 +193,20 @@ public class OlafStorageKV implements OlafStorage {
 		return metadata;    
 	}
 	
-	/* (non-Javadoc)
-	 * @see be.panako.strategy.olaf.OlafStorage#addToStoreQueue(long, int, int)
-	 */
-	@Override
-	public void addToStoreQueue(long fingerprintHash, int resourceIdentifier, int t1) {
-		long[] data = {fingerprintHash,resourceIdentifier,t1};
-		long threadID = Thread.currentThread().getId();
-		if(!storeQueue.containsKey(threadID))
-			storeQueue.put(threadID, new ArrayList<>());
-		storeQueue.get(threadID).add(data);
-	}
-	
-	/* (non-Javadoc)
-	 * @see be.panako.strategy.olaf.OlafStorage#processStoreQueue()
-	 */
 	@Override	
-	public void processStoreQueue() {
-		if (storeQueue.isEmpty())
-			return;
-		
-		long threadID = Thread.currentThread().getId();
-		if(!storeQueue.containsKey(threadID))
-			return;
-		
-		List<long[]> queue = storeQueue.get(threadID);
-		
-		if (queue.isEmpty())
-			return;
+	public void store(OlafStoreBatch batch) {
+		Map<Long,ByteBuffer> metadata = new HashMap<>();
+		for(OlafResourceMetadata resourceMetadata : batch.metadata())
+			metadata.put((long) resourceMetadata.identifier, metadataValue(resourceMetadata.path, (float) resourceMetadata.duration, resourceMetadata.numFingerprints));
 		
-		
-		try (Txn<ByteBuffer> txn = env.txnWrite()) {
-
-			final ByteBuffer key = ByteBuffer.allocateDirect(8).order(java.nio.ByteOrder.LITTLE_ENDIAN);
-			final ByteBuffer val = ByteBuffer.allocateDirect(8);
-
-			// A cursor always belongs to a particular Dbi.
-			final Cursor<ByteBuffer> c = fingerprints.openCursor(txn);
-			
-			for (long[] data : queue) {
-				key.putLong(data[0]).flip();
-				val.putInt((int) data[1]).putInt((int) data[2]).flip();
-
-				c.put(key, val);
-
-				key.clear();
-				val.clear();
-			}
-
-			c.close();
-			txn.commit();
-			queue.clear();
-
-		} catch (Exception e) {
-			e.printStackTrace();
-		}
-	}
-
-	@Override
-	public void clearStoreQueue() {
-		storeQueue.clear();
+		// The writer thread groups the fingerprints of several batches in one transaction.
+		// Meta-data is committed in the same transaction as the fingerprints.
+		writer.write(batch.fingerprints(), metadata);
 	}
 	
-	public void addToDeleteQueue(long key, int val1, int val2) {
-		long[] data = {key,val1,val2};
-		long threadID = Thread.currentThread().getId();
-		if(!deleteQueue.containsKey(threadID))
-			deleteQueue.put(threadID, new ArrayList<long[]>());
-		deleteQueue.get(threadID).add(data);
-	}
-	
-	public void processDeleteQueue() {
-		if (storeQueue.isEmpty())
-			return;
-		
-		long threadID = Thread.currentThread().getId();
-		if(!storeQueue.containsKey(threadID))
-			return;
-		
-		List<long[]> queue = storeQueue.get(threadID);
-		
-		if (queue.isEmpty())
+	@Override
+	public void delete(OlafStoreBatch batch) {
+		if (batch.size() == 0)
 			return;
 		
 		try (Txn<ByteBuffer> txn = env.txnWrite()) {
@@ -275,7 +217,7 @@ public class OlafStorageKV implements OlafStorage {
 		      // A cursor always belongs to a particular Dbi.
 		      final Cursor<ByteBuffer> c = fingerprints.openCursor(txn);
 		      
-		      for(long[] data : queue) {
+		      for(long[] data : batch.fingerprints()) {
 		    	  key.putLong(data[0]).flip();
 		    	  val.putInt((int) data[1]).putInt((int) data[2]).flip();
 		    	  if(c.get(key,val,SeekOp.MDB_GET_BOTH)) {
@@ -287,43 +229,123 @@ public class OlafStorageKV implements OlafStorage {
 		      
 		      c.close();
 		      txn.commit();
-		      queue.clear();
 		    }catch (Exception e) {
 		    	e.printStackTrace();
 		    }
 	}
-	
-	public void addToQueryQueue(long queryHash) {
-		long threadID = Thread.currentThread().getId();
-		if(!queryQueue.containsKey(threadID))
-			queryQueue.put(threadID, new ArrayList<Long>());
-		queryQueue.get(threadID).add(queryHash);
-	}
-
-
 
-	
-	public void processQueryQueue(Map<Long,List<OlafHit>> matchAccumulator,int range,Set<Integer> resourcesToAvoid) {
-		
-		if (queryQueue.isEmpty())
-			return;
+	@Override
+	public void query(OlafQueryBatch batch,OlafHitAccumulator matchAccumulator,int range,Set<Integer> resourcesToAvoid) {
 		
-		long threadID = Thread.currentThread().getId();
-		if(!queryQueue.containsKey(threadID))
+		if (batch.isEmpty())
 			return;
 		
-		List<Long> queue = queryQueue.get(threadID);
-		
-		if (queue.isEmpty())
-			return;
+		if(Config.getBoolean(Key.OLAF_QUERY_SORTED_LOOKUP))
+			querySorted(batch, matchAccumulator, range, resourcesToAvoid);
+		else
+			queryEach(batch, matchAccumulator, range, resourcesToAvoid);
+	}
+
+	/**
+	 * Looks up the query hashes in ascending order with a single cursor. Query hashes with overlapping
+	 * ranges form a group: the index is scanned once for a group and each fingerprint found is matched
+	 * with the query hashes of the group which are in range. The cursor only seeks when the next group
+	 * starts beyond the current position, so consecutive seeks mostly visit pages which were just read.
+	 * The hits are the same as with {@link #queryEach(OlafQueryBatch, OlafHitAccumulator, int, Set)},
+	 * only the order in which they are added differs.
+	 */
+	private void querySorted(OlafQueryBatch batch,OlafHitAccumulator matchAccumulator,int range,Set<Integer> resourcesToAvoid) {
+		//keys are compared unsigned, in the order of the index
+		final long[] queryHashes = batch.unsignedSortedHashes();
+		final int numberOfHashes = batch.size();
 		
+		try (Txn<ByteBuffer> txn = env.txnRead()) {
+			// A cursor always belongs to a particular Dbi.
+			final Cursor<ByteBuffer> c = fingerprints.openCursor(txn);
+			
+			final ByteBuffer keyBuffer = ByteBuffer.allocateDirect(8).order(java.nio.ByteOrder.LITTLE_ENDIAN);
+			
+			boolean positioned = false;
+			long fingerprintHash = 0;
+			int groupStart = 0;
+			
+			while(groupStart < numberOfHashes) {
+				//extend the group while the ranges of consecutive query hashes overlap
+				int groupEnd = groupStart + 1;
+				while(groupEnd < numberOfHashes && Long.compareUnsigned(rangeStart(queryHashes[groupEnd], range), rangeStop(queryHashes[groupEnd - 1], range)) <= 0)
+					groupEnd++;
+				
+				long startKey = rangeStart(queryHashes[groupStart], range);
+				long stopKey = rangeStop(queryHashes[groupEnd - 1], range);
+				
+				//the current entry was not consumed by the previous group: only seek if it is before the start
+				if(!positioned || Long.compareUnsigned(fingerprintHash, startKey) < 0) {
+					keyBuffer.clear();
+					keyBuffer.putLong(startKey).flip();
+					positioned = c.get(keyBuffer, GetOp.MDB_SET_RANGE);
+					if(!positioned)
+						break; //no keys beyond the start, end of db
+					fingerprintHash = c.key().order(java.nio.ByteOrder.LITTLE_ENDIAN).getLong();
+				}
+				
+				//the first query hash of the group in range of the current fingerprint hash
+				int first = groupStart;
+				while(positioned && Long.compareUnsigned(fingerprintHash, stopKey) <= 0) {
+					while(Long.compareUnsigned(rangeStop(queryHashes[first], range), fingerprintHash) < 0)
+						first++;
+					
+					do {
+						final ByteBuffer val = c.val();
+						int resourceID = val.getInt();
+						int t = val.getInt();
+						if(!resourcesToAvoid.contains(resourceID)) {
+							for(int i = first ; i < groupEnd && Long.compareUnsigned(rangeStart(queryHashes[i], range), fingerprintHash) <= 0 ; i++)
+								matchAccumulator.add(queryHashes[i], fingerprintHash, t, resourceID);
+						}
+					} while(c.seek(SeekOp.MDB_NEXT_DUP));
+					
+					positioned = c.seek(SeekOp.MDB_NEXT);
+					if(positioned)
+						fingerprintHash = c.key().order(java.nio.ByteOrder.LITTLE_ENDIAN).getLong();
+				}
+				
+				if(!positioned)
+					break; //end of db
+				
+				groupStart = groupEnd;
+			}
+			
+			c.close();
+			txn.commit();
+		}
+	}
+
+	/**
+	 * @return The first key in range of a hash, clamped at zero.
+	 */
+	private static long rangeStart(long hash, int range) {
+		return Long.compareUnsigned(hash, range) < 0 ? 0 : hash - range;
+	}
+
+	/**
+	 * @return The last key in range of a hash, clamped at the largest unsigned key.
+	 */
+	private static long rangeStop(long hash, int range) {
+		return Long.compareUnsigned(hash, -1L - range) > 0 ? -1L : hash + range;
+	}
+
+	/**
+	 * Looks up each query hash on its own, in the order of the batch.
+	 */
+	private void queryEach(OlafQueryBatch batch,OlafHitAccumulator matchAccumulator,int range,Set<Integer> resourcesToAvoid) {
 		try (Txn<ByteBuffer> txn = env.txnRead()) {
 			  // A cursor always belongs to a particular Dbi.
 		      final Cursor<ByteBuffer> c = fingerprints.openCursor(txn);
 		      
 		      final ByteBuffer keyBuffer = ByteBuffer.allocateDirect(8).order(java.nio.ByteOrder.LITTLE_ENDIAN);
 		      
-		      for(long originalKey : queue) {
+		      for(int i = 0 ; i < batch.size() ; i++) {
+		    	  long originalKey = batch.hash(i);
 		    	  
 		    	  long startKey = originalKey - range;
 		    	  long stopKey = originalKey + range;
@@ -339,9 +361,7 @@ public class OlafStorageKV implements OlafStorage {
 				      
 				      if(fingerprintHash <= stopKey) {
 				    	  if(!resourcesToAvoid.contains((int) resourceID)) {
-				    		  if(!matchAccumulator.containsKey(originalKey))
-				    			  matchAccumulator.put(originalKey,new ArrayList<>());
-				    		  matchAccumulator.get(originalKey).add(new OlafHit(originalKey, fingerprintHash, t, resourceID));
+				    		  matchAccumulator.add(originalKey, fingerprintHash, (int) t, (int) resourceID);
 				    	  }
 				   
 					      while(true) {
@@ -352,9 +372,7 @@ public class OlafStorageKV implements OlafStorage {
 							      //System.out.printf("Dup Hash: %d id %d t1 %d\n",fingerprintHash , resourceID,t);
 							      
 							      if(!resourcesToAvoid.contains((int) resourceID)) {
-						    		  if(!matchAccumulator.containsKey(originalKey))
-						    			  matchAccumulator.put(originalKey,new ArrayList<>());
-						    		  matchAccumulator.get(originalKey).add(new OlafHit(originalKey, fingerprintHash, t, resourceID));
+						    		  matchAccumulator.add(originalKey, fingerprintHash, (int) t, (int) resourceID);
 						    	  }
 						      }
 						      
@@ -369,9 +387,7 @@ public class OlafStorageKV implements OlafStorage {
 							      
 							      
 							      if(!resourcesToAvoid.contains((int) resourceID)) {
-						    		  if(!matchAccumulator.containsKey(originalKey))
-						    			  matchAccumulator.put(originalKey,new ArrayList<>());
-						    		  matchAccumulator.get(originalKey).add(new OlafHit(originalKey, fingerprintHash, t, resourceID));
+						    		  matchAccumulator.add(originalKey, fingerprintHash, (int) t, (int) resourceID);
 						    	  }
 						      } else {
 						    	  //no next found, end of db
@@ -383,7 +399,6 @@ public class OlafStorageKV implements OlafStorage {
 		      }
 		      c.close();
 		      txn.commit();
-		      queue.clear();
 		}
 		
 	}
@@ -398,7 +413,6 @@ public class OlafStorageKV implements OlafStorage {
 	      
 	      if(printDetailedStats) {
 	    	  
-	    	  String folder = Config.get(Key.OLAF_LMDB_FOLDER);
 	    	  String dbpath = FileUtils.combine(folder,"data.mdb");
 	    	  long dbSizeInMB = new File(dbpath).length() / (1024 * 1024);
 	    	  
@@ -501,12 +515,11 @@ public class OlafStorageKV implements OlafStorage {
 
 	@Override
 	public void clear() {
+		writer.close();
 		fingerprints.close();
 		resourceMap.close();
 		env.close();
 		
-		String folder = Config.get(Key.OLAF_LMDB_FOLDER);
-		folder = FileUtils.expandHomeDir(folder);
 		FileUtils.rm(folder);
 	}
 
@@ -0,0 +1,228 @@
+/***************************************************************************
+*                                                                          *
+* Panako - acoustic fingerprinting                                         *
+* Copyright (C) 2014 - 2022 - Joren Six / IPEM                             *
+*                                                                          *
+* This program is free software: you can redistribute it and/or modify     *
+* it under the terms of the GNU Affero General Public License as           *
+* published by the Free Software Foundation, either version 3 of the       *
+* License, or (at your option) any later version.                          *
+*                                                                          *
+* This program is distributed in the hope that it will be useful,          *
+* but WITHOUT ANY WARRANTY; without even the implied warranty of           *
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the            *
+* GNU Affero General Public License for more details.                      *
+*                                                                          *
+* You should have received a copy of the GNU Affero General Public License *
+* along with this program.  If not, see <http://www.gnu.org/licenses/>     *
+*                                                                          *
+****************************************************************************
+*    ______   ________   ___   __    ________   ___   ___   ______         *
+*   /_____/\ /_______/\ /__/\ /__/\ /_______/\ /___/\/__/\ /_____/\        *
+*   \:::_ \ \\::: _  \ \\::\_\\  \ \\::: _  \ \\::.\ \\ \ \\:::_ \ \       *
+*    \:(_) \ \\::(_)  \ \\:. `-\  \ \\::(_)  \ \\:: \/_) \ \\:\ \ \ \      *
+*     \: ___\/ \:: __  \ \\:. _    \ \\:: __  \ \\:. __  ( ( \:\ \ \ \     *
+*      \ \ \    \:.\ \  \ \\. \`-\  \ \\:.\ \  \ \\: \ )  \ \ \:\_\ \ \    *
+*       \_\/     \__\/\__\/ \__\/ \__\/ \__\/\__\/ \__\/\__\/  \_____\/    *
+*                                                                          *
+****************************************************************************
+*                                                                          *
+*                              Panako                                      *
+*                       Acoustic Fingerprinting                            *
+*                                                                          *
+****************************************************************************/
+
+package be.panako.strategy.olaf.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import be.panako.util.Config;
+import be.panako.util.FileUtils;
+import be.panako.util.Key;
+
+/**
+ * A read-only storage which serves queries from a memory mapped index snapshot, see {@link OlafIndexSnapshot}.
+ * The snapshot is exported from an LMDB index with the exportIndex command. Opening the storage does not read
+ * the index and processes on the same machine share the mapped pages.
+ *
+ * A new version of the snapshot is picked up once it atomically replaces the configured file: queries which are
+ * running keep using the previous version, new queries use the new one.
+ */
+public class OlafStorageMapped implements OlafStorage {
+
+	private final static Logger LOG = Logger.getLogger(OlafStorageMapped.class.getName());
+
+	/**
+	 * The time between two checks for a new version of the snapshot, in milliseconds.
+	 */
+	private final static long RELOAD_CHECK_INTERVAL = 1000;
+
+	/**
+	 * The single instance of the storage.
+	 */
+	private static OlafStorageMapped instance;
+
+	/**
+	 * A mutex for synchronization purposes
+	 */
+	private static final Object mutex = new Object();
+
+	/**
+	 * Uses a singleton pattern.
+	 * @return Returns or creates a storage instance. This should be a thread
+	 *         safe operation.
+	 */
+	public synchronized static OlafStorageMapped getInstance() {
+		if (instance == null) {
+			synchronized (mutex) {
+				if (instance == null) {
+					instance = new OlafStorageMapped(FileUtils.expandHomeDir(Config.get(Key.OLAF_MMAP_INDEX_FILE)));
+				}
+			}
+		}
+		return instance;
+	}
+
+	private final File file;
+	private volatile OlafIndexSnapshot snapshot;
+	private volatile Object snapshotFileKey;
+	private volatile long lastCheck;
+
+	/**
+	 * Opens a snapshot file.
+	 * @param path The path of the snapshot file.
+	 */
+	public OlafStorageMapped(String path) {
+		file = new File(path);
+		try {
+			open();
+		} catch (IOException e) {
+			throw new RuntimeException("Could not open index snapshot: " + path, e);
+		}
+	}
+
+	private void open() throws IOException {
+		Object fileKey = fileKey();
+		snapshot = new OlafIndexSnapshot(file);
+		snapshotFileKey = fileKey;
+		lastCheck = System.currentTimeMillis();
+	}
+
+	/**
+	 * Identifies the version of the file: a replaced file has a different inode or, where inodes are
+	 * not available, a different modification time and size.
+	 */
+	private Object fileKey() throws IOException {
+		BasicFileAttributes attributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+		if(attributes.fileKey() != null)
+			return attributes.fileKey();
+		return attributes.lastModifiedTime().toMillis() + ":" + attributes.size();
+	}
+
+	/**
+	 * @return The current snapshot, reopened if the file was replaced since the last check.
+	 */
+	private OlafIndexSnapshot snapshot() {
+		long now = System.currentTimeMillis();
+		if(now - lastCheck > RELOAD_CHECK_INTERVAL) {
+			synchronized (this) {
+				if(now - lastCheck > RELOAD_CHECK_INTERVAL) {
+					lastCheck = now;
+					try {
+						if(!fileKey().equals(snapshotFileKey)) {
+							open();
+							LOG.info("Opened new version of index snapshot " + file);
+						}
+					} catch (IOException e) {
+						LOG.warning("Could not open new version of index snapshot " + file + ": " + e.getMessage());
+					}
+				}
+			}
+		}
+		return snapshot;
+	}
+
+	/**
+	 * Writes a snapshot of an LMDB index. An existing snapshot is replaced atomically.
+	 * The postings are compressed if configured with {@link Key#OLAF_MMAP_COMPRESSED}.
+	 * @param db The LMDB index.
+	 * @param path The path of the snapshot file.
+	 * @throws IOException If the snapshot can not be written.
+	 */
+	public static void export(OlafStorageKV db, String path) throws IOException {
+		OlafIndexSnapshot.export(db, new File(path), Config.getBoolean(Key.OLAF_MMAP_COMPRESSED));
+	}
+
+	@Override
+	public void query(OlafQueryBatch batch, OlafHitAccumulator matchAccumulator, int range, Set<Integer> resourcesToAvoid) {
+		if(batch.isEmpty())
+			return;
+		snapshot().query(batch, matchAccumulator, range, resourcesToAvoid);
+	}
+
+	@Override
+	public OlafResourceMetadata getMetadata(long identifier) {
+		return snapshot().getMetadata(identifier);
+	}
+
+	@Override
+	public void printStatistics(boolean printDetailedStats) {
+		OlafIndexSnapshot current = snapshot();
+		if(printDetailedStats) {
+			System.out.printf("[MMAP INDEX statistics]\n");
+			System.out.printf("=========================\n");
+			System.out.printf("> Snapshot file:                %s\n", current.file().getAbsolutePath());
+			System.out.printf("> Number of distinct hashes:    %d\n", current.numberOfHashes());
+			System.out.printf("> Number of fingerprints:       %d\n", current.numberOfPostings());
+			System.out.printf("> Postings:                     %s\n", current.isCompressed() ? "compressed" : "plain");
+			System.out.printf("> Index size:                   %dMB\n", current.indexSize() / (1024 * 1024));
+			System.out.printf("> Bytes per fingerprint:        %.2f\n", current.indexSize() / (double) Math.max(1, current.numberOfPostings()));
+			System.out.printf("> File size:                    %dMB\n", current.file().length() / (1024 * 1024));
+			System.out.printf("=========================\n\n");
+		}
+
+		double totalDuration = 0;
+		long totalPrints = 0;
+		for(int i = 0 ; i < current.numberOfResources() ; i++) {
+			OlafResourceMetadata metadata = current.getMetadataAt(i);
+			totalDuration += metadata.duration;
+			totalPrints += metadata.numFingerprints;
+		}
+		System.out.printf("[MMAP INDEX TOTALS]\n");
+		System.out.printf("=========================\n");
+		System.out.printf("> %d audio files \n", current.numberOfResources());
+		System.out.printf("> %.3f seconds of audio\n", totalDuration);
+		System.out.printf("> %d fingerprint hashes \n", totalPrints);
+		System.out.printf("=========================\n\n");
+	}
+
+	@Override
+	public void store(OlafStoreBatch batch) {
+		throw new UnsupportedOperationException("The memory mapped index snapshot is read-only, store to LMDB and export a new snapshot.");
+	}
+
+	@Override
+	public void storeMetadata(long resourceID, String resourcePath, float duration, int fingerprints) {
+		throw new UnsupportedOperationException("The memory mapped index snapshot is read-only, store to LMDB and export a new snapshot.");
+	}
+
+	@Override
+	public void delete(OlafStoreBatch batch) {
+		throw new UnsupportedOperationException("The memory mapped index snapshot is read-only, delete from LMDB and export a new snapshot.");
+	}
+
+	@Override
+	public void deleteMetadata(long resourceID) {
+		throw new UnsupportedOperationException("The memory mapped index snapshot is read-only, delete from LMDB and export a new snapshot.");
+	}
+
+	@Override
+	public void clear() {
+		throw new UnsupportedOperationException("The memory mapped index snapshot is read-only.");
+	}
+}
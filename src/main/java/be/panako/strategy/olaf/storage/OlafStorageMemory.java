@@ -34,16 +34,15 @@
 
 package be.panako.strategy.olaf.storage;
 
-import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.HashSet;
-import java.util.List;
-import java.util.Map;
 import java.util.Set;
-import java.util.TreeMap;
+
+import be.panako.util.Config;
+import be.panako.util.Key;
 
 /**
- * An in memory storage system: mainly used for debugging.
+ * An in memory storage system. The fingerprints are kept off-heap in a compact, sorted index,
+ * see {@link OlafMemoryIndex}. Nothing is persisted.
  */
 public class OlafStorageMemory implements OlafStorage {
 
@@ -74,22 +73,19 @@ public class OlafStorageMemory implements OlafStorage {
 	}
 	
 	
-	private final TreeMap<Long, List<int[]>> fingerprints;
+	private final OlafMemoryIndex fingerprints;
 	private final HashMap<Long, OlafResourceMetadata> resourceMap;
-	
-	final Map<Long,List<Long>> queryQueue;
 
 	/**
 	 * Create a new empty memory storage instance
 	 */
 	public OlafStorageMemory() {
-		fingerprints = new TreeMap<>();
+		fingerprints = new OlafMemoryIndex(Config.getInt(Key.OLAF_MEMORY_DELTA_SIZE));
 		resourceMap = new HashMap<>();
-		queryQueue = new HashMap<>();
 	}
 	
 	@Override
-	public void storeMetadata(long resourceID, String resourcePath, float duration, int fingerprints) {
+	public synchronized void storeMetadata(long resourceID, String resourcePath, float duration, int fingerprints) {
 		OlafResourceMetadata r = new OlafResourceMetadata();
 		r.duration = duration;
 		r.numFingerprints = fingerprints;
@@ -100,86 +96,42 @@ public class OlafStorageMemory implements OlafStorage {
 	}
 	
 	@Override
-	public OlafResourceMetadata getMetadata(long identifier) {
+	public synchronized OlafResourceMetadata getMetadata(long identifier) {
 		return resourceMap.get(identifier);
 	}
 	
 
 	@Override
-	public void addToStoreQueue(long fingerprintHash, int resourceIdentifier, int t1) {
-		int[] val = {resourceIdentifier,t1};
-		if(!fingerprints.containsKey(fingerprintHash)) {
-			List<int[]> list = new ArrayList<>();
-			fingerprints.put(fingerprintHash,list);
-		}
-		fingerprints.get(fingerprintHash).add(val);
-	}
-
-	@Override
-	public void processStoreQueue() {
-		//NOOP
-	}
-
-	@Override
-	public void clearStoreQueue() {
-		//noop
+	public void store(OlafStoreBatch batch) {
+		fingerprints.add(batch);
+		for(OlafResourceMetadata metadata : batch.metadata())
+			storeMetadata(metadata.identifier, metadata.path, (float) metadata.duration, metadata.numFingerprints);
 	}
 
 	@Override
 	public void printStatistics(boolean printDetailedStats) {
-
-	}
-
-	public void addToQueryQueue(long queryHash) {
-		long threadID = Thread.currentThread().getId();
-		if(!queryQueue.containsKey(threadID))
-			queryQueue.put(threadID, new ArrayList<>());
-		queryQueue.get(threadID).add(queryHash);
-	}
-
-	@Override
-	public void processQueryQueue(Map<Long,List<OlafHit>> matchAccumulator,int range,Set<Integer> resourcesToAvoid) {
-		if (queryQueue.isEmpty())
-			return;
-		
-		long threadID = Thread.currentThread().getId();
-		if(!queryQueue.containsKey(threadID))
-			return;
-		
-		List<Long> queue = queryQueue.get(threadID);
-		
-		if (queue.isEmpty())
-			return;
-		
-		for (long originalKey : queue) {
-			long startKey = originalKey - range;
-			long stopKey = originalKey + range;
-			for (long key = startKey; key <= stopKey; key++) {
-				List<int[]> results = fingerprints.get(key);
-				if (results != null) {
-					for (int[] result : results) {
-						if (!matchAccumulator.containsKey(originalKey))
-							matchAccumulator.put(originalKey, new ArrayList<OlafHit>());
-						long fingerprintHash = key;
-						long resourceID = result[0];
-						long t = result[1];
-						if(!resourcesToAvoid.contains((int) resourceID))
-						matchAccumulator.get(originalKey)
-								.add(new OlafHit(originalKey, fingerprintHash, t, resourceID));
-					}
-				}
-			}
+		if(printDetailedStats) {
+			System.out.printf("[MEM INDEX statistics]\n");
+			System.out.printf("=========================\n");
+			System.out.printf("> Number of fingerprints:       %d\n", fingerprints.size());
+			System.out.printf("> Off-heap memory:              %dMB\n", fingerprints.allocatedBytes() / (1024 * 1024));
+			System.out.printf("=========================\n\n");
+		}
+		synchronized (this) {
+			System.out.printf("[MEM INDEX TOTALS]\n");
+			System.out.printf("=========================\n");
+			System.out.printf("> %d audio files \n",resourceMap.size());
+			System.out.printf("=========================\n\n");
 		}
-		queue.clear();
 	}
 
 	@Override
-	public void addToDeleteQueue(long fingerprintHash, int resourceIdentifier, int t1) {
-		System.err.println("Delete not implemented for Memory storage");
+	public void query(OlafQueryBatch batch,OlafHitAccumulator matchAccumulator,int range,Set<Integer> resourcesToAvoid) {
+		fingerprints.query(batch, matchAccumulator, range, resourcesToAvoid);
 	}
 
 	@Override
-	public void processDeleteQueue() {
+	public void delete(OlafStoreBatch batch) {
 		System.err.println("Delete not implemented for Memory storage");
 	}
 
@@ -189,7 +141,7 @@ public class OlafStorageMemory implements OlafStorage {
 	}
 
 	@Override
-	public void clear() {
+	public synchronized void clear() {
 		fingerprints.clear();
 		resourceMap.clear();
 	}
@@ -0,0 +1,374 @@
+/***************************************************************************
+*                                                                          *
+* Panako - acoustic fingerprinting                                         *
+* Copyright (C) 2014 - 2022 - Joren Six / IPEM                             *
+*                                                                          *
+* This program is free software: you can redistribute it and/or modify     *
+* it under the terms of the GNU Affero General Public License as           *
+* published by the Free Software Foundation, either version 3 of the       *
+* License, or (at your option) any later version.                          *
+*                                                                          *
+* This program is distributed in the hope that it will be useful,          *
+* but WITHOUT ANY WARRANTY; without even the implied warranty of           *
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the            *
+* GNU Affero General Public License for more details.                      *
+*                                                                          *
+* You should have received a copy of the GNU Affero General Public License *
+* along with this program.  If not, see <http://www.gnu.org/licenses/>     *
+*                                                                          *
+****************************************************************************
+*    ______   ________   ___   __    ________   ___   ___   ______         *
+*   /_____/\ /_______/\ /__/\ /__/\ /_______/\ /___/\/__/\ /_____/\        *
+*   \:::_ \ \\::: _  \ \\::\_\\  \ \\::: _  \ \\::.\ \\ \ \\:::_ \ \       *
+*    \:(_) \ \\::(_)  \ \\:. `-\  \ \\::(_)  \ \\:: \/_) \ \\:\ \ \ \      *
+*     \: ___\/ \:: __  \ \\:. _    \ \\:: __  \ \\:. __  ( ( \:\ \ \ \     *
+*      \ \ \    \:.\ \  \ \\. \`-\  \ \\:.\ \  \ \\: \ )  \ \ \:\_\ \ \    *
+*       \_\/     \__\/\__\/ \__\/ \__\/ \__\/\__\/ \__\/\__\/  \_____\/    *
+*                                                                          *
+****************************************************************************
+*                                                                          *
+*                              Panako                                      *
+*                       Acoustic Fingerprinting                            *
+*                                                                          *
+****************************************************************************/
+
+package be.panako.strategy.olaf.storage;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Logger;
+
+import be.panako.util.Config;
+import be.panako.util.Key;
+
+/**
+ * A read-only storage which queries several index nodes, each running an {@link OlafStorageServer} with part of
+ * the resources. A query is sent to all nodes in parallel and the hits of the nodes are merged in node order.
+ * Meta-data is requested from all nodes, the first node which knows the resource answers.
+ *
+ * Each node has {@link Key#OLAF_REMOTE_TIMEOUT} milliseconds to answer. Nodes which fail or do not answer in time
+ * are skipped and logged: the query then returns the partial result of the other nodes.
+ */
+public class OlafStorageRemote implements OlafStorage {
+	private final static Logger LOG = Logger.getLogger(OlafStorageRemote.class.getName());
+
+	/**
+	 * The single instance of the storage.
+	 */
+	private static OlafStorageRemote instance;
+
+	/**
+	 * A mutex for synchronization purposes
+	 */
+	private static final Object mutex = new Object();
+
+	/**
+	 * Uses a singleton pattern.
+	 * @return Returns or creates a storage instance. This should be a thread
+	 *         safe operation.
+	 */
+	public synchronized static OlafStorageRemote getInstance() {
+		if (instance == null) {
+			synchronized (mutex) {
+				if (instance == null) {
+					instance = new OlafStorageRemote(Config.get(Key.OLAF_REMOTE_NODES), Config.getInt(Key.OLAF_REMOTE_TIMEOUT));
+				}
+			}
+		}
+		return instance;
+	}
+
+	private final Node[] nodes;
+	private final int timeout;
+	private final ExecutorService executor;
+
+	/**
+	 * Create a client for a list of nodes.
+	 * @param nodeList Comma separated host:port pairs.
+	 * @param timeout The time a node has to answer, in milliseconds.
+	 */
+	public OlafStorageRemote(String nodeList, int timeout) {
+		List<Node> parsedNodes = new ArrayList<>();
+		for(String address : nodeList.split(",")) {
+			address = address.trim();
+			if(address.isEmpty())
+				continue;
+			int separator = address.lastIndexOf(':');
+			if(separator < 0)
+				throw new IllegalArgumentException("Expected host:port for node, got " + address);
+			parsedNodes.add(new Node(address.substring(0, separator), Integer.parseInt(address.substring(separator + 1))));
+		}
+		if(parsedNodes.isEmpty())
+			throw new IllegalArgumentException("No index nodes configured");
+		nodes = parsedNodes.toArray(new Node[0]);
+		this.timeout = timeout;
+		executor = Executors.newCachedThreadPool(runnable -> {
+			Thread thread = new Thread(runnable, "olaf-remote-request");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	@Override
+	public void query(OlafQueryBatch batch, OlafHitAccumulator matchAccumulator, int range, Set<Integer> resourcesToAvoid) {
+		if(batch.isEmpty())
+			return;
+
+		List<OlafHitAccumulator> nodeHits = scatter(node -> {
+			return node.request((out) -> {
+				out.writeByte(OlafStorageServer.QUERY);
+				out.writeInt(range);
+				out.writeInt(resourcesToAvoid.size());
+				for(int resourceID : resourcesToAvoid)
+					out.writeInt(resourceID);
+				out.writeInt(batch.size());
+				for(int i = 0 ; i < batch.size() ; i++)
+					out.writeLong(batch.hash(i));
+			}, (in) -> {
+				//a new accumulator for each attempt: a partly read response is never merged
+				OlafHitAccumulator hits = new OlafHitAccumulator();
+				int numberOfHits = in.readInt();
+				for(int i = 0 ; i < numberOfHits ; i++)
+					hits.add(in.readLong(), in.readLong(), in.readInt(), in.readInt());
+				return hits;
+			});
+		});
+
+		for(OlafHitAccumulator hits : nodeHits) {
+			if(hits != null)
+				matchAccumulator.addAll(hits);
+		}
+	}
+
+	@Override
+	public OlafResourceMetadata getMetadata(long identifier) {
+		List<OlafResourceMetadata> nodeMetadata = scatter(node -> {
+			return node.request((out) -> {
+				out.writeByte(OlafStorageServer.METADATA);
+				out.writeLong(identifier);
+			}, (in) -> {
+				if(!in.readBoolean())
+					return null;
+				OlafResourceMetadata metadata = new OlafResourceMetadata();
+				metadata.duration = in.readFloat();
+				metadata.numFingerprints = in.readInt();
+				metadata.path = in.readUTF();
+				metadata.identifier = (int) identifier;
+				return metadata;
+			});
+		});
+		for(OlafResourceMetadata metadata : nodeMetadata) {
+			if(metadata != null)
+				return metadata;
+		}
+		return null;
+	}
+
+	@Override
+	public void printStatistics(boolean printDetailedStats) {
+		System.out.printf("[REMOTE INDEX nodes]\n");
+		System.out.printf("=========================\n");
+		List<Boolean> available = scatter(node -> {
+			node.release(node.connect());
+			return true;
+		});
+		for(int i = 0 ; i < nodes.length ; i++)
+			System.out.printf("> %s: %s\n", nodes[i], available.get(i) != null ? "available" : "unavailable");
+		System.out.printf("=========================\n\n");
+	}
+
+	@Override
+	public void store(OlafStoreBatch batch) {
+		throw new UnsupportedOperationException("The remote index is read-only, store on the index nodes.");
+	}
+
+	@Override
+	public void storeMetadata(long resourceID, String resourcePath, float duration, int fingerprints) {
+		throw new UnsupportedOperationException("The remote index is read-only, store on the index nodes.");
+	}
+
+	@Override
+	public void delete(OlafStoreBatch batch) {
+		throw new UnsupportedOperationException("The remote index is read-only, delete on the index nodes.");
+	}
+
+	@Override
+	public void deleteMetadata(long resourceID) {
+		throw new UnsupportedOperationException("The remote index is read-only, delete on the index nodes.");
+	}
+
+	@Override
+	public void clear() {
+		throw new UnsupportedOperationException("The remote index is read-only.");
+	}
+
+	/**
+	 * Closes the connections to the nodes.
+	 */
+	public void close() {
+		for(Node node : nodes)
+			node.close();
+		executor.shutdownNow();
+	}
+
+	private interface NodeRequest<T> {
+		T call(Node node) throws IOException;
+	}
+
+	/**
+	 * Runs a request on all nodes in parallel and waits at most the timeout for the answers.
+	 * @return The answer of each node, in node order, null for nodes which failed or timed out.
+	 */
+	private <T> List<T> scatter(NodeRequest<T> request) {
+		List<Future<T>> futures = new ArrayList<>(nodes.length);
+		for(Node node : nodes) {
+			Callable<T> task = () -> request.call(node);
+			futures.add(executor.submit(task));
+		}
+
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+		List<T> answers = new ArrayList<>(nodes.length);
+		for(int i = 0 ; i < nodes.length ; i++) {
+			T answer = null;
+			try {
+				answer = futures.get(i).get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+			} catch (TimeoutException e) {
+				futures.get(i).cancel(true);
+				LOG.warning("Index node " + nodes[i] + " did not answer within " + timeout + "ms, partial result");
+			} catch (ExecutionException e) {
+				LOG.warning("Index node " + nodes[i] + " failed, partial result: " + e.getCause());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				futures.get(i).cancel(true);
+			}
+			answers.add(answer);
+		}
+		return answers;
+	}
+
+	private interface RequestWriter {
+		void write(DataOutputStream out) throws IOException;
+	}
+
+	private interface ResponseReader<T> {
+		T read(DataInputStream in) throws IOException;
+	}
+
+	/**
+	 * An index node with a pool of open connections.
+	 */
+	private class Node {
+		final String host;
+		final int port;
+		final ConcurrentLinkedDeque<Connection> idle = new ConcurrentLinkedDeque<>();
+
+		Node(String host, int port) {
+			this.host = host;
+			this.port = port;
+		}
+
+		/**
+		 * Sends a request and reads the response on a pooled connection. A pooled connection might have been
+		 * closed by the node in the mean time: when it fails before any byte of the response is read, the request
+		 * is retried once on a new connection. A timeout or a failure while reading the response is not retried.
+		 * @return The response, read anew for each attempt.
+		 */
+		<T> T request(RequestWriter writer, ResponseReader<T> reader) throws IOException {
+			return request(writer, reader, idle.pollFirst());
+		}
+
+		/**
+		 * @param connection A pooled connection, or null to open a new connection.
+		 */
+		private <T> T request(RequestWriter writer, ResponseReader<T> reader, Connection connection) throws IOException {
+			boolean pooled = connection != null;
+			if(!pooled)
+				connection = connect();
+			boolean responseStarted = false;
+			T response;
+			try {
+				writer.write(connection.out);
+				connection.out.flush();
+				//wait for the first byte of the response, a closed connection ends here
+				connection.in.mark(1);
+				if(connection.in.read() < 0)
+					throw new EOFException("Connection closed by index node " + this);
+				connection.in.reset();
+				responseStarted = true;
+				response = reader.read(connection.in);
+			} catch (IOException e) {
+				connection.close();
+				if(!pooled || responseStarted || e instanceof SocketTimeoutException)
+					throw e;
+				return request(writer, reader, null);
+			}
+			release(connection);
+			return response;
+		}
+
+		Connection connect() throws IOException {
+			Socket socket = new Socket();
+			socket.setTcpNoDelay(true);
+			socket.setSoTimeout(timeout);
+			socket.connect(new InetSocketAddress(host, port), timeout);
+			return new Connection(socket);
+		}
+
+		void release(Connection connection) {
+			//a request which was abandoned after the timeout does not return its connection
+			if(Thread.currentThread().isInterrupted())
+				connection.close();
+			else
+				idle.addFirst(connection);
+		}
+
+		void close() {
+			Connection connection;
+			while((connection = idle.pollFirst()) != null)
+				connection.close();
+		}
+
+		@Override
+		public String toString() {
+			return host + ":" + port;
+		}
+	}
+
+	private static class Connection {
+		final Socket socket;
+		final DataInputStream in;
+		final DataOutputStream out;
+
+		Connection(Socket socket) throws IOException {
+			this.socket = socket;
+			in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+		}
+
+		void close() {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				//already closed
+			}
+		}
+	}
+}
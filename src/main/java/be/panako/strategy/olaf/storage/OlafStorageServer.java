@@ -0,0 +1,214 @@
+/***************************************************************************
+*                                                                          *
+* Panako - acoustic fingerprinting                                         *
+* Copyright (C) 2014 - 2022 - Joren Six / IPEM                             *
+*                                                                          *
+* This program is free software: you can redistribute it and/or modify     *
+* it under the terms of the GNU Affero General Public License as           *
+* published by the Free Software Foundation, either version 3 of the       *
+* License, or (at your option) any later version.                          *
+*                                                                          *
+* This program is distributed in the hope that it will be useful,          *
+* but WITHOUT ANY WARRANTY; without even the implied warranty of           *
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the            *
+* GNU Affero General Public License for more details.                      *
+*                                                                          *
+* You should have received a copy of the GNU Affero General Public License *
+* along with this program.  If not, see <http://www.gnu.org/licenses/>     *
+*                                                                          *
+****************************************************************************
+*    ______   ________   ___   __    ________   ___   ___   ______         *
+*   /_____/\ /_______/\ /__/\ /__/\ /_______/\ /___/\/__/\ /_____/\        *
+*   \:::_ \ \\::: _  \ \\::\_\\  \ \\::: _  \ \\::.\ \\ \ \\:::_ \ \       *
+*    \:(_) \ \\::(_)  \ \\:. `-\  \ \\::(_)  \ \\:: \/_) \ \\:\ \ \ \      *
+*     \: ___\/ \:: __  \ \\:. _    \ \\:: __  \ \\:. __  ( ( \:\ \ \ \     *
+*      \ \ \    \:.\ \  \ \\. \`-\  \ \\:.\ \  \ \\: \ )  \ \ \:\_\ \ \    *
+*       \_\/     \__\/\__\/ \__\/ \__\/ \__\/\__\/ \__\/\__\/  \_____\/    *
+*                                                                          *
+****************************************************************************
+*                                                                          *
+*                              Panako                                      *
+*                       Acoustic Fingerprinting                            *
+*                                                                          *
+****************************************************************************/
+
+package be.panako.strategy.olaf.storage;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Logger;
+
+/**
+ * Serves queries and meta-data of a storage to {@link OlafStorageRemote} clients over TCP. Each connection
+ * is handled by its own thread and handles one request at a time. All numbers are big endian.
+ *
+ * A query request is the {@link #QUERY} byte, the range, the number of resources to avoid and their identifiers,
+ * followed by the number of query hashes and the hashes. The response is the number of hits followed by the
+ * query hash, matched hash, time and resource identifier of each hit.
+ *
+ * A meta-data request is the {@link #METADATA} byte followed by the resource identifier. The response is a
+ * byte which is one if the resource is found, followed by the duration, number of fingerprints and path.
+ */
+public class OlafStorageServer {
+	private final static Logger LOG = Logger.getLogger(OlafStorageServer.class.getName());
+
+	/**
+	 * Query request type.
+	 */
+	static final byte QUERY = 1;
+
+	/**
+	 * Meta-data request type.
+	 */
+	static final byte METADATA = 2;
+
+	private final OlafStorage storage;
+	private final ServerSocket serverSocket;
+	private final ExecutorService connections;
+	private final Set<Socket> openSockets;
+	private Thread acceptThread;
+
+	/**
+	 * Create a server for a storage, listening on a port. Call {@link #start()} to accept connections.
+	 * @param storage The storage to serve.
+	 * @param port The port to listen on, zero for any free port.
+	 * @throws IOException If the port can not be opened.
+	 */
+	public OlafStorageServer(OlafStorage storage, int port) throws IOException {
+		this.storage = storage;
+		serverSocket = new ServerSocket(port);
+		openSockets = ConcurrentHashMap.newKeySet();
+		connections = Executors.newCachedThreadPool(runnable -> {
+			Thread thread = new Thread(runnable, "olaf-storage-connection");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	/**
+	 * @return The port the server listens on.
+	 */
+	public int port() {
+		return serverSocket.getLocalPort();
+	}
+
+	/**
+	 * Starts accepting connections on a background thread.
+	 */
+	public synchronized void start() {
+		if(acceptThread != null)
+			return;
+		acceptThread = new Thread(this::accept, "olaf-storage-server");
+		acceptThread.setDaemon(true);
+		acceptThread.start();
+	}
+
+	/**
+	 * Waits until the server is closed.
+	 * @throws InterruptedException If interrupted while waiting.
+	 */
+	public void join() throws InterruptedException {
+		acceptThread.join();
+	}
+
+	/**
+	 * Stops accepting connections and closes the open connections.
+	 */
+	public void close() {
+		try {
+			serverSocket.close();
+		} catch (IOException e) {
+			LOG.warning("Could not close server socket: " + e.getMessage());
+		}
+		for(Socket socket : openSockets) {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				//already closed
+			}
+		}
+		connections.shutdownNow();
+	}
+
+	private void accept() {
+		while(!serverSocket.isClosed()) {
+			try {
+				Socket socket = serverSocket.accept();
+				socket.setTcpNoDelay(true);
+				openSockets.add(socket);
+				connections.execute(() -> serve(socket));
+			} catch (SocketException e) {
+				//closed
+			} catch (IOException e) {
+				LOG.warning("Could not accept connection: " + e.getMessage());
+			}
+		}
+	}
+
+	private void serve(Socket socket) {
+		final OlafQueryBatch batch = new OlafQueryBatch();
+		final OlafHitAccumulator accumulator = new OlafHitAccumulator();
+		final Set<Integer> avoid = new HashSet<>();
+		try(Socket s = socket;
+			DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()))) {
+			while(!Thread.currentThread().isInterrupted()) {
+				int type = in.read();
+				if(type < 0)
+					break; //closed by the client
+				if(type == QUERY) {
+					int range = in.readInt();
+					avoid.clear();
+					int numberOfAvoided = in.readInt();
+					for(int i = 0 ; i < numberOfAvoided ; i++)
+						avoid.add(in.readInt());
+					batch.clear();
+					int numberOfHashes = in.readInt();
+					for(int i = 0 ; i < numberOfHashes ; i++)
+						batch.add(in.readLong());
+
+					accumulator.clear();
+					storage.query(batch, accumulator, range, avoid);
+
+					out.writeInt(accumulator.size());
+					for(int hit = 0 ; hit < accumulator.size() ; hit++) {
+						out.writeLong(accumulator.hitOriginalHash(hit));
+						out.writeLong(accumulator.hitMatchedHash(hit));
+						out.writeInt(accumulator.hitTime(hit));
+						out.writeInt(accumulator.hitResourceID(hit));
+					}
+				} else if(type == METADATA) {
+					OlafResourceMetadata metadata = storage.getMetadata(in.readLong());
+					out.writeBoolean(metadata != null);
+					if(metadata != null) {
+						out.writeFloat((float) metadata.duration);
+						out.writeInt(metadata.numFingerprints);
+						out.writeUTF(metadata.path);
+					}
+				} else {
+					LOG.warning("Unknown request type " + type + " from " + socket.getRemoteSocketAddress());
+					break;
+				}
+				out.flush();
+			}
+		} catch (EOFException | SocketException e) {
+			//closed by the client
+		} catch (IOException | RuntimeException e) {
+			LOG.warning("Closed connection with " + socket.getRemoteSocketAddress() + ": " + e.getMessage());
+		} finally {
+			openSockets.remove(socket);
+		}
+	}
+}
@@ -41,10 +41,11 @@ import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.function.Consumer;
 
 import be.panako.util.Config;
 import be.panako.util.Key;
-import be.panako.util.LemireMinMaxFilter;
+import be.panako.util.VariableWindowMaxFilter;
 import be.tarsos.dsp.AudioEvent;
 import be.tarsos.dsp.AudioProcessor;
 import be.ugent.jgaborator.JGaborator;
@@ -77,9 +78,19 @@ public class PanakoEventPointProcessor implements AudioProcessor {
 	private final List<PanakoEventPoint> eventPoints = new ArrayList<>();
 	private final List<PanakoFingerprint> fingerprints = new ArrayList<>();
 
+	/**
+	 * Packs event points into fingerprints as soon as event points are found.
+	 */
+	private final PanakoFingerprintPacker packer;
+
+	/**
+	 * Only keep all event points and fingerprints when no fingerprint consumer is given.
+	 */
+	private final boolean keepEventPoints;
+
 	private int analysisFrameIndex = 0;
 	
-	private final LemireMinMaxFilter maxFilterVertical;
+	private final VariableWindowMaxFilter maxFilterVertical;
 
 	private final int maxFilterWindowSizeFrequency = Config.getInt(Key.PANAKO_FREQ_MAX_FILTER_SIZE);
 	private final int maxFilterWindowSizeTime = Config.getInt(Key.PANAKO_TIME_MAX_FILTER_SIZE);
@@ -89,10 +100,24 @@ public class PanakoEventPointProcessor implements AudioProcessor {
 	//private final int maxFingerprintsPerEventPoint = 10;
 
 	/**
-	 * Create a new event point extractor.
+	 * Create a new event point extractor. All event points and
+	 * fingerprints are kept and can be requested after processing.
 	 * @param fftSize The size of the fft to use
 	 */
 	public PanakoEventPointProcessor(final int fftSize){
+		this(fftSize,null);
+	}
+
+	/**
+	 * Create a new event point extractor which hands fingerprints to a consumer as soon as they are final.
+	 * Event points and fingerprints are not kept.
+	 * @param fftSize The size of the fft to use
+	 * @param fingerprintConsumer The consumer of the fingerprints, if null fingerprints are kept in a list.
+	 */
+	public PanakoEventPointProcessor(final int fftSize, Consumer<PanakoFingerprint> fingerprintConsumer){
+		keepEventPoints = fingerprintConsumer == null;
+		packer = new PanakoFingerprintPacker(keepEventPoints ? fingerprints::add : fingerprintConsumer);
+		
 		
 		int stepSize = Config.getInt(Key.PANAKO_AUDIO_BLOCK_SIZE);
 		int sampleRate = Config.getInt(Key.PANAKO_SAMPLE_RATE);
@@ -111,7 +136,7 @@ public class PanakoEventPointProcessor implements AudioProcessor {
 		previousMaxMagnitudes = new HashMap<>();
 		previousMagnitudes = new HashMap<>();
 
-		maxFilterVertical = new LemireMinMaxFilter(maxFilterWindowSizeFrequency, fftSize/2,true);
+		maxFilterVertical = VariableWindowMaxFilter.centered(maxFilterWindowSizeFrequency, fftSize/2);
 		
 		maxHorizontal = new float[fftSize/2];
 	}
@@ -192,7 +217,10 @@ public class PanakoEventPointProcessor implements AudioProcessor {
 									+ frameMagnitudes[f+1] + prevFrameMagnitudes[f+1] + nextFrameMagnitudes[f+1]
 									+ frameMagnitudes[f-1] + prevFrameMagnitudes[f-1] + nextFrameMagnitudes[f-1];
 							
-							eventPoints.add(new PanakoEventPoint(t, f,totalMagnitude));
+							PanakoEventPoint eventPoint = new PanakoEventPoint(t, f,totalMagnitude);
+							if(keepEventPoints)
+								eventPoints.add(eventPoint);
+							packer.add(eventPoint);
 						}
 					}
 				}
@@ -212,11 +240,11 @@ public class PanakoEventPointProcessor implements AudioProcessor {
 			analysisFrameIndex++;
 		}
 		
-		packEventPointsIntoFingerprints(eventPoints,fingerprints);
+		packer.flush();
 	}
 
 	/**
-	 * Get the extracted fingerprints.
+	 * Get the extracted fingerprints. The list is empty if a fingerprint consumer is used.
 	 * @return The extracted fingerprints
 	 */
 	public List<PanakoFingerprint> getFingerprints(){
@@ -224,7 +252,7 @@ public class PanakoEventPointProcessor implements AudioProcessor {
 	}
 
 	/**
-	 * Get the list of extracted event points
+	 * Get the list of extracted event points. The list is empty if a fingerprint consumer is used.
 	 * @return the list of event points.
 	 */
 	public List<PanakoEventPoint> getEventPoints() {
@@ -233,53 +261,15 @@ public class PanakoEventPointProcessor implements AudioProcessor {
 
 	/**
 	 * Packs event points into fingerprints
-	 * @param eventPoints The list of event points to process.
+	 * @param eventPoints The list of event points to process, in time order.
 	 * @param fingerprints The list of fingerprints to add new fingerprints to.
 	 */
 	public static void packEventPointsIntoFingerprints(List<PanakoEventPoint> eventPoints,List<PanakoFingerprint> fingerprints){
-		
-		int minFreqDistance = Config.getInt(Key.PANAKO_FP_MIN_FREQ_DIST);
-		int maxFreqDistance = Config.getInt(Key.PANAKO_FP_MAX_FREQ_DIST);
-		
-		int minTimeDistance = Config.getInt(Key.PANAKO_FP_MIN_TIME_DIST);
-		int maxTimeDistance = Config.getInt(Key.PANAKO_FP_MAX_TIME_DIST);
-		
-		for(int i = 0; i < eventPoints.size();i++){
-			int t1 = eventPoints.get(i).t;
-			int f1 = eventPoints.get(i).f;
-				
-			for(int j = i + 1; j < eventPoints.size() ;j++){
-				int t2 = eventPoints.get(j).t;
-				int f2 = eventPoints.get(j).f;
-				
-				int fDiff = Math.abs(f1 - f2);
-				int tDiff = t2-t1;
-				
-				if(tDiff > maxTimeDistance) break;
-				if(tDiff < minTimeDistance) continue;
-				
-				if(fDiff < minFreqDistance) continue;
-				if(fDiff > maxFreqDistance ) continue;
-				
-				for(int k = j + 1 ; k <eventPoints.size(); k++) {
-					int t3 = eventPoints.get(k).t;
-					int f3 = eventPoints.get(k).f;
-					
-					fDiff = Math.abs(f2 - f3);
-					tDiff = t3-t2;
-					
-					if(tDiff > maxTimeDistance) break;
-					if(tDiff < minTimeDistance) continue;
-					
-					if(fDiff < minFreqDistance) continue;
-					if(fDiff > maxFreqDistance ) continue;
-					
-					PanakoFingerprint fingerprint;
-					fingerprint = new PanakoFingerprint(eventPoints.get(i),eventPoints.get(j),eventPoints.get(k));
-					fingerprints.add(fingerprint);
-				}
-			}
+		PanakoFingerprintPacker packer = new PanakoFingerprintPacker(fingerprints::add);
+		for(PanakoEventPoint eventPoint : eventPoints) {
+			packer.add(eventPoint);
 		}
+		packer.flush();
 	}
 
 	/**
@@ -288,6 +278,7 @@ public class PanakoEventPointProcessor implements AudioProcessor {
 	public void reset() {
 		eventPoints.clear();
 		fingerprints.clear();
+		packer.reset();
 		analysisFrameIndex=0;
 		magnitudesIndex=0;
 		previousMagnitudes.clear();
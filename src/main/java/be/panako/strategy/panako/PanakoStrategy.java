@@ -40,6 +40,7 @@ import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
@@ -47,8 +48,13 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.function.Consumer;
 import java.util.logging.Logger;
 
+import javax.sound.sampled.UnsupportedAudioFileException;
+
+import be.panako.strategy.ExtractedResource;
+import be.panako.strategy.ParallelMonitor;
 import be.panako.strategy.QueryResult;
 import be.panako.strategy.QueryResultHandler;
 import be.panako.strategy.Strategy;
@@ -63,6 +69,11 @@ import be.tarsos.dsp.util.PitchConverter;
  */
 public class PanakoStrategy extends Strategy {
 	private static final int MAX_TIME = 5_000_000;
+
+	/**
+	 * While storing, the queued fingerprints are written to the storage each time this many prints are extracted.
+	 */
+	private static final int STORE_QUEUE_FLUSH_SIZE = 100_000;
 	
 	private final static Logger LOG = Logger.getLogger(PanakoStrategy.class.getName());
 
@@ -111,27 +122,37 @@ public class PanakoStrategy extends Strategy {
 	@Override
 	public double store(String resource, String description) {
 		PanakoStorage db = getStorage();
-		List<PanakoFingerprint> prints = toFingerprints(resource);
 		
-		int resourceID = FileUtils.getIdentifier(resource);
-		//store
-		for(PanakoFingerprint print : prints) {
-			long hash = print.hash();
-			db.addToStoreQueue(hash, resourceID, print.t1,print.f1);
-		}
-		db.processStoreQueue();
+		final int resourceID = FileUtils.getIdentifier(resource);
+		final int[] printCount = {0};
+		final int[] lastPrintT3 = {0};
+		final PanakoStoreBatch batch = new PanakoStoreBatch();
+		
+		//store the fingerprints while they are being extracted
+		extractFingerprints(resource, 0, MAX_TIME, print -> {
+			batch.add(print.hash(), resourceID, print.t1,print.f1);
+			lastPrintT3[0] = print.t3;
+			printCount[0]++;
+			if(printCount[0] % STORE_QUEUE_FLUSH_SIZE == 0) {
+				db.store(batch);
+				batch.clear();
+			}
+		});
+		
+		int numberOfPrints = printCount[0];
 
 		//store meta-data as well
 		float duration = 0;
-		if(prints.size() != 0) {
-			duration = blocksToSeconds(prints.get(prints.size()-1).t3);
-			LOG.info(String.format("Stored %d fingerprints for '%s', id: %d", prints.size() , resource ,resourceID));
+		if(numberOfPrints != 0) {
+			duration = blocksToSeconds(lastPrintT3[0]);
+			LOG.info(String.format("Stored %d fingerprints for '%s', id: %d", numberOfPrints , resource ,resourceID));
 		}else {
 			LOG.warning("Warning: no prints extracted for " + resource);
 		}
-		int numberOfPrints = prints.size();
 		
-		db.storeMetadata((long) resourceID,resource,duration,numberOfPrints);
+		batch.addMetadata((long) resourceID,resource,duration,numberOfPrints);
+		//write the remaining fingerprints together with the meta-data
+		db.store(batch);
 		
 		//storage is done: 
 		//try to clear memory
@@ -140,25 +161,124 @@ public class PanakoStrategy extends Strategy {
 		return duration;
 	}
 
+	@Override
+	public float[] decode(String resource, int maxNumberOfSamples) throws IOException {
+		// cached fingerprints and the GPU extractor do not need decoded audio
+		if(Config.getBoolean(Key.PANAKO_USE_CACHED_PRINTS) && FileUtils.exists(cachedPrintsPath(resource)))
+			return null;
+		if(Config.getBoolean(Key.PANAKO_USE_GPU_EP_EXTRACTOR))
+			return null;
+		return AudioFileUtils.decode(resource, Config.getInt(Key.PANAKO_SAMPLE_RATE), maxNumberOfSamples);
+	}
+
+	@Override
+	public ExtractedResource extract(String resource, String description, float[] samples) {
+		PanakoExtractedResource extracted = new PanakoExtractedResource(resource);
+		if(samples == null)
+			extractFingerprints(resource, 0, MAX_TIME, extracted);
+		else
+			extractFingerprints(samples, extracted);
+		return extracted;
+	}
+
+	@Override
+	public void store(List<? extends ExtractedResource> resources) {
+		PanakoStoreBatch batch = new PanakoStoreBatch();
+		for(ExtractedResource resource : resources)
+			((PanakoExtractedResource) resource).addTo(batch);
+		getStorage().store(batch);
+	}
+
+	@Override
+	public double store(String resource, String description, float[] samples) {
+		PanakoExtractedResource extracted = new PanakoExtractedResource(resource);
+		extractFingerprints(samples, extracted);
+		store(Collections.singletonList(extracted));
+		LOG.info(String.format("Stored %d fingerprints for '%s', id: %d", extracted.numberOfPrints(), resource, extracted.resourceID));
+		return extracted.duration();
+	}
+
+	/**
+	 * Keeps the fingerprints of a resource in compact arrays until they are queued for storage.
+	 */
+	private class PanakoExtractedResource implements ExtractedResource, Consumer<PanakoFingerprint> {
+		private final String resource;
+		private final int resourceID;
+		private long[] hashes = new long[1024];
+		private int[] t1s = new int[1024];
+		private int[] f1s = new int[1024];
+		private int numberOfPrints = 0;
+		private int lastPrintT3 = 0;
+
+		PanakoExtractedResource(String resource){
+			this.resource = resource;
+			this.resourceID = FileUtils.getIdentifier(resource);
+		}
+
+		@Override
+		public void accept(PanakoFingerprint print) {
+			if(numberOfPrints == hashes.length) {
+				hashes = Arrays.copyOf(hashes, hashes.length * 2);
+				t1s = Arrays.copyOf(t1s, t1s.length * 2);
+				f1s = Arrays.copyOf(f1s, f1s.length * 2);
+			}
+			hashes[numberOfPrints] = print.hash();
+			t1s[numberOfPrints] = print.t1;
+			f1s[numberOfPrints] = print.f1;
+			lastPrintT3 = print.t3;
+			numberOfPrints++;
+		}
+
+		@Override
+		public String resource() {
+			return resource;
+		}
+
+		@Override
+		public double duration() {
+			return numberOfPrints == 0 ? 0 : blocksToSeconds(lastPrintT3);
+		}
+
+		@Override
+		public int numberOfPrints() {
+			return numberOfPrints;
+		}
+
+		/**
+		 * Adds the fingerprints and the meta-data of the resource to a batch.
+		 * @param batch The batch to add to.
+		 */
+		void addTo(PanakoStoreBatch batch) {
+			for(int i = 0 ; i < numberOfPrints ; i++)
+				batch.add(hashes[i], resourceID, t1s[i], f1s[i]);
+			if(numberOfPrints == 0)
+				LOG.warning("Warning: no prints extracted for " + resource);
+			batch.addMetadata((long) resourceID, resource, (float) duration(), numberOfPrints);
+		}
+	}
+
 	@Override
 	public double delete(String resource) {
 
 		PanakoStorage db = getStorage();
 		
-		List<PanakoFingerprint> prints = toFingerprints(resource);
+		final int resourceID = FileUtils.getIdentifier(resource);
+		final int[] printCount = {0};
+		final int[] lastPrintT3 = {0};
+		final PanakoStoreBatch batch = new PanakoStoreBatch();
 		
-		int resourceID = FileUtils.getIdentifier(resource);
 		//delete
-		for(PanakoFingerprint print : prints) {
-			long hash = print.hash();
-			db.addToDeleteQueue(hash, resourceID, print.t1,print.f1);
-		}
-		db.processDeleteQueue();
+		extractFingerprints(resource, 0, MAX_TIME, print -> {
+			batch.add(print.hash(), resourceID, print.t1,print.f1);
+			lastPrintT3[0] = print.t3;
+			printCount[0]++;
+		});
+		db.delete(batch);
 		
 		//delete meta-data as well
 		float duration = 0;
-		if(prints.size() != 0) {
-			duration = blocksToSeconds(prints.get(prints.size()-1).t3);
+		if(printCount[0] != 0) {
+			duration = blocksToSeconds(lastPrintT3[0]);
 		}else {
 			LOG.warning("Warning: no prints extracted for " + resource);
 		}
@@ -177,14 +297,22 @@ public class PanakoStrategy extends Strategy {
 	}
 	
 	private List<PanakoFingerprint> toFingerprints(String resource,double startTimeOffset,double numberOfSeconds){
+		List<PanakoFingerprint> prints = new ArrayList<>();
+		extractFingerprints(resource,startTimeOffset,numberOfSeconds,prints::add);
+		return prints;
+	}
+
+	/**
+	 * Either read fingerprints from a cached file or extract fingerprints. Fingerprints are
+	 * handed to the consumer in time order, as soon as they are available.
+	 */
+	private void extractFingerprints(String resource,double startTimeOffset,double numberOfSeconds,Consumer<PanakoFingerprint> fingerprintConsumer){
 
 		if(Config.getBoolean(Key.PANAKO_USE_CACHED_PRINTS)) {
-			String folder = Config.get(Key.PANAKO_CACHE_FOLDER);
-			folder = FileUtils.expandHomeDir(folder);
-			String tdbPath =  FileUtils.combine(folder,resolve(resource) + ".tdb");
+			String tdbPath = cachedPrintsPath(resource);
 
 			if(FileUtils.exists(tdbPath)) {
-				List<PanakoFingerprint> prints = new ArrayList<>();
+				int numberOfPrints = 0;
 				List<long[]> printData = readFingerprintFile(tdbPath);
 				for(long[] data : printData) {
 					long fingerprintHash = data[0];
@@ -196,11 +324,13 @@ public class PanakoStrategy extends Strategy {
 					if(t1InSeconds > startTimeOffset + numberOfSeconds)
 						break;
 					//only add prints if they are after the start time offset
-					if(t1InSeconds >= startTimeOffset)
-						prints.add(new PanakoFingerprint(fingerprintHash,t1,f1));
+					if(t1InSeconds >= startTimeOffset) {
+						fingerprintConsumer.accept(new PanakoFingerprint(fingerprintHash,t1,f1));
+						numberOfPrints++;
+					}
 				}
-				LOG.info(String.format("Read %d cached fingerprints from file '%s' (start: %.3f sec, stop: %.3f sec) for '%s'", prints.size(),tdbPath,startTimeOffset,startTimeOffset+numberOfSeconds,resource));
-				return prints;
+				LOG.info(String.format("Read %d cached fingerprints from file '%s' (start: %.3f sec, stop: %.3f sec) for '%s'", numberOfPrints,tdbPath,startTimeOffset,startTimeOffset+numberOfSeconds,resource));
+				return;
 			}else{
 				LOG.info(String.format("Could not read cached fingerprints from file '%s' for '%s'",tdbPath,resource));
 			}
@@ -208,7 +338,6 @@ public class PanakoStrategy extends Strategy {
 
 		if(Config.getBoolean(Key.PANAKO_USE_GPU_EP_EXTRACTOR)){
 			List<PanakoFingerprint> prints = new PanakoGPUEventPointProcessor().extractFingerprints(resource);
-			List<PanakoFingerprint> filteredPrints = new ArrayList<>();
 			for(PanakoFingerprint print : prints) {
 				float t1InSeconds = blocksToSeconds(print.t1);
 				//skip all fingerprints after stop time
@@ -216,9 +345,8 @@ public class PanakoStrategy extends Strategy {
 					break;
 				//only add prints if they are after the start time offset
 				if(t1InSeconds >= startTimeOffset)
-					filteredPrints.add(print);
+					fingerprintConsumer.accept(print);
 			}
-			return filteredPrints;
 		}else{
 			int samplerate, size, overlap;
 			samplerate = Config.getInt(Key.PANAKO_SAMPLE_RATE);
@@ -227,18 +355,41 @@ public class PanakoStrategy extends Strategy {
 
 			AudioDispatcher d;
 
-			if(numberOfSeconds==MAX_TIME)
-				d = AudioDispatcherFactory.fromPipe(resource, samplerate, size, overlap,startTimeOffset);
-			else
-				d = AudioDispatcherFactory.fromPipe(resource, samplerate, size, overlap,startTimeOffset,numberOfSeconds);
+			//zero seconds decodes until the end
+			d = AudioFileUtils.dispatcher(resource, samplerate, size, overlap, startTimeOffset, numberOfSeconds == MAX_TIME ? 0 : numberOfSeconds);
 
-			PanakoEventPointProcessor eventPointProcessor = new PanakoEventPointProcessor(size);
+			PanakoEventPointProcessor eventPointProcessor = new PanakoEventPointProcessor(size,fingerprintConsumer);
 			d.addAudioProcessor(eventPointProcessor);
 			d.run();
+		}
+
+	}
+
+	/**
+	 * Extract fingerprints from decoded audio, see {@link #decode(String, int)}.
+	 */
+	private void extractFingerprints(float[] samples,Consumer<PanakoFingerprint> fingerprintConsumer){
+		int samplerate, size, overlap;
+		samplerate = Config.getInt(Key.PANAKO_SAMPLE_RATE);
+		size = Config.getInt(Key.PANAKO_AUDIO_BLOCK_SIZE);
+		overlap = Config.getInt(Key.PANAKO_AUDIO_BLOCK_OVERLAP);
 
-			return eventPointProcessor.getFingerprints();
+		AudioDispatcher d;
+		try {
+			d = AudioDispatcherFactory.fromFloatArray(samples, samplerate, size, overlap);
+		} catch (UnsupportedAudioFileException e) {
+			throw new RuntimeException(e);
 		}
 
+		PanakoEventPointProcessor eventPointProcessor = new PanakoEventPointProcessor(size,fingerprintConsumer);
+		d.addAudioProcessor(eventPointProcessor);
+		d.run();
+	}
+
+	private String cachedPrintsPath(String resource){
+		String folder = Config.get(Key.PANAKO_CACHE_FOLDER);
+		folder = FileUtils.expandHomeDir(folder);
+		return FileUtils.combine(folder,resolve(resource) + ".tdb");
 	}
 
 	private float blocksToSeconds(int t) {
@@ -297,15 +448,31 @@ public class PanakoStrategy extends Strategy {
 			queryPath = query;
 			prints = toFingerprints(query);
 		}
-		
+		query(queryPath, prints, maxNumberOfResults, avoid, handler);
+	}
+
+	@Override
+	public void query(String query, float[] samples, int maxNumberOfResults, Set<Integer> avoid, QueryResultHandler handler) {
+		List<PanakoFingerprint> prints = new ArrayList<>();
+		extractFingerprints(samples, prints::add);
+		query(query, prints, maxNumberOfResults, avoid, handler);
+	}
+
+	/**
+	 * Matches the fingerprints of a query with the index.
+	 * @param queryPath The identifier of the query, used in the results.
+	 * @param prints The fingerprints of the query.
+	 */
+	private void query(String queryPath, List<PanakoFingerprint> prints, int maxNumberOfResults, Set<Integer> avoid, QueryResultHandler handler) {
 		PanakoStorage db = getStorage();
 		
 		Map<Long,PanakoFingerprint> printMap = new HashMap<>();
+		PanakoQueryBatch batch = new PanakoQueryBatch();
 		
 		//query
 		for(PanakoFingerprint print : prints) {
 			long hash = print.hash();
-			db.addToQueryQueue(hash);
+			batch.add(hash);
 			printMap.put(hash, print);
 		}
 		
@@ -314,7 +481,7 @@ public class PanakoStrategy extends Strategy {
 		
 		StopWatch w = new StopWatch();
 		int queryRange = Config.getInt(Key.PANAKO_QUERY_RANGE);
-		db.processQueryQueue(matchAccumulator,queryRange , avoid);
+		db.query(batch,matchAccumulator,queryRange , avoid);
 		
 
 		 HashMap<Integer,List<PanakoMatch>> hitsPerIdentifer = new HashMap<>();
@@ -503,10 +670,39 @@ public class PanakoStrategy extends Strategy {
 		float totalDuration = AudioFileUtils.audioFileDurationInSeconds(new File(query));
 		
 		//Steps: 0-25s ; 20-45s ; 40-65s ...
+		//each window is decoded from its own start, the windows can be processed concurrently
+		List<Consumer<QueryResultHandler>> windows = new ArrayList<>();
 		int actualStep = stepSizeInSeconds - overlapInSeconds;//20s
 		for(int t = 0 ; t + stepSizeInSeconds < totalDuration; t += actualStep ) {			
-			query(query,maxNumberOfReqults,avoid,handler,t,stepSizeInSeconds);
+			final int startTimeOffset = t;
+			windows.add(windowHandler -> query(query,maxNumberOfReqults,avoid,windowHandler,startTimeOffset,stepSizeInSeconds));
+		}
+		ParallelMonitor.run(windows, ParallelMonitor.threads(), handler);
+	}
+
+	@Override
+	public void monitor(String query, float[] samples, int maxNumberOfResults, Set<Integer> avoid, QueryResultHandler handler) {
+		int overlapInSeconds = Config.getInt(Key.MONITOR_OVERLAP);
+		int stepSizeInSeconds = Config.getInt(Key.MONITOR_STEP_SIZE);
+		int sampleRate = Config.getInt(Key.PANAKO_SAMPLE_RATE);
+
+		float totalDuration = samples.length / (float) sampleRate;
+
+		//the same windows as for an audio file
+		List<Consumer<QueryResultHandler>> windows = new ArrayList<>();
+		int actualStep = stepSizeInSeconds - overlapInSeconds;
+		for(int t = 0 ; t + stepSizeInSeconds < totalDuration; t += actualStep ) {
+			final double startTimeOffset = t;
+			final int start = t * sampleRate;
+			windows.add(windowHandler -> {
+				float[] window = Arrays.copyOfRange(samples, start, start + stepSizeInSeconds * sampleRate);
+				String queryPath = query + "-" + startTimeOffset + "_" + (startTimeOffset + stepSizeInSeconds);
+				List<PanakoFingerprint> prints = new ArrayList<>();
+				extractFingerprints(window, prints::add);
+				query(queryPath, prints, maxNumberOfResults, avoid, windowHandler);
+			});
 		}
+		ParallelMonitor.run(windows, ParallelMonitor.threads(), handler);
 	}
 
 	@Override
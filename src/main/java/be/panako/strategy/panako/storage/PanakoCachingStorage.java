@@ -1,6 +1,5 @@
 package be.panako.strategy.panako.storage;
 
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -38,15 +37,9 @@ public class PanakoCachingStorage implements PanakoStorage{
     }
 
     @Override
-    public void addToStoreQueue(long fingerprintHash, int resourceIdentifier, int t1, int f1) {
-        cachingIndex.addToStoreQueue(fingerprintHash,resourceIdentifier,t1,f1);
-        invertedIndex.addToStoreQueue(fingerprintHash,resourceIdentifier,t1,f1);
-    }
-
-    @Override
-    public void processStoreQueue() {
-        cachingIndex.processStoreQueue();
-        invertedIndex.processStoreQueue();
+    public void store(PanakoStoreBatch batch) {
+        cachingIndex.store(batch);
+        invertedIndex.store(batch);
     }
 
     @Override
@@ -61,37 +54,20 @@ public class PanakoCachingStorage implements PanakoStorage{
 
     @Override
     public void deleteMetadata(long resourceID) {
-        cachingIndex.processStoreQueue();
-        invertedIndex.processStoreQueue();
-    }
-
-    @Override
-    public void addToQueryQueue(long queryHash) {
-        //it does not make sense to use the non optimized caching index for query tasks
-        invertedIndex.addToQueryQueue(queryHash);
+        cachingIndex.deleteMetadata(resourceID);
+        invertedIndex.deleteMetadata(resourceID);
     }
 
     @Override
-    public void processQueryQueue(Map<Long, List<PanakoHit>> matchAccumulator, int range) {
+    public void query(PanakoQueryBatch batch, Map<Long, List<PanakoHit>> matchAccumulator, int range, Set<Integer> resourcesToAvoid) {
         //it does not make sense to use the non optimized caching index for query tasks
-        processQueryQueue(matchAccumulator, range, new HashSet<Integer>());
-    }
-
-    @Override
-    public void processQueryQueue(Map<Long, List<PanakoHit>> matchAccumulator, int range, Set<Integer> resourcesToAvoid) {
-        invertedIndex.processQueryQueue(matchAccumulator,range,resourcesToAvoid);
-    }
-
-    @Override
-    public void addToDeleteQueue(long fingerprintHash, int resourceIdentifier, int t1, int f1) {
-        cachingIndex.addToDeleteQueue(fingerprintHash,resourceIdentifier,t1,f1);
-        invertedIndex.addToDeleteQueue(fingerprintHash,resourceIdentifier,t1,f1);
+        invertedIndex.query(batch,matchAccumulator,range,resourcesToAvoid);
     }
 
     @Override
-    public void processDeleteQueue() {
-        cachingIndex.processDeleteQueue();
-        invertedIndex.processDeleteQueue();
+    public void delete(PanakoStoreBatch batch) {
+        cachingIndex.delete(batch);
+        invertedIndex.delete(batch);
     }
 
     @Override
@@ -0,0 +1,96 @@
+/***************************************************************************
+*                                                                          *
+* Panako - acoustic fingerprinting                                         *
+* Copyright (C) 2014 - 2022 - Joren Six / IPEM                             *
+*                                                                          *
+* This program is free software: you can redistribute it and/or modify     *
+* it under the terms of the GNU Affero General Public License as           *
+* published by the Free Software Foundation, either version 3 of the       *
+* License, or (at your option) any later version.                          *
+*                                                                          *
+* This program is distributed in the hope that it will be useful,          *
+* but WITHOUT ANY WARRANTY; without even the implied warranty of           *
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the            *
+* GNU Affero General Public License for more details.                      *
+*                                                                          *
+* You should have received a copy of the GNU Affero General Public License *
+* along with this program.  If not, see <http://www.gnu.org/licenses/>     *
+*                                                                          *
+****************************************************************************
+*    ______   ________   ___   __    ________   ___   ___   ______         *
+*   /_____/\ /_______/\ /__/\ /__/\ /_______/\ /___/\/__/\ /_____/\        *
+*   \:::_ \ \\::: _  \ \\::\_\\  \ \\::: _  \ \\::.\ \\ \ \\:::_ \ \       *
+*    \:(_) \ \\::(_)  \ \\:. `-\  \ \\::(_)  \ \\:: \/_) \ \\:\ \ \ \      *
+*     \: ___\/ \:: __  \ \\:. _    \ \\:: __  \ \\:. __  ( ( \:\ \ \ \     *
+*      \ \ \    \:.\ \  \ \\. \`-\  \ \\:.\ \  \ \\: \ )  \ \ \:\_\ \ \    *
+*       \_\/     \__\/\__\/ \__\/ \__\/ \__\/\__\/ \__\/\__\/  \_____\/    *
+*                                                                          *
+****************************************************************************
+*                                                                          *
+*                              Panako                                      *
+*                       Acoustic Fingerprinting                            *
+*                                                                          *
+****************************************************************************/
+
+package be.panako.strategy.panako.storage;
+
+import java.util.Arrays;
+
+/**
+ * A batch of fingerprint hashes to look up in an {@link PanakoStorage}.
+ *
+ * The batch is owned by the caller: it is filled and passed to the storage by a single thread and can be
+ * reused after {@link #clear()}. The storage does not modify the batch.
+ */
+public class PanakoQueryBatch {
+
+	private long[] hashes;
+	private int size;
+
+	/**
+	 * Create a new, empty batch.
+	 */
+	public PanakoQueryBatch() {
+		hashes = new long[1024];
+		size = 0;
+	}
+
+	/**
+	 * Add a fingerprint hash to the batch.
+	 * @param queryHash The hash to look up.
+	 */
+	public void add(long queryHash) {
+		if(size == hashes.length)
+			hashes = Arrays.copyOf(hashes, hashes.length * 2);
+		hashes[size++] = queryHash;
+	}
+
+	/**
+	 * @param index The index of the hash, in the order of addition.
+	 * @return The hash at the index.
+	 */
+	public long hash(int index) {
+		return hashes[index];
+	}
+
+	/**
+	 * @return The number of hashes in the batch.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * @return True if the batch holds no hashes.
+	 */
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * Removes all hashes from the batch so it can be reused.
+	 */
+	public void clear() {
+		size = 0;
+	}
+}
@@ -55,21 +55,12 @@ public interface PanakoStorage {
 	void storeMetadata(long resourceID, String resourcePath, float duration, int fingerprints);
 
 	/**
-	 * For efficiency reasons storing fingerprints is done in batches.
-	 * With this method a single fingerprint is added to the batch. To actually store
-	 * the fingerprints call processStoreQueue()
-	 * @param fingerprintHash The hash of the fingerprint
-	 * @param resourceIdentifier The internal identifier of the resource.
-	 * @param t1 The time index at which the fingerprint was extracted
-	 * @param f1 The frequency bin at which the fingerprint was extracted
+	 * For efficiency reasons storing fingerprints is done in batches. This method stores the fingerprints
+	 * in the batch, followed by the meta-data in the batch. If the storage supports transactions both are
+	 * stored in the same transaction. The batch is not cleared: clear it before reuse.
+	 * @param batch The fingerprints and meta-data to store.
 	 */
-	void addToStoreQueue(long fingerprintHash, int resourceIdentifier, int t1, int f1);
-
-	/**
-	 * For efficiency reasons storing fingerprints is done in batches. This method is called to process and
-	 * store the fingerprints in the queue.
-	 */
-	void processStoreQueue();
+	void store(PanakoStoreBatch batch);
 
 	/**
 	 * Return the meta-data for a resource with a certain internal resource identifier.
@@ -92,41 +83,21 @@ public interface PanakoStorage {
 
 
 	/**
-	 * Add a fingerprint hash to a queue to process in one go.
-	 * For efficiency reasons.
-	 * @param queryHash The fingerprint hash extracted from the query
-	 */
-	void addToQueryQueue(long queryHash);
-
-	/**
-	 * Query each fingerprint hash in the queue and add hits to the accumulator.
-	 * @param matchAccumulator The list to add matches to.
-	 * @param range The range determines how many hashes are allowed to differ
-	 */
-	void processQueryQueue(Map<Long,List<PanakoHit>> matchAccumulator,int range);
-
-	/**
-	 * Query each fingerprint hash in the queue and add hits to the accumulator.
+	 * Query each fingerprint hash in the batch and add hits to the accumulator.
+	 * @param batch The fingerprint hashes extracted from the query. The batch is not modified.
 	 * @param matchAccumulator The list to add matches to.
 	 * @param range The range determines how many hashes are allowed to differ
 	 * @param resourcesToAvoid The resource identifiers to avoid in the return set. This can be used for deduplication
 	 *                         purposes: the resource itself should be ignored then.
 	 */
-	void processQueryQueue(Map<Long,List<PanakoHit>> matchAccumulator,int range,Set<Integer> resourcesToAvoid);
-
-	/**
-	 * Removes a fingerprint from the database. Similar to the store operation this is done in batches.
-	 * @param fingerprintHash The hash to delete
-	 * @param resourceIdentifier The resource id to remove
-	 * @param t1 The associated time index
-	 * @param f1 The associated frequency bin.
-	 */
-	void addToDeleteQueue(long fingerprintHash, int resourceIdentifier, int t1,int f1);
+	void query(PanakoQueryBatch batch,Map<Long,List<PanakoHit>> matchAccumulator,int range,Set<Integer> resourcesToAvoid);
 
 	/**
-	 * Effectively delete all fingerprints in the queue.
+	 * Removes the fingerprints in the batch from the database. The meta-data in the batch is ignored,
+	 * see {@link #deleteMetadata(long)}.
+	 * @param batch The fingerprints to delete. The batch is not modified.
 	 */
-	void processDeleteQueue();
+	void delete(PanakoStoreBatch batch);
 
 	/**
 	 * Clear the whole database!
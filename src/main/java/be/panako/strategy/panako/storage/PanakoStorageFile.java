@@ -36,8 +36,6 @@
 package be.panako.strategy.panako.storage;
 
 import java.io.File;
-import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -80,7 +78,6 @@ public class PanakoStorageFile implements PanakoStorage {
 	}
 	
 	
-	final Map<Long,List<long[]>> storeQueue;
 	final File storeDir;
 
 	/**
@@ -97,8 +94,6 @@ public class PanakoStorageFile implements PanakoStorage {
 		}
 		
 		storeDir = new File(folder);
-		
-		storeQueue = new HashMap<Long,List<long[]>>();
 	}
 	
 	
@@ -140,14 +135,6 @@ public class PanakoStorageFile implements PanakoStorage {
 	}
 
 
-	public void addToStoreQueue(long fingerprintHash, int resourceIdentifier, int t1,int f1) {
-		long[] data = {fingerprintHash,resourceIdentifier,t1,f1};
-		long threadID = Thread.currentThread().getId();
-		if(!storeQueue.containsKey(threadID))
-			storeQueue.put(threadID, new ArrayList<long[]>());
-		storeQueue.get(threadID).add(data);
-	}
-
 	/**
 	 * Takes a list of fingerprint data items and turns it into a string
 	 * @param queue The queue with fingerprint data
@@ -167,29 +154,42 @@ public class PanakoStorageFile implements PanakoStorage {
 		return sb.toString();
 	}
 
-	
-	public void processStoreQueue() {
-		if(storeQueue.isEmpty()) return;
-		
-		long threadID = Thread.currentThread().getId();
-		
-		if(!storeQueue.containsKey(threadID)) return;
-		
-		List<long[]> queue = storeQueue.get(threadID);
-		
-		if (queue.isEmpty()) return;
-		
-		int resourceIdentifier = (int) queue.get(0)[1];
-		
-		// Clears the store queue
-		String fingerprintsAsString = storeQueueToString(queue);
-		String path = FileUtils.combine(storeDir.getAbsolutePath(),resourceIdentifier + ".tdb");
-		FileUtils.writeFile(fingerprintsAsString, path);
-
-		LOG.info(String.format("Stored %d fingerprints in file %s",queue.size(),path));
+	@Override
+	public void store(PanakoStoreBatch batch) {
+		writeFingerprints(batch);
+		// meta-data is written after the fingerprints of the resource
+		for(PanakoResourceMetadata metadata : batch.metadata()) {
+			storeMetadata(metadata.identifier, metadata.path, (float) metadata.duration, metadata.numFingerprints);
+			if(batch.resourceInProgress != null && batch.resourceInProgress == metadata.identifier)
+				batch.resourceInProgress = null;
+		}
+	}
 
-		// Clears the store queue
-		queue.clear();
+	private void writeFingerprints(PanakoStoreBatch batch) {
+		List<long[]> queue = batch.fingerprints();
+		
+		// The batch can hold the fingerprints of several resources,
+		// one after the other: each resource is written to its own file.
+		int from = 0;
+		while(from < queue.size()) {
+			int resourceIdentifier = (int) queue.get(from)[1];
+			int to = from + 1;
+			while(to < queue.size() && queue.get(to)[1] == resourceIdentifier)
+				to++;
+
+			String fingerprintsAsString = storeQueueToString(queue.subList(from, to));
+			String path = FileUtils.combine(storeDir.getAbsolutePath(),resourceIdentifier + ".tdb");
+			// the first part of a resource creates the file, following parts are appended
+			boolean append = batch.resourceInProgress != null && batch.resourceInProgress == resourceIdentifier;
+			batch.resourceInProgress = resourceIdentifier;
+			if(append)
+				FileUtils.appendFile(fingerprintsAsString, path);
+			else
+				FileUtils.writeFile(fingerprintsAsString, path);
+
+			LOG.info(String.format("Stored %d fingerprints in file %s",to - from,path));
+			from = to;
+		}
 	}
 
 	/**
@@ -204,27 +204,13 @@ public class PanakoStorageFile implements PanakoStorage {
 	}
 
 	@Override
-	public void addToQueryQueue(long queryHash) {
-
-	}
-	
-	@Override
-	public void processQueryQueue(Map<Long, List<PanakoHit>> matchAccumulator, int range) {
-	}
-
-	@Override
-	public void processQueryQueue(Map<Long, List<PanakoHit>> matchAccumulator, int range,
+	public void query(PanakoQueryBatch batch, Map<Long, List<PanakoHit>> matchAccumulator, int range,
 			Set<Integer> resourcesToAvoid) {
 
 	}
 
 	@Override
-	public void addToDeleteQueue(long fingerprintHash, int resourceIdentifier, int t1, int f1) {
-
-	}
-
-	@Override
-	public void processDeleteQueue() {
+	public void delete(PanakoStoreBatch batch) {
 
 	}
 
@@ -39,8 +39,8 @@ import java.io.File;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -57,6 +57,7 @@ import org.lmdbjava.Txn;
 import be.panako.cli.Application;
 import be.panako.util.Config;
 import be.panako.util.FileUtils;
+import be.panako.util.LMDBBatchWriter;
 import be.panako.util.Key;
 
 /**
@@ -95,9 +96,7 @@ public class PanakoStorageKV implements PanakoStorage{
 	final Dbi<ByteBuffer> resourceMap;
 	final Env<ByteBuffer> env;
 	
-	final Map<Long,List<long[]>> storeQueue;
-	final Map<Long,List<long[]>> deleteQueue;
-	final Map<Long,List<Long>> queryQueue;
+	final LMDBBatchWriter writer;
 
 	/**
 	 * Create a new storage instance
@@ -125,29 +124,28 @@ public class PanakoStorageKV implements PanakoStorage{
 		final String resourceName = "panako_resource_map";		
 		resourceMap = env.openDbi(resourceName,DbiFlags.MDB_CREATE, DbiFlags.MDB_INTEGERKEY);
 		
-		storeQueue = new HashMap<Long,List<long[]>>();
-		deleteQueue = new HashMap<Long,List<long[]>>();
-		queryQueue = new HashMap<Long,List<Long>>();
+		writer = new LMDBBatchWriter("panako-lmdb-writer", env, fingerprints, resourceMap, 3);
 	}
 
 	/**
 	 * Closes the database environment.
 	 */
 	public void close() {
+		writer.close();
 		env.close();
 	}
 	
 	public void storeMetadata(long resourceID,String resourcePath,float duration, int fingerprints) {
-		final ByteBuffer key = ByteBuffer.allocateDirect(8);
+		writer.write(Collections.emptyList(), Collections.singletonMap(resourceID, metadataValue(resourcePath, duration, fingerprints)));
+	}
+
+	private ByteBuffer metadataValue(String resourcePath,float duration, int fingerprints) {
 		byte[] resourcePathBytes = resourcePath.getBytes(java.nio.charset.StandardCharsets.UTF_8);
 		final ByteBuffer val = ByteBuffer.allocateDirect(resourcePathBytes.length + 16); 
-		key.putLong(resourceID).flip();
-		
 		val.putFloat(duration);
 		val.putInt(fingerprints);
-	    val.put(resourcePathBytes).flip();
-	    
-	    resourceMap.put(key, val);
+		val.put(resourcePathBytes).flip();
+		return val;
 	}
 	
 
@@ -179,75 +177,20 @@ public class PanakoStorageKV implements PanakoStorage{
 	}
 	
 
-	public void addToStoreQueue(long fingerprintHash, int resourceIdentifier, int t1,int f1) {
-		long[] data = {fingerprintHash,resourceIdentifier,t1,f1};
-		long threadID = Thread.currentThread().getId();
-		if(!storeQueue.containsKey(threadID))
-			storeQueue.put(threadID, new ArrayList<long[]>());
-		storeQueue.get(threadID).add(data);
-	}
-	
-
-	public void processStoreQueue() {
-		if (storeQueue.isEmpty())
-			return;
-		
-		long threadID = Thread.currentThread().getId();
-		if(!storeQueue.containsKey(threadID))
-			return;
-		
-		List<long[]> queue = storeQueue.get(threadID);
-		
-		if (queue.isEmpty())
-			return;
-		
-		try (Txn<ByteBuffer> txn = env.txnWrite()) {
-			
-			final ByteBuffer key = ByteBuffer.allocateDirect(8).order(java.nio.ByteOrder.LITTLE_ENDIAN);
-		    final ByteBuffer val = ByteBuffer.allocateDirect(3*4);
-		    
-		      // A cursor always belongs to a particular Dbi.
-		      final Cursor<ByteBuffer> c = fingerprints.openCursor(txn);
-		      
-		      for(long[] data : queue) {
-		    	  key.putLong(data[0]).flip();
-		    	  val.putInt((int) data[1]).putInt((int) data[2]).putInt((int) data[3]).flip();
-		    	  
-		    	  c.put(key, val);
-
-		    	  key.clear();
-		    	  val.clear();
-		      }  
-		            
-		      c.close();
-		      txn.commit();
-		      queue.clear();
-		    }catch (Exception e) {
-		    	e.printStackTrace();
-		    }
-	}
-
 	@Override
-	public void addToDeleteQueue(long fingerprintHash, int resourceIdentifier, int t1,int f1) {
-		long[] data = {fingerprintHash,resourceIdentifier,t1,f1};
-		long threadID = Thread.currentThread().getId();
-		if(!deleteQueue.containsKey(threadID))
-			deleteQueue.put(threadID, new ArrayList<long[]>());
-		deleteQueue.get(threadID).add(data);
+	public void store(PanakoStoreBatch batch) {
+		Map<Long,ByteBuffer> metadata = new HashMap<>();
+		for(PanakoResourceMetadata resourceMetadata : batch.metadata())
+			metadata.put(resourceMetadata.identifier, metadataValue(resourceMetadata.path, (float) resourceMetadata.duration, resourceMetadata.numFingerprints));
+		
+		// The writer thread groups the fingerprints of several batches in one transaction.
+		// Meta-data is committed in the same transaction as the fingerprints.
+		writer.write(batch.fingerprints(), metadata);
 	}
 
 	@Override
-	public void processDeleteQueue() {
-		if (storeQueue.isEmpty())
-			return;
-		
-		long threadID = Thread.currentThread().getId();
-		if(!storeQueue.containsKey(threadID))
-			return;
-		
-		List<long[]> queue = storeQueue.get(threadID);
-		
-		if (queue.isEmpty())
+	public void delete(PanakoStoreBatch batch) {
+		if (batch.size() == 0)
 			return;
 		
 		try (Txn<ByteBuffer> txn = env.txnWrite()) {
@@ -258,7 +201,7 @@ public class PanakoStorageKV implements PanakoStorage{
 		      // A cursor always belongs to a particular Dbi.
 		      final Cursor<ByteBuffer> c = fingerprints.openCursor(txn);
 		      
-		      for(long[] data : queue) {
+		      for(long[] data : batch.fingerprints()) {
 		    	  key.putLong(data[0]).flip();
 		    	  val.putInt((int) data[1]).putInt((int) data[2]).putInt((int) data[3]).flip();
 		    	  if(c.get(key,val,SeekOp.MDB_GET_BOTH)) {
@@ -270,38 +213,15 @@ public class PanakoStorageKV implements PanakoStorage{
 		      
 		      c.close();
 		      txn.commit();
-		      queue.clear();
 		    }catch (Exception e) {
 		    	e.printStackTrace();
 		    }
 	}
 
 	@Override
-	public void addToQueryQueue(long queryHash) {
-		long threadID = Thread.currentThread().getId();
-		if(!queryQueue.containsKey(threadID))
-			queryQueue.put(threadID, new ArrayList<Long>());
-		queryQueue.get(threadID).add(queryHash);
-	}
-
-	@Override
-	public void processQueryQueue(Map<Long,List<PanakoHit>> matchAccumulator,int range) {
-		processQueryQueue(matchAccumulator, range, new HashSet<Integer>());
-	}
-
-	@Override
-	public void processQueryQueue(Map<Long,List<PanakoHit>> matchAccumulator,int range,Set<Integer> resourcesToAvoid) {
-		
-		if (queryQueue.isEmpty())
-			return;
-		
-		long threadID = Thread.currentThread().getId();
-		if(!queryQueue.containsKey(threadID))
-			return;
-		
-		List<Long> queue = queryQueue.get(threadID);
+	public void query(PanakoQueryBatch batch,Map<Long,List<PanakoHit>> matchAccumulator,int range,Set<Integer> resourcesToAvoid) {
 		
-		if (queue.isEmpty())
+		if (batch.isEmpty())
 			return;
 		
 		try (Txn<ByteBuffer> txn = env.txnRead()) {
@@ -310,7 +230,8 @@ public class PanakoStorageKV implements PanakoStorage{
 		      
 		      final ByteBuffer keyBuffer = ByteBuffer.allocateDirect(8).order(java.nio.ByteOrder.LITTLE_ENDIAN);
 		      
-		      for(long originalKey : queue) {
+		      for(int i = 0 ; i < batch.size() ; i++) {
+		    	  long originalKey = batch.hash(i);
 		    	  
 		    	  long startKey = originalKey - range;
 		    	  long stopKey = originalKey + range;
@@ -373,7 +294,6 @@ public class PanakoStorageKV implements PanakoStorage{
 		      }
 		      c.close();
 		      txn.commit();
-		      queue.clear();
 		}
 		
 	}
@@ -488,6 +408,7 @@ public class PanakoStorageKV implements PanakoStorage{
 	}
 
 	public void clear() {
+		writer.close();
 		fingerprints.close();
 		resourceMap.close();
 		env.close();
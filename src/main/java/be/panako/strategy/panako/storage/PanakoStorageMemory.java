@@ -36,7 +36,6 @@ package be.panako.strategy.panako.storage;
 
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -76,8 +75,6 @@ public class PanakoStorageMemory implements PanakoStorage {
 	
 	private final TreeMap<Long, List<int[]>> fingerprints;
 	private final HashMap<Long, PanakoResourceMetadata> resourceMap;
-	
-	final Map<Long,List<Long>> queryQueue;
 
 	/**
 	 * Initializes a new memory storage instance.
@@ -85,11 +82,10 @@ public class PanakoStorageMemory implements PanakoStorage {
 	public PanakoStorageMemory() {
 		fingerprints = new TreeMap<>();
 		resourceMap = new HashMap<>();
-		queryQueue = new HashMap<Long,List<Long>>();
 	}
 	
 	@Override
-	public void storeMetadata(long resourceID, String resourcePath, float duration, int fingerprints) {
+	public synchronized void storeMetadata(long resourceID, String resourcePath, float duration, int fingerprints) {
 		PanakoResourceMetadata r = new PanakoResourceMetadata();
 		r.duration = duration;
 		r.numFingerprints = fingerprints;
@@ -100,7 +96,7 @@ public class PanakoStorageMemory implements PanakoStorage {
 	}
 	
 	@Override
-	public PanakoResourceMetadata getMetadata(long identifier) {
+	public synchronized PanakoResourceMetadata getMetadata(long identifier) {
 		return resourceMap.get(identifier);
 	}
 
@@ -116,45 +112,24 @@ public class PanakoStorageMemory implements PanakoStorage {
 
 
 	@Override
-	public void addToStoreQueue(long fingerprintHash, int resourceIdentifier, int t1, int f1) {
-		int[] val = {resourceIdentifier,t1,f1};
-		if(!fingerprints.containsKey(fingerprintHash)) {
-			List<int[]> list = new ArrayList<int[]>();
-			fingerprints.put(fingerprintHash,list);
+	public synchronized void store(PanakoStoreBatch batch) {
+		for(long[] data : batch.fingerprints()) {
+			long fingerprintHash = data[0];
+			int[] val = {(int) data[1],(int) data[2],(int) data[3]};
+			if(!fingerprints.containsKey(fingerprintHash)) {
+				List<int[]> list = new ArrayList<int[]>();
+				fingerprints.put(fingerprintHash,list);
+			}
+			fingerprints.get(fingerprintHash).add(val);
 		}
-		fingerprints.get(fingerprintHash).add(val);
+		for(PanakoResourceMetadata metadata : batch.metadata())
+			storeMetadata(metadata.identifier, metadata.path, (float) metadata.duration, metadata.numFingerprints);
 	}
 
 	@Override
-	public void processStoreQueue() {
-		//NOOP
-	}
-	
-	public void addToQueryQueue(long queryHash) {
-		long threadID = Thread.currentThread().getId();
-		if(!queryQueue.containsKey(threadID))
-			queryQueue.put(threadID, new ArrayList<Long>());
-		queryQueue.get(threadID).add(queryHash);
-	}
-
-	public void processQueryQueue(Map<Long,List<PanakoHit>> matchAccumulator,int range) {
-		processQueryQueue(matchAccumulator, range, new HashSet<Integer>());
-	}
-	
-	public void processQueryQueue(Map<Long,List<PanakoHit>> matchAccumulator,int range,Set<Integer> resourcesToAvoid) {
-		if (queryQueue.isEmpty())
-			return;
-		
-		long threadID = Thread.currentThread().getId();
-		if(!queryQueue.containsKey(threadID))
-			return;
-		
-		List<Long> queue = queryQueue.get(threadID);
-		
-		if (queue.isEmpty())
-			return;
-		
-		for (long originalKey : queue) {
+	public synchronized void query(PanakoQueryBatch batch,Map<Long,List<PanakoHit>> matchAccumulator,int range,Set<Integer> resourcesToAvoid) {
+		for (int i = 0 ; i < batch.size() ; i++) {
+			long originalKey = batch.hash(i);
 			long startKey = originalKey - range;
 			long stopKey = originalKey + range;
 			for (long key = startKey; key <= stopKey; key++) {
@@ -174,16 +149,10 @@ public class PanakoStorageMemory implements PanakoStorage {
 				}
 			}
 		}
-		queue.clear();
-	}
-
-	@Override
-	public void addToDeleteQueue(long fingerprintHash, int resourceIdentifier, int t1, int f1) {
-
 	}
 
 	@Override
-	public void processDeleteQueue() {
+	public void delete(PanakoStoreBatch batch) {
 
 	}
 
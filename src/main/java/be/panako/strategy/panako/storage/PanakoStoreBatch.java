@@ -0,0 +1,132 @@
+/***************************************************************************
+*                                                                          *
+* Panako - acoustic fingerprinting                                         *
+* Copyright (C) 2014 - 2022 - Joren Six / IPEM                             *
+*                                                                          *
+* This program is free software: you can redistribute it and/or modify     *
+* it under the terms of the GNU Affero General Public License as           *
+* published by the Free Software Foundation, either version 3 of the       *
+* License, or (at your option) any later version.                          *
+*                                                                          *
+* This program is distributed in the hope that it will be useful,          *
+* but WITHOUT ANY WARRANTY; without even the implied warranty of           *
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the            *
+* GNU Affero General Public License for more details.                      *
+*                                                                          *
+* You should have received a copy of the GNU Affero General Public License *
+* along with this program.  If not, see <http://www.gnu.org/licenses/>     *
+*                                                                          *
+****************************************************************************
+*    ______   ________   ___   __    ________   ___   ___   ______         *
+*   /_____/\ /_______/\ /__/\ /__/\ /_______/\ /___/\/__/\ /_____/\        *
+*   \:::_ \ \\::: _  \ \\::\_\\  \ \\::: _  \ \\::.\ \\ \ \\:::_ \ \       *
+*    \:(_) \ \\::(_)  \ \\:. `-\  \ \\::(_)  \ \\:: \/_) \ \\:\ \ \ \      *
+*     \: ___\/ \:: __  \ \\:. _    \ \\:: __  \ \\:. __  ( ( \:\ \ \ \     *
+*      \ \ \    \:.\ \  \ \\. \`-\  \ \\:.\ \  \ \\: \ )  \ \ \:\_\ \ \    *
+*       \_\/     \__\/\__\/ \__\/ \__\/ \__\/\__\/ \__\/\__\/  \_____\/    *
+*                                                                          *
+****************************************************************************
+*                                                                          *
+*                              Panako                                      *
+*                       Acoustic Fingerprinting                            *
+*                                                                          *
+****************************************************************************/
+
+package be.panako.strategy.panako.storage;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A batch of fingerprints and meta-data to store in, or to delete from, an {@link PanakoStorage}.
+ *
+ * The batch is owned by the caller: it is filled and passed to the storage by a single thread and can be
+ * reused after {@link #clear()}. A batch is not thread safe, but since every thread uses its own batches
+ * the storage does not need to keep pending fingerprints per thread.
+ */
+public class PanakoStoreBatch {
+
+	private final List<long[]> fingerprints;
+	private final List<PanakoResourceMetadata> metadata;
+
+	/**
+	 * The resource of which fingerprints were written by an earlier call but without meta-data. The fingerprints
+	 * of a resource can be stored in several parts: storages writing a file per resource append the following parts.
+	 * Storing the meta-data finishes the resource. Null if no resource is in progress.
+	 */
+	Integer resourceInProgress;
+
+	/**
+	 * Create a new, empty batch.
+	 */
+	public PanakoStoreBatch() {
+		fingerprints = new ArrayList<>();
+		metadata = new ArrayList<>();
+		resourceInProgress = null;
+	}
+
+	/**
+	 * Add a fingerprint to the batch.
+	 * @param fingerprintHash The fingerprint hash
+	 * @param resourceIdentifier The internal identifier of the resource
+	 * @param t1 The time index at which the fingerprint was extracted
+	 * @param f1 The frequency bin at which the fingerprint was extracted
+	 */
+	public void add(long fingerprintHash, int resourceIdentifier, int t1, int f1) {
+		long[] data = {fingerprintHash,resourceIdentifier,t1,f1};
+		fingerprints.add(data);
+	}
+
+	/**
+	 * Add meta-data for a resource to the batch. The meta-data is stored after the fingerprints of the batch and,
+	 * if the storage supports transactions, in the same transaction.
+	 * @param resourceID The identifier of the resource
+	 * @param resourcePath The path of the resource
+	 * @param duration The duration in seconds
+	 * @param numberOfFingerprints The number of fingerprints extracted
+	 */
+	public void addMetadata(long resourceID, String resourcePath, float duration, int numberOfFingerprints) {
+		PanakoResourceMetadata resourceMetadata = new PanakoResourceMetadata();
+		resourceMetadata.identifier = resourceID;
+		resourceMetadata.path = resourcePath;
+		resourceMetadata.duration = duration;
+		resourceMetadata.numFingerprints = numberOfFingerprints;
+		metadata.add(resourceMetadata);
+	}
+
+	/**
+	 * @return The fingerprints in the batch, in the order they were added, as {hash, resource identifier, t1, f1} arrays.
+	 */
+	public List<long[]> fingerprints() {
+		return fingerprints;
+	}
+
+	/**
+	 * @return The meta-data in the batch, in the order it was added.
+	 */
+	public List<PanakoResourceMetadata> metadata() {
+		return metadata;
+	}
+
+	/**
+	 * @return The number of fingerprints in the batch.
+	 */
+	public int size() {
+		return fingerprints.size();
+	}
+
+	/**
+	 * @return True if the batch holds no fingerprints and no meta-data.
+	 */
+	public boolean isEmpty() {
+		return fingerprints.isEmpty() && metadata.isEmpty();
+	}
+
+	/**
+	 * Removes the fingerprints and meta-data from the batch so it can be reused.
+	 */
+	public void clear() {
+		fingerprints.clear();
+		metadata.clear();
+	}
+}
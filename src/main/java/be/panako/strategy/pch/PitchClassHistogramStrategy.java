@@ -40,9 +40,12 @@ import java.util.List;
 import java.util.Set;
 import java.util.TreeMap;
 
+import javax.sound.sampled.UnsupportedAudioFileException;
+
 import be.panako.strategy.QueryResult;
 import be.panako.strategy.QueryResultHandler;
 import be.panako.strategy.Strategy;
+import be.panako.util.AudioFileUtils;
 import be.panako.util.Config;
 import be.panako.util.FileUtils;
 import be.panako.util.Key;
@@ -82,19 +85,52 @@ public class PitchClassHistogramStrategy extends Strategy {
 		return duration;
 	}
 
+	@Override
+	public double store(String resource, String description, float[] samples) {
+		int identifier = FileUtils.getIdentifier(resource);
+		int[] pch = new int[1200];
+		double duration = extractPch(samples, pch);
+		storePch(identifier,description,pch);
+		return duration;
+	}
+
 	@Override
 	public double delete(String resource) {
 		throw new RuntimeException("Delete is currently not implemented for the PCH strategy");
 	}
 
 	private double extractPch(String resource, int[] pch){
-		final List<Float> pitchTrack = new ArrayList<Float>();
+		int sampleRate =  Config.getInt(Key.PCH_SAMPLE_RATE);
+		int step = Config.getInt(Key.PCH_SIZE);
+		int overlap = Config.getInt(Key.PCH_OVERLAP);
 		
+		AudioDispatcher d = AudioFileUtils.dispatcher(resource, sampleRate, step, overlap, 0, 0);
+		return extractPch(d, pch);
+	}
+
+	/**
+	 * Extract a pitch class histogram from decoded audio at the PCH sample rate.
+	 */
+	private double extractPch(float[] samples, int[] pch){
 		int sampleRate =  Config.getInt(Key.PCH_SAMPLE_RATE);
 		int step = Config.getInt(Key.PCH_SIZE);
 		int overlap = Config.getInt(Key.PCH_OVERLAP);
+
+		AudioDispatcher d;
+		try {
+			d = AudioDispatcherFactory.fromFloatArray(samples, sampleRate, step, overlap);
+		} catch (UnsupportedAudioFileException e) {
+			throw new RuntimeException(e);
+		}
+		return extractPch(d, pch);
+	}
+
+	private double extractPch(AudioDispatcher d, int[] pch){
+		final List<Float> pitchTrack = new ArrayList<Float>();
+		
+		int sampleRate =  Config.getInt(Key.PCH_SAMPLE_RATE);
+		int step = Config.getInt(Key.PCH_SIZE);
 		
-		AudioDispatcher d = AudioDispatcherFactory.fromPipe(resource, sampleRate,step,overlap);
 		PitchDetectionHandler handler;
 		handler = new PitchDetectionHandler() {
 			@Override
@@ -177,12 +213,21 @@ public class PitchClassHistogramStrategy extends Strategy {
 	@Override
 	public void query(String query, int maxNumberOfResults,Set<Integer> avoid,
 			QueryResultHandler handler) {
-		
-		String directory = Config.get(Key.PCH_FILES);
-		List<String> files = FileUtils.glob(directory, "\\d*.txt", false);
-		
 		int[] queryPch = new int[1200];
 		extractPch(query, queryPch);
+		query(query, queryPch, maxNumberOfResults, handler);
+	}
+
+	@Override
+	public void query(String query, float[] samples, int maxNumberOfResults, Set<Integer> avoid, QueryResultHandler handler) {
+		int[] queryPch = new int[1200];
+		extractPch(samples, queryPch);
+		query(query, queryPch, maxNumberOfResults, handler);
+	}
+
+	private void query(String query, int[] queryPch, int maxNumberOfResults, QueryResultHandler handler) {
+		String directory = Config.get(Key.PCH_FILES);
+		List<String> files = FileUtils.glob(directory, "\\d*.txt", false);
 		
 		TreeMap<Double, Integer> scores = new TreeMap<>();
 		TreeMap<Double, Double> shifts = new TreeMap<>();
@@ -223,6 +268,19 @@ public class PitchClassHistogramStrategy extends Strategy {
 		
 	}
 
+	/**
+	 * Monitoring is not supported by the PCH strategy, see {@link #supportsMonitoring()}.
+	 */
+	@Override
+	public void monitor(String query, float[] samples, int maxNumberOfResults, Set<Integer> avoid, QueryResultHandler handler) {
+		throw new UnsupportedOperationException("Monitoring is not supported by the PCH strategy");
+	}
+
+	@Override
+	public boolean supportsMonitoring() {
+		return false;
+	}
+
 	@Override
 	public boolean hasResource(String resource) {
 		int identifier = FileUtils.getIdentifier(resource);
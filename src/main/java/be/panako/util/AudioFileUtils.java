@@ -2,12 +2,16 @@ package be.panako.util;
 
 
 import be.tarsos.dsp.AudioDispatcher;
+import be.tarsos.dsp.io.PipedAudioStream;
+import be.tarsos.dsp.io.TarsosDSPAudioInputStream;
 import be.tarsos.dsp.io.jvm.AudioDispatcherFactory;
 
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.util.Arrays;
 import java.util.logging.Logger;
 
 /**
@@ -46,6 +50,24 @@ public class AudioFileUtils {
      * @return The duration of the audio in seconds.
      */
     public static float audioFileDurationInSeconds(File audioFile){
+        if(isNativeDecoderEnabled()){
+            float duration = NativeAudioDecoder.duration(audioFile);
+            if(duration >= 0)
+                return duration;
+        }
+        DecoderPool pool = DecoderPool.getInstance();
+        if(pool != null){
+            // the decoder reports the duration before it decodes, no need to decode further
+            try {
+                DecoderPool.DecodedStream stream = pool.decode(audioFile.getAbsolutePath(), 8000, 0, 0);
+                float duration = stream.duration();
+                stream.close();
+                if(duration >= 0)
+                    return duration;
+            } catch (IOException e) {
+                LOG.warning(String.format("Decoder pool failed to find the duration of '%s': %s",audioFile,e.getMessage()));
+            }
+        }
         String command = Config.get(Key.AUDIO_DURATION_COMMAND);
         String path = audioFile.getAbsolutePath();
         command = command.replace("%resource%",path);
@@ -66,4 +88,167 @@ public class AudioFileUtils {
         }
         return duration;
     }
+
+    /**
+     * Returns a stream with decoded mono audio, signed 16 bit little endian, at the requested sample rate.
+     * If the decoded audio cache is enabled (see {@link PcmCache}) cached audio is read. Otherwise the
+     * audio is decoded in process if the native decoder is configured and supports the format (see
+     * {@link NativeAudioDecoder}), or by the configured decoder pipe, with a ready process from the
+     * {@link DecoderPool} if it is enabled. Audio completely decoded by the pipe is added to the cache.
+     * @param resource The path of the audio file to decode.
+     * @param sampleRate The target sample rate.
+     * @param startTimeOffset The start of the audio, in seconds.
+     * @param numberOfSeconds The duration of the audio, in seconds. Zero or less to decode until the end.
+     * @return A stream with decoded audio.
+     */
+    public static TarsosDSPAudioInputStream monoStream(String resource, int sampleRate, double startTimeOffset, double numberOfSeconds){
+        if(PcmCache.isEnabled()){
+            TarsosDSPAudioInputStream cached = PcmCache.open(resource, sampleRate, startTimeOffset, numberOfSeconds);
+            if(cached != null)
+                return cached;
+        }
+        if(isNativeDecoderEnabled()){
+            TarsosDSPAudioInputStream decoded = NativeAudioDecoder.open(resource, sampleRate, startTimeOffset, numberOfSeconds);
+            if(decoded != null)
+                return decoded;
+        }
+        TarsosDSPAudioInputStream stream = null;
+        DecoderPool pool = DecoderPool.getInstance();
+        if(pool != null){
+            try {
+                stream = pool.decode(resource, sampleRate, startTimeOffset, numberOfSeconds);
+            } catch (IOException e) {
+                LOG.warning(String.format("Decoder pool failed for '%s', falling back to the pipe: %s",resource,e.getMessage()));
+            }
+        }
+        if(stream == null){
+            PipedAudioStream pipe = new PipedAudioStream(resource);
+            if(numberOfSeconds > 0)
+                stream = pipe.getMonoStream(sampleRate, startTimeOffset, numberOfSeconds);
+            else
+                stream = pipe.getMonoStream(sampleRate, startTimeOffset);
+        }
+        if(numberOfSeconds > 0)
+            return stream;
+        // only complete audio is cached
+        if(PcmCache.isEnabled() && startTimeOffset <= 0)
+            return PcmCache.fill(resource, sampleRate, stream);
+        return stream;
+    }
+
+    /**
+     * Create an audio dispatcher for decoded mono audio, see {@link #monoStream(String, int, double, double)}.
+     * This replaces {@link AudioDispatcherFactory#fromPipe(String, int, int, int, double, double)} so decoded
+     * audio can be cached.
+     * @param resource The path of the audio file to decode.
+     * @param sampleRate The target sample rate.
+     * @param size The size of the audio blocks, in samples.
+     * @param overlap The overlap of the audio blocks, in samples.
+     * @param startTimeOffset The start of the audio, in seconds.
+     * @param numberOfSeconds The duration of the audio, in seconds. Zero or less to decode until the end.
+     * @return An audio dispatcher.
+     */
+    public static AudioDispatcher dispatcher(String resource, int sampleRate, int size, int overlap, double startTimeOffset, double numberOfSeconds){
+        return new AudioDispatcher(monoStream(resource, sampleRate, startTimeOffset, numberOfSeconds), size, overlap);
+    }
+
+    private static boolean isNativeDecoderEnabled(){
+        return "NATIVE".equalsIgnoreCase(Config.get(Key.DECODER));
+    }
+
+    /**
+     * Decode a complete audio file to mono samples at the requested sample rate. The
+     * configured decoder pipe is used. The samples are scaled in the same way as
+     * the samples in the audio buffers of an {@link AudioDispatcher}.
+     * @param resource The path of the audio file to decode.
+     * @param sampleRate The target sample rate.
+     * @param maxNumberOfSamples Decoding stops when the audio is longer than this.
+     * @return The decoded samples, or null if there are more than maxNumberOfSamples samples.
+     * @throws IOException If the audio can not be read or no audio is decoded at all.
+     */
+    public static float[] decode(String resource, int sampleRate, int maxNumberOfSamples) throws IOException {
+        TarsosDSPAudioInputStream stream = monoStream(resource, sampleRate, 0, 0);
+        if(stream == null)
+            throw new IOException(String.format("Could not open '%s' for decoding", resource));
+        float[] samples;
+        try {
+            samples = readPcm(stream::read, Math.min(sampleRate * 60, maxNumberOfSamples), maxNumberOfSamples);
+        } finally {
+            stream.close();
+        }
+        // a decoder which fails, e.g. for an unreadable file, returns no audio
+        if(samples != null && samples.length == 0)
+            throw new IOException(String.format("No audio decoded from '%s'", resource));
+        return samples;
+    }
+
+    /**
+     * Read raw mono audio, signed 16 bit little endian PCM, until the end of the stream. The samples
+     * are scaled in the same way as the samples in the audio buffers of an {@link AudioDispatcher}.
+     * The stream is not closed.
+     * @param pcm The stream with raw audio.
+     * @return The samples.
+     * @throws IOException If the stream can not be read.
+     */
+    public static float[] readPcm(InputStream pcm) throws IOException {
+        return readPcm(pcm::read, 16000 * 10, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Read raw mono audio, see {@link #readPcm(InputStream)}, but stop when the audio is longer than a maximum.
+     * The stream is not closed.
+     * @param pcm The stream with raw audio.
+     * @param maxNumberOfSamples The maximum number of samples to read.
+     * @return The samples, or null if the stream holds more than maxNumberOfSamples samples.
+     * @throws IOException If the stream can not be read.
+     */
+    public static float[] readPcm(InputStream pcm, int maxNumberOfSamples) throws IOException {
+        return readPcm(pcm::read, Math.min(16000 * 10, maxNumberOfSamples), maxNumberOfSamples);
+    }
+
+    /**
+     * Convert signed 16 bit samples to float samples, scaled in the same way as the samples in the
+     * audio buffers of an {@link AudioDispatcher}.
+     * @param pcm The 16 bit samples.
+     * @return The float samples.
+     */
+    public static float[] toFloat(short[] pcm){
+        float[] samples = new float[pcm.length];
+        for(int i = 0 ; i < pcm.length ; i++)
+            samples[i] = pcm[i] * (1.0f / 32767.0f);
+        return samples;
+    }
+
+    private interface ByteSource {
+        int read(byte[] buffer, int offset, int length) throws IOException;
+    }
+
+    /**
+     * @return The samples or null if there are more than maxNumberOfSamples samples.
+     */
+    private static float[] readPcm(ByteSource source, int initialCapacity, int maxNumberOfSamples) throws IOException {
+        byte[] buffer = new byte[Config.getInt(Key.DECODER_PIPE_BUFFER_SIZE) & ~1];
+        float[] samples = new float[initialCapacity];
+        int numberOfSamples = 0;
+        int bytesInBuffer = 0;
+        int bytesRead;
+        while((bytesRead = source.read(buffer, bytesInBuffer, buffer.length - bytesInBuffer)) != -1) {
+            bytesInBuffer += bytesRead;
+            int completeSamples = bytesInBuffer / 2;
+            if(numberOfSamples + completeSamples > maxNumberOfSamples)
+                return null;
+            if(numberOfSamples + completeSamples > samples.length)
+                samples = Arrays.copyOf(samples, (int) Math.min(maxNumberOfSamples, Math.max(samples.length * 2L, numberOfSamples + completeSamples)));
+            // signed 16 bit little endian
+            for(int i = 0 ; i < completeSamples ; i++) {
+                short sample = (short) ((buffer[2*i] & 0xFF) | (buffer[2*i+1] << 8));
+                samples[numberOfSamples++] = sample * (1.0f / 32767.0f);
+            }
+            // keep a trailing odd byte for the next read
+            if(bytesInBuffer % 2 == 1)
+                buffer[0] = buffer[bytesInBuffer - 1];
+            bytesInBuffer = bytesInBuffer % 2;
+        }
+        return Arrays.copyOf(samples, numberOfSamples);
+    }
 }
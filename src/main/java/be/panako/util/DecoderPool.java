@@ -0,0 +1,271 @@
+/***************************************************************************
+*                                                                          *
+* Panako - acoustic fingerprinting                                         *
+* Copyright (C) 2014 - 2022 - Joren Six / IPEM                             *
+*                                                                          *
+* This program is free software: you can redistribute it and/or modify     *
+* it under the terms of the GNU Affero General Public License as           *
+* published by the Free Software Foundation, either version 3 of the       *
+* License, or (at your option) any later version.                          *
+*                                                                          *
+* This program is distributed in the hope that it will be useful,          *
+* but WITHOUT ANY WARRANTY; without even the implied warranty of           *
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the            *
+* GNU Affero General Public License for more details.                      *
+*                                                                          *
+* You should have received a copy of the GNU Affero General Public License *
+* along with this program.  If not, see <http://www.gnu.org/licenses/>     *
+*                                                                          *
+****************************************************************************
+*    ______   ________   ___   __    ________   ___   ___   ______         *
+*   /_____/\ /_______/\ /__/\ /__/\ /_______/\ /___/\/__/\ /_____/\        *
+*   \:::_ \ \\::: _  \ \\::\_\\  \ \\::: _  \ \\::.\ \\ \ \\:::_ \ \       *
+*    \:(_) \ \\::(_)  \ \\:. `-\  \ \\::(_)  \ \\:: \/_) \ \\:\ \ \ \      *
+*     \: ___\/ \:: __  \ \\:. _    \ \\:: __  \ \\:. __  ( ( \:\ \ \ \     *
+*      \ \ \    \:.\ \  \ \\. \`-\  \ \\:.\ \  \ \\: \ )  \ \ \:\_\ \ \    *
+*       \_\/     \__\/\__\/ \__\/ \__\/ \__\/\__\/ \__\/\__\/  \_____\/    *
+*                                                                          *
+****************************************************************************
+*                                                                          *
+*                              Panako                                      *
+*                       Acoustic Fingerprinting                            *
+*                                                                          *
+****************************************************************************/
+
+
+
+package be.panako.util;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import be.tarsos.dsp.io.TarsosDSPAudioFormat;
+import be.tarsos.dsp.io.TarsosDSPAudioInputStream;
+
+/**
+ * Keeps decoder processes ready to decode. Each idle process is a shell which waits for a single decoder
+ * pipe command (see {@link Key#DECODER_PIPE_COMMAND}) on its standard input and then replaces itself with
+ * the decoder. A decoder can only decode the input it is started with, so each process serves one request
+ * and a new idle process is started in the background. Starting the shell is thus no longer part of a
+ * decode request.
+ *
+ * The decoder reports the duration of the input on its error output before it decodes: the duration
+ * is available from the decoded stream, without running a separate duration command.
+ */
+public class DecoderPool {
+	private final static Logger LOG = Logger.getLogger(DecoderPool.class.getName());
+
+	/**
+	 * The time to wait for a decoder to exit after the end of its output.
+	 */
+	private static final long EXIT_TIMEOUT_SECONDS = 10;
+
+	/**
+	 * The maximum time to wait for the decoder to report the duration of the input.
+	 */
+	private static final long DURATION_TIMEOUT_SECONDS = 10;
+
+	private static final Pattern DURATION = Pattern.compile("Duration: (\\d+):(\\d+):(\\d+(?:\\.\\d+)?)");
+
+	private static DecoderPool instance;
+
+	/**
+	 * @return The decoder pool or null if it is disabled.
+	 */
+	public synchronized static DecoderPool getInstance(){
+		int size = Config.getInt(Key.DECODER_POOL_SIZE);
+		if(size <= 0)
+			return null;
+		if(instance == null)
+			instance = new DecoderPool(size);
+		return instance;
+	}
+
+	private final BlockingQueue<Process> idle;
+	private final ExecutorService starter;
+
+	private DecoderPool(int size){
+		idle = new ArrayBlockingQueue<>(size);
+		starter = Executors.newSingleThreadExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "Decoder pool");
+			thread.setDaemon(true);
+			return thread;
+		});
+		for(int i = 0 ; i < size ; i++)
+			starter.submit(this::startIdleProcess);
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			starter.shutdownNow();
+			idle.forEach(Process::destroy);
+		}));
+	}
+
+	private void startIdleProcess(){
+		try {
+			Process process = startProcess();
+			if(!idle.offer(process))
+				process.destroy();
+		} catch (IOException e) {
+			LOG.warning("Could not start a decoder process: " + e.getMessage());
+		}
+	}
+
+	private static Process startProcess() throws IOException {
+		String environment = Config.get(Key.DECODER_PIPE_ENVIRONMENT);
+		String environmentArgument = Config.get(Key.DECODER_PIPE_ENVIRONMENT_ARG);
+		//wait for a command and replace the shell with it
+		return new ProcessBuilder(environment, environmentArgument, "read -r command && eval \"exec $command\"").start();
+	}
+
+	/**
+	 * Decode audio with a ready decoder process.
+	 * @param resource The path of the audio file.
+	 * @param sampleRate The target sample rate.
+	 * @param startTimeOffset The start of the audio, in seconds.
+	 * @param numberOfSeconds The duration of the audio, in seconds. Zero or less to decode until the end.
+	 * @return A stream with mono, signed 16 bit little endian audio.
+	 * @throws IOException If no decoder process can be started.
+	 */
+	public DecodedStream decode(String resource, int sampleRate, double startTimeOffset, double numberOfSeconds) throws IOException {
+		Process process = idle.poll();
+		while(process != null && !process.isAlive())
+			process = idle.poll();
+		starter.submit(this::startIdleProcess);
+		//all processes are busy
+		if(process == null)
+			process = startProcess();
+
+		String command = command(resource, sampleRate, startTimeOffset, numberOfSeconds);
+		try(OutputStream in = process.getOutputStream()) {
+			in.write((command + "\n").getBytes(StandardCharsets.UTF_8));
+		}
+		LOG.info("Decoding with pooled process: " + command);
+		return new DecodedStream(process, sampleRate);
+	}
+
+	/**
+	 * Fills in the decoder pipe command, in the same way as the pipe decoder.
+	 */
+	private static String command(String resource, int sampleRate, double startTimeOffset, double numberOfSeconds){
+		String command = Config.get(Key.DECODER_PIPE_COMMAND);
+		command = command.replace("%input_seeking%", String.format(Locale.ROOT, "%.3f", startTimeOffset));
+		if(numberOfSeconds > 0)
+			command = command.replace("%number_of_seconds%", String.format(Locale.ROOT, "-t %.3f", numberOfSeconds));
+		else
+			command = command.replace("%number_of_seconds%", "");
+		command = command.replace("%resource%", resource);
+		command = command.replace("%sample_rate%", String.valueOf(sampleRate));
+		command = command.replace("%channels%", "1");
+		return command;
+	}
+
+	/**
+	 * The output of a decoder process. The exit status of the process tells whether the decoder succeeded.
+	 */
+	public static class DecodedStream implements TarsosDSPAudioInputStream, PcmCache.DecoderStatus {
+		private final Process process;
+		private final InputStream samples;
+		private final TarsosDSPAudioFormat format;
+		private final CountDownLatch durationKnown = new CountDownLatch(1);
+		private volatile float duration = -1;
+
+		DecodedStream(Process process, int sampleRate){
+			this.process = process;
+			this.samples = process.getInputStream();
+			this.format = new TarsosDSPAudioFormat(sampleRate, 16, 1, true, false);
+			Thread errorReader = new Thread(this::readErrors, "Decoder errors");
+			errorReader.setDaemon(true);
+			errorReader.start();
+		}
+
+		private void readErrors(){
+			try(BufferedReader errors = new BufferedReader(new InputStreamReader(process.getErrorStream(), StandardCharsets.UTF_8))) {
+				String line;
+				while((line = errors.readLine()) != null) {
+					if(durationKnown.getCount() == 0)
+						continue;
+					Matcher matcher = DURATION.matcher(line);
+					if(matcher.find()) {
+						duration = Integer.parseInt(matcher.group(1)) * 3600 + Integer.parseInt(matcher.group(2)) * 60 + Float.parseFloat(matcher.group(3));
+						durationKnown.countDown();
+					} else if(line.startsWith("Output #") || line.startsWith("Stream mapping")) {
+						//the input is described before the output: the duration is not available, e.g. "Duration: N/A"
+						durationKnown.countDown();
+					}
+				}
+			} catch (IOException e) {
+				//the process is stopped
+			} finally {
+				durationKnown.countDown();
+			}
+		}
+
+		/**
+		 * Waits until the decoder reports the duration of the input, at most ten seconds.
+		 * The output of the decoder is not read meanwhile.
+		 * @return The duration of the complete input in seconds or -1 if the decoder did not report a duration.
+		 */
+		public float duration(){
+			try {
+				if(!durationKnown.await(DURATION_TIMEOUT_SECONDS, TimeUnit.SECONDS))
+					LOG.warning("Decoder did not report a duration in time");
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			return duration;
+		}
+
+		/**
+		 * Waits until the decoder exits, which it does right after the end of its output.
+		 * @return True if the decoder exited with status zero.
+		 */
+		@Override
+		public boolean succeeded() {
+			try {
+				return process.waitFor(EXIT_TIMEOUT_SECONDS, TimeUnit.SECONDS) && process.exitValue() == 0;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+
+		@Override
+		public long skip(long bytesToSkip) throws IOException {
+			return samples.skip(bytesToSkip);
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			return samples.read(b, off, len);
+		}
+
+		@Override
+		public void close() throws IOException {
+			samples.close();
+			process.destroy();
+		}
+
+		@Override
+		public TarsosDSPAudioFormat getFormat() {
+			return format;
+		}
+
+		@Override
+		public long getFrameLength() {
+			return -1;
+		}
+	}
+}
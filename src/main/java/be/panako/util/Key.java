@@ -54,19 +54,40 @@ public enum Key{
 	MAX_FILE_SIZE(6000),
 	
 	/**
-	 * The step size while monitoring a long audio fragment, in seconds.
+	 * The step size while monitoring a long audio fragment, in seconds. The OLAF
+	 * strategy follows matches continuously and reports them once per step.
 	 */
 	MONITOR_STEP_SIZE(25),
 
 	/**
 	 * The overlap, also in seconds. By default detection resolution is 
-	 * 25-5=20 seconds.
+	 * 25-5=20 seconds. Not used by the OLAF strategy: its matches continue
+	 * from one step to the next.
 	 */
 	MONITOR_OVERLAP(5),
+
+	/**
+	 * While monitoring with the OLAF strategy, a match is closed when no hit
+	 * extended it for this many seconds. Hits which do not belong to a match
+	 * are kept as long to start a new match.
+	 */
+	MONITOR_MATCH_TIMEOUT(5),
+
+	/**
+	 * The number of threads monitoring a single long audio fragment. The fragment is split
+	 * in segments of consecutive windows, or report steps with the OLAF strategy, which are
+	 * decoded separately, from their own start.
+	 * Results are still reported in time order. If zero (or less) the number of available
+	 * processors is used.
+	 */
+	MONITOR_THREADS(1),
 	
 	/**
 	 * Enabling the ffmpeg pipe allows support for almost all audio formats in the
-	 * known universe. When disabled Panako supports 16bit mono WAV.
+	 * known universe. With NATIVE, only uncompressed WAV, AIFF and AU files are
+	 * decoded and resampled in process, without starting a decoder. Panako does not
+	 * ship a Java sound service provider for compressed formats such as FLAC or MP3:
+	 * these, and all other formats, still go through the pipe.
 	 */
 	DECODER("PIPE"),
 	
@@ -95,6 +116,33 @@ public enum Key{
 	 */
 	DECODER_PIPE_LOG_FILE("decoder_log.txt"),
 
+	/**
+	 * The number of decoder processes kept ready to start decoding. Each process is a
+	 * shell of the pipe environment which waits for a decoder pipe command, so starting
+	 * the shell is not part of a decode request. The duration of the audio is then read
+	 * from the decoder output instead of running the duration command. Zero disables the
+	 * pool. The pool needs a POSIX shell as pipe environment.
+	 */
+	DECODER_POOL_SIZE(0),
+
+	/**
+	 * Keep decoded, resampled audio on disk. Decoding the same audio again at the same
+	 * sample rate, e.g. to store it with other parameters or with an other strategy,
+	 * then reads the cached samples instead of starting a decoder.
+	 */
+	DECODER_CACHE("FALSE"),
+
+	/**
+	 * The folder with cached decoded audio.
+	 */
+	DECODER_CACHE_FOLDER("~/.panako/dbs/pcm_cache"),
+
+	/**
+	 * The maximum size of the decoded audio cache, in megabytes. The least recently
+	 * used audio is removed first.
+	 */
+	DECODER_CACHE_SIZE(4096),
+
 	/**
 	 * By default ffprobe is used to determine the duration - in seconds -
 	 * of an audio file.
@@ -109,7 +157,79 @@ public enum Key{
 	 * available processors are used.
 	 */
 	AVAILABLE_PROCESSORS("1"),
-	
+
+	/**
+	 * The number of threads decoding audio while storing. If zero (or less) the
+	 * number of available processors is used. Decoding mostly waits on the decoder
+	 * process, so more decoders than processors can be of use.
+	 */
+	STORE_DECODE_THREADS("0"),
+
+	/**
+	 * The number of threads extracting fingerprints from decoded audio while storing.
+	 * If zero (or less) the number of available processors is used.
+	 */
+	STORE_EXTRACT_THREADS("0"),
+
+	/**
+	 * The address the serve command listens on. Use 0.0.0.0 to accept queries from other machines.
+	 */
+	SERVE_HOST("localhost"),
+
+	/**
+	 * The HTTP port of the serve command.
+	 */
+	SERVE_PORT(8080),
+
+	/**
+	 * The maximum size, in MB, of the raw audio POSTed to the serve command. Larger requests are
+	 * answered with 413 Payload Too Large.
+	 */
+	SERVE_MAX_AUDIO_MB(64),
+
+	/**
+	 * The maximum number of decoded or extracted resources waiting for the next stage
+	 * while storing. Decoded audio can be large, keep this small, see also STORE_PIPELINE_DECODED_MB.
+	 */
+	STORE_PIPELINE_QUEUE_SIZE(8),
+
+	/**
+	 * The maximum memory, in MB, used by decoded audio waiting to be fingerprinted while storing.
+	 * Audio which needs more is not decoded up front, but decoded again while its fingerprints
+	 * are extracted.
+	 */
+	STORE_PIPELINE_DECODED_MB(256),
+
+	/**
+	 * The maximum number of resources written to the storage in a single batch (transaction)
+	 * while storing.
+	 */
+	STORE_BATCH_RESOURCES(64),
+
+	/**
+	 * A batch is written to the storage as soon as it holds this many fingerprints, even if
+	 * the maximum number of resources is not reached yet.
+	 */
+	STORE_BATCH_FINGERPRINTS(1_000_000),
+
+	/**
+	 * The LMDB writer commits a transaction as soon as it holds this many fingerprints.
+	 */
+	LMDB_COMMIT_SIZE(1_000_000),
+
+	/**
+	 * The maximum time in milliseconds the LMDB writer waits for more fingerprints
+	 * before committing a transaction. It only waits for batches other threads are
+	 * handing over, a lone writer commits right away.
+	 */
+	LMDB_COMMIT_LATENCY(5),
+
+	/**
+	 * Append fingerprints with keys larger than the largest stored key (MDB_APPEND). This
+	 * speeds up loading sorted data considerably, e.g. when building an index from scratch.
+	 */
+	LMDB_APPEND("FALSE"),
+
 	/**
 	 * The strategy (algorithm) to use, OLAF|PANAKO|PCH.
 	 */
@@ -147,18 +267,61 @@ public enum Key{
 	///////////////////OLAF config
 
 	/**
-	 * The storage to use: MEM|LMDB
-	 * Stands for Memory, files on disk or the LMDB key-value store
+	 * The storage to use: MEM|FILE|LMDB|MMAP|REMOTE
+	 * Stands for Memory, files on disk, the LMDB key-value store, a read-only, memory mapped snapshot of an LMDB index
+	 * or index nodes queried over the network
 	 */
 	OLAF_STORAGE("LMDB"), 
 	/**
 	 * The folder to store the LMDB database
 	 */
 	OLAF_LMDB_FOLDER("~/.panako/dbs/olaf_db"), 
+	/**
+	 * The number of LMDB environments the fingerprints are partitioned over, each with its own writer thread.
+	 * With more than one shard, the shards are stored in sub folders of the LMDB folder.
+	 */
+	OLAF_LMDB_SHARDS(1),
+	/**
+	 * The memory mapped index snapshot used by the MMAP storage and written by the exportIndex command.
+	 */
+	OLAF_MMAP_INDEX_FILE("~/.panako/dbs/olaf_index.snapshot"),
+	/**
+	 * Compress the posting lists of an exported index snapshot: a smaller file and working set,
+	 * at the cost of decoding the postings while querying.
+	 */
+	OLAF_MMAP_COMPRESSED("TRUE"),
+	/**
+	 * The port an index node listens on, see the indexNode command.
+	 */
+	OLAF_NODE_PORT(8765),
+	/**
+	 * The index nodes queried by the REMOTE storage: comma separated host:port pairs.
+	 */
+	OLAF_REMOTE_NODES("localhost:8765"),
+	/**
+	 * The time an index node has to answer a request of the REMOTE storage, in milliseconds.
+	 * Nodes which do not answer in time are left out of the result.
+	 */
+	OLAF_REMOTE_TIMEOUT(2000),
+	/**
+	 * The number of fingerprints the in memory storage (MEM) collects before they are merged into its
+	 * sorted index. The collected fingerprints can grow to a quarter of the index before being merged.
+	 */
+	OLAF_MEMORY_DELTA_SIZE(1_000_000),
 	/**
 	 * File cache directory for bulk import
 	 */
 	OLAF_CACHE_FOLDER("~/.panako/dbs/olaf_cache"),
+	/**
+	 * The folder for the sorted runs while building an index from the file cache.
+	 * The runs need as much space as the cached fingerprints.
+	 */
+	OLAF_BUILD_INDEX_FOLDER("~/.panako/dbs/olaf_runs"),
+	/**
+	 * The number of fingerprints sorted in memory, per thread, while building an index.
+	 * Each fingerprint takes 16 bytes.
+	 */
+	OLAF_BUILD_INDEX_RUN_SIZE(4_000_000),
 	/**
 	 * Cache the fingerprint extraction process by storing them in a file.
 	 */
@@ -219,6 +382,15 @@ public enum Key{
 	 */
 	OLAF_EP_MIN_FREQ_BIN(9),
 
+	/**
+	 * Use the JDK Vector API (SIMD) for magnitudes and peak detection during event point
+	 * extraction. It is only used when the JVM is started with
+	 * --add-modules jdk.incubator.vector, otherwise the scalar implementation is used.
+	 * Both give identical event points. The JIT compiler often vectorizes the scalar loops
+	 * as well: check with the OlafEventPointBenchmark whether it is faster on your JVM.
+	 */
+	OLAF_VECTOR_API("FALSE"),
+
 	/**
 	 * The number of event points to use for each fingerprint. Use 3 for 'clean' queries and
 	 * large indexes. Use 2 for smaller indexes and more noisy queries (for example over the air
@@ -261,6 +433,12 @@ public enum Key{
 	 */
 	OLAF_QUERY_RANGE(2),
 
+	/**
+	 * Matching: look up the query hashes in the LMDB index in ascending order with a single cursor,
+	 * overlapping ranges are scanned once. If false each query hash is looked up on its own.
+	 */
+	OLAF_QUERY_SORTED_LOOKUP("TRUE"),
+
 	/**
 	 * The list of hits is divided into a starting and ending part.
 	 * The max length of this list is determined here.
@@ -0,0 +1,360 @@
+/***************************************************************************
+*                                                                          *
+* Panako - acoustic fingerprinting                                         *
+* Copyright (C) 2014 - 2022 - Joren Six / IPEM                             *
+*                                                                          *
+* This program is free software: you can redistribute it and/or modify     *
+* it under the terms of the GNU Affero General Public License as           *
+* published by the Free Software Foundation, either version 3 of the       *
+* License, or (at your option) any later version.                          *
+*                                                                          *
+* This program is distributed in the hope that it will be useful,          *
+* but WITHOUT ANY WARRANTY; without even the implied warranty of           *
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the            *
+* GNU Affero General Public License for more details.                      *
+*                                                                          *
+* You should have received a copy of the GNU Affero General Public License *
+* along with this program.  If not, see <http://www.gnu.org/licenses/>     *
+*                                                                          *
+****************************************************************************
+*    ______   ________   ___   __    ________   ___   ___   ______         *
+*   /_____/\ /_______/\ /__/\ /__/\ /_______/\ /___/\/__/\ /_____/\        *
+*   \:::_ \ \\::: _  \ \\::\_\\  \ \\::: _  \ \\::.\ \\ \ \\:::_ \ \       *
+*    \:(_) \ \\::(_)  \ \\:. `-\  \ \\::(_)  \ \\:: \/_) \ \\:\ \ \ \      *
+*     \: ___\/ \:: __  \ \\:. _    \ \\:: __  \ \\:. __  ( ( \:\ \ \ \     *
+*      \ \ \    \:.\ \  \ \\. \`-\  \ \\:.\ \  \ \\: \ )  \ \ \:\_\ \ \    *
+*       \_\/     \__\/\__\/ \__\/ \__\/ \__\/\__\/ \__\/\__\/  \_____\/    *
+*                                                                          *
+****************************************************************************
+*                                                                          *
+*                              Panako                                      *
+*                       Acoustic Fingerprinting                            *
+*                                                                          *
+****************************************************************************/
+
+package be.panako.util;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import org.lmdbjava.Cursor;
+import org.lmdbjava.Dbi;
+import org.lmdbjava.Env;
+import org.lmdbjava.PutFlags;
+import org.lmdbjava.Txn;
+
+/**
+ * A dedicated thread which writes fingerprints and meta-data to an LMDB environment.
+ *
+ * Any thread can hand over a batch of fingerprints and meta-data. The writer groups the
+ * batches of several threads into one large write transaction: all queued batches go into
+ * the transaction, up to {@link Key#LMDB_COMMIT_SIZE} fingerprints, and it is committed
+ * right away when no other batch is on its way. Batches handed over while a transaction is
+ * written are grouped in the next one. The writer only waits, at most
+ * {@link Key#LMDB_COMMIT_LATENCY} milliseconds, for batches which other threads are
+ * handing over at that moment. Within a transaction the fingerprints are
+ * sorted by key so the B-tree is filled in order. Meta-data is committed in the same
+ * transaction as the fingerprints of the batch.
+ *
+ * If {@link Key#LMDB_APPEND} is enabled, fingerprints with a key larger than the largest
+ * stored key are appended with MDB_APPEND and MDB_APPENDDUP, which is a lot faster when
+ * loading pre-sorted data.
+ *
+ * A fingerprint is a long array: the key followed by the integers of the fixed size value.
+ */
+public class LMDBBatchWriter {
+	private final static Logger LOG = Logger.getLogger(LMDBBatchWriter.class.getName());
+
+	private static class Batch {
+		final List<long[]> fingerprints;
+		final Map<Long,ByteBuffer> metadata;
+		final CountDownLatch written = new CountDownLatch(1);
+		/**
+		 * Set by the writer thread before the latch is counted down if the batch was not written.
+		 */
+		volatile Throwable failure;
+
+		Batch(List<long[]> fingerprints, Map<Long,ByteBuffer> metadata){
+			this.fingerprints = fingerprints;
+			this.metadata = metadata;
+		}
+	}
+
+	/**
+	 * Stops the writer thread.
+	 */
+	private static final Batch STOP = new Batch(null, null);
+
+	private final String name;
+	private final Env<ByteBuffer> env;
+	private final Dbi<ByteBuffer> fingerprints;
+	private final Dbi<ByteBuffer> resourceMap;
+	private final int intsPerValue;
+	private final BlockingQueue<Batch> batches;
+	/**
+	 * The number of batches handed over and not yet written, also those not yet in the queue.
+	 */
+	private final AtomicInteger pending = new AtomicInteger();
+	private Thread writerThread;
+
+	private final int commitSize;
+	private final long commitLatency;
+	private final boolean append;
+
+	/**
+	 * Create a new writer, the writer thread is started when the first batch arrives.
+	 * @param name The name of the writer thread.
+	 * @param env The LMDB environment.
+	 * @param fingerprints The fingerprint database with 64bit integer keys and fixed size values.
+	 * @param resourceMap The meta-data database.
+	 * @param intsPerValue The number of 32bit integers in each fingerprint value.
+	 */
+	public LMDBBatchWriter(String name, Env<ByteBuffer> env, Dbi<ByteBuffer> fingerprints, Dbi<ByteBuffer> resourceMap, int intsPerValue) {
+		this.name = name;
+		this.env = env;
+		this.fingerprints = fingerprints;
+		this.resourceMap = resourceMap;
+		this.intsPerValue = intsPerValue;
+		this.batches = new LinkedBlockingQueue<>();
+		this.commitSize = Config.getInt(Key.LMDB_COMMIT_SIZE);
+		this.commitLatency = Config.getInt(Key.LMDB_COMMIT_LATENCY);
+		this.append = Config.getBoolean(Key.LMDB_APPEND);
+	}
+
+	/**
+	 * Write fingerprints and meta-data in the same transaction. The call blocks until the
+	 * transaction holding the batch is committed.
+	 * @param batchFingerprints The fingerprints to write: the key followed by the value integers.
+	 * @param metadata The meta-data values to write, by resource identifier.
+	 * @throws RuntimeException If the transaction holding the batch failed, e.g. because the map
+	 *         is full. None of the batches in that transaction are written.
+	 */
+	public void write(List<long[]> batchFingerprints, Map<Long,ByteBuffer> metadata) {
+		if(batchFingerprints.isEmpty() && metadata.isEmpty())
+			return;
+
+		Batch batch = new Batch(batchFingerprints, metadata);
+		synchronized (this) {
+			if(writerThread == null) {
+				writerThread = new Thread(this::run, name);
+				writerThread.setDaemon(true);
+				writerThread.start();
+			}
+			pending.incrementAndGet();
+			batches.add(batch);
+		}
+
+		boolean interrupted = false;
+		while(batch.written.getCount() > 0) {
+			try {
+				batch.written.await();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if(interrupted)
+			Thread.currentThread().interrupt();
+
+		//report the failure in the thread which handed over the batch
+		Throwable failure = batch.failure;
+		if(failure instanceof RuntimeException)
+			throw (RuntimeException) failure;
+		if(failure instanceof Error)
+			throw (Error) failure;
+		if(failure != null)
+			throw new RuntimeException(failure);
+	}
+
+	/**
+	 * Writes the pending batches and stops the writer thread.
+	 */
+	public void close() {
+		Thread thread;
+		synchronized (this) {
+			thread = writerThread;
+			writerThread = null;
+			if(thread != null)
+				batches.add(STOP);
+		}
+		if(thread != null) {
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private void run() {
+		List<Batch> group = new ArrayList<>();
+		boolean stopped = false;
+		try {
+			while(!stopped) {
+				Batch batch = batches.take();
+				if(batch == STOP)
+					break;
+
+				group.add(batch);
+				int groupSize = batch.fingerprints.size();
+				long deadline = System.currentTimeMillis() + commitLatency;
+				while(groupSize < commitSize) {
+					Batch next = batches.poll();
+					//only wait for batches other threads are handing over
+					if(next == null && pending.get() > group.size()) {
+						long waitTime = deadline - System.currentTimeMillis();
+						if(waitTime > 0)
+							next = batches.poll(waitTime, TimeUnit.MILLISECONDS);
+					}
+					if(next == null)
+						break;
+					if(next == STOP) {
+						stopped = true;
+						break;
+					}
+					group.add(next);
+					groupSize += next.fingerprints.size();
+				}
+
+				try {
+					commit(group, groupSize);
+				} catch (RuntimeException | Error e) {
+					//the transaction is aborted: none of the batches in the group are written
+					LOG.severe(String.format("Failed to commit %d fingerprints of %d batches: %s", groupSize, group.size(), e.getMessage()));
+					for(Batch failed : group)
+						failed.failure = e;
+				}
+				pending.addAndGet(-group.size());
+				for(Batch written : group)
+					written.written.countDown();
+				group.clear();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			for(Batch pending : group)
+				pending.failure = e;
+		} finally {
+			//never leave a caller waiting
+			for(Batch pending : group)
+				pending.written.countDown();
+		}
+	}
+
+	private void commit(List<Batch> group, int groupSize) {
+		// Flatten the fingerprints of the group into arrays and sort them by key and value
+		long[] keys = new long[groupSize];
+		int[] values = new int[groupSize * intsPerValue];
+		int index = 0;
+		for(Batch batch : group) {
+			for(long[] data : batch.fingerprints) {
+				keys[index] = data[0];
+				for(int i = 0 ; i < intsPerValue ; i++)
+					values[index * intsPerValue + i] = (int) data[i + 1];
+				index++;
+			}
+		}
+		int[] order = new int[groupSize];
+		for(int i = 0 ; i < groupSize ; i++)
+			order[i] = i;
+		sort(order, 0, groupSize - 1, keys, values);
+
+		try (Txn<ByteBuffer> txn = env.txnWrite()) {
+			final ByteBuffer key = ByteBuffer.allocateDirect(8).order(ByteOrder.LITTLE_ENDIAN);
+			final ByteBuffer val = ByteBuffer.allocateDirect(4 * intsPerValue);
+
+			final Cursor<ByteBuffer> c = fingerprints.openCursor(txn);
+
+			// Keys larger than the largest stored key can be appended
+			boolean hasLargestKey = false;
+			long largestKey = 0;
+			if(append && c.last()) {
+				hasLargestKey = true;
+				largestKey = c.key().order(ByteOrder.LITTLE_ENDIAN).getLong(0);
+			}
+
+			int previous = -1;
+			for(int i = 0 ; i < groupSize ; i++) {
+				int current = order[i];
+				boolean sameKey = previous != -1 && keys[previous] == keys[current];
+				// an identical fingerprint is already put
+				if(sameKey && compare(previous, current, keys, values) == 0)
+					continue;
+
+				key.putLong(keys[current]).flip();
+				for(int j = 0 ; j < intsPerValue ; j++)
+					val.putInt(values[current * intsPerValue + j]);
+				val.flip();
+
+				if(append && (!hasLargestKey || Long.compareUnsigned(keys[current], largestKey) > 0))
+					c.put(key, val, sameKey ? PutFlags.MDB_APPENDDUP : PutFlags.MDB_APPEND);
+				else
+					c.put(key, val);
+
+				key.clear();
+				val.clear();
+				previous = current;
+			}
+			c.close();
+
+			final ByteBuffer metadataKey = ByteBuffer.allocateDirect(8);
+			for(Batch batch : group) {
+				for(Map.Entry<Long,ByteBuffer> entry : batch.metadata.entrySet()) {
+					metadataKey.putLong(entry.getKey()).flip();
+					resourceMap.put(txn, metadataKey, entry.getValue());
+					metadataKey.clear();
+				}
+			}
+
+			txn.commit();
+			LOG.fine(String.format("Committed %d fingerprints of %d batches", groupSize, group.size()));
+		}
+	}
+
+	/**
+	 * Compare two fingerprints in the order LMDB uses: the integer key unsigned and the value bytes
+	 * (big endian integers) unsigned.
+	 */
+	private int compare(int a, int b, long[] keys, int[] values) {
+		int c = Long.compareUnsigned(keys[a], keys[b]);
+		for(int i = 0 ; c == 0 && i < intsPerValue ; i++)
+			c = Integer.compareUnsigned(values[a * intsPerValue + i], values[b * intsPerValue + i]);
+		return c;
+	}
+
+	/**
+	 * Quick sort of the order of fingerprints, without boxing.
+	 */
+	private void sort(int[] order, int from, int to, long[] keys, int[] values) {
+		while(from < to) {
+			int pivot = order[(from + to) >>> 1];
+			int i = from, j = to;
+			while(i <= j) {
+				while(compare(order[i], pivot, keys, values) < 0) i++;
+				while(compare(order[j], pivot, keys, values) > 0) j--;
+				if(i <= j) {
+					int tmp = order[i];
+					order[i] = order[j];
+					order[j] = tmp;
+					i++;
+					j--;
+				}
+			}
+			// recurse into the smaller part to bound the stack depth
+			if(j - from < to - i) {
+				sort(order, from, j, keys, values);
+				from = i;
+			} else {
+				sort(order, i, to, keys, values);
+				to = j;
+			}
+		}
+	}
+}
@@ -0,0 +1,87 @@
+/***************************************************************************
+*                                                                          *
+* Panako - acoustic fingerprinting                                         *
+* Copyright (C) 2014 - 2022 - Joren Six / IPEM                             *
+*                                                                          *
+* This program is free software: you can redistribute it and/or modify     *
+* it under the terms of the GNU Affero General Public License as           *
+* published by the Free Software Foundation, either version 3 of the       *
+* License, or (at your option) any later version.                          *
+*                                                                          *
+* This program is distributed in the hope that it will be useful,          *
+* but WITHOUT ANY WARRANTY; without even the implied warranty of           *
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the            *
+* GNU Affero General Public License for more details.                      *
+*                                                                          *
+* You should have received a copy of the GNU Affero General Public License *
+* along with this program.  If not, see <http://www.gnu.org/licenses/>     *
+*                                                                          *
+****************************************************************************
+*    ______   ________   ___   __    ________   ___   ___   ______         *
+*   /_____/\ /_______/\ /__/\ /__/\ /_______/\ /___/\/__/\ /_____/\        *
+*   \:::_ \ \\::: _  \ \\::\_\\  \ \\::: _  \ \\::.\ \\ \ \\:::_ \ \       *
+*    \:(_) \ \\::(_)  \ \\:. `-\  \ \\::(_)  \ \\:: \/_) \ \\:\ \ \ \      *
+*     \: ___\/ \:: __  \ \\:. _    \ \\:: __  \ \\:. __  ( ( \:\ \ \ \     *
+*      \ \ \    \:.\ \  \ \\. \`-\  \ \\:.\ \  \ \\: \ )  \ \ \:\_\ \ \    *
+*       \_\/     \__\/\__\/ \__\/ \__\/ \__\/\__\/ \__\/\__\/  \_____\/    *
+*                                                                          *
+****************************************************************************
+*                                                                          *
+*                              Panako                                      *
+*                       Acoustic Fingerprinting                            *
+*                                                                          *
+****************************************************************************/
+
+package be.panako.util;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A read-only array of bytes mapped from a region of a file. A mapping holds at most 2GB so
+ * the region is mapped in segments, like {@link MappedLongArray}.
+ */
+public class MappedByteArray {
+
+	private static final int SEGMENT_SHIFT = 30;
+	// 2^30 bytes, 1GB per segment
+	private static final int SEGMENT_SIZE = 1 << SEGMENT_SHIFT;
+	private static final int SEGMENT_MASK = SEGMENT_SIZE - 1;
+
+	private final MappedByteBuffer[] segments;
+	private final long length;
+
+	/**
+	 * Maps a region of a file.
+	 * @param channel The channel of the file, opened for reading.
+	 * @param offset The position of the first byte in the file.
+	 * @param length The number of bytes.
+	 * @throws IOException If the region could not be mapped.
+	 */
+	public MappedByteArray(FileChannel channel, long offset, long length) throws IOException {
+		this.length = length;
+		int numberOfSegments = (int) ((length + SEGMENT_SIZE - 1) >>> SEGMENT_SHIFT);
+		segments = new MappedByteBuffer[numberOfSegments];
+		for(int i = 0 ; i < numberOfSegments ; i++) {
+			long segmentStart = (long) i << SEGMENT_SHIFT;
+			long segmentLength = Math.min(SEGMENT_SIZE, length - segmentStart);
+			segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, offset + segmentStart, segmentLength);
+		}
+	}
+
+	/**
+	 * @param index The index of the byte.
+	 * @return The byte at the index.
+	 */
+	public byte get(long index) {
+		return segments[(int) (index >>> SEGMENT_SHIFT)].get((int) (index & SEGMENT_MASK));
+	}
+
+	/**
+	 * @return The number of bytes.
+	 */
+	public long length() {
+		return length;
+	}
+}
@@ -0,0 +1,93 @@
+/***************************************************************************
+*                                                                          *
+* Panako - acoustic fingerprinting                                         *
+* Copyright (C) 2014 - 2022 - Joren Six / IPEM                             *
+*                                                                          *
+* This program is free software: you can redistribute it and/or modify     *
+* it under the terms of the GNU Affero General Public License as           *
+* published by the Free Software Foundation, either version 3 of the       *
+* License, or (at your option) any later version.                          *
+*                                                                          *
+* This program is distributed in the hope that it will be useful,          *
+* but WITHOUT ANY WARRANTY; without even the implied warranty of           *
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the            *
+* GNU Affero General Public License for more details.                      *
+*                                                                          *
+* You should have received a copy of the GNU Affero General Public License *
+* along with this program.  If not, see <http://www.gnu.org/licenses/>     *
+*                                                                          *
+****************************************************************************
+*    ______   ________   ___   __    ________   ___   ___   ______         *
+*   /_____/\ /_______/\ /__/\ /__/\ /_______/\ /___/\/__/\ /_____/\        *
+*   \:::_ \ \\::: _  \ \\::\_\\  \ \\::: _  \ \\::.\ \\ \ \\:::_ \ \       *
+*    \:(_) \ \\::(_)  \ \\:. `-\  \ \\::(_)  \ \\:: \/_) \ \\:\ \ \ \      *
+*     \: ___\/ \:: __  \ \\:. _    \ \\:: __  \ \\:. __  ( ( \:\ \ \ \     *
+*      \ \ \    \:.\ \  \ \\. \`-\  \ \\:.\ \  \ \\: \ )  \ \ \:\_\ \ \    *
+*       \_\/     \__\/\__\/ \__\/ \__\/ \__\/\__\/ \__\/\__\/  \_____\/    *
+*                                                                          *
+****************************************************************************
+*                                                                          *
+*                              Panako                                      *
+*                       Acoustic Fingerprinting                            *
+*                                                                          *
+****************************************************************************/
+
+package be.panako.util;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A read-only array of little endian longs mapped from a region of a file. A mapping holds at most
+ * 2GB so the region is mapped in segments, like {@link OffHeapLongArray}.
+ *
+ * The mapped pages live in the page cache of the operating system: they are shared by all processes
+ * which map the same file and they are only read from disk when accessed. The mapping stays valid after
+ * the channel is closed and is released when the array is garbage collected.
+ */
+public class MappedLongArray {
+
+	private static final int SEGMENT_SHIFT = 27;
+	// 2^27 longs, 1GB per segment
+	private static final int SEGMENT_SIZE = 1 << SEGMENT_SHIFT;
+	private static final int SEGMENT_MASK = SEGMENT_SIZE - 1;
+
+	private final LongBuffer[] segments;
+	private final long length;
+
+	/**
+	 * Maps a region of a file.
+	 * @param channel The channel of the file, opened for reading.
+	 * @param offset The position of the first element in the file, in bytes.
+	 * @param length The number of elements.
+	 * @throws IOException If the region could not be mapped.
+	 */
+	public MappedLongArray(FileChannel channel, long offset, long length) throws IOException {
+		this.length = length;
+		int numberOfSegments = (int) ((length + SEGMENT_SIZE - 1) >>> SEGMENT_SHIFT);
+		segments = new LongBuffer[numberOfSegments];
+		for(int i = 0 ; i < numberOfSegments ; i++) {
+			long segmentStart = (long) i << SEGMENT_SHIFT;
+			long segmentLength = Math.min(SEGMENT_SIZE, length - segmentStart);
+			segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, offset + segmentStart * Long.BYTES, segmentLength * Long.BYTES)
+					.order(ByteOrder.LITTLE_ENDIAN).asLongBuffer();
+		}
+	}
+
+	/**
+	 * @param index The index of the element.
+	 * @return The element at the index.
+	 */
+	public long get(long index) {
+		return segments[(int) (index >>> SEGMENT_SHIFT)].get((int) (index & SEGMENT_MASK));
+	}
+
+	/**
+	 * @return The number of elements.
+	 */
+	public long length() {
+		return length;
+	}
+}
@@ -0,0 +1,374 @@
+/***************************************************************************
+*                                                                          *
+* Panako - acoustic fingerprinting                                         *
+* Copyright (C) 2014 - 2022 - Joren Six / IPEM                             *
+*                                                                          *
+* This program is free software: you can redistribute it and/or modify     *
+* it under the terms of the GNU Affero General Public License as           *
+* published by the Free Software Foundation, either version 3 of the       *
+* License, or (at your option) any later version.                          *
+*                                                                          *
+* This program is distributed in the hope that it will be useful,          *
+* but WITHOUT ANY WARRANTY; without even the implied warranty of           *
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the            *
+* GNU Affero General Public License for more details.                      *
+*                                                                          *
+* You should have received a copy of the GNU Affero General Public License *
+* along with this program.  If not, see <http://www.gnu.org/licenses/>     *
+*                                                                          *
+****************************************************************************
+*    ______   ________   ___   __    ________   ___   ___   ______         *
+*   /_____/\ /_______/\ /__/\ /__/\ /_______/\ /___/\/__/\ /_____/\        *
+*   \:::_ \ \\::: _  \ \\::\_\\  \ \\::: _  \ \\::.\ \\ \ \\:::_ \ \       *
+*    \:(_) \ \\::(_)  \ \\:. `-\  \ \\::(_)  \ \\:: \/_) \ \\:\ \ \ \      *
+*     \: ___\/ \:: __  \ \\:. _    \ \\:: __  \ \\:. __  ( ( \:\ \ \ \     *
+*      \ \ \    \:.\ \  \ \\. \`-\  \ \\:.\ \  \ \\: \ )  \ \ \:\_\ \ \    *
+*       \_\/     \__\/\__\/ \__\/ \__\/ \__\/\__\/ \__\/\__\/  \_____\/    *
+*                                                                          *
+****************************************************************************
+*                                                                          *
+*                              Panako                                      *
+*                       Acoustic Fingerprinting                            *
+*                                                                          *
+****************************************************************************/
+
+
+
+package be.panako.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.logging.Logger;
+
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.UnsupportedAudioFileException;
+
+import be.tarsos.dsp.io.TarsosDSPAudioFormat;
+import be.tarsos.dsp.io.TarsosDSPAudioInputStream;
+
+/**
+ * Decodes audio in process, without starting a decoder pipe. Only the formats the Java sound API
+ * supports out of the box are decoded: uncompressed WAV, AIFF and AU. No service provider for
+ * compressed formats such as FLAC or MP3 is part of the build, so these are left to the decoder pipe,
+ * unless a provider is added to the class path. The decoded audio is mixed to mono and resampled to
+ * the requested sample rate while it is read, with a windowed sinc resampler.
+ */
+public class NativeAudioDecoder {
+	private final static Logger LOG = Logger.getLogger(NativeAudioDecoder.class.getName());
+
+	/**
+	 * Hide default constructor
+	 */
+	private NativeAudioDecoder(){}
+
+	/**
+	 * Open an audio file for decoding.
+	 * @param resource The path of the audio file.
+	 * @param sampleRate The target sample rate.
+	 * @param startTimeOffset The start of the audio, in seconds.
+	 * @param numberOfSeconds The duration of the audio, in seconds. Zero or less to decode until the end.
+	 * @return A stream with mono, signed 16 bit little endian audio at the target sample rate or null if the format is not supported.
+	 */
+	public static TarsosDSPAudioInputStream open(String resource, int sampleRate, double startTimeOffset, double numberOfSeconds){
+		File file = new File(resource);
+		if(!file.isFile())
+			return null;
+		AudioInputStream in = null;
+		try {
+			in = toPcm(AudioSystem.getAudioInputStream(file));
+			if(in == null)
+				return null;
+			AudioFormat format = in.getFormat();
+			long framesToSkip = Math.round(startTimeOffset * format.getFrameRate());
+			long bytesToSkip = framesToSkip * format.getFrameSize();
+			while(bytesToSkip > 0) {
+				long skipped = in.skip(bytesToSkip);
+				if(skipped <= 0)
+					break;
+				bytesToSkip -= skipped;
+			}
+			long maxSamples = numberOfSeconds > 0 ? Math.round(numberOfSeconds * sampleRate) : Long.MAX_VALUE;
+			LOG.info(String.format("Decoding '%s' in process: %s", resource, format));
+			return new ResamplingStream(in, sampleRate, maxSamples);
+		} catch (UnsupportedAudioFileException | IOException e) {
+			LOG.info(String.format("Can not decode '%s' in process: %s", resource, e.getMessage()));
+			if(in != null) {
+				try {
+					in.close();
+				} catch (IOException closeException) {
+					//not decoded anyway
+				}
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * Determine the duration of an audio file from its header, without decoding.
+	 * @param file The audio file.
+	 * @return The duration in seconds or -1 if the duration is unknown.
+	 */
+	public static float duration(File file){
+		try {
+			AudioFileFormat fileFormat = AudioSystem.getAudioFileFormat(file);
+			float frameRate = fileFormat.getFormat().getFrameRate();
+			if(fileFormat.getFrameLength() == AudioSystem.NOT_SPECIFIED || frameRate <= 0)
+				return -1;
+			return fileFormat.getFrameLength() / frameRate;
+		} catch (UnsupportedAudioFileException | IOException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Converts a stream to linear PCM if needed.
+	 * @return A PCM stream or null if no conversion is available.
+	 */
+	private static AudioInputStream toPcm(AudioInputStream in) throws IOException {
+		AudioFormat format = in.getFormat();
+		AudioFormat.Encoding encoding = format.getEncoding();
+		int bits = format.getSampleSizeInBits();
+		boolean supported = (encoding.equals(AudioFormat.Encoding.PCM_SIGNED) && (bits == 8 || bits == 16 || bits == 24 || bits == 32))
+				|| (encoding.equals(AudioFormat.Encoding.PCM_UNSIGNED) && bits == 8)
+				|| (encoding.equals(AudioFormat.Encoding.PCM_FLOAT) && (bits == 32 || bits == 64));
+		if(supported)
+			return in;
+
+		AudioFormat target = new AudioFormat(AudioFormat.Encoding.PCM_SIGNED, format.getSampleRate(), 16,
+				format.getChannels(), format.getChannels() * 2, format.getSampleRate(), false);
+		if(!AudioSystem.isConversionSupported(target, format)) {
+			in.close();
+			return null;
+		}
+		return AudioSystem.getAudioInputStream(target, in);
+	}
+
+	/**
+	 * Mixes PCM audio to mono and resamples it while it is read.
+	 */
+	private static class ResamplingStream implements TarsosDSPAudioInputStream {
+		//zero crossings of the sinc kernel on each side
+		private static final int ZERO_CROSSINGS = 16;
+		//kernel values per input sample
+		private static final int KERNEL_RESOLUTION = 256;
+		//the pass band as a fraction of the Nyquist frequency
+		private static final double ROLLOFF = 0.95;
+
+		private final AudioInputStream in;
+		private final AudioFormat inFormat;
+		private final TarsosDSPAudioFormat format;
+		private final long maxSamples;
+
+		private final byte[] inBytes;
+		private int inByteCount = 0;
+		private final int bytesPerSample;
+		private final boolean unsigned;
+		private final boolean floatingPoint;
+		private final boolean bigEndian;
+		private final float scale;
+		private boolean inputEnded = false;
+
+		//mono input samples, sample inputBase is at index zero
+		private float[] input = new float[8192];
+		private long inputBase = 0;
+		private int inputCount = 0;
+
+		private final boolean resample;
+		private final double step;
+		private final double halfWidth;
+		private final float[] kernel;
+
+		private long outputIndex = 0;
+		private final byte[] outBytes = new byte[8192];
+		private int outByteOffset = 0;
+		private int outByteCount = 0;
+
+		ResamplingStream(AudioInputStream in, int sampleRate, long maxSamples) {
+			this.in = in;
+			this.inFormat = in.getFormat();
+			this.format = new TarsosDSPAudioFormat(sampleRate, 16, 1, true, false);
+			this.maxSamples = maxSamples;
+			this.inBytes = new byte[inFormat.getFrameSize() * 4096];
+			this.bytesPerSample = inFormat.getFrameSize() / inFormat.getChannels();
+			this.unsigned = inFormat.getEncoding().equals(AudioFormat.Encoding.PCM_UNSIGNED);
+			this.floatingPoint = inFormat.getEncoding().equals(AudioFormat.Encoding.PCM_FLOAT);
+			this.bigEndian = inFormat.isBigEndian();
+			this.scale = 1.0f / (1L << (8 * bytesPerSample - 1));
+
+			double inRate = inFormat.getSampleRate();
+			this.resample = Math.round(inRate) != sampleRate;
+			this.step = inRate / sampleRate;
+			//low pass below the lowest Nyquist frequency, in cycles per input sample
+			double cutoff = 0.5 * Math.min(1.0, sampleRate / inRate) * ROLLOFF;
+			this.halfWidth = ZERO_CROSSINGS / (2 * cutoff);
+			this.kernel = new float[(int) Math.ceil(halfWidth * KERNEL_RESOLUTION) + 2];
+			for(int i = 0 ; i < kernel.length ; i++) {
+				double x = i / (double) KERNEL_RESOLUTION;
+				if(x > halfWidth)
+					continue;
+				double sinc = x == 0 ? 1 : Math.sin(2 * Math.PI * cutoff * x) / (2 * Math.PI * cutoff * x);
+				//Blackman window
+				double phase = Math.PI * (x / halfWidth + 1);
+				double window = 0.42 - 0.5 * Math.cos(phase) + 0.08 * Math.cos(2 * phase);
+				kernel[i] = (float) (2 * cutoff * sinc * window);
+			}
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if(outByteCount == 0) {
+				fillOutput();
+				if(outByteCount == 0)
+					return -1;
+			}
+			int bytesRead = Math.min(len, outByteCount);
+			System.arraycopy(outBytes, outByteOffset, b, off, bytesRead);
+			outByteOffset += bytesRead;
+			outByteCount -= bytesRead;
+			return bytesRead;
+		}
+
+		private void fillOutput() throws IOException {
+			outByteOffset = 0;
+			while(outByteCount + 2 <= outBytes.length && outputIndex < maxSamples) {
+				float sample;
+				if(resample) {
+					double t = outputIndex * step;
+					long last = (long) Math.floor(t + halfWidth);
+					if(!ensureInput(last) && t >= inputBase + inputCount)
+						break;
+					sample = interpolate(t);
+				} else {
+					if(!ensureInput(outputIndex))
+						break;
+					sample = input[(int) (outputIndex - inputBase)];
+				}
+				int value = Math.round(sample * 32768f);
+				value = Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, value));
+				outBytes[outByteCount++] = (byte) value;
+				outBytes[outByteCount++] = (byte) (value >> 8);
+				outputIndex++;
+			}
+		}
+
+		private float interpolate(double t) {
+			long first = (long) Math.ceil(t - halfWidth);
+			long last = (long) Math.floor(t + halfWidth);
+			//input before the kernel is not needed any more
+			discardInput(first);
+			float sum = 0;
+			for(long k = Math.max(first, inputBase) ; k <= last && k < inputBase + inputCount ; k++) {
+				double position = Math.abs(t - k) * KERNEL_RESOLUTION;
+				int index = (int) position;
+				float fraction = (float) (position - index);
+				float weight = kernel[index] + fraction * (kernel[index + 1] - kernel[index]);
+				sum += weight * input[(int) (k - inputBase)];
+			}
+			return sum;
+		}
+
+		/**
+		 * Reads input until the sample with the given index is available.
+		 * @return False if the input ends before the sample.
+		 */
+		private boolean ensureInput(long index) throws IOException {
+			while(index >= inputBase + inputCount) {
+				if(inputEnded || !readInput())
+					return false;
+			}
+			return true;
+		}
+
+		private void discardInput(long firstNeeded) {
+			int discard = (int) Math.min(inputCount, firstNeeded - inputBase);
+			if(discard < input.length / 2)
+				return;
+			System.arraycopy(input, discard, input, 0, inputCount - discard);
+			inputCount -= discard;
+			inputBase += discard;
+		}
+
+		/**
+		 * Reads, mixes and appends a block of input samples.
+		 * @return False at the end of the input.
+		 */
+		private boolean readInput() throws IOException {
+			int bytesRead = in.read(inBytes, inByteCount, inBytes.length - inByteCount);
+			if(bytesRead == -1) {
+				inputEnded = true;
+				return false;
+			}
+			inByteCount += bytesRead;
+			int frameSize = inFormat.getFrameSize();
+			int frames = inByteCount / frameSize;
+			if(inputCount + frames > input.length) {
+				if(!resample)
+					discardInput(outputIndex);
+				if(inputCount + frames > input.length)
+					input = Arrays.copyOf(input, Math.max(input.length * 2, inputCount + frames));
+			}
+			int channels = inFormat.getChannels();
+			for(int frame = 0 ; frame < frames ; frame++) {
+				float sum = 0;
+				for(int channel = 0 ; channel < channels ; channel++)
+					sum += sample(frame * frameSize + channel * bytesPerSample);
+				input[inputCount++] = sum / channels;
+			}
+			//keep an incomplete frame for the next read
+			int remaining = inByteCount - frames * frameSize;
+			System.arraycopy(inBytes, frames * frameSize, inBytes, 0, remaining);
+			inByteCount = remaining;
+			return true;
+		}
+
+		private float sample(int offset) {
+			if(unsigned)
+				return ((inBytes[offset] & 0xFF) - 128) / 128f;
+			long bits = 0;
+			for(int i = 0 ; i < bytesPerSample ; i++) {
+				int b = inBytes[offset + (bigEndian ? i : bytesPerSample - 1 - i)] & 0xFF;
+				bits = (bits << 8) | b;
+			}
+			if(floatingPoint)
+				return bytesPerSample == 4 ? Float.intBitsToFloat((int) bits) : (float) Double.longBitsToDouble(bits);
+			//sign extend
+			int shift = 64 - 8 * bytesPerSample;
+			return ((bits << shift) >> shift) * scale;
+		}
+
+		@Override
+		public long skip(long bytesToSkip) throws IOException {
+			long skipped = 0;
+			byte[] buffer = new byte[4096];
+			while(skipped < bytesToSkip) {
+				int bytesRead = read(buffer, 0, (int) Math.min(buffer.length, bytesToSkip - skipped));
+				if(bytesRead == -1)
+					break;
+				skipped += bytesRead;
+			}
+			return skipped;
+		}
+
+		@Override
+		public void close() throws IOException {
+			in.close();
+		}
+
+		@Override
+		public TarsosDSPAudioFormat getFormat() {
+			return format;
+		}
+
+		@Override
+		public long getFrameLength() {
+			long frames = in.getFrameLength();
+			if(frames == AudioSystem.NOT_SPECIFIED)
+				return -1;
+			return Math.min(maxSamples, (long) (frames / step));
+		}
+	}
+}
@@ -0,0 +1,108 @@
+/***************************************************************************
+*                                                                          *
+* Panako - acoustic fingerprinting                                         *
+* Copyright (C) 2014 - 2022 - Joren Six / IPEM                             *
+*                                                                          *
+* This program is free software: you can redistribute it and/or modify     *
+* it under the terms of the GNU Affero General Public License as           *
+* published by the Free Software Foundation, either version 3 of the       *
+* License, or (at your option) any later version.                          *
+*                                                                          *
+* This program is distributed in the hope that it will be useful,          *
+* but WITHOUT ANY WARRANTY; without even the implied warranty of           *
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the            *
+* GNU Affero General Public License for more details.                      *
+*                                                                          *
+* You should have received a copy of the GNU Affero General Public License *
+* along with this program.  If not, see <http://www.gnu.org/licenses/>     *
+*                                                                          *
+****************************************************************************
+*    ______   ________   ___   __    ________   ___   ___   ______         *
+*   /_____/\ /_______/\ /__/\ /__/\ /_______/\ /___/\/__/\ /_____/\        *
+*   \:::_ \ \\::: _  \ \\::\_\\  \ \\::: _  \ \\::.\ \\ \ \\:::_ \ \       *
+*    \:(_) \ \\::(_)  \ \\:. `-\  \ \\::(_)  \ \\:: \/_) \ \\:\ \ \ \      *
+*     \: ___\/ \:: __  \ \\:. _    \ \\:: __  \ \\:. __  ( ( \:\ \ \ \     *
+*      \ \ \    \:.\ \  \ \\. \`-\  \ \\:.\ \  \ \\: \ )  \ \ \:\_\ \ \    *
+*       \_\/     \__\/\__\/ \__\/ \__\/ \__\/\__\/ \__\/\__\/  \_____\/    *
+*                                                                          *
+****************************************************************************
+*                                                                          *
+*                              Panako                                      *
+*                       Acoustic Fingerprinting                            *
+*                                                                          *
+****************************************************************************/
+
+package be.panako.util;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+
+/**
+ * A fixed length array of longs stored outside of the Java heap. A direct buffer holds at most
+ * 2GB so the array is split in segments, which allows arrays with more than 2^28 elements.
+ *
+ * The memory does not count towards the heap but towards the direct memory limit of the JVM
+ * (-XX:MaxDirectMemorySize). It is released when the array is garbage collected.
+ * An instance is not thread safe.
+ */
+public class OffHeapLongArray {
+
+	private static final int SEGMENT_SHIFT = 27;
+	// 2^27 longs, 1GB per segment
+	private static final int SEGMENT_SIZE = 1 << SEGMENT_SHIFT;
+	private static final int SEGMENT_MASK = SEGMENT_SIZE - 1;
+
+	private final LongBuffer[] segments;
+	private final long length;
+
+	/**
+	 * Allocates a new array filled with zeros.
+	 * @param length The number of elements.
+	 */
+	public OffHeapLongArray(long length) {
+		this.length = length;
+		int numberOfSegments = (int) ((length + SEGMENT_SIZE - 1) >>> SEGMENT_SHIFT);
+		segments = new LongBuffer[numberOfSegments];
+		for(int i = 0 ; i < numberOfSegments ; i++) {
+			long segmentLength = Math.min(SEGMENT_SIZE, length - ((long) i << SEGMENT_SHIFT));
+			segments[i] = ByteBuffer.allocateDirect((int) segmentLength * Long.BYTES).order(ByteOrder.nativeOrder()).asLongBuffer();
+		}
+	}
+
+	/**
+	 * @param index The index of the element.
+	 * @return The element at the index.
+	 */
+	public long get(long index) {
+		return segments[(int) (index >>> SEGMENT_SHIFT)].get((int) (index & SEGMENT_MASK));
+	}
+
+	/**
+	 * @param index The index of the element.
+	 * @param value The new value of the element.
+	 */
+	public void set(long index, long value) {
+		segments[(int) (index >>> SEGMENT_SHIFT)].put((int) (index & SEGMENT_MASK), value);
+	}
+
+	/**
+	 * @return The number of elements.
+	 */
+	public long length() {
+		return length;
+	}
+
+	/**
+	 * Copies elements from one array to another.
+	 * @param source The array to copy from.
+	 * @param sourceIndex The first element to copy.
+	 * @param target The array to copy to.
+	 * @param targetIndex The index of the first copied element in the target.
+	 * @param count The number of elements to copy.
+	 */
+	public static void copy(OffHeapLongArray source, long sourceIndex, OffHeapLongArray target, long targetIndex, long count) {
+		for(long i = 0 ; i < count ; i++)
+			target.set(targetIndex + i, source.get(sourceIndex + i));
+	}
+}
@@ -0,0 +1,361 @@
+/***************************************************************************
+*                                                                          *
+* Panako - acoustic fingerprinting                                         *
+* Copyright (C) 2014 - 2022 - Joren Six / IPEM                             *
+*                                                                          *
+* This program is free software: you can redistribute it and/or modify     *
+* it under the terms of the GNU Affero General Public License as           *
+* published by the Free Software Foundation, either version 3 of the       *
+* License, or (at your option) any later version.                          *
+*                                                                          *
+* This program is distributed in the hope that it will be useful,          *
+* but WITHOUT ANY WARRANTY; without even the implied warranty of           *
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the            *
+* GNU Affero General Public License for more details.                      *
+*                                                                          *
+* You should have received a copy of the GNU Affero General Public License *
+* along with this program.  If not, see <http://www.gnu.org/licenses/>     *
+*                                                                          *
+****************************************************************************
+*    ______   ________   ___   __    ________   ___   ___   ______         *
+*   /_____/\ /_______/\ /__/\ /__/\ /_______/\ /___/\/__/\ /_____/\        *
+*   \:::_ \ \\::: _  \ \\::\_\\  \ \\::: _  \ \\::.\ \\ \ \\:::_ \ \       *
+*    \:(_) \ \\::(_)  \ \\:. `-\  \ \\::(_)  \ \\:: \/_) \ \\:\ \ \ \      *
+*     \: ___\/ \:: __  \ \\:. _    \ \\:: __  \ \\:. __  ( ( \:\ \ \ \     *
+*      \ \ \    \:.\ \  \ \\. \`-\  \ \\:.\ \  \ \\: \ )  \ \ \:\_\ \ \    *
+*       \_\/     \__\/\__\/ \__\/ \__\/ \__\/\__\/ \__\/\__\/  \_____\/    *
+*                                                                          *
+****************************************************************************
+*                                                                          *
+*                              Panako                                      *
+*                       Acoustic Fingerprinting                            *
+*                                                                          *
+****************************************************************************/
+
+
+
+package be.panako.util;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.logging.Logger;
+
+import be.tarsos.dsp.io.TarsosDSPAudioFormat;
+import be.tarsos.dsp.io.TarsosDSPAudioInputStream;
+
+/**
+ * An on-disk cache of decoded, resampled audio. Each cache file holds the raw mono samples of an audio file
+ * at one sample rate, signed 16 bit little endian. Cache files are named after the content hash
+ * (see {@link FileUtils#getFileHash(File)}), the size of the audio file and the sample rate. Cached audio
+ * is read through a memory map.
+ *
+ * The cache is filled while a complete audio file is decoded: the decoded samples are written to a temporary
+ * file which only becomes a cache file when the decoder reaches the end of the audio and succeeded. A decoder
+ * which reports its status (see {@link DecoderStatus}) is trusted, for other decoders the decoded audio should
+ * be about as long as the reported duration of the audio. When the cache grows
+ * beyond {@link Key#DECODER_CACHE_SIZE} the least recently used files are removed.
+ */
+public class PcmCache {
+	private final static Logger LOG = Logger.getLogger(PcmCache.class.getName());
+
+	private static final String EXTENSION = ".pcm";
+
+	/**
+	 * Decoded audio may be a bit shorter than the reported duration, e.g. due to encoder padding.
+	 */
+	private static final double DURATION_TOLERANCE_SECONDS = 0.5;
+	private static final double DURATION_TOLERANCE_RATIO = 0.01;
+
+	/**
+	 * A decoded stream which knows whether its decoder succeeded, e.g. from the exit status of a decoder process.
+	 */
+	public interface DecoderStatus {
+		/**
+		 * Called at the end of the decoded audio.
+		 * @return True if the decoder exited successfully, false if it failed or stopped early.
+		 */
+		boolean succeeded();
+	}
+
+	/**
+	 * Hide default constructor
+	 */
+	private PcmCache(){}
+
+	/**
+	 * @return True if the decoded audio cache is enabled.
+	 */
+	public static boolean isEnabled(){
+		return Config.getBoolean(Key.DECODER_CACHE);
+	}
+
+	/**
+	 * Open cached audio.
+	 * @param resource The path of the audio file.
+	 * @param sampleRate The sample rate of the decoded audio.
+	 * @param startTimeOffset The start of the returned audio, in seconds.
+	 * @param numberOfSeconds The duration of the returned audio, in seconds. Zero or less for all audio until the end.
+	 * @return A stream with the cached audio or null if the audio is not cached.
+	 */
+	public static TarsosDSPAudioInputStream open(String resource, int sampleRate, double startTimeOffset, double numberOfSeconds){
+		File cacheFile = cacheFile(resource, sampleRate);
+		if(cacheFile == null || !cacheFile.isFile() || cacheFile.length() > Integer.MAX_VALUE)
+			return null;
+
+		ByteBuffer samples;
+		try(FileChannel channel = FileChannel.open(cacheFile.toPath(), StandardOpenOption.READ)) {
+			samples = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		} catch (IOException e) {
+			LOG.warning(String.format("Could not read cached audio '%s': %s", cacheFile, e.getMessage()));
+			return null;
+		}
+		//mark as recently used
+		cacheFile.setLastModified(System.currentTimeMillis());
+
+		int start = (int) Math.min(samples.limit(), Math.round(startTimeOffset * sampleRate) * 2);
+		int stop = samples.limit();
+		if(numberOfSeconds > 0)
+			stop = (int) Math.min(stop, start + Math.round(numberOfSeconds * sampleRate) * 2);
+		samples.position(start).limit(stop);
+		LOG.info(String.format("Read %.3f s of cached audio from '%s' for '%s'", (stop - start) / 2.0 / sampleRate, cacheFile, resource));
+		return new CachedAudioStream(samples.slice(), format(sampleRate));
+	}
+
+	/**
+	 * Wraps the stream of a decoder so the decoded audio is cached when the decoder reaches the end of the audio.
+	 * @param resource The path of the audio file.
+	 * @param sampleRate The sample rate of the decoded audio.
+	 * @param decoded The stream with all decoded audio, from the start.
+	 * @return A stream which writes to the cache while reading, or the given stream if the audio can not be cached.
+	 */
+	public static TarsosDSPAudioInputStream fill(String resource, int sampleRate, TarsosDSPAudioInputStream decoded){
+		File cacheFile = cacheFile(resource, sampleRate);
+		if(cacheFile == null)
+			return decoded;
+		try {
+			File folder = cacheFile.getParentFile();
+			if(!folder.isDirectory() && !folder.mkdirs())
+				throw new IOException("Could not create " + folder);
+			File temporaryFile = File.createTempFile(cacheFile.getName(), ".tmp", folder);
+			return new CachingAudioStream(resource, sampleRate, decoded, temporaryFile, cacheFile);
+		} catch (IOException e) {
+			LOG.warning(String.format("Could not cache decoded audio for '%s': %s", resource, e.getMessage()));
+			return decoded;
+		}
+	}
+
+	private static File cacheFile(String resource, int sampleRate){
+		File audioFile = new File(resource);
+		if(!audioFile.isFile())
+			return null;
+		int hash = FileUtils.getFileHash(audioFile);
+		if(hash == 0)
+			return null;
+		String folder = FileUtils.expandHomeDir(Config.get(Key.DECODER_CACHE_FOLDER));
+		String name = String.format("%08x_%d_%d%s", hash, audioFile.length(), sampleRate, EXTENSION);
+		return new File(FileUtils.combine(folder, name));
+	}
+
+	private static TarsosDSPAudioFormat format(int sampleRate){
+		return new TarsosDSPAudioFormat(sampleRate, 16, 1, true, false);
+	}
+
+	/**
+	 * Removes the least recently used cache files until the cache fits in the configured size.
+	 * @param keep A file which is never removed.
+	 */
+	private static synchronized void evict(File keep){
+		File[] files = keep.getParentFile().listFiles((dir, name) -> name.endsWith(EXTENSION));
+		if(files == null)
+			return;
+		long maxSize = Config.getInt(Key.DECODER_CACHE_SIZE) * 1024L * 1024L;
+		long size = 0;
+		for(File file : files)
+			size += file.length();
+		if(size <= maxSize)
+			return;
+
+		Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+		for(File file : files) {
+			if(size <= maxSize)
+				break;
+			if(file.equals(keep))
+				continue;
+			long length = file.length();
+			if(file.delete()) {
+				size -= length;
+				LOG.info(String.format("Removed cached audio '%s'", file));
+			}
+		}
+	}
+
+	/**
+	 * Reads cached samples from a memory mapped file.
+	 */
+	private static class CachedAudioStream implements TarsosDSPAudioInputStream {
+		private final ByteBuffer samples;
+		private final TarsosDSPAudioFormat format;
+
+		CachedAudioStream(ByteBuffer samples, TarsosDSPAudioFormat format){
+			this.samples = samples;
+			this.format = format;
+		}
+
+		@Override
+		public long skip(long bytesToSkip) {
+			int skipped = (int) Math.min(bytesToSkip, samples.remaining());
+			samples.position(samples.position() + skipped);
+			return skipped;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if(!samples.hasRemaining())
+				return -1;
+			int bytesRead = Math.min(len, samples.remaining());
+			samples.get(b, off, bytesRead);
+			return bytesRead;
+		}
+
+		@Override
+		public void close() {
+			//the memory map is released when it is garbage collected
+		}
+
+		@Override
+		public TarsosDSPAudioFormat getFormat() {
+			return format;
+		}
+
+		@Override
+		public long getFrameLength() {
+			return samples.limit() / 2;
+		}
+	}
+
+	/**
+	 * Writes decoded samples to a temporary file while they are read. At the end of the audio the temporary
+	 * file is moved into the cache if the decoder succeeded. If the decoder failed or the stream is closed
+	 * before the end the temporary file is removed.
+	 */
+	private static class CachingAudioStream implements TarsosDSPAudioInputStream {
+		private final String resource;
+		private final int sampleRate;
+		private final TarsosDSPAudioInputStream decoded;
+		private final File temporaryFile;
+		private final File cacheFile;
+		private OutputStream out;
+		private long bytesWritten;
+
+		CachingAudioStream(String resource, int sampleRate, TarsosDSPAudioInputStream decoded, File temporaryFile, File cacheFile) throws IOException {
+			this.resource = resource;
+			this.sampleRate = sampleRate;
+			this.decoded = decoded;
+			this.temporaryFile = temporaryFile;
+			this.cacheFile = cacheFile;
+			this.out = new BufferedOutputStream(new FileOutputStream(temporaryFile), 1 << 16);
+		}
+
+		@Override
+		public long skip(long bytesToSkip) throws IOException {
+			//skipped audio would be missing from the cache
+			discard();
+			return decoded.skip(bytesToSkip);
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int bytesRead = decoded.read(b, off, len);
+			if(out != null) {
+				try {
+					if(bytesRead > 0) {
+						out.write(b, off, bytesRead);
+						bytesWritten += bytesRead;
+					} else if(bytesRead == -1)
+						complete();
+				} catch (IOException e) {
+					LOG.warning(String.format("Could not cache decoded audio in '%s': %s", cacheFile, e.getMessage()));
+					discard();
+				}
+			}
+			return bytesRead;
+		}
+
+		private void complete() throws IOException {
+			if(!decodedCompletely()) {
+				discard();
+				return;
+			}
+			out.close();
+			out = null;
+			Files.move(temporaryFile.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			LOG.info(String.format("Cached %d bytes of decoded audio in '%s'", cacheFile.length(), cacheFile));
+			evict(cacheFile);
+		}
+
+		/**
+		 * The end of the decoded audio is also reached when the decoder fails or stops early.
+		 */
+		private boolean decodedCompletely() {
+			if(bytesWritten == 0) {
+				LOG.warning(String.format("No decoded audio to cache for '%s'", resource));
+				return false;
+			}
+			if(decoded instanceof DecoderStatus) {
+				boolean succeeded = ((DecoderStatus) decoded).succeeded();
+				if(!succeeded)
+					LOG.warning(String.format("Decoder failed for '%s', decoded audio is not cached", resource));
+				return succeeded;
+			}
+			double decodedDuration = bytesWritten / 2.0 / sampleRate;
+			double duration;
+			if(decoded.getFrameLength() > 0)
+				duration = decoded.getFrameLength() / (double) sampleRate;
+			else
+				duration = AudioFileUtils.audioFileDurationInSeconds(new File(resource));
+			if(duration < 0 || decodedDuration < duration * (1 - DURATION_TOLERANCE_RATIO) - DURATION_TOLERANCE_SECONDS) {
+				LOG.warning(String.format("Decoded %.3f s of the %.3f s of '%s', decoded audio is not cached", decodedDuration, duration, resource));
+				return false;
+			}
+			return true;
+		}
+
+		private void discard() {
+			if(out == null)
+				return;
+			try {
+				out.close();
+			} catch (IOException e) {
+				//the file is removed anyway
+			}
+			out = null;
+			temporaryFile.delete();
+		}
+
+		@Override
+		public void close() throws IOException {
+			discard();
+			decoded.close();
+		}
+
+		@Override
+		public TarsosDSPAudioFormat getFormat() {
+			return decoded.getFormat();
+		}
+
+		@Override
+		public long getFrameLength() {
+			return decoded.getFrameLength();
+		}
+	}
+}
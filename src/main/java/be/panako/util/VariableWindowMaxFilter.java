@@ -0,0 +1,167 @@
+/***************************************************************************
+*                                                                          *
+* Panako - acoustic fingerprinting                                         *
+* Copyright (C) 2014 - 2022 - Joren Six / IPEM                             *
+*                                                                          *
+* This program is free software: you can redistribute it and/or modify     *
+* it under the terms of the GNU Affero General Public License as           *
+* published by the Free Software Foundation, either version 3 of the       *
+* License, or (at your option) any later version.                          *
+*                                                                          *
+* This program is distributed in the hope that it will be useful,          *
+* but WITHOUT ANY WARRANTY; without even the implied warranty of           *
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the            *
+* GNU Affero General Public License for more details.                      *
+*                                                                          *
+* You should have received a copy of the GNU Affero General Public License *
+* along with this program.  If not, see <http://www.gnu.org/licenses/>     *
+*                                                                          *
+****************************************************************************
+*    ______   ________   ___   __    ________   ___   ___   ______         *
+*   /_____/\ /_______/\ /__/\ /__/\ /_______/\ /___/\/__/\ /_____/\        *
+*   \:::_ \ \\::: _  \ \\::\_\\  \ \\::: _  \ \\::.\ \\ \ \\:::_ \ \       *
+*    \:(_) \ \\::(_)  \ \\:. `-\  \ \\::(_)  \ \\:: \/_) \ \\:\ \ \ \      *
+*     \: ___\/ \:: __  \ \\:. _    \ \\:: __  \ \\:. __  ( ( \:\ \ \ \     *
+*      \ \ \    \:.\ \  \ \\. \`-\  \ \\:.\ \  \ \\: \ )  \ \ \:\_\ \ \    *
+*       \_\/     \__\/\__\/ \__\/ \__\/ \__\/\__\/ \__\/\__\/  \_____\/    *
+*                                                                          *
+****************************************************************************
+*                                                                          *
+*                              Panako                                      *
+*                       Acoustic Fingerprinting                            *
+*                                                                          *
+****************************************************************************/
+
+
+package be.panako.util;
+
+/**
+ * A max filter with a window which differs for each element: the maximum of element i is taken over
+ * the data in [windowStarts[i], windowStops[i]). It extends the streaming filter of
+ * {@link LemireMinMaxFilter} to variable windows.
+ *
+ * When both window bounds do not decrease from one element to the next, the indexes of the data
+ * which can still become a maximum are kept in a monotonic deque: each data element is added
+ * and removed at most once, so filtering takes linear time regardless of the window sizes.
+ * A window which goes back is scanned instead, so any windows give exact results.
+ *
+ * The deque is reused between calls: an instance should not be shared between threads.
+ */
+public class VariableWindowMaxFilter {
+
+	private final int[] windowStarts;
+	private final int[] windowStops;
+
+	/**
+	 * The deque with indexes of decreasing values, from head (inclusive) to tail (exclusive).
+	 */
+	private final int[] fifo;
+
+	/**
+	 * Create a new max filter with a window for each element.
+	 * @param windowStarts The start of the window of each element, inclusive.
+	 * @param windowStops The end of the window of each element, exclusive.
+	 */
+	public VariableWindowMaxFilter(int[] windowStarts, int[] windowStops){
+		if(windowStarts.length != windowStops.length){
+			throw new IllegalArgumentException("Expected a window start and stop for each element.");
+		}
+		this.windowStarts = windowStarts.clone();
+		this.windowStops = windowStops.clone();
+		int maxStop = 0;
+		for(int stop : windowStops){
+			maxStop = Math.max(maxStop, stop);
+		}
+		this.fifo = new int[maxStop];
+	}
+
+	/**
+	 * Create a max filter with the same results as a {@link LemireMinMaxFilter} with clamped edges:
+	 * the window of each element is centered on the element and clipped to the data.
+	 * @param windowSize The size of the window, it should be odd.
+	 * @param dataLength The length of the data to filter.
+	 * @return A max filter with a centered window for each element.
+	 */
+	public static VariableWindowMaxFilter centered(int windowSize, int dataLength){
+		if(windowSize%2==0){
+			throw new IllegalArgumentException("WindowSize should be odd when clamping edges, it is even.");
+		}
+		int[] starts = new int[dataLength];
+		int[] stops = new int[dataLength];
+		for(int i = 0 ; i < dataLength ; i++){
+			starts[i] = Math.max(0, i - windowSize/2);
+			stops[i] = Math.min(dataLength, i + windowSize/2 + 1);
+		}
+		return new VariableWindowMaxFilter(starts, stops);
+	}
+
+	/**
+	 * Run the max filter for all elements.
+	 * @param data The data to filter.
+	 * @param maxFiltered The maximum of the window of each element.
+	 */
+	public void maxFilter(float[] data, float[] maxFiltered){
+		maxFilter(data, maxFiltered, 0, windowStarts.length);
+	}
+
+	/**
+	 * Run the max filter for the elements in [from, to). Other elements of maxFiltered are not changed.
+	 * An empty window gives negative infinity.
+	 * @param data The data to filter.
+	 * @param maxFiltered The maximum of the window of each element.
+	 * @param from The first element to filter.
+	 * @param to The last element to filter, exclusive.
+	 */
+	public void maxFilter(float[] data, float[] maxFiltered, int from, int to){
+		int head = 0;
+		int tail = 0;
+		//the next data index to add to the deque
+		int next = Integer.MIN_VALUE;
+		int previousStart = Integer.MIN_VALUE;
+
+		for(int i = from ; i < to ; i++){
+			final int start = windowStarts[i];
+			final int stop = windowStops[i];
+
+			if(start < previousStart || stop < next){
+				//the window goes back: the deque can not be used
+				maxFiltered[i] = scan(data, start, stop);
+				continue;
+			}
+
+			if(start >= next){
+				//all indexes in the deque are before the window
+				head = 0;
+				tail = 0;
+				next = start;
+			}
+
+			//add the new data to the back, remove smaller values
+			while(next < stop){
+				final float value = data[next];
+				while(tail > head && data[fifo[tail - 1]] <= value){
+					tail--;
+				}
+				fifo[tail++] = next++;
+			}
+
+			//remove data before the window from the front
+			while(head < tail && fifo[head] < start){
+				head++;
+			}
+
+			previousStart = start;
+			maxFiltered[i] = head < tail ? data[fifo[head]] : Float.NEGATIVE_INFINITY;
+		}
+	}
+
+	private static float scan(float[] data, int start, int stop){
+		float maxValue = Float.NEGATIVE_INFINITY;
+		for(int j = start ; j < stop ; j++){
+			if(maxValue < data[j]){
+				maxValue = data[j];
+			}
+		}
+		return maxValue;
+	}
+}
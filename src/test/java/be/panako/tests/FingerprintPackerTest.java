@@ -0,0 +1,164 @@
+package be.panako.tests;
+
+import be.panako.strategy.olaf.OlafEventPoint;
+import be.panako.strategy.olaf.OlafFingerprint;
+import be.panako.strategy.olaf.OlafFingerprintPacker;
+import be.panako.strategy.panako.PanakoEventPoint;
+import be.panako.strategy.panako.PanakoFingerprint;
+import be.panako.strategy.panako.PanakoFingerprintPacker;
+import be.panako.util.Config;
+import be.panako.util.Key;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * The incremental packers should give the same fingerprints, in the same order, as packing
+ * all event points after extraction.
+ */
+class FingerprintPackerTest {
+
+    @AfterEach
+    void tearDown() {
+        Config.set(Key.OLAF_EPS_PER_FP, "3");
+    }
+
+    @Test
+    void olafPackerMatchesBatchPacking() {
+        for (String epsPerPrint : new String[]{"2", "3"}) {
+            Config.set(Key.OLAF_EPS_PER_FP, epsPerPrint);
+            for (long seed = 0; seed < 5; seed++) {
+                List<OlafEventPoint> eventPoints = new ArrayList<>();
+                for (int[] point : randomEventPoints(seed))
+                    eventPoints.add(new OlafEventPoint(point[0], point[1], point[2]));
+
+                List<OlafFingerprint> expected = packOlaf(eventPoints, "2".equals(epsPerPrint));
+                List<OlafFingerprint> packed = new ArrayList<>();
+                OlafFingerprintPacker packer = new OlafFingerprintPacker(packed::add);
+                for (OlafEventPoint eventPoint : eventPoints)
+                    packer.add(eventPoint);
+                packer.flush();
+
+                assertFalse(expected.isEmpty());
+                assertEquals(expected.size(), packed.size(), "Number of prints for seed " + seed);
+                for (int i = 0; i < expected.size(); i++) {
+                    assertEquals(expected.get(i), packed.get(i), "Print " + i + " for seed " + seed);
+                    assertEquals(expected.get(i).hash(), packed.get(i).hash());
+                }
+            }
+        }
+    }
+
+    @Test
+    void panakoPackerMatchesBatchPacking() {
+        for (long seed = 0; seed < 5; seed++) {
+            List<PanakoEventPoint> eventPoints = new ArrayList<>();
+            for (int[] point : randomEventPoints(seed))
+                eventPoints.add(new PanakoEventPoint(point[0], point[1], point[2]));
+
+            List<PanakoFingerprint> expected = packPanako(eventPoints);
+            List<PanakoFingerprint> packed = new ArrayList<>();
+            PanakoFingerprintPacker packer = new PanakoFingerprintPacker(packed::add);
+            for (PanakoEventPoint eventPoint : eventPoints)
+                packer.add(eventPoint);
+            packer.flush();
+
+            assertFalse(expected.isEmpty());
+            assertEquals(expected.size(), packed.size(), "Number of prints for seed " + seed);
+            for (int i = 0; i < expected.size(); i++) {
+                assertEquals(expected.get(i), packed.get(i), "Print " + i + " for seed " + seed);
+                assertEquals(expected.get(i).hash(), packed.get(i).hash());
+            }
+        }
+    }
+
+    /**
+     * Event points in time order, as found by the event point processors: time, frequency bin and magnitude.
+     * Dense and sparse parts, so the limits of the time and frequency distances are crossed.
+     */
+    private static List<int[]> randomEventPoints(long seed) {
+        Random random = new Random(seed);
+        List<int[]> eventPoints = new ArrayList<>();
+        int t = 0;
+        for (int i = 0; i < 3000; i++) {
+            t += random.nextInt(10) < 8 ? random.nextInt(3) : random.nextInt(60);
+            eventPoints.add(new int[]{t, random.nextInt(300), 1 + random.nextInt(100)});
+        }
+        return eventPoints;
+    }
+
+    /**
+     * The packing of all event points after extraction, as it was done before the packers.
+     */
+    private static List<OlafFingerprint> packOlaf(List<OlafEventPoint> eventPoints, boolean two) {
+        int minFreqDistance = Config.getInt(Key.OLAF_FP_MIN_FREQ_DIST);
+        int maxFreqDistance = Config.getInt(Key.OLAF_FP_MAX_FREQ_DIST);
+        int minTimeDistance = Config.getInt(Key.OLAF_FP_MIN_TIME_DIST);
+        int maxTimeDistance = Config.getInt(Key.OLAF_FP_MAX_TIME_DIST);
+
+        List<OlafFingerprint> fingerprints = new ArrayList<>();
+        for (int i = 0; i < eventPoints.size(); i++) {
+            for (int j = i + 1; j < eventPoints.size(); j++) {
+                int fDiff = Math.abs(eventPoints.get(i).f - eventPoints.get(j).f);
+                int tDiff = eventPoints.get(j).t - eventPoints.get(i).t;
+                if (tDiff > maxTimeDistance) break;
+                if (tDiff < minTimeDistance) continue;
+                if (fDiff < minFreqDistance) continue;
+                if (fDiff > maxFreqDistance) continue;
+
+                if (two) {
+                    fingerprints.add(new OlafFingerprint(eventPoints.get(i), eventPoints.get(j), eventPoints.get(j)));
+                    continue;
+                }
+                for (int k = j + 1; k < eventPoints.size(); k++) {
+                    fDiff = Math.abs(eventPoints.get(j).f - eventPoints.get(k).f);
+                    tDiff = eventPoints.get(k).t - eventPoints.get(j).t;
+                    if (tDiff > maxTimeDistance) break;
+                    if (tDiff < minTimeDistance) continue;
+                    if (fDiff < minFreqDistance) continue;
+                    if (fDiff > maxFreqDistance) continue;
+                    fingerprints.add(new OlafFingerprint(eventPoints.get(i), eventPoints.get(j), eventPoints.get(k)));
+                }
+            }
+        }
+        return fingerprints;
+    }
+
+    /**
+     * The packing of all event points after extraction, as it was done before the packers.
+     */
+    private static List<PanakoFingerprint> packPanako(List<PanakoEventPoint> eventPoints) {
+        int minFreqDistance = Config.getInt(Key.PANAKO_FP_MIN_FREQ_DIST);
+        int maxFreqDistance = Config.getInt(Key.PANAKO_FP_MAX_FREQ_DIST);
+        int minTimeDistance = Config.getInt(Key.PANAKO_FP_MIN_TIME_DIST);
+        int maxTimeDistance = Config.getInt(Key.PANAKO_FP_MAX_TIME_DIST);
+
+        List<PanakoFingerprint> fingerprints = new ArrayList<>();
+        for (int i = 0; i < eventPoints.size(); i++) {
+            for (int j = i + 1; j < eventPoints.size(); j++) {
+                int fDiff = Math.abs(eventPoints.get(i).f - eventPoints.get(j).f);
+                int tDiff = eventPoints.get(j).t - eventPoints.get(i).t;
+                if (tDiff > maxTimeDistance) break;
+                if (tDiff < minTimeDistance) continue;
+                if (fDiff < minFreqDistance) continue;
+                if (fDiff > maxFreqDistance) continue;
+
+                for (int k = j + 1; k < eventPoints.size(); k++) {
+                    fDiff = Math.abs(eventPoints.get(j).f - eventPoints.get(k).f);
+                    tDiff = eventPoints.get(k).t - eventPoints.get(j).t;
+                    if (tDiff > maxTimeDistance) break;
+                    if (tDiff < minTimeDistance) continue;
+                    if (fDiff < minFreqDistance) continue;
+                    if (fDiff > maxFreqDistance) continue;
+                    fingerprints.add(new PanakoFingerprint(eventPoints.get(i), eventPoints.get(j), eventPoints.get(k)));
+                }
+            }
+        }
+        return fingerprints;
+    }
+}
@@ -0,0 +1,86 @@
+package be.panako.tests;
+
+import be.panako.strategy.olaf.storage.OlafCacheFile;
+import be.panako.util.FileUtils;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class OlafCacheFileTest {
+
+    private final String path = FileUtils.combine(FileUtils.temporaryDirectory(), "olaf_cache_file_test.tdb");
+
+    @Test
+    void writeAppendAndRead() throws IOException {
+        OlafCacheFile.write(path, Arrays.asList(new long[]{-5L, 666, 77}, new long[]{200L, 666, 78}), false);
+        OlafCacheFile.write(path, Collections.singletonList(new long[]{Long.MAX_VALUE, 666, 1 << 20}), true);
+
+        OlafCacheFile file = OlafCacheFile.open(path);
+        assertEquals(3, file.size());
+        assertEquals(-5L, file.hash(0));
+        assertEquals(666, file.resourceIdentifier(1));
+        assertEquals(78, file.t1(1));
+        assertEquals(Long.MAX_VALUE, file.hash(2));
+        assertEquals(1 << 20, file.t1(2));
+        FileUtils.rm(path);
+    }
+
+    @Test
+    void migratesTextFiles() throws IOException {
+        FileUtils.writeFile("10 666 77\n200 666 78\n", path);
+        OlafCacheFile file = OlafCacheFile.open(path);
+        assertEquals(2, file.size());
+        assertEquals(200L, file.hash(1));
+        //the second time the binary file is read
+        assertEquals(77, OlafCacheFile.open(path).t1(0));
+        FileUtils.rm(path);
+    }
+
+    @Test
+    void migratesConcurrently() throws Exception {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 20000; i++)
+            text.append(i).append(" 666 ").append(i + 3).append("\n");
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            for (int run = 0; run < 5; run++) {
+                FileUtils.writeFile(text.toString(), path);
+                List<Future<Integer>> sizes = new ArrayList<>();
+                for (int i = 0; i < 8; i++)
+                    sizes.add(executor.submit(() -> OlafCacheFile.open(path).size()));
+                for (Future<Integer> size : sizes)
+                    assertEquals(20000, (int) size.get());
+                assertEquals(19999 + 3, OlafCacheFile.open(path).t1(19999));
+            }
+        } finally {
+            executor.shutdown();
+        }
+        //no temporary files are left behind
+        File folder = new File(path).getAbsoluteFile().getParentFile();
+        assertEquals(0, folder.list((dir, name) -> name.endsWith(".migrating")).length);
+        FileUtils.rm(path);
+    }
+
+    @Test
+    void detectsCorruption() throws IOException {
+        OlafCacheFile.write(path, Arrays.asList(new long[]{10L, 666, 77}, new long[]{200L, 666, 78}), false);
+        try (RandomAccessFile file = new RandomAccessFile(path, "rw")) {
+            file.seek(40);
+            file.write(1);
+        }
+        assertThrows(IOException.class, () -> OlafCacheFile.open(path));
+        FileUtils.rm(path);
+    }
+}
@@ -0,0 +1,109 @@
+package be.panako.tests;
+
+import be.panako.strategy.olaf.OlafEventPoint;
+import be.panako.strategy.olaf.OlafEventPointProcessor;
+import be.panako.strategy.olaf.OlafFingerprint;
+import be.panako.util.Config;
+import be.panako.util.Key;
+import be.tarsos.dsp.AudioEvent;
+import be.tarsos.dsp.io.TarsosDSPAudioFormat;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+class OlafEventPointProcessorTest {
+
+    @Test
+    void vectorApiGivesIdenticalEventPoints() {
+        int size = Config.getInt(Key.OLAF_SIZE);
+        int stepSize = Config.getInt(Key.OLAF_STEP_SIZE);
+        float sampleRate = Config.getInt(Key.OLAF_SAMPLE_RATE);
+
+        float[] samples = chirps(sampleRate, 3, 7);
+
+        String vectorApi = Config.get(Key.OLAF_VECTOR_API);
+        Config.set(Key.OLAF_VECTOR_API, "TRUE");
+        List<OlafEventPoint> vectorized = eventPoints(samples, size, stepSize, sampleRate);
+        Config.set(Key.OLAF_VECTOR_API, "FALSE");
+        List<OlafEventPoint> scalar = eventPoints(samples, size, stepSize, sampleRate);
+        Config.set(Key.OLAF_VECTOR_API, vectorApi);
+
+        assertFalse(scalar.isEmpty());
+        assertEquals(scalar.size(), vectorized.size());
+        for (int i = 0; i < scalar.size(); i++) {
+            assertEquals(scalar.get(i).t, vectorized.get(i).t);
+            assertEquals(scalar.get(i).f, vectorized.get(i).f);
+            assertEquals(scalar.get(i).m, vectorized.get(i).m);
+        }
+    }
+
+    @Test
+    void resetProcessorGivesIdenticalFingerprints() {
+        int size = Config.getInt(Key.OLAF_SIZE);
+        int stepSize = Config.getInt(Key.OLAF_STEP_SIZE);
+        float sampleRate = Config.getInt(Key.OLAF_SAMPLE_RATE);
+        float[] first = chirps(sampleRate, 2, 1);
+        float[] second = chirps(sampleRate, 2, 2);
+
+        List<OlafFingerprint> expected = new ArrayList<>();
+        process(new OlafEventPointProcessor(size, expected::add), second, size, stepSize, sampleRate);
+
+        //a processor which is reset in the middle of other audio
+        List<OlafFingerprint> ignored = new ArrayList<>();
+        OlafEventPointProcessor processor = new OlafEventPointProcessor(size, ignored::add);
+        process(processor, Arrays.copyOf(first, first.length / 2), size, stepSize, sampleRate);
+        List<OlafFingerprint> reused = new ArrayList<>();
+        processor.reset(reused::add);
+        process(processor, second, size, stepSize, sampleRate);
+
+        assertFalse(expected.isEmpty());
+        assertEquals(expected.size(), reused.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).hash(), reused.get(i).hash());
+            assertEquals(expected.get(i).t1, reused.get(i).t1);
+        }
+        //fingerprints are kept again without a consumer
+        processor.reset(null);
+        process(processor, second, size, stepSize, sampleRate);
+        assertEquals(expected.size(), processor.getFingerprints().size());
+    }
+
+    /**
+     * Chirps in noise.
+     */
+    private static float[] chirps(float sampleRate, int seconds, long seed) {
+        Random random = new Random(seed);
+        float[] samples = new float[(int) sampleRate * seconds];
+        for (int i = 0; i < samples.length; i++) {
+            double t = i / sampleRate;
+            samples[i] = (float) (0.3 * Math.sin(2 * Math.PI * (300 + 400 * t) * t)
+                    + 0.2 * Math.sin(2 * Math.PI * (3000 - 500 * t) * t)
+                    + 0.05 * random.nextGaussian());
+        }
+        return samples;
+    }
+
+    private static List<OlafEventPoint> eventPoints(float[] samples, int size, int stepSize, float sampleRate) {
+        OlafEventPointProcessor processor = new OlafEventPointProcessor(size);
+        process(processor, samples, size, stepSize, sampleRate);
+        return processor.getEventPoints();
+    }
+
+    private static void process(OlafEventPointProcessor processor, float[] samples, int size, int stepSize, float sampleRate) {
+        AudioEvent audioEvent = new AudioEvent(new TarsosDSPAudioFormat(sampleRate, 16, 1, true, false));
+        float[] frame = new float[size];
+        for (int start = 0; start + size <= samples.length; start += stepSize) {
+            //the buffer is reused, like the audio dispatcher does
+            System.arraycopy(samples, start, frame, 0, size);
+            audioEvent.setFloatBuffer(frame);
+            processor.process(audioEvent);
+        }
+        processor.processingFinished();
+    }
+}
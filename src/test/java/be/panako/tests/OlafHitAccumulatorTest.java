@@ -0,0 +1,45 @@
+package be.panako.tests;
+
+import be.panako.strategy.olaf.storage.OlafHit;
+import be.panako.strategy.olaf.storage.OlafHitAccumulator;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class OlafHitAccumulatorTest {
+
+    @Test
+    void groupsHitsPerResource() {
+        OlafHitAccumulator accumulator = new OlafHitAccumulator();
+        accumulator.addQueryPrint(10L, 5);
+        accumulator.addQueryPrint(20L, 3);
+
+        accumulator.add(10L, 11L, 105, 666);
+        accumulator.add(20L, 20L, 103, 666);
+        accumulator.add(20L, 21L, 50, -7);
+        assertEquals(3, accumulator.size());
+        assertEquals(2, accumulator.numberOfResources());
+
+        long[] hits = new long[accumulator.hitCount(0)];
+        assertEquals(666, accumulator.resourceID(0));
+        assertEquals(2, accumulator.sortedHits(0, hits));
+        //sorted by query time
+        assertEquals(3, OlafHitAccumulator.queryTimeOf(hits[0]));
+        assertEquals(103, OlafHitAccumulator.matchTimeOf(hits[0]));
+        assertEquals(100, OlafHitAccumulator.deltaTOf(hits[1]));
+
+        Map<Long, List<OlafHit>> matchAccumulator = new TreeMap<>();
+        accumulator.addTo(matchAccumulator);
+        assertEquals(2, matchAccumulator.get(20L).size());
+
+        //clearing keeps nothing
+        accumulator.clear();
+        assertEquals(0, accumulator.size());
+        assertEquals(0, accumulator.numberOfResources());
+        assertEquals(-1, accumulator.queryTime(10L));
+    }
+}
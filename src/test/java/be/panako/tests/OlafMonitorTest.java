@@ -0,0 +1,198 @@
+package be.panako.tests;
+
+import be.panako.strategy.QueryResult;
+import be.panako.strategy.QueryResultHandler;
+import be.panako.strategy.olaf.OlafStrategy;
+import be.panako.strategy.olaf.storage.OlafCacheFile;
+import be.panako.strategy.olaf.storage.OlafStorage;
+import be.panako.strategy.olaf.storage.OlafStoreBatch;
+import be.panako.util.Config;
+import be.panako.util.FileUtils;
+import be.panako.util.Key;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class OlafMonitorTest {
+
+    private static final int REFERENCE_ID = 7101;
+    private static final int QUERY_ID = 7201;
+    private static final int QUERY_SECONDS = 120;
+    //the reference starts after this many seconds of noise
+    private static final int REFERENCE_START = 10;
+
+    private final int blocksPerSecond = Config.getInt(Key.OLAF_SAMPLE_RATE) / Config.getInt(Key.OLAF_STEP_SIZE);
+
+    private String folder;
+    private String query;
+    private List<long[]> referencePrints;
+    private List<long[]> queryPrints;
+
+    @BeforeEach
+    void setUp() throws IOException {
+        folder = FileUtils.combine(FileUtils.temporaryDirectory(), "olaf_monitor_test");
+        FileUtils.mkdirs(folder);
+        Config.set(Key.OLAF_STORAGE, "MEM");
+        Config.set(Key.OLAF_CACHE_TO_FILE, "FALSE");
+        Config.set(Key.OLAF_USE_CACHED_PRINTS, "TRUE");
+        Config.set(Key.OLAF_CACHE_FOLDER, folder);
+        //the duration of the query is read from a silent wav file
+        Config.set(Key.DECODER, "NATIVE");
+        Config.set(Key.MONITOR_STEP_SIZE, "25");
+        Config.set(Key.MONITOR_MATCH_TIMEOUT, "5");
+
+        //a reference of 90 seconds with about 20 prints a second
+        Random random = new Random(5L);
+        referencePrints = new ArrayList<>();
+        for (int t = 0; t < 90 * blocksPerSecond; t += 1 + random.nextInt(10))
+            referencePrints.add(new long[]{randomHash(random), REFERENCE_ID, t});
+        OlafStorage storage = new OlafStrategy().getStorage();
+        OlafStoreBatch storeBatch = new OlafStoreBatch();
+        for (long[] print : referencePrints)
+            storeBatch.add(print[0], REFERENCE_ID, (int) print[2]);
+        storeBatch.addMetadata(REFERENCE_ID, "/test/monitor/reference", 90, referencePrints.size());
+        storage.store(storeBatch);
+
+        //the reference starts after 10 seconds of noise and is followed by noise
+        int referenceStart = REFERENCE_START * blocksPerSecond;
+        queryPrints = new ArrayList<>();
+        for (int t = 0; t < referenceStart; t += 1 + random.nextInt(10))
+            queryPrints.add(new long[]{randomHash(random), QUERY_ID, t});
+        for (long[] print : referencePrints)
+            queryPrints.add(new long[]{print[0], QUERY_ID, print[2] + referenceStart});
+        for (int t = 100 * blocksPerSecond; t < QUERY_SECONDS * blocksPerSecond; t += 1 + random.nextInt(10))
+            queryPrints.add(new long[]{randomHash(random), QUERY_ID, t});
+
+        query = FileUtils.combine(folder, QUERY_ID + ".wav");
+        writeSilence(query, QUERY_SECONDS);
+        OlafCacheFile.write(FileUtils.combine(folder, QUERY_ID + ".tdb"), queryPrints, false);
+    }
+
+    @AfterEach
+    void tearDown() {
+        for (File file : new File(folder).listFiles())
+            file.delete();
+        Config.set(Key.MONITOR_THREADS, "1");
+    }
+
+    @Test
+    void followsMatchAcrossPeriods() {
+        Config.set(Key.MONITOR_THREADS, "1");
+        List<QueryResult> results = monitor();
+
+        //one result for each period, the reference is found in the periods which overlap with it
+        int period = Config.getInt(Key.MONITOR_STEP_SIZE);
+        assertEquals(5, results.size());
+        for (int p = 0; p < 4; p++) {
+            QueryResult r = results.get(p);
+            assertEquals(String.valueOf(REFERENCE_ID), r.refIdentifier, "Expected the reference in period " + p);
+            assertEquals(query + "-" + (double) (p * period) + "_" + (double) (p * period + period), r.queryPath);
+
+            //every print of the reference in the period extends the match
+            int startBlock = p * period * blocksPerSecond;
+            int stopBlock = (p + 1) * period * blocksPerSecond;
+            int expectedHits = 0;
+            for (long[] print : queryPrints)
+                if (print[2] >= startBlock && print[2] < stopBlock && print[2] >= REFERENCE_START * blocksPerSecond && print[2] < 100 * blocksPerSecond)
+                    expectedHits++;
+            assertEquals(expectedHits, (int) r.score, "Hits in period " + p);
+
+            //times relative to the start of the period, the reference starts ten seconds into the query
+            double queryStart = Math.max(0, REFERENCE_START - p * period);
+            assertEquals(queryStart, r.queryStart, 0.2);
+            assertEquals(p * period + queryStart - REFERENCE_START, r.refStart, 0.2);
+            assertEquals(Math.min(period, 100 - p * period), r.queryStop, 0.5);
+            assertEquals(1.0, r.timeFactor, 0.01);
+        }
+        //only noise after the reference
+        assertNull(results.get(4).refIdentifier);
+    }
+
+    @Test
+    void restartsClosedMatch() throws IOException {
+        Config.set(Key.MONITOR_THREADS, "1");
+        //the query plays the first 20 seconds of the reference, 30 seconds of noise and then the reference again
+        Random random = new Random(11L);
+        List<long[]> prints = new ArrayList<>();
+        for (long[] print : referencePrints)
+            if (print[2] < 20 * blocksPerSecond)
+                prints.add(new long[]{print[0], QUERY_ID, print[2]});
+        for (int t = 20 * blocksPerSecond; t < 50 * blocksPerSecond; t += 1 + random.nextInt(10))
+            prints.add(new long[]{randomHash(random), QUERY_ID, t});
+        for (long[] print : referencePrints)
+            if (print[2] < 50 * blocksPerSecond)
+                prints.add(new long[]{print[0], QUERY_ID, print[2] + 50 * blocksPerSecond});
+        OlafCacheFile.write(FileUtils.combine(folder, QUERY_ID + ".tdb"), prints, false);
+
+        List<QueryResult> results = monitor();
+        //[0,25) the first play, [25,50) only noise, [50,75) and [75,100) the second play
+        assertEquals(5, results.size());
+        assertEquals(String.valueOf(REFERENCE_ID), results.get(0).refIdentifier);
+        assertEquals(0, results.get(0).refStart, 0.2);
+        assertNull(results.get(1).refIdentifier);
+        assertEquals(String.valueOf(REFERENCE_ID), results.get(2).refIdentifier);
+        assertEquals(0, results.get(2).refStart, 0.2);
+        assertEquals(String.valueOf(REFERENCE_ID), results.get(3).refIdentifier);
+        assertEquals(25, results.get(3).refStart, 0.2);
+    }
+
+    @Test
+    void threadsGiveIdenticalResults() {
+        Config.set(Key.MONITOR_THREADS, "1");
+        List<QueryResult> serial = monitor();
+        for (String threads : new String[]{"2", "3", "8"}) {
+            Config.set(Key.MONITOR_THREADS, threads);
+            assertEquals(toStrings(serial), toStrings(monitor()), "Expected the same results with " + threads + " threads");
+        }
+    }
+
+    private List<QueryResult> monitor() {
+        List<QueryResult> results = new ArrayList<>();
+        new OlafStrategy().monitor(query, 1, new HashSet<>(), collect(results));
+        return results;
+    }
+
+    private static QueryResultHandler collect(List<QueryResult> results) {
+        return new QueryResultHandler() {
+            @Override
+            public void handleQueryResult(QueryResult result) {
+                results.add(result);
+            }
+
+            @Override
+            public void handleEmptyResult(QueryResult result) {
+                results.add(result);
+            }
+        };
+    }
+
+    private static List<String> toStrings(List<QueryResult> results) {
+        List<String> strings = new ArrayList<>();
+        for (QueryResult r : results)
+            strings.add(r.queryPath + " " + r.refIdentifier + " " + r.refPath + " " +
+                    r.queryStart + " " + r.queryStop + " " + r.refStart + " " + r.refStop + " " + r.score + " " + r.percentOfSecondsWithMatches);
+        return strings;
+    }
+
+    private static long randomHash(Random random) {
+        return random.nextLong() >>> 24;
+    }
+
+    private static void writeSilence(String path, int seconds) throws IOException {
+        AudioFormat format = new AudioFormat(8000, 8, 1, true, false);
+        byte[] silence = new byte[8000 * seconds];
+        AudioInputStream stream = new AudioInputStream(new ByteArrayInputStream(silence), format, silence.length);
+        AudioSystem.write(stream, AudioFileFormat.Type.WAVE, new File(path));
+    }
+}
@@ -6,31 +6,56 @@ import be.panako.strategy.QueryResultHandler;
 import be.panako.strategy.Strategy;
 import be.panako.strategy.olaf.OlafStrategy;
 import be.panako.strategy.olaf.storage.OlafHit;
+import be.panako.strategy.olaf.storage.OlafIndexBuilder;
+import be.panako.strategy.olaf.storage.OlafQueryBatch;
 import be.panako.strategy.olaf.storage.OlafResourceMetadata;
+import be.panako.strategy.olaf.storage.OlafShardedStorage;
 import be.panako.strategy.olaf.storage.OlafStorage;
 import be.panako.strategy.olaf.storage.OlafStorageKV;
+import be.panako.strategy.olaf.storage.OlafStorageFile;
+import be.panako.strategy.olaf.storage.OlafStorageMapped;
+import be.panako.strategy.olaf.storage.OlafStorageMemory;
+import be.panako.strategy.olaf.storage.OlafStoreBatch;
 
 import be.panako.util.Config;
 import be.panako.util.FileUtils;
 import be.panako.util.Key;
+import be.panako.util.LMDBBatchWriter;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.lmdbjava.Dbi;
+import org.lmdbjava.DbiFlags;
+import org.lmdbjava.Env;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.CountDownLatch;
 
 import static org.junit.jupiter.api.Assertions.*;
 
 class OlafStorageKVTest {
 
+    private static final Key[] CHANGED_KEYS = {
+            Key.OLAF_LMDB_FOLDER, Key.OLAF_STORAGE, Key.OLAF_CACHE_TO_FILE, Key.OLAF_USE_CACHED_PRINTS,
+            Key.OLAF_QUERY_SORTED_LOOKUP, Key.OLAF_MMAP_COMPRESSED, Key.LMDB_COMMIT_LATENCY,
+            Key.OLAF_CACHE_FOLDER, Key.OLAF_BUILD_INDEX_FOLDER, Key.OLAF_BUILD_INDEX_RUN_SIZE,
+            Key.OLAF_EPS_PER_FP, Key.OLAF_MATCH_FALLBACK_TO_HIST, Key.OLAF_MIN_SEC_WITH_MATCH};
+
     List<File> references;
     List<File> queries;
 
     List<File> queries_ota;
 
+    final Map<Key, String> savedConfig = new EnumMap<>(Key.class);
+
     @BeforeEach
     void setUp() {
+        for(Key key : CHANGED_KEYS)
+            savedConfig.put(key, Config.get(key));
         references = TestData.referenceFiles();
         queries = TestData.queryFiles();
         queries_ota = TestData.overTheAirQueryFiles();
@@ -42,6 +67,13 @@ class OlafStorageKVTest {
         config.set(Key.OLAF_USE_CACHED_PRINTS,"FALSE");
     }
 
+    @AfterEach
+    void tearDown() {
+        //the tests change the configuration of the storage: restore it for the other tests
+        for(Map.Entry<Key, String> entry : savedConfig.entrySet())
+            Config.set(entry.getKey(), entry.getValue());
+    }
+
 
     @Test
     void storeMetadata() {
@@ -57,21 +89,340 @@ class OlafStorageKVTest {
     void storeFingerprint() {
         OlafStorage s = OlafStorageKV.getInstance();
         //store two
-        s.addToStoreQueue(10L,666,77);
-        s.addToStoreQueue(200L,666,78);
-        s.processStoreQueue();
+        OlafStoreBatch storeBatch = new OlafStoreBatch();
+        storeBatch.add(10L,666,77);
+        storeBatch.add(200L,666,78);
+        s.store(storeBatch);
 
         //delete one
-        s.addToDeleteQueue(200L,666,78);
-        s.processDeleteQueue();
+        OlafStoreBatch deleteBatch = new OlafStoreBatch();
+        deleteBatch.add(200L,666,78);
+        s.delete(deleteBatch);
 
-        //query for the only remaining fingerprint
-        s.addToQueryQueue(10);
+        //query for both, only one fingerprint remains
+        OlafQueryBatch queryBatch = new OlafQueryBatch();
+        queryBatch.add(10);
+        queryBatch.add(200);
         Map<Long, List<OlafHit>> matchAccumulator = new TreeMap<>();
-        s.processQueryQueue(matchAccumulator,2,new HashSet<>());
+        s.query(queryBatch,matchAccumulator,2,new HashSet<>());
         assertEquals(1 ,matchAccumulator.size(),"Expected only one match");
+        assertTrue(matchAccumulator.containsKey(10L),"Expected a match for the remaining fingerprint");
+    }
+
+
+    @Test
+    void sortedLookup() {
+        OlafStorage s = OlafStorageKV.getInstance();
+        RandomPrints prints = new RandomPrints(0L, 1_000_000);
+        s.store(prints.storeBatch(700, 5, 5000));
+
+        //unsorted, with duplicates and overlapping ranges
+        OlafQueryBatch queryBatch = prints.queryBatch();
+        queryBatch.add(1_000_010);
+        queryBatch.add(1_000_010);
+
+        Map<Long, List<OlafHit>> sortedHits = new TreeMap<>();
+        Config.set(Key.OLAF_QUERY_SORTED_LOOKUP,"TRUE");
+        s.query(queryBatch,sortedHits,2,new HashSet<>(Arrays.asList(701)));
+
+        Map<Long, List<OlafHit>> hits = new TreeMap<>();
+        Config.set(Key.OLAF_QUERY_SORTED_LOOKUP,"FALSE");
+        s.query(queryBatch,hits,2,new HashSet<>(Arrays.asList(701)));
+
+        assertSameHits(hits, sortedHits);
+    }
+
+    @Test
+    void sortedLookupClampsRange() {
+        OlafStorage s = OlafStorageKV.getInstance();
+        OlafStoreBatch storeBatch = new OlafStoreBatch();
+        storeBatch.add(0, 703, 7);
+        storeBatch.add(3, 703, 8);
+        s.store(storeBatch);
+
+        //the range of the first hash starts below zero
+        OlafQueryBatch queryBatch = new OlafQueryBatch();
+        queryBatch.add(1);
+        Map<Long, List<OlafHit>> hits = new TreeMap<>();
+        Config.set(Key.OLAF_QUERY_SORTED_LOOKUP,"TRUE");
+        s.query(queryBatch,hits,2,new HashSet<>());
+
+        assertEquals(Arrays.asList("0 703 7", "3 703 8"), toStrings(hits.get(1L)));
+    }
+
+    @Test
+    void exportSnapshot() throws IOException {
+        OlafStorage s = OlafStorageKV.getInstance();
+        RandomPrints prints = new RandomPrints(1L, 2_000_000);
+        OlafStoreBatch storeBatch = prints.storeBatch(800, 5, 5000);
+        storeBatch.addMetadata(801,"/test/snapshot",120,5000);
+        s.store(storeBatch);
+
+        OlafQueryBatch queryBatch = prints.queryBatch();
+        Map<Long, List<OlafHit>> hits = new TreeMap<>();
+        s.query(queryBatch,hits,2,new HashSet<>(Arrays.asList(802)));
+
+        //plain and compressed postings
+        for(String compressed : new String[]{"FALSE","TRUE"}) {
+            Config.set(Key.OLAF_MMAP_COMPRESSED,compressed);
+            String snapshotPath = FileUtils.combine(FileUtils.temporaryDirectory(),"olaf_test.snapshot");
+            OlafStorageMapped.export(OlafStorageKV.getInstance(),snapshotPath);
+            OlafStorage snapshot = new OlafStorageMapped(snapshotPath);
+
+            Map<Long, List<OlafHit>> snapshotHits = new TreeMap<>();
+            snapshot.query(queryBatch,snapshotHits,2,new HashSet<>(Arrays.asList(802)));
+
+            assertSameHits(hits, snapshotHits);
+
+            OlafResourceMetadata metadata = snapshot.getMetadata(801);
+            assertTrue(metadata.path.contentEquals("/test/snapshot"));
+            assertEquals(metadata.numFingerprints,5000);
+            assertNull(snapshot.getMetadata(12345));
+        }
     }
 
+    @Test
+    void shardedStorage() {
+        OlafStorage s = OlafStorageKV.getInstance();
+        String shardFolder = FileUtils.combine(FileUtils.temporaryDirectory(),"olaf_test_shards");
+        OlafShardedStorage sharded = new OlafShardedStorage(shardFolder,3);
+        RandomPrints prints = new RandomPrints(2L, 3_000_000);
+        OlafStoreBatch storeBatch = prints.storeBatch(900, 5, 5000);
+        storeBatch.addMetadata(901,"/test/sharded",120,5000);
+        s.store(storeBatch);
+        sharded.store(storeBatch);
+
+        OlafQueryBatch queryBatch = prints.queryBatch();
+
+        Map<Long, List<OlafHit>> hits = new TreeMap<>();
+        s.query(queryBatch,hits,2,new HashSet<>(Arrays.asList(902)));
+        Map<Long, List<OlafHit>> shardedHits = new TreeMap<>();
+        sharded.query(queryBatch,shardedHits,2,new HashSet<>(Arrays.asList(902)));
+
+        assertSameHits(hits, shardedHits);
+        assertTrue(sharded.getMetadata(901).path.contentEquals("/test/sharded"));
+
+        sharded.clear();
+    }
+
+    @Test
+    void concurrentStores() throws InterruptedException {
+        OlafStorage s = OlafStorageKV.getInstance();
+        //group the batches of the threads in shared transactions
+        Config.set(Key.LMDB_COMMIT_LATENCY,"50");
+        int threads = 8;
+        int printsPerThread = 2000;
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> writers = new ArrayList<>();
+        List<Throwable> failures = Collections.synchronizedList(new ArrayList<>());
+        for(int t = 0 ; t < threads ; t++){
+            final int resourceID = 1100 + t;
+            Thread writer = new Thread(() -> {
+                OlafStoreBatch storeBatch = new OlafStoreBatch();
+                for(int i = 0 ; i < printsPerThread ; i++)
+                    storeBatch.add(4_000_000 + resourceID * 10_000L + i, resourceID, i);
+                storeBatch.addMetadata(resourceID,"/test/concurrent/" + resourceID,60,printsPerThread);
+                try {
+                    start.await();
+                    s.store(storeBatch);
+                } catch (Throwable e) {
+                    failures.add(e);
+                }
+            });
+            writer.start();
+            writers.add(writer);
+        }
+        start.countDown();
+        for(Thread writer : writers)
+            writer.join();
+        assertTrue(failures.isEmpty(), "Unexpected failures: " + failures);
+
+        for(int t = 0 ; t < threads ; t++){
+            int resourceID = 1100 + t;
+            OlafQueryBatch queryBatch = new OlafQueryBatch();
+            for(int i = 0 ; i < printsPerThread ; i++)
+                queryBatch.add(4_000_000 + resourceID * 10_000L + i);
+            Map<Long, List<OlafHit>> hits = new TreeMap<>();
+            s.query(queryBatch,hits,0,new HashSet<>());
+            assertEquals(printsPerThread, hits.size(), "Expected every fingerprint of " + resourceID);
+            for(Map.Entry<Long, List<OlafHit>> entry : hits.entrySet()){
+                assertEquals(1, entry.getValue().size());
+                OlafHit hit = entry.getValue().get(0);
+                assertEquals(resourceID, hit.resourceID);
+                assertEquals(entry.getKey() - 4_000_000 - resourceID * 10_000L, hit.t);
+            }
+            assertTrue(s.getMetadata(resourceID).path.contentEquals("/test/concurrent/" + resourceID));
+        }
+    }
+
+    @Test
+    void failedCommitIsReported() {
+        String folder = FileUtils.combine(FileUtils.temporaryDirectory(),"olaf_test_full");
+        FileUtils.mkdirs(folder);
+        //a map which is too small for the batch
+        Env<ByteBuffer> env = Env.create().setMapSize(1024L * 1024L).setMaxDbs(2).open(new File(folder));
+        Dbi<ByteBuffer> fingerprints = env.openDbi("fingerprints", DbiFlags.MDB_CREATE, DbiFlags.MDB_INTEGERKEY, DbiFlags.MDB_DUPSORT, DbiFlags.MDB_DUPFIXED);
+        Dbi<ByteBuffer> resourceMap = env.openDbi("resources", DbiFlags.MDB_CREATE, DbiFlags.MDB_INTEGERKEY);
+        LMDBBatchWriter writer = new LMDBBatchWriter("test writer", env, fingerprints, resourceMap, 2);
+        try {
+            List<long[]> tooMany = new ArrayList<>();
+            for(int i = 0 ; i < 200_000 ; i++)
+                tooMany.add(new long[]{i * 7L, 1, i});
+            assertThrows(RuntimeException.class, () -> writer.write(tooMany, Collections.emptyMap()));
+
+            //the writer keeps running after a failed transaction
+            List<long[]> one = new ArrayList<>();
+            one.add(new long[]{42, 1, 1});
+            writer.write(one, Collections.emptyMap());
+        } finally {
+            writer.close();
+            env.close();
+            for(File file : new File(folder).listFiles())
+                file.delete();
+        }
+    }
+
+    @Test
+    void loneWriterDoesNotWait() {
+        String folder = FileUtils.combine(FileUtils.temporaryDirectory(),"olaf_test_lone_writer");
+        FileUtils.mkdirs(folder);
+        Env<ByteBuffer> env = Env.create().setMapSize(64L * 1024L * 1024L).setMaxDbs(2).open(new File(folder));
+        Dbi<ByteBuffer> fingerprints = env.openDbi("fingerprints", DbiFlags.MDB_CREATE, DbiFlags.MDB_INTEGERKEY, DbiFlags.MDB_DUPSORT, DbiFlags.MDB_DUPFIXED);
+        Dbi<ByteBuffer> resourceMap = env.openDbi("resources", DbiFlags.MDB_CREATE, DbiFlags.MDB_INTEGERKEY);
+        Config.set(Key.LMDB_COMMIT_LATENCY,"2000");
+        LMDBBatchWriter writer = new LMDBBatchWriter("test writer", env, fingerprints, resourceMap, 2);
+        try {
+            long start = System.currentTimeMillis();
+            for(int i = 0 ; i < 10 ; i++)
+                writer.write(Collections.singletonList(new long[]{i, 1, i}), Collections.emptyMap());
+            //without other writers a batch is committed right away, not after the latency
+            assertTrue(System.currentTimeMillis() - start < 2000, "Expected the batches to be committed without waiting");
+        } finally {
+            writer.close();
+            env.close();
+            for(File file : new File(folder).listFiles())
+                file.delete();
+        }
+    }
+
+    @Test
+    void buildIndex() throws IOException {
+        String cacheFolder = FileUtils.combine(FileUtils.temporaryDirectory(),"olaf_test_build_cache");
+        Config.set(Key.OLAF_CACHE_FOLDER,cacheFolder);
+        Config.set(Key.OLAF_BUILD_INDEX_FOLDER,FileUtils.combine(FileUtils.temporaryDirectory(),"olaf_test_build_runs"));
+        //several runs for each resource
+        Config.set(Key.OLAF_BUILD_INDEX_RUN_SIZE,"1000");
+        OlafStorageFile cache = new OlafStorageFile();
+        OlafStorageMemory stored = new OlafStorageMemory();
+        RandomPrints prints = new RandomPrints(3L, 5_000_000);
+        for(int resourceID = 1201 ; resourceID <= 1205 ; resourceID++){
+            OlafStoreBatch storeBatch = prints.storeBatch(resourceID, 1, 3000);
+            storeBatch.addMetadata(resourceID,"/test/build/" + resourceID,60,3000);
+            cache.store(storeBatch);
+            stored.store(storeBatch);
+        }
+        //a damaged cache file is left out, also its meta-data
+        OlafStoreBatch damagedBatch = new OlafStoreBatch();
+        damagedBatch.add(5_000_000, 1206, 0);
+        damagedBatch.addMetadata(1206,"/test/build/1206",60,1);
+        cache.store(damagedBatch);
+        try (RandomAccessFile file = new RandomAccessFile(FileUtils.combine(cacheFolder,"1206.tdb"), "rw")) {
+            file.seek(40);
+            file.write(1);
+        }
+
+        new OlafIndexBuilder().build();
+
+        OlafStorage s = OlafStorageKV.getInstance();
+        OlafQueryBatch queryBatch = prints.queryBatch();
+        Map<Long, List<OlafHit>> storedHits = new TreeMap<>();
+        stored.query(queryBatch,storedHits,2,new HashSet<>());
+        Map<Long, List<OlafHit>> builtHits = new TreeMap<>();
+        s.query(queryBatch,builtHits,2,new HashSet<>());
+
+        assertFalse(storedHits.isEmpty());
+        assertSameHits(storedHits, builtHits);
+        for(int resourceID = 1201 ; resourceID <= 1205 ; resourceID++)
+            assertTrue(s.getMetadata(resourceID).path.contentEquals("/test/build/" + resourceID));
+        assertNull(s.getMetadata(1206));
+
+        for(File file : new File(cacheFolder).listFiles())
+            file.delete();
+    }
+
+    @Test
+    void failedBuildStoresNoMetadata() throws IOException {
+        String cacheFolder = FileUtils.combine(FileUtils.temporaryDirectory(),"olaf_test_failed_build_cache");
+        String runFolder = FileUtils.combine(FileUtils.temporaryDirectory(),"olaf_test_failed_build_runs");
+        Config.set(Key.OLAF_CACHE_FOLDER,cacheFolder);
+        Config.set(Key.OLAF_BUILD_INDEX_FOLDER,runFolder);
+        Config.set(Key.OLAF_BUILD_INDEX_RUN_SIZE,"1000");
+        OlafStorageFile cache = new OlafStorageFile();
+        for(int resourceID = 1211 ; resourceID <= 1212 ; resourceID++){
+            OlafStoreBatch storeBatch = new OlafStoreBatch();
+            for(int i = 0 ; i < 3000 ; i++)
+                storeBatch.add(6_000_000 + i, resourceID, i);
+            storeBatch.addMetadata(resourceID,"/test/failed_build/" + resourceID,60,3000);
+            cache.store(storeBatch);
+        }
+
+        OlafIndexBuilder builder = new OlafIndexBuilder();
+        //the runs can not be written
+        FileUtils.rm(runFolder);
+        FileUtils.writeFile("not a folder", runFolder);
+        try {
+            assertThrows(RuntimeException.class, builder::build);
+            OlafStorage s = OlafStorageKV.getInstance();
+            for(int resourceID = 1211 ; resourceID <= 1212 ; resourceID++)
+                assertNull(s.getMetadata(resourceID));
+        } finally {
+            FileUtils.rm(runFolder);
+            for(File file : new File(cacheFolder).listFiles())
+                file.delete();
+        }
+    }
+
+    /**
+     * Random fingerprints and query hashes in a range of 20 000 hashes.
+     */
+    private static class RandomPrints {
+        final Random random;
+        final long firstHash;
+
+        RandomPrints(long seed, long firstHash) {
+            this.random = new Random(seed);
+            this.firstHash = firstHash;
+        }
+
+        OlafStoreBatch storeBatch(int firstResourceID, int resources, int size) {
+            OlafStoreBatch storeBatch = new OlafStoreBatch();
+            for(int i = 0 ; i < size ; i++)
+                storeBatch.add(firstHash + random.nextInt(20_000), firstResourceID + random.nextInt(resources), i);
+            return storeBatch;
+        }
+
+        OlafQueryBatch queryBatch() {
+            OlafQueryBatch queryBatch = new OlafQueryBatch();
+            for(int i = 0 ; i < 2000 ; i++)
+                queryBatch.add(firstHash + random.nextInt(20_000));
+            return queryBatch;
+        }
+    }
+
+    private static void assertSameHits(Map<Long, List<OlafHit>> expected, Map<Long, List<OlafHit>> actual){
+        assertEquals(expected.keySet(), actual.keySet());
+        for(Long queryHash : expected.keySet()){
+            assertEquals(toStrings(expected.get(queryHash)), toStrings(actual.get(queryHash)), "Expected the same hits for " + queryHash);
+        }
+    }
+
+    private static List<String> toStrings(List<OlafHit> hits){
+        List<String> strings = new ArrayList<>();
+        for(OlafHit hit : hits)
+            strings.add(hit.matchedNearHash + " " + hit.resourceID + " " + hit.t);
+        Collections.sort(strings);
+        return strings;
+    }
 
     private void testMatching(List<File> queries){
         float maxStartDelta = 3.5f;
@@ -0,0 +1,69 @@
+package be.panako.tests;
+
+import be.panako.strategy.olaf.storage.OlafHit;
+import be.panako.strategy.olaf.storage.OlafQueryBatch;
+import be.panako.strategy.olaf.storage.OlafStorageMemory;
+import be.panako.strategy.olaf.storage.OlafStoreBatch;
+import be.panako.util.Config;
+import be.panako.util.Key;
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class OlafStorageMemoryTest {
+
+    @Test
+    void queryAcrossMerges() {
+        //merge the stored fingerprints into the sorted index often
+        Config.set(Key.OLAF_MEMORY_DELTA_SIZE, "100");
+        OlafStorageMemory s = new OlafStorageMemory();
+        Random random = new Random(0L);
+        List<long[]> stored = new ArrayList<>();
+        for (int round = 0; round < 10; round++)
+            storeAndQuery(s, random, stored, round);
+    }
+
+    @Test
+    void queryBetweenStores() {
+        //the delta is never merged: each query sorts the fingerprints stored since the previous one into it
+        Config.set(Key.OLAF_MEMORY_DELTA_SIZE, "100000");
+        OlafStorageMemory s = new OlafStorageMemory();
+        Random random = new Random(1L);
+        List<long[]> stored = new ArrayList<>();
+        for (int round = 0; round < 10; round++)
+            storeAndQuery(s, random, stored, round);
+    }
+
+    private static void storeAndQuery(OlafStorageMemory s, Random random, List<long[]> stored, int round) {
+        OlafStoreBatch storeBatch = new OlafStoreBatch();
+        for (int i = 0; i < 250; i++) {
+            long[] print = {random.nextInt(10_000), random.nextInt(20), random.nextInt(5_000)};
+            storeBatch.add(print[0], (int) print[1], (int) print[2]);
+            stored.add(print);
+        }
+        s.store(storeBatch);
+
+        OlafQueryBatch queryBatch = new OlafQueryBatch();
+        for (int i = 0; i < 100; i++)
+            queryBatch.add(random.nextInt(10_000));
+        Map<Long, List<OlafHit>> hits = new TreeMap<>();
+        s.query(queryBatch, hits, 2, new HashSet<>(Arrays.asList(3)));
+
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < queryBatch.size(); i++) {
+            long queryHash = queryBatch.hash(i);
+            for (long[] print : stored)
+                if (Math.abs(print[0] - queryHash) <= 2 && print[1] != 3)
+                    expected.add(queryHash + " " + print[0] + " " + print[1] + " " + print[2]);
+        }
+        List<String> actual = new ArrayList<>();
+        for (List<OlafHit> list : hits.values())
+            for (OlafHit hit : list)
+                actual.add(hit.originalHash + " " + hit.matchedNearHash + " " + hit.resourceID + " " + hit.t);
+        Collections.sort(expected);
+        Collections.sort(actual);
+        assertEquals(expected, actual, "Unexpected hits after round " + round);
+    }
+}
@@ -0,0 +1,237 @@
+package be.panako.tests;
+
+import be.panako.strategy.olaf.storage.OlafHit;
+import be.panako.strategy.olaf.storage.OlafQueryBatch;
+import be.panako.strategy.olaf.storage.OlafStorageMemory;
+import be.panako.strategy.olaf.storage.OlafStorageRemote;
+import be.panako.strategy.olaf.storage.OlafStorageServer;
+import be.panako.strategy.olaf.storage.OlafStoreBatch;
+import org.junit.jupiter.api.Test;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class OlafStorageRemoteTest {
+
+    @Test
+    void scatterGather() throws IOException {
+        //three nodes on localhost, each with the fingerprints of some resources
+        OlafStorageMemory all = new OlafStorageMemory();
+        OlafStorageMemory[] nodes = {new OlafStorageMemory(), new OlafStorageMemory(), new OlafStorageMemory()};
+        Random random = new Random(0L);
+        OlafStoreBatch allBatch = new OlafStoreBatch();
+        for (int resourceID = 0; resourceID < 30; resourceID++) {
+            OlafStoreBatch batch = new OlafStoreBatch();
+            for (int i = 0; i < 200; i++) {
+                long hash = random.nextInt(10_000);
+                batch.add(hash, resourceID, i);
+                allBatch.add(hash, resourceID, i);
+            }
+            batch.addMetadata(resourceID, "/test/" + resourceID, 10, 200);
+            nodes[resourceID % nodes.length].store(batch);
+        }
+        all.store(allBatch);
+
+        List<OlafStorageServer> servers = new ArrayList<>();
+        StringBuilder nodeList = new StringBuilder();
+        for (OlafStorageMemory node : nodes) {
+            OlafStorageServer server = new OlafStorageServer(node, 0);
+            server.start();
+            servers.add(server);
+            nodeList.append("localhost:").append(server.port()).append(",");
+        }
+
+        //a node which accepts connections but never answers
+        ServerSocket silentNode = new ServerSocket(0);
+        List<Socket> silentConnections = new ArrayList<>();
+        Thread silentThread = new Thread(() -> {
+            try {
+                while (true)
+                    silentConnections.add(silentNode.accept());
+            } catch (IOException e) {
+                //closed
+            }
+        });
+        silentThread.setDaemon(true);
+        silentThread.start();
+
+        OlafStorageRemote remote = new OlafStorageRemote(nodeList.toString(), 500);
+        OlafQueryBatch queryBatch = new OlafQueryBatch();
+        for (int i = 0; i < 500; i++)
+            queryBatch.add(random.nextInt(10_000));
+        Set<Integer> avoid = new HashSet<>(Arrays.asList(4));
+
+        Map<Long, List<OlafHit>> expected = new TreeMap<>();
+        all.query(queryBatch, expected, 2, avoid);
+        Map<Long, List<OlafHit>> actual = new TreeMap<>();
+        remote.query(queryBatch, actual, 2, avoid);
+        assertEquals(toStrings(expected), toStrings(actual));
+        assertEquals("/test/7", remote.getMetadata(7).path);
+        assertNull(remote.getMetadata(1234));
+        remote.close();
+
+        //the silent node times out, the others return a partial result
+        OlafStorageRemote partialRemote = new OlafStorageRemote(nodeList + "localhost:" + silentNode.getLocalPort(), 500);
+        actual.clear();
+        long start = System.currentTimeMillis();
+        partialRemote.query(queryBatch, actual, 2, avoid);
+        assertTrue(System.currentTimeMillis() - start < 5000, "Expected the query to stop waiting for the silent node");
+        assertEquals(toStrings(expected), toStrings(actual));
+
+        //a stopped node is left out
+        servers.get(0).close();
+        actual.clear();
+        partialRemote.query(queryBatch, actual, 2, avoid);
+        for (String hit : toStrings(actual))
+            assertNotEquals(0, Integer.parseInt(hit.split(" ")[2]) % nodes.length, "Unexpected hit from stopped node " + hit);
+        assertFalse(actual.isEmpty());
+        partialRemote.close();
+
+        for (OlafStorageServer server : servers)
+            server.close();
+        silentNode.close();
+        for (Socket socket : silentConnections)
+            socket.close();
+    }
+
+    @Test
+    void retriesOnlyStaleConnections() throws IOException {
+        //the first connection answers the first request and is then closed by the node
+        try (ScriptedNode node = new ScriptedNode((connection, request) -> request == 0 ? ScriptedNode.ANSWER_AND_CLOSE : ScriptedNode.ANSWER)) {
+            OlafStorageRemote remote = new OlafStorageRemote("localhost:" + node.port(), 2000);
+            assertEquals(ScriptedNode.HITS, hitCount(remote));
+            //the stale pooled connection fails before the response: retried on a new connection
+            assertEquals(ScriptedNode.HITS, hitCount(remote));
+            assertEquals(2, node.connections.get());
+            remote.close();
+        }
+
+        //the second response breaks off after the first hit
+        try (ScriptedNode node = new ScriptedNode((connection, request) -> request == 0 ? ScriptedNode.ANSWER : ScriptedNode.PARTIAL_ANSWER)) {
+            OlafStorageRemote remote = new OlafStorageRemote("localhost:" + node.port(), 2000);
+            assertEquals(ScriptedNode.HITS, hitCount(remote));
+            //not retried: the node is left out instead of returning the first hit twice
+            assertEquals(0, hitCount(remote));
+            assertEquals(1, node.connections.get());
+            remote.close();
+        }
+
+        //a node which answers too late is not asked again
+        try (ScriptedNode node = new ScriptedNode((connection, request) -> request == 0 ? ScriptedNode.ANSWER : ScriptedNode.SLOW_ANSWER)) {
+            OlafStorageRemote remote = new OlafStorageRemote("localhost:" + node.port(), 500);
+            assertEquals(ScriptedNode.HITS, hitCount(remote));
+            assertEquals(0, hitCount(remote));
+            assertEquals(1, node.connections.get());
+            remote.close();
+        }
+    }
+
+    private static int hitCount(OlafStorageRemote remote) {
+        OlafQueryBatch queryBatch = new OlafQueryBatch();
+        queryBatch.add(42);
+        Map<Long, List<OlafHit>> hits = new TreeMap<>();
+        remote.query(queryBatch, hits, 2, new HashSet<>());
+        return hits.isEmpty() ? 0 : hits.get(42L).size();
+    }
+
+    /**
+     * A node which answers query requests as scripted for each connection and request.
+     */
+    private static class ScriptedNode implements AutoCloseable {
+        static final int ANSWER = 0;
+        static final int ANSWER_AND_CLOSE = 1;
+        static final int PARTIAL_ANSWER = 2;
+        static final int SLOW_ANSWER = 3;
+        static final int HITS = 3;
+
+        interface Script {
+            int action(int connection, int request);
+        }
+
+        final ServerSocket serverSocket = new ServerSocket(0);
+        final AtomicInteger connections = new AtomicInteger();
+        final List<Socket> sockets = Collections.synchronizedList(new ArrayList<>());
+
+        ScriptedNode(Script script) throws IOException {
+            Thread acceptor = new Thread(() -> {
+                try {
+                    while (true) {
+                        Socket socket = serverSocket.accept();
+                        sockets.add(socket);
+                        int connection = connections.getAndIncrement();
+                        Thread handler = new Thread(() -> serve(socket, connection, script));
+                        handler.setDaemon(true);
+                        handler.start();
+                    }
+                } catch (IOException e) {
+                    //closed
+                }
+            });
+            acceptor.setDaemon(true);
+            acceptor.start();
+        }
+
+        int port() {
+            return serverSocket.getLocalPort();
+        }
+
+        private void serve(Socket socket, int connection, Script script) {
+            try (Socket s = socket;
+                 DataInputStream in = new DataInputStream(s.getInputStream());
+                 DataOutputStream out = new DataOutputStream(s.getOutputStream())) {
+                for (int request = 0; in.read() >= 0; request++) {
+                    //a query request: range, resources to avoid and hashes
+                    in.readInt();
+                    int avoided = in.readInt();
+                    for (int i = 0; i < avoided; i++)
+                        in.readInt();
+                    int hashes = in.readInt();
+                    long hash = 0;
+                    for (int i = 0; i < hashes; i++)
+                        hash = in.readLong();
+
+                    int action = script.action(connection, request);
+                    if (action == SLOW_ANSWER)
+                        Thread.sleep(1500);
+                    out.writeInt(HITS);
+                    for (int i = 0; i < (action == PARTIAL_ANSWER ? 1 : HITS); i++) {
+                        out.writeLong(hash);
+                        out.writeLong(hash);
+                        out.writeInt(i);
+                        out.writeInt(5);
+                    }
+                    out.flush();
+                    if (action == ANSWER_AND_CLOSE || action == PARTIAL_ANSWER)
+                        return;
+                }
+            } catch (IOException | InterruptedException e) {
+                //closed
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            serverSocket.close();
+            synchronized (sockets) {
+                for (Socket socket : sockets)
+                    socket.close();
+            }
+        }
+    }
+
+    private static List<String> toStrings(Map<Long, List<OlafHit>> hits) {
+        List<String> strings = new ArrayList<>();
+        for (List<OlafHit> list : hits.values())
+            for (OlafHit hit : list)
+                strings.add(hit.originalHash + " " + hit.matchedNearHash + " " + hit.resourceID + " " + hit.t);
+        Collections.sort(strings);
+        return strings;
+    }
+}
@@ -5,12 +5,25 @@ import be.panako.util.AudioFileUtils;
 import be.panako.util.Config;
 import be.panako.util.FileUtils;
 import be.panako.util.Key;
+import be.panako.util.LemireMinMaxFilter;
+import be.panako.util.PcmCache;
+import be.panako.util.VariableWindowMaxFilter;
+import be.tarsos.dsp.io.TarsosDSPAudioFormat;
+import be.tarsos.dsp.io.TarsosDSPAudioInputStream;
 import org.junit.jupiter.api.Test;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.Random;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
 
 
 public class UtilsTest {
@@ -42,4 +55,161 @@ public class UtilsTest {
         assertNotEquals(expectedHash,calculatedHash,"Other files should have a hash different from " + expectedHash);
     }
 
+    @Test
+    void testReadPcm() throws IOException {
+        short[] pcm = {0, 1, -1, Short.MAX_VALUE, Short.MIN_VALUE, 12345, -12345};
+        byte[] bytes = new byte[pcm.length * 2];
+        for(int i = 0 ; i < pcm.length ; i++){
+            bytes[2*i] = (byte) pcm[i];
+            bytes[2*i+1] = (byte) (pcm[i] >> 8);
+        }
+        //a stream returning single bytes splits samples over reads
+        InputStream slowStream = new ByteArrayInputStream(bytes) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                return super.read(b, off, Math.min(len, 1));
+            }
+        };
+        float[] expected = AudioFileUtils.toFloat(pcm);
+        assertEquals(1.0f, expected[3]);
+        assertArrayEquals(expected, AudioFileUtils.readPcm(new ByteArrayInputStream(bytes)));
+        assertArrayEquals(expected, AudioFileUtils.readPcm(slowStream));
+    }
+
+    @Test
+    void testPcmCache() throws IOException {
+        File folder = new File(FileUtils.combine(FileUtils.temporaryDirectory(), "panako_pcm_cache_test"));
+        Config.set(Key.DECODER_CACHE_FOLDER, folder.getAbsolutePath());
+        Config.set(Key.DECODER_CACHE_SIZE, "4096");
+
+        Random random = new Random(1);
+        File audioFile = File.createTempFile("pcm_cache_test", ".mp3");
+        byte[] content = new byte[200_000];
+        random.nextBytes(content);
+        Files.write(audioFile.toPath(), content);
+        byte[] pcm = new byte[8000 * 2 * 3];
+        random.nextBytes(pcm);
+
+        //nothing cached yet, an incomplete decode is not cached
+        assertNull(PcmCache.open(audioFile.getPath(), 8000, 0, 0));
+        TarsosDSPAudioInputStream stream = PcmCache.fill(audioFile.getPath(), 8000, decodedStream(pcm));
+        stream.read(new byte[100], 0, 100);
+        stream.close();
+        assertNull(PcmCache.open(audioFile.getPath(), 8000, 0, 0));
+
+        //a complete decode is cached
+        assertArrayEquals(pcm, readAll(PcmCache.fill(audioFile.getPath(), 8000, decodedStream(pcm))));
+        assertArrayEquals(pcm, readAll(PcmCache.open(audioFile.getPath(), 8000, 0, 0)));
+        assertNull(PcmCache.open(audioFile.getPath(), 16000, 0, 0));
+
+        //one second from the start of the second second
+        byte[] part = readAll(PcmCache.open(audioFile.getPath(), 8000, 1, 1));
+        assertArrayEquals(java.util.Arrays.copyOfRange(pcm, 16000, 32000), part);
+
+        audioFile.delete();
+        for(File file : folder.listFiles())
+            file.delete();
+    }
+
+    @Test
+    void testPcmCacheFailedDecode() throws IOException {
+        File folder = new File(FileUtils.combine(FileUtils.temporaryDirectory(), "panako_pcm_cache_failure_test"));
+        Config.set(Key.DECODER_CACHE_FOLDER, folder.getAbsolutePath());
+        Config.set(Key.DECODER_CACHE_SIZE, "4096");
+
+        Random random = new Random(2);
+        File audioFile = File.createTempFile("pcm_cache_failure_test", ".mp3");
+        byte[] content = new byte[200_000];
+        random.nextBytes(content);
+        Files.write(audioFile.toPath(), content);
+        byte[] pcm = new byte[8000 * 2 * 3];
+        random.nextBytes(pcm);
+
+        //a decoder which stops without output
+        assertArrayEquals(new byte[0], readAll(PcmCache.fill(audioFile.getPath(), 8000, decodedStream(new byte[0]))));
+        assertNull(PcmCache.open(audioFile.getPath(), 8000, 0, 0));
+
+        //a decoder which stops after one of the three reported seconds
+        byte[] truncated = java.util.Arrays.copyOf(pcm, 16000);
+        assertArrayEquals(truncated, readAll(PcmCache.fill(audioFile.getPath(), 8000, decodedStream(truncated, pcm.length / 2, null))));
+        assertNull(PcmCache.open(audioFile.getPath(), 8000, 0, 0));
+
+        //a decoder which exits with an error
+        assertArrayEquals(pcm, readAll(PcmCache.fill(audioFile.getPath(), 8000, decodedStream(pcm, -1, false))));
+        assertNull(PcmCache.open(audioFile.getPath(), 8000, 0, 0));
+
+        //no temporary files are left behind
+        assertEquals(0, folder.listFiles().length);
+
+        //a decoder which exits successfully
+        assertArrayEquals(pcm, readAll(PcmCache.fill(audioFile.getPath(), 8000, decodedStream(pcm, -1, true))));
+        assertArrayEquals(pcm, readAll(PcmCache.open(audioFile.getPath(), 8000, 0, 0)));
+
+        audioFile.delete();
+        for(File file : folder.listFiles())
+            file.delete();
+    }
+
+    @Test
+    void testVariableWindowMaxFilter(){
+        float[] data = {1,2,3,7,8,-7,12,13,7,0,4};
+        //growing windows, a window which goes back and an empty window
+        int[] starts = {0,0,1,2,2,1,5,6,9,10,10};
+        int[] stops  = {1,3,3,5,6,4,9,9,11,11,10};
+        float[] expected = {1,3,3,8,8,7,13,13,4,4,Float.NEGATIVE_INFINITY};
+        float[] maxFiltered = new float[data.length];
+        new VariableWindowMaxFilter(starts, stops).maxFilter(data, maxFiltered);
+        assertArrayEquals(expected, maxFiltered);
+
+        //centered windows give the same result as the clamped fixed window filter
+        Random random = new Random(3);
+        float[] spectrum = new float[512];
+        for(int i = 0 ; i < spectrum.length ; i++)
+            spectrum[i] = random.nextFloat();
+        float[] lemire = new float[spectrum.length];
+        new LemireMinMaxFilter(103, spectrum.length, true).maxFilter(spectrum, lemire);
+        float[] centered = new float[spectrum.length];
+        VariableWindowMaxFilter.centered(103, spectrum.length).maxFilter(spectrum, centered);
+        assertArrayEquals(lemire, centered);
+    }
+
+    private static byte[] readAll(TarsosDSPAudioInputStream stream) throws IOException {
+        assertNotNull(stream);
+        java.io.ByteArrayOutputStream out = new java.io.ByteArrayOutputStream();
+        byte[] buffer = new byte[1000];
+        int read;
+        while((read = stream.read(buffer, 0, buffer.length)) != -1)
+            out.write(buffer, 0, read);
+        stream.close();
+        return out.toByteArray();
+    }
+
+    private static TarsosDSPAudioInputStream decodedStream(byte[] pcm) {
+        return decodedStream(pcm, pcm.length / 2, null);
+    }
+
+    /**
+     * @param succeeded The status reported by the decoder, null for a decoder without status.
+     */
+    private static TarsosDSPAudioInputStream decodedStream(byte[] pcm, long frameLength, Boolean succeeded) {
+        InputStream in = new ByteArrayInputStream(pcm);
+        class Decoded implements TarsosDSPAudioInputStream {
+            @Override
+            public long skip(long n) throws IOException { return in.skip(n); }
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException { return in.read(b, off, len); }
+            @Override
+            public void close() throws IOException { in.close(); }
+            @Override
+            public TarsosDSPAudioFormat getFormat() { return new TarsosDSPAudioFormat(8000, 16, 1, true, false); }
+            @Override
+            public long getFrameLength() { return frameLength; }
+        }
+        class DecodedWithStatus extends Decoded implements PcmCache.DecoderStatus {
+            @Override
+            public boolean succeeded() { return succeeded; }
+        }
+        return succeeded == null ? new Decoded() : new DecodedWithStatus();
+    }
+
 }
@@ -0,0 +1,108 @@
+/***************************************************************************
+*                                                                          *
+* Panako - acoustic fingerprinting                                         *
+* Copyright (C) 2014 - 2022 - Joren Six / IPEM                             *
+*                                                                          *
+* This program is free software: you can redistribute it and/or modify     *
+* it under the terms of the GNU Affero General Public License as           *
+* published by the Free Software Foundation, either version 3 of the       *
+* License, or (at your option) any later version.                          *
+*                                                                          *
+* This program is distributed in the hope that it will be useful,          *
+* but WITHOUT ANY WARRANTY; without even the implied warranty of           *
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the            *
+* GNU Affero General Public License for more details.                      *
+*                                                                          *
+* You should have received a copy of the GNU Affero General Public License *
+* along with this program.  If not, see <http://www.gnu.org/licenses/>     *
+*                                                                          *
+****************************************************************************
+*    ______   ________   ___   __    ________   ___   ___   ______         *
+*   /_____/\ /_______/\ /__/\ /__/\ /_______/\ /___/\/__/\ /_____/\        *
+*   \:::_ \ \\::: _  \ \\::\_\\  \ \\::: _  \ \\::.\ \\ \ \\:::_ \ \       *
+*    \:(_) \ \\::(_)  \ \\:. `-\  \ \\::(_)  \ \\:: \/_) \ \\:\ \ \ \      *
+*     \: ___\/ \:: __  \ \\:. _    \ \\:: __  \ \\:. __  ( ( \:\ \ \ \     *
+*      \ \ \    \:.\ \  \ \\. \`-\  \ \\:.\ \  \ \\: \ )  \ \ \:\_\ \ \    *
+*       \_\/     \__\/\__\/ \__\/ \__\/ \__\/\__\/ \__\/\__\/  \_____\/    *
+*                                                                          *
+****************************************************************************
+*                                                                          *
+*                              Panako                                      *
+*                       Acoustic Fingerprinting                            *
+*                                                                          *
+****************************************************************************/
+
+
+package be.panako.strategy.olaf;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShuffle;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * The OLAF event point kernels implemented with the JDK Vector API. Only compare,
+ * multiply and add are used lane wise - no fused multiply add or reordered sums - so the results
+ * are identical to the scalar implementation.
+ *
+ * This class is compiled with a JDK 17 or newer and is only loaded when the jdk.incubator.vector
+ * module is added to the JVM, see {@link OlafSpectralKernel#create()}.
+ */
+final class OlafVectorKernel extends OlafSpectralKernel {
+
+	private static final VectorSpecies<Float> SPECIES = FloatVector.SPECIES_PREFERRED;
+
+	private static final int LANES = SPECIES.length();
+
+	/**
+	 * Selects the real parts (even indexes) and the imaginary parts (odd indexes) from two
+	 * consecutive vectors of interleaved fft data: indexes past the first vector wrap to the second.
+	 */
+	private static final VectorShuffle<Float> REAL = VectorShuffle.fromOp(SPECIES, i -> 2 * i);
+	private static final VectorShuffle<Float> IMAGINARY = VectorShuffle.fromOp(SPECIES, i -> 2 * i + 1);
+
+	@Override
+	void magnitudes(float[] fft, float[] magnitudes, int from) {
+		int i = from;
+		for (; i + LANES <= magnitudes.length; i += LANES) {
+			FloatVector first = FloatVector.fromArray(SPECIES, fft, 2 * i);
+			FloatVector second = FloatVector.fromArray(SPECIES, fft, 2 * i + LANES);
+			FloatVector real = first.rearrange(REAL, second);
+			FloatVector imaginary = first.rearrange(IMAGINARY, second);
+			real.mul(real).add(imaginary.mul(imaginary)).intoArray(magnitudes, i);
+		}
+		for (; i < magnitudes.length; i++) {
+			int realIndex = 2 * i;
+			int imgIndex  = 2 * i + 1;
+			magnitudes[i] =  fft[realIndex] * fft[realIndex] + fft[imgIndex] * fft[imgIndex];
+		}
+	}
+
+	@Override
+	int peakCandidates(float[] magnitudes, float[] max, int from, int to, int[] candidates) {
+		int count = 0;
+		int f = from;
+		for (; f + LANES <= to; f += LANES) {
+			FloatVector current = FloatVector.fromArray(SPECIES, magnitudes, f);
+			VectorMask<Float> peaks = current.eq(FloatVector.fromArray(SPECIES, max, f))
+					.and(current.compare(VectorOperators.NE, 0));
+			long lanes = peaks.toLong();
+			while (lanes != 0) {
+				candidates[count++] = f + Long.numberOfTrailingZeros(lanes);
+				lanes &= lanes - 1;
+			}
+		}
+		for (; f < to; f++) {
+			float currentVal = magnitudes[f];
+			if (currentVal == max[f] && currentVal != 0)
+				candidates[count++] = f;
+		}
+		return count;
+	}
+
+	@Override
+	public String toString() {
+		return SPECIES.toString();
+	}
+}